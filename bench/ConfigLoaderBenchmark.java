@@ -0,0 +1,66 @@
+package bench;
+
+import java.io.IOException;
+
+import src.ConfigLoader;
+
+/**
+ * Parses a synthetic config with 10k routes and reports the time per parse.
+ *
+ * From the project root:
+ *   javac -d out src/*.java bench/ConfigLoaderBenchmark.java
+ *   java -cp out bench.ConfigLoaderBenchmark [routes] [iterations]
+ */
+public class ConfigLoaderBenchmark {
+    public static void main(String[] args) throws IOException {
+        int routeCount = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        String json = generateConfig(routeCount);
+        
+        System.out.println("Config size: " + json.length() + " chars, " + routeCount + " routes");
+        
+        for (int i = 0; i < 10; i++) {
+            ConfigLoader.parse(json);
+        }
+        
+        long best = Long.MAX_VALUE;
+        long total = 0;
+        int routes = 0;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            ConfigLoader.Config config = ConfigLoader.parse(json);
+            long elapsed = System.nanoTime() - start;
+            routes += config.getRoutes().size();
+            best = Math.min(best, elapsed);
+            total += elapsed;
+        }
+        
+        System.out.printf("avg %.3f ms/parse, best %.3f ms/parse (%d routes bound)%n",
+            total / 1e6 / iterations, best / 1e6, routes / iterations);
+    }
+    
+    static String generateConfig(int routeCount) {
+        StringBuilder sb = new StringBuilder(routeCount * 200);
+        sb.append("{\n")
+          .append("  \"host\": \"127.0.0.1\",\n")
+          .append("  \"ports\": [8080, 8081],\n")
+          .append("  \"clientBodySizeLimit\": 1000000,\n")
+          .append("  \"requestTimeout\": 30000,\n")
+          .append("  \"errorPages\": {\n")
+          .append("    \"404\": \"error_pages/404.html\",\n")
+          .append("    \"500\": \"error_pages/500.html\"\n")
+          .append("  },\n")
+          .append("  \"routes\": [\n");
+        for (int i = 0; i < routeCount; i++) {
+            sb.append("    {\"path\": \"/api/v1/resource-").append(i).append("\", ")
+              .append("\"allowedMethods\": [\"GET\", \"POST\"], ")
+              .append("\"root\": \"www/resource\\u002d").append(i).append("\", ")
+              .append("\"defaultFile\": \"index.html\", ")
+              .append("\"cgiExtension\": \".py\", ")
+              .append("\"directoryListing\": ").append(i % 2 == 0).append("}");
+            sb.append(i < routeCount - 1 ? ",\n" : "\n");
+        }
+        sb.append("  ]\n}\n");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,85 @@
+package bench;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives a running server with a fixed number of concurrent requests and
+ * reports throughput and latency percentiles, over HTTP/1.1 or HTTP/2.
+ *
+ * In h1 mode every request gets its own connection pool slot, as a browser
+ * would; in h2 mode all of them are multiplexed over one connection,
+ * negotiated with Upgrade: h2c.
+ *
+ * From the project root, with the server running:
+ *   javac -d out src/*.java bench/HttpLoadBenchmark.java
+ *   java -cp out bench.HttpLoadBenchmark <url> [h1|h2] [concurrency] [requests]
+ */
+public class HttpLoadBenchmark {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: HttpLoadBenchmark <url> [h1|h2] [concurrency] [requests]");
+            System.exit(1);
+        }
+        URI uri = URI.create(args[0]);
+        boolean h2 = args.length > 1 && args[1].equals("h2");
+        int concurrency = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        int total = args.length > 3 ? Integer.parseInt(args[3]) : 10_000;
+
+        HttpClient client = HttpClient.newBuilder()
+            .version(h2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+            .build();
+        HttpRequest request = HttpRequest.newBuilder(uri).GET().build();
+
+        // Warm-up, which for h2 also performs the upgrade.
+        HttpResponse<byte[]> first = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        System.out.println("Protocol " + first.version() + ", status " + first.statusCode()
+            + ", " + first.body().length + " bytes");
+
+        long[] latencies = new long[total];
+        AtomicLong next = new AtomicLong();
+        AtomicLong failures = new AtomicLong();
+        AtomicLong bytes = new AtomicLong();
+        List<CompletableFuture<Void>> workers = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < concurrency; i++) {
+            workers.add(run(client, request, next, total, latencies, failures, bytes));
+        }
+        CompletableFuture.allOf(workers.toArray(new CompletableFuture<?>[0])).join();
+        long elapsed = System.nanoTime() - start;
+
+        Arrays.sort(latencies);
+        System.out.printf("%d requests, %d failed, concurrency %d: %.0f req/s, %.1f MB/s%n",
+            total, failures.get(), concurrency, total / (elapsed / 1e9), bytes.get() / 1e6 / (elapsed / 1e9));
+        System.out.printf("latency p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+            latencies[total / 2] / 1e6, latencies[(int) (total * 0.99)] / 1e6, latencies[total - 1] / 1e6);
+    }
+
+    // One logical client: issues its next request as soon as the last completes.
+    private static CompletableFuture<Void> run(HttpClient client, HttpRequest request, AtomicLong next, int total,
+                                               long[] latencies, AtomicLong failures, AtomicLong bytes) {
+        int index = (int) next.getAndIncrement();
+        if (index >= total) {
+            return CompletableFuture.completedFuture(null);
+        }
+        long start = System.nanoTime();
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+            .handle((response, error) -> {
+                latencies[index] = System.nanoTime() - start;
+                if (error != null || response.statusCode() >= 500) {
+                    failures.incrementAndGet();
+                } else {
+                    bytes.addAndGet(response.body().length);
+                }
+                return null;
+            })
+            .thenCompose(ignored -> run(client, request, next, total, latencies, failures, bytes));
+    }
+}
@@ -0,0 +1,121 @@
+package src;
+
+import java.io.IOException;
+
+/**
+ * The "admission" block: connection, in-flight and buffered-byte limits
+ * and what to do when they are reached.
+ */
+public class AdmissionConfig {
+    private int maxConnections = 10000;
+    private int maxInFlightRequests = 5000;
+    private long maxBufferedBytes = 256L * 1024 * 1024;
+    private long maxInlineFileBytes = 1024 * 1024;
+    private String overloadAction = "reject";
+    private int retryAfterSeconds = 1;
+    private boolean adaptive = false;
+    private int maxLoopLatencyMs = 100;
+    private int maxQueueDepth = 1024;
+    
+    public int getMaxConnections() { return maxConnections; }
+    public int getMaxInFlightRequests() { return maxInFlightRequests; }
+    public long getMaxBufferedBytes() { return maxBufferedBytes; }
+    /** Static files larger than this are streamed from disk rather than loaded whole. */
+    public long getMaxInlineFileBytes() { return maxInlineFileBytes; }
+    public String getOverloadAction() { return overloadAction; }
+    public int getRetryAfterSeconds() { return retryAfterSeconds; }
+    public boolean isAdaptive() { return adaptive; }
+    public int getMaxLoopLatencyMs() { return maxLoopLatencyMs; }
+    public int getMaxQueueDepth() { return maxQueueDepth; }
+    
+    public void setMaxConnections(int maxConnections) { this.maxConnections = maxConnections; }
+    public void setMaxInFlightRequests(int maxInFlightRequests) { this.maxInFlightRequests = maxInFlightRequests; }
+    public void setMaxBufferedBytes(long maxBufferedBytes) { this.maxBufferedBytes = maxBufferedBytes; }
+    public void setMaxInlineFileBytes(long maxInlineFileBytes) { this.maxInlineFileBytes = maxInlineFileBytes; }
+    public void setOverloadAction(String overloadAction) { this.overloadAction = overloadAction; }
+    public void setRetryAfterSeconds(int retryAfterSeconds) { this.retryAfterSeconds = retryAfterSeconds; }
+    public void setAdaptive(boolean adaptive) { this.adaptive = adaptive; }
+    public void setMaxLoopLatencyMs(int maxLoopLatencyMs) { this.maxLoopLatencyMs = maxLoopLatencyMs; }
+    public void setMaxQueueDepth(int maxQueueDepth) { this.maxQueueDepth = maxQueueDepth; }
+
+    static AdmissionConfig read(JsonReader reader) throws IOException {
+        AdmissionConfig admission = new AdmissionConfig();
+        
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            Integer value;
+            switch (name) {
+                case "maxConnections":
+                    value = ConfigLoader.readInt(reader, admission.getMaxConnections());
+                    if (value != null) {
+                        admission.setMaxConnections(value);
+                    }
+                    break;
+                case "maxInFlightRequests":
+                    value = ConfigLoader.readInt(reader, admission.getMaxInFlightRequests());
+                    if (value != null) {
+                        admission.setMaxInFlightRequests(value);
+                    }
+                    break;
+                case "maxBufferedBytes":
+                    Long bytes = ConfigLoader.readLong(reader, admission.getMaxBufferedBytes());
+                    if (bytes != null) {
+                        admission.setMaxBufferedBytes(bytes);
+                    }
+                    break;
+                case "maxInlineFileBytes":
+                    Long inline = ConfigLoader.readLong(reader, admission.getMaxInlineFileBytes());
+                    if (inline != null) {
+                        admission.setMaxInlineFileBytes(inline);
+                    }
+                    break;
+                case "overloadAction":
+                    String action = ConfigLoader.readString(reader);
+                    if (action != null) {
+                        admission.setOverloadAction(action.toLowerCase());
+                    }
+                    break;
+                case "retryAfterSeconds":
+                    value = ConfigLoader.readInt(reader, admission.getRetryAfterSeconds());
+                    if (value != null) {
+                        admission.setRetryAfterSeconds(value);
+                    }
+                    break;
+                case "adaptive":
+                    Boolean adaptive = ConfigLoader.readBoolean(reader);
+                    if (adaptive != null) {
+                        admission.setAdaptive(adaptive);
+                    }
+                    break;
+                case "maxLoopLatencyMs":
+                    value = ConfigLoader.readInt(reader, admission.getMaxLoopLatencyMs());
+                    if (value != null) {
+                        admission.setMaxLoopLatencyMs(value);
+                    }
+                    break;
+                case "maxQueueDepth":
+                    value = ConfigLoader.readInt(reader, admission.getMaxQueueDepth());
+                    if (value != null) {
+                        admission.setMaxQueueDepth(value);
+                    }
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        
+        return admission;
+    }
+
+    void validate() throws IOException {
+        if (maxConnections <= 0 || maxInFlightRequests <= 0 || maxBufferedBytes <= 0 || maxInlineFileBytes < 0) {
+            throw new IOException("Admission limits must be positive");
+        }
+        if (!overloadAction.equals("reject") && !overloadAction.equals("backlog")) {
+            throw new IOException("Invalid admission overloadAction: " + overloadAction);
+        }
+    }
+}
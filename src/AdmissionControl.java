@@ -0,0 +1,148 @@
+package src;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Global admission limits for the event loop: open connections, in-flight
+ * requests and buffered bytes, plus an optional adaptive mode that sheds
+ * load when the loop itself falls behind.
+ *
+ * Buffered bytes are the server's memory budget: request buffers, in-memory
+ * bodies and responses waiting to be written. Past the budget, connections
+ * stop being read, large files are streamed instead of loaded, bodies spool
+ * to disk at once and new requests are shed.
+ *
+ * All state is owned by the selector thread, so no synchronization is
+ * needed here; the counters it exports are atomic only so they can be read
+ * from elsewhere.
+ */
+public class AdmissionControl {
+    private static final double LATENCY_EWMA_WEIGHT = 0.2;
+
+    private final AdmissionConfig config;
+    private final byte[] serviceUnavailable;
+
+    private int openConnections;
+    private int inFlightRequests;
+    private long bufferedBytes;
+    private long peakBufferedBytes;
+    private double loopLatencyMs;
+    private int queueDepth;
+
+    private final AtomicLong rejectedConnections;
+    private final AtomicLong pausedAccepts;
+    private final AtomicLong shedRequests;
+    private final AtomicLong overloadedIterations;
+    private final AtomicLong openConnectionsGauge;
+    private final AtomicLong inFlightGauge;
+    private final AtomicLong bufferedBytesGauge;
+    private final AtomicLong peakBufferedBytesGauge;
+    private final AtomicLong pausedReads;
+
+    public AdmissionControl(AdmissionConfig config, Metrics metrics) {
+        this.config = config;
+        this.serviceUnavailable = ("HTTP/1.1 503 Service Unavailable\r\n" +
+            "Retry-After: " + config.getRetryAfterSeconds() + "\r\n" +
+            "Content-Length: 0\r\n" +
+            "Connection: close\r\n" +
+            "\r\n").getBytes(StandardCharsets.US_ASCII);
+        this.rejectedConnections = metrics.counter("admission.rejected_connections");
+        this.pausedAccepts = metrics.counter("admission.paused_accepts");
+        this.shedRequests = metrics.counter("admission.shed_requests");
+        this.overloadedIterations = metrics.counter("admission.overloaded_iterations");
+        this.openConnectionsGauge = metrics.counter("connections.open");
+        this.inFlightGauge = metrics.counter("requests.in_flight");
+        this.bufferedBytesGauge = metrics.counter("buffers.bytes");
+        this.peakBufferedBytesGauge = metrics.counter("buffers.bytes_peak");
+        this.pausedReads = metrics.counter("admission.paused_reads");
+    }
+
+    /** Whether a new connection may be accepted right now. */
+    public boolean canAccept() {
+        return openConnections < config.getMaxConnections()
+            && inFlightRequests < config.getMaxInFlightRequests()
+            && bufferedBytes < config.getMaxBufferedBytes()
+            && !isOverloaded();
+    }
+
+    /** Whether an already-parsed request should get a fast 503 instead of being handled. */
+    public boolean shouldShedRequest() {
+        if (bufferedBytes >= config.getMaxBufferedBytes() || isOverloaded()) {
+            shedRequests.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /** true: accept and answer 503; false: leave connections in the listen backlog. */
+    public boolean rejectsWhenFull() {
+        return "reject".equals(config.getOverloadAction());
+    }
+
+    public byte[] serviceUnavailableResponse() {
+        return serviceUnavailable;
+    }
+
+    public void connectionRejected() {
+        rejectedConnections.incrementAndGet();
+    }
+
+    public void acceptsPaused() {
+        pausedAccepts.incrementAndGet();
+    }
+
+    public void connectionOpened() {
+        openConnectionsGauge.set(++openConnections);
+    }
+
+    public void connectionClosed() {
+        openConnectionsGauge.set(--openConnections);
+    }
+
+    public void requestStarted() {
+        inFlightGauge.set(++inFlightRequests);
+    }
+
+    public void requestFinished() {
+        inFlightGauge.set(--inFlightRequests);
+    }
+
+    public void addBufferedBytes(long delta) {
+        bufferedBytes += delta;
+        bufferedBytesGauge.set(bufferedBytes);
+        if (bufferedBytes > peakBufferedBytes) {
+            peakBufferedBytes = bufferedBytes;
+            peakBufferedBytesGauge.set(bufferedBytes);
+        }
+    }
+
+    /** Whether anything more may be buffered; connections are not read while it is false. */
+    public boolean hasBufferRoom() {
+        return bufferedBytes < config.getMaxBufferedBytes();
+    }
+
+    /** Whether a response of the given size may be held in memory whole. */
+    public boolean canBufferResponse(long bytes) {
+        return bytes <= config.getMaxInlineFileBytes() && bufferedBytes + bytes <= config.getMaxBufferedBytes();
+    }
+
+    public void readPaused() {
+        pausedReads.incrementAndGet();
+    }
+
+    /** Feeds one loop iteration's processing time and the number of events it handled. */
+    public void recordLoopIteration(long elapsedNanos, int depth) {
+        double elapsedMs = elapsedNanos / 1_000_000.0;
+        loopLatencyMs += LATENCY_EWMA_WEIGHT * (elapsedMs - loopLatencyMs);
+        queueDepth = depth;
+        if (isOverloaded()) {
+            overloadedIterations.incrementAndGet();
+        }
+    }
+
+    private boolean isOverloaded() {
+        return config.isAdaptive()
+            && (loopLatencyMs > config.getMaxLoopLatencyMs() || queueDepth > config.getMaxQueueDepth());
+    }
+}
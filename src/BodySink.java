@@ -0,0 +1,10 @@
+package src;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/** Consumer of request body bytes as they are read off the connection. */
+public interface BodySink {
+    /** Consumes all remaining bytes of src. */
+    void write(ByteBuffer src) throws IOException;
+}
@@ -0,0 +1,96 @@
+package src;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A route's "cache" block: how long responses are kept and served stale,
+ * which query parameters are part of the key, and how concurrent misses
+ * are coalesced.
+ */
+public class CacheConfig {
+    private int ttlSeconds = 1;
+    private int staleWhileRevalidateSeconds = 0;
+    private List<String> queryParams;
+    private long maxEntryBytes = 1024 * 1024;
+    private int coalesceTimeoutMs = 5000;
+    
+    public int getTtlSeconds() { return ttlSeconds; }
+    public int getStaleWhileRevalidateSeconds() { return staleWhileRevalidateSeconds; }
+    /** Query parameters that are part of the cache key; null means the whole query string. */
+    public List<String> getQueryParams() { return queryParams; }
+    public long getMaxEntryBytes() { return maxEntryBytes; }
+    /** How long identical misses wait on the first one's fetch; 0 turns coalescing off. */
+    public int getCoalesceTimeoutMs() { return coalesceTimeoutMs; }
+    
+    public void setTtlSeconds(int ttlSeconds) { this.ttlSeconds = ttlSeconds; }
+    public void setStaleWhileRevalidateSeconds(int staleWhileRevalidateSeconds) { this.staleWhileRevalidateSeconds = staleWhileRevalidateSeconds; }
+    public void setQueryParams(List<String> queryParams) { this.queryParams = queryParams; }
+    public void setMaxEntryBytes(long maxEntryBytes) { this.maxEntryBytes = maxEntryBytes; }
+    public void setCoalesceTimeoutMs(int coalesceTimeoutMs) { this.coalesceTimeoutMs = coalesceTimeoutMs; }
+
+    static CacheConfig read(JsonReader reader) throws IOException {
+        CacheConfig cache = new CacheConfig();
+        
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            Integer value;
+            switch (name) {
+                case "ttlSeconds":
+                    value = ConfigLoader.readInt(reader, cache.getTtlSeconds());
+                    if (value != null) {
+                        cache.setTtlSeconds(value);
+                    }
+                    break;
+                case "staleWhileRevalidateSeconds":
+                    value = ConfigLoader.readInt(reader, cache.getStaleWhileRevalidateSeconds());
+                    if (value != null) {
+                        cache.setStaleWhileRevalidateSeconds(value);
+                    }
+                    break;
+                case "queryParams":
+                    if (reader.peek() == JsonReader.Token.BEGIN_ARRAY) {
+                        List<String> params = new ArrayList<>();
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            String param = ConfigLoader.readString(reader);
+                            if (param != null) {
+                                params.add(param);
+                            }
+                        }
+                        reader.endArray();
+                        cache.setQueryParams(params);
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                case "maxEntryBytes":
+                    Long maxEntryBytes = ConfigLoader.readLong(reader, cache.getMaxEntryBytes());
+                    if (maxEntryBytes != null) {
+                        cache.setMaxEntryBytes(maxEntryBytes);
+                    }
+                    break;
+                case "coalesceTimeoutMs":
+                    value = ConfigLoader.readInt(reader, cache.getCoalesceTimeoutMs());
+                    if (value != null) {
+                        cache.setCoalesceTimeoutMs(value);
+                    }
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        
+        return cache;
+    }
+
+    void validate(String routePath) throws IOException {
+        if (ttlSeconds <= 0 || staleWhileRevalidateSeconds < 0 || maxEntryBytes <= 0 || coalesceTimeoutMs < 0) {
+            throw new IOException("Route " + routePath + " has invalid cache settings");
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package src;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * Attachment for selector keys that are not client connections, such as
+ * upstream proxy connections; the event loop hands their ready events here.
+ */
+public interface ChannelHandler {
+    void handleEvent(SelectionKey key) throws IOException;
+}
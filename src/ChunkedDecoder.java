@@ -0,0 +1,159 @@
+package src;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental, binary-safe decoder for Transfer-Encoding: chunked bodies.
+ *
+ * Feed it whatever bytes have arrived; it keeps its position in the chunk
+ * grammar between calls and writes chunk data straight into a BodySink.
+ * Chunk extensions are skipped, trailer fields are read and discarded, and
+ * the body limit is enforced as soon as a chunk size is known.
+ */
+public class ChunkedDecoder {
+    private static final int MAX_SIZE_LINE = 4096;
+    private static final int MAX_TRAILER_BYTES = 8192;
+
+    private enum State {
+        SIZE,
+        EXTENSION,
+        SIZE_LF,
+        DATA,
+        DATA_CR,
+        DATA_LF,
+        TRAILER_START,
+        TRAILER_LINE,
+        TRAILER_LF,
+        FINAL_LF,
+        DONE
+    }
+
+    private final long maxBodySize;
+    private State state = State.SIZE;
+    private long chunkRemaining;
+    private int sizeDigits;
+    private int lineBytes;
+    private int trailerBytes;
+    private long bodyLength;
+
+    public ChunkedDecoder(long maxBodySize) {
+        this.maxBodySize = maxBodySize;
+    }
+
+    public boolean isDone() {
+        return state == State.DONE;
+    }
+
+    /**
+     * Consumes bytes from in until it is empty or the final chunk and
+     * trailers have been read. Bytes after the end of the body are left in
+     * the buffer.
+     */
+    public void decode(ByteBuffer in, BodySink body) throws IOException {
+        while (in.hasRemaining() && state != State.DONE) {
+            if (state == State.DATA) {
+                int n = (int) Math.min(chunkRemaining, in.remaining());
+                ByteBuffer slice = in.duplicate();
+                slice.limit(slice.position() + n);
+                body.write(slice);
+                in.position(in.position() + n);
+                chunkRemaining -= n;
+                if (chunkRemaining == 0) {
+                    state = State.DATA_CR;
+                }
+                continue;
+            }
+
+            byte b = in.get();
+            switch (state) {
+                case SIZE:
+                    int digit = Character.digit(b, 16);
+                    if (digit >= 0) {
+                        if (++sizeDigits > 15) {
+                            throw badRequest("Chunk size too long");
+                        }
+                        chunkRemaining = (chunkRemaining << 4) | digit;
+                    } else if (sizeDigits == 0) {
+                        throw badRequest("Missing chunk size");
+                    } else if (b == ';' || b == ' ' || b == '\t') {
+                        state = State.EXTENSION;
+                    } else if (b == '\r') {
+                        state = State.SIZE_LF;
+                    } else {
+                        throw badRequest("Invalid chunk size");
+                    }
+                    break;
+                case EXTENSION:
+                    if (++lineBytes > MAX_SIZE_LINE) {
+                        throw badRequest("Chunk extension too long");
+                    }
+                    if (b == '\r') {
+                        state = State.SIZE_LF;
+                    }
+                    break;
+                case SIZE_LF:
+                    expectLf(b);
+                    sizeDigits = 0;
+                    lineBytes = 0;
+                    if (chunkRemaining == 0) {
+                        state = State.TRAILER_START;
+                    } else {
+                        bodyLength += chunkRemaining;
+                        if (bodyLength > maxBodySize) {
+                            throw new HttpException(413, "Payload Too Large", "Chunked body exceeds " + maxBodySize + " bytes");
+                        }
+                        state = State.DATA;
+                    }
+                    break;
+                case DATA_CR:
+                    if (b != '\r') {
+                        throw badRequest("Missing CRLF after chunk data");
+                    }
+                    state = State.DATA_LF;
+                    break;
+                case DATA_LF:
+                    expectLf(b);
+                    state = State.SIZE;
+                    break;
+                case TRAILER_START:
+                    state = b == '\r' ? State.FINAL_LF : State.TRAILER_LINE;
+                    countTrailer();
+                    break;
+                case TRAILER_LINE:
+                    countTrailer();
+                    if (b == '\r') {
+                        state = State.TRAILER_LF;
+                    }
+                    break;
+                case TRAILER_LF:
+                    expectLf(b);
+                    countTrailer();
+                    state = State.TRAILER_START;
+                    break;
+                case FINAL_LF:
+                    expectLf(b);
+                    state = State.DONE;
+                    break;
+                default:
+                    throw new IllegalStateException(state.name());
+            }
+        }
+    }
+
+    private void countTrailer() throws HttpException {
+        if (++trailerBytes > MAX_TRAILER_BYTES) {
+            throw badRequest("Trailer section too large");
+        }
+    }
+
+    private static void expectLf(byte b) throws HttpException {
+        if (b != '\n') {
+            throw badRequest("Expected LF");
+        }
+    }
+
+    private static HttpException badRequest(String message) {
+        return new HttpException(400, "Bad Request", message);
+    }
+}
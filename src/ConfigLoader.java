@@ -12,6 +12,17 @@ public class ConfigLoader {
         private int requestTimeout;
         private Map<Integer, String> errorPages;
         private List<Route> routes;
+        private AdmissionConfig admission;
+        private RateLimitConfig rateLimit;
+        private SessionConfig sessions;
+        private long cacheMaxBytes;
+        private List<ListenerConfig> listeners;
+        private SlowLogConfig slowLog;
+        private Http2Config http2;
+        private List<SseChannelConfig> sseChannels;
+        private SlowClientConfig slowClient;
+        private LoopConfig loop;
+        private PreforkConfig prefork;
         
     
         public String getHost() { return host; }
@@ -35,6 +46,29 @@ public class ConfigLoader {
         public void setRequestTimeout(int requestTimeout) { this.requestTimeout = requestTimeout; }
         public void setErrorPages(Map<Integer, String> errorPages) { this.errorPages = errorPages; }
         public void setRoutes(List<Route> routes) { this.routes = routes; }
+        public AdmissionConfig getAdmission() { return admission; }
+        public void setAdmission(AdmissionConfig admission) { this.admission = admission; }
+        public RateLimitConfig getRateLimit() { return rateLimit; }
+        public void setRateLimit(RateLimitConfig rateLimit) { this.rateLimit = rateLimit; }
+        public SessionConfig getSessions() { return sessions; }
+        public void setSessions(SessionConfig sessions) { this.sessions = sessions; }
+        public long getCacheMaxBytes() { return cacheMaxBytes; }
+        public void setCacheMaxBytes(long cacheMaxBytes) { this.cacheMaxBytes = cacheMaxBytes; }
+        public List<ListenerConfig> getListeners() { return listeners; }
+        public void setListeners(List<ListenerConfig> listeners) { this.listeners = listeners; }
+        /** Null unless a "slowLog" block is configured. */
+        public SlowLogConfig getSlowLog() { return slowLog; }
+        public void setSlowLog(SlowLogConfig slowLog) { this.slowLog = slowLog; }
+        public Http2Config getHttp2() { return http2; }
+        public void setHttp2(Http2Config http2) { this.http2 = http2; }
+        public List<SseChannelConfig> getSseChannels() { return sseChannels; }
+        public void setSseChannels(List<SseChannelConfig> sseChannels) { this.sseChannels = sseChannels; }
+        public SlowClientConfig getSlowClient() { return slowClient; }
+        public void setSlowClient(SlowClientConfig slowClient) { this.slowClient = slowClient; }
+        public LoopConfig getLoop() { return loop; }
+        public void setLoop(LoopConfig loop) { this.loop = loop; }
+        public PreforkConfig getPrefork() { return prefork; }
+        public void setPrefork(PreforkConfig prefork) { this.prefork = prefork; }
     }
     
     public static class Route {
@@ -45,6 +79,16 @@ public class ConfigLoader {
         private String cgiExtension;
         private boolean directoryListing;
         private String redirect;
+        private RateLimitConfig rateLimit;
+        private boolean session;
+        private UploadConfig upload;
+        private ProxyConfig proxy;
+        private CacheConfig cache;
+        private WebSocketConfig webSocket;
+        private String sse;
+        private String cacheControl;
+        private String etag = "strong";
+        private boolean priority;
         
         public String getPath() { return path; }
         public List<String> getAllowedMethods() { 
@@ -55,6 +99,20 @@ public class ConfigLoader {
         public String getCgiExtension() { return cgiExtension; }
         public boolean isDirectoryListing() { return directoryListing; }
         public String getRedirect() { return redirect; }
+        public RateLimitConfig getRateLimit() { return rateLimit; }
+        public boolean isSession() { return session; }
+        public UploadConfig getUpload() { return upload; }
+        public ProxyConfig getProxy() { return proxy; }
+        public CacheConfig getCache() { return cache; }
+        public WebSocketConfig getWebSocket() { return webSocket; }
+        /** Name of the SSE channel served on this route, or null. */
+        public String getSse() { return sse; }
+        /** Cache-Control sent with static files, or null for none. */
+        public String getCacheControl() { return cacheControl; }
+        /** ETags on static files: "strong", "weak" or "off". */
+        public String getEtag() { return etag; }
+        /** Connections serving this route are not held back by the loop's per-iteration budget. */
+        public boolean isPriority() { return priority; }
         
         public void setPath(String path) { this.path = path; }
         public void setAllowedMethods(List<String> allowedMethods) { this.allowedMethods = allowedMethods; }
@@ -63,23 +121,22 @@ public class ConfigLoader {
         public void setCgiExtension(String cgiExtension) { this.cgiExtension = cgiExtension; }
         public void setDirectoryListing(boolean directoryListing) { this.directoryListing = directoryListing; }
         public void setRedirect(String redirect) { this.redirect = redirect; }
+        public void setRateLimit(RateLimitConfig rateLimit) { this.rateLimit = rateLimit; }
+        public void setSession(boolean session) { this.session = session; }
+        public void setUpload(UploadConfig upload) { this.upload = upload; }
+        public void setProxy(ProxyConfig proxy) { this.proxy = proxy; }
+        public void setCache(CacheConfig cache) { this.cache = cache; }
+        public void setWebSocket(WebSocketConfig webSocket) { this.webSocket = webSocket; }
+        public void setSse(String sse) { this.sse = sse; }
+        public void setCacheControl(String cacheControl) { this.cacheControl = cacheControl; }
+        public void setEtag(String etag) { this.etag = etag; }
+        public void setPriority(boolean priority) { this.priority = priority; }
     }
     
     public static Config load(String configPath) throws IOException {
 
         String jsonContent = readFileContent(configPath);
-        //System.out.println("Parsing configuration file: " + configPath + "jsonContent ==> " + jsonContent);
-        Map<String, Object> jsonMap = parseJsonManually(jsonContent);
-        //System.out.println("Parsed JSON Map: " + jsonMap);
-        // for (Object elem : jsonMap.entrySet()) {
-        //     System.out.println("Element: " + elem.toString());
-            
-        // }
-        Config config = mapToConfig(jsonMap);
-        
-        applyDefaults(config);
-        
-        validateConfig(config);
+        Config config = parse(jsonContent);
         System.out.println("Configuration loaded successfully!");
         System.out.println("Host: " + config.getHost());
         System.out.println("Ports: " + config.getPorts());
@@ -87,6 +144,24 @@ public class ConfigLoader {
         
         return config;
     }
+
+    public static Config parse(String jsonContent) throws IOException {
+        if (jsonContent.trim().isEmpty()) {
+            throw new IOException("Empty JSON content");
+        }
+        JsonReader reader = new JsonReader(jsonContent);
+        if (reader.peek() != JsonReader.Token.BEGIN_OBJECT) {
+            throw reader.syntaxError("Expected object");
+        }
+        Config config = readConfig(reader);
+        reader.endDocument();
+        
+        applyDefaults(config);
+        
+        validateConfig(config);
+        return config;
+    }
+
     private static String readFileContent(String filePath) throws IOException {
         Path path = Paths.get(filePath);
         if (!Files.exists(path)) {
@@ -95,342 +170,430 @@ public class ConfigLoader {
         return Files.readString(path);
     }
     
-    private static Map<String, Object> parseJsonManually(String json) throws IOException {
-        Map<String, Object> result = new HashMap<>();
-        json = json.trim();
-        System.out.print("Parsing JSON: " + json);
-        if (json.isEmpty()){
-            throw new IOException("Empty JSON content");
-        }
-
-        if (!json.startsWith("{") || !json.endsWith("}")) {
-            throw new IOException("Invalid JSON: Expected object");
-        }
-        json = json.substring(1, json.length() - 1).trim();
-        
-        while (!json.isEmpty()) {
-            int colonIndex = json.indexOf(':');
-            if (colonIndex == -1) break;
-            String key = json.substring(0, colonIndex).trim();
-            if (!key.startsWith("\"") || !key.endsWith("\"")) {
-                throw new IOException("Invalid JSON key: " + key);
-            }
-            key = key.substring(1, key.length() - 1);
-            
-            json = json.substring(colonIndex + 1).trim();
-            Object value;
-            int endIndex;
-            
-            if (json.startsWith("{")) {
-                endIndex = findMatching(json, '{', '}');
-                value = parseJsonManually(json.substring(0, endIndex));
-            } else if (json.startsWith("[")) {
-                endIndex = findMatching(json, '[', ']');
-                value = parseJsonArray(json.substring(0, endIndex));
-            } else if (json.startsWith("\"")) {
-                endIndex = findStringEnd(json);
-                value = json.substring(1, endIndex);
-                endIndex++;
-            } else if (json.startsWith("true")) {
-                value = true;
-                endIndex = 4;
-            } else if (json.startsWith("false")) {
-                value = false;
-                endIndex = 5;
-            } else if (json.startsWith("null")) {
-                value = null;
-                endIndex = 4;
-            } else {
-                endIndex = 0;
-                while (endIndex < json.length() && 
-                       (Character.isDigit(json.charAt(endIndex)) || 
-                        json.charAt(endIndex) == '.' || 
-                        json.charAt(endIndex) == '-')) {
-                    endIndex++;
-                }
-                String numStr = json.substring(0, endIndex);
-                try {
-                    value = Integer.parseInt(numStr);
-                } catch (NumberFormatException e1) {
-                    try {
-                        value = Double.parseDouble(numStr);
-                    } catch (NumberFormatException e2) {
-                        throw new IOException("Invalid number: " + numStr);
+    private static Config readConfig(JsonReader reader) throws IOException {
+        Config config = new Config();
+        
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            switch (name) {
+                case "host":
+                    String host = readString(reader);
+                    config.setHost(host != null ? host : "localhost");
+                    break;
+                case "ports":
+                    if (reader.peek() == JsonReader.Token.BEGIN_ARRAY) {
+                        List<Integer> ports = new ArrayList<>();
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            Integer port = readInt(reader, 8080);
+                            if (port != null) {
+                                ports.add(port);
+                            }
+                        }
+                        reader.endArray();
+                        config.setPorts(ports);
+                    } else {
+                        reader.skipValue();
                     }
-                }
-            }
-            result.put(key, value); 
-            if (endIndex < json.length() && json.charAt(endIndex) == ',') {
-                json = json.substring(endIndex + 1).trim();
-            } else {
-                json = json.substring(endIndex).trim();
+                    break;
+                case "defaultServer":
+                    String defaultServer = readString(reader);
+                    if (defaultServer != null) {
+                        config.setDefaultServer(defaultServer);
+                    }
+                    break;
+                case "clientBodySizeLimit":
+                    Integer limit = readInt(reader, 10 * 1024 * 1024);
+                    if (limit != null) {
+                        config.setClientBodySizeLimit(limit);
+                    }
+                    break;
+                case "requestTimeout":
+                    Integer timeout = readInt(reader, 30000);
+                    if (timeout != null) {
+                        config.setRequestTimeout(timeout);
+                    }
+                    break;
+                case "errorPages":
+                    if (reader.peek() == JsonReader.Token.BEGIN_OBJECT) {
+                        Map<Integer, String> errorPages = new HashMap<>();
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            String key = reader.nextName();
+                            String path = readString(reader);
+                            try {
+                                errorPages.put(Integer.parseInt(key), path != null ? path : "");
+                            } catch (NumberFormatException e) {
+                                
+                            }
+                        }
+                        reader.endObject();
+                        config.setErrorPages(errorPages);
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                case "admission":
+                    if (reader.peek() == JsonReader.Token.BEGIN_OBJECT) {
+                        config.setAdmission(AdmissionConfig.read(reader));
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                case "rateLimit":
+                    if (reader.peek() == JsonReader.Token.BEGIN_OBJECT) {
+                        config.setRateLimit(RateLimitConfig.read(reader));
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                case "cacheMaxBytes":
+                    Long cacheMaxBytes = readLong(reader, 64L * 1024 * 1024);
+                    if (cacheMaxBytes != null) {
+                        config.setCacheMaxBytes(cacheMaxBytes);
+                    }
+                    break;
+                case "listeners":
+                    if (reader.peek() == JsonReader.Token.BEGIN_ARRAY) {
+                        List<ListenerConfig> listeners = new ArrayList<>();
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            if (reader.peek() == JsonReader.Token.BEGIN_OBJECT) {
+                                listeners.add(ListenerConfig.read(reader));
+                            } else {
+                                reader.skipValue();
+                            }
+                        }
+                        reader.endArray();
+                        config.setListeners(listeners);
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                case "sseChannels":
+                    if (reader.peek() == JsonReader.Token.BEGIN_ARRAY) {
+                        List<SseChannelConfig> sseChannels = new ArrayList<>();
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            if (reader.peek() == JsonReader.Token.BEGIN_OBJECT) {
+                                sseChannels.add(SseChannelConfig.read(reader));
+                            } else {
+                                reader.skipValue();
+                            }
+                        }
+                        reader.endArray();
+                        config.setSseChannels(sseChannels);
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                case "http2":
+                    if (reader.peek() == JsonReader.Token.BEGIN_OBJECT) {
+                        config.setHttp2(Http2Config.read(reader));
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                case "slowClient":
+                    if (reader.peek() == JsonReader.Token.BEGIN_OBJECT) {
+                        config.setSlowClient(SlowClientConfig.read(reader));
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                case "loop":
+                    if (reader.peek() == JsonReader.Token.BEGIN_OBJECT) {
+                        config.setLoop(LoopConfig.read(reader));
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                case "prefork":
+                    if (reader.peek() == JsonReader.Token.BEGIN_OBJECT) {
+                        config.setPrefork(PreforkConfig.read(reader));
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                case "slowLog":
+                    if (reader.peek() == JsonReader.Token.BEGIN_OBJECT) {
+                        config.setSlowLog(SlowLogConfig.read(reader));
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                case "sessions":
+                    if (reader.peek() == JsonReader.Token.BEGIN_OBJECT) {
+                        config.setSessions(SessionConfig.read(reader));
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                case "routes":
+                    if (reader.peek() == JsonReader.Token.BEGIN_ARRAY) {
+                        List<Route> routes = new ArrayList<>();
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            if (reader.peek() == JsonReader.Token.BEGIN_OBJECT) {
+                                routes.add(readRoute(reader));
+                            } else {
+                                reader.skipValue();
+                            }
+                        }
+                        reader.endArray();
+                        config.setRoutes(routes);
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
             }
         }
+        reader.endObject();
         
-        System.out.println("Parsed JSON Map: " + result);
-
-        return result;
+        return config;
     }
     
-    private static List<Object> parseJsonArray(String json) throws IOException {
-        List<Object> result = new ArrayList<>();
-        json = json.trim();
-        
-        if (!json.startsWith("[") || !json.endsWith("]")) {
-            throw new IOException("Invalid JSON array");
-        }
-        
-        json = json.substring(1, json.length() - 1).trim();
+    private static Route readRoute(JsonReader reader) throws IOException {
+        Route route = new Route();
         
-        while (!json.isEmpty()) {
-            Object value;
-            int endIndex;
-            
-            if (json.startsWith("{")) {
-                endIndex = findMatching(json, '{', '}');
-                value = parseJsonManually(json.substring(0, endIndex));
-            } else if (json.startsWith("[")) {
-                endIndex = findMatching(json, '[', ']');
-                value = parseJsonArray(json.substring(0, endIndex));
-            } else if (json.startsWith("\"")) {
-                endIndex = findStringEnd(json);
-                value = json.substring(1, endIndex);
-                endIndex++; 
-            } else if (json.startsWith("true")) {
-                value = true;
-                endIndex = 4;
-            } else if (json.startsWith("false")) {
-                value = false;
-                endIndex = 5;
-            } else if (json.startsWith("null")) {
-                value = null;
-                endIndex = 4;
-            } else {
-                endIndex = 0;
-                while (endIndex < json.length() && 
-                       (Character.isDigit(json.charAt(endIndex)) || 
-                        json.charAt(endIndex) == '.' || 
-                        json.charAt(endIndex) == '-')) {
-                    endIndex++;
-                }
-                String numStr = json.substring(0, endIndex);
-                try {
-                    value = Integer.parseInt(numStr);
-                } catch (NumberFormatException e1) {
-                    try {
-                        value = Double.parseDouble(numStr);
-                    } catch (NumberFormatException e2) {
-                        throw new IOException("Invalid number: " + numStr);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            switch (name) {
+                case "path":
+                    String path = readString(reader);
+                    route.setPath(path != null ? path : "/");
+                    break;
+                case "allowedMethods":
+                    if (reader.peek() == JsonReader.Token.BEGIN_ARRAY) {
+                        List<String> methods = new ArrayList<>();
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            String method = readString(reader);
+                            if (method != null) {
+                                methods.add(method.toUpperCase());
+                            }
+                        }
+                        reader.endArray();
+                        route.setAllowedMethods(methods);
+                    } else {
+                        reader.skipValue();
                     }
-                }
-            }
-            
-            result.add(value);
-            if (endIndex < json.length() && json.charAt(endIndex) == ',') {
-                json = json.substring(endIndex + 1).trim();
-            } else {
-                json = json.substring(endIndex).trim();
+                    break;
+                case "root":
+                    String root = readString(reader);
+                    if (root != null) {
+                        route.setRoot(root);
+                    }
+                    break;
+                case "defaultFile":
+                    String defaultFile = readString(reader);
+                    if (defaultFile != null) {
+                        route.setDefaultFile(defaultFile);
+                    }
+                    break;
+                case "cgiExtension":
+                    String cgiExtension = readString(reader);
+                    if (cgiExtension != null) {
+                        route.setCgiExtension(cgiExtension);
+                    }
+                    break;
+                case "directoryListing":
+                    Boolean listing = readBoolean(reader);
+                    if (listing != null) {
+                        route.setDirectoryListing(listing);
+                    }
+                    break;
+                case "redirect":
+                    String redirect = readString(reader);
+                    if (redirect != null) {
+                        route.setRedirect(redirect);
+                    }
+                    break;
+                case "rateLimit":
+                    if (reader.peek() == JsonReader.Token.BEGIN_OBJECT) {
+                        route.setRateLimit(RateLimitConfig.read(reader));
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                case "session":
+                    Boolean session = readBoolean(reader);
+                    if (session != null) {
+                        route.setSession(session);
+                    }
+                    break;
+                case "upload":
+                    if (reader.peek() == JsonReader.Token.BEGIN_OBJECT) {
+                        route.setUpload(UploadConfig.read(reader));
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                case "proxy":
+                    if (reader.peek() == JsonReader.Token.BEGIN_OBJECT) {
+                        route.setProxy(ProxyConfig.read(reader));
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                case "cache":
+                    if (reader.peek() == JsonReader.Token.BEGIN_OBJECT) {
+                        route.setCache(CacheConfig.read(reader));
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                case "websocket":
+                    if (reader.peek() == JsonReader.Token.BEGIN_OBJECT) {
+                        route.setWebSocket(WebSocketConfig.read(reader));
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                case "sse":
+                    route.setSse(readString(reader));
+                    break;
+                case "cacheControl":
+                    route.setCacheControl(readString(reader));
+                    break;
+                case "etag":
+                    String etag = readString(reader);
+                    if (etag != null) {
+                        route.setEtag(etag);
+                    }
+                    break;
+                case "priority":
+                    Boolean priority = readBoolean(reader);
+                    if (priority != null) {
+                        route.setPriority(priority);
+                    }
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
             }
         }
+        reader.endObject();
         
-        return result;
+        return route;
     }
     
-    private static int findMatching(String str, char open, char close) {
-        int count = 0;
-        for (int i = 0; i < str.length(); i++) {
-            char c = str.charAt(i);
-            if (c == open) count++;
-            else if (c == close) {
-                count--;
-                if (count == 0) return i + 1;
-            }
+    // Scalars are read leniently, like the rest of the config: numbers and
+    // booleans are accepted where a string is expected, and vice versa.
+    static String readString(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case STRING:
+                return reader.nextString();
+            case NUMBER:
+                double number = reader.nextDouble();
+                return number == (long) number ? String.valueOf((long) number) : String.valueOf(number);
+            case BOOLEAN:
+                return String.valueOf(reader.nextBoolean());
+            case NULL:
+                reader.nextNull();
+                return null;
+            default:
+                reader.skipValue();
+                return null;
         }
-        return -1;
     }
     
-    private static int findStringEnd(String str) {
-        for (int i = 1; i < str.length(); i++) {
-            if (str.charAt(i) == '"' && str.charAt(i - 1) != '\\') {
-                return i;
-            }
+    static Integer readInt(JsonReader reader, int fallback) throws IOException {
+        switch (reader.peek()) {
+            case NUMBER:
+                return (int) reader.nextDouble();
+            case STRING:
+                try {
+                    return Integer.parseInt(reader.nextString());
+                } catch (NumberFormatException e) {
+                    return fallback;
+                }
+            default:
+                reader.skipValue();
+                return null;
         }
-        return -1;
     }
     
-    private static Config mapToConfig(Map<String, Object> map) {
-         Config config = new Config();
-        
-        if (map.containsKey("host")) {
-            Object hostObj = map.get("host");
-            config.setHost(hostObj != null ? hostObj.toString() : "localhost");
-        }
-        
-        if (map.containsKey("ports")) {
-            Object portsObj = map.get("ports");
-            if (portsObj instanceof List) {
-                List<Object> portsList = (List<Object>) portsObj;
-                List<Integer> ports = new ArrayList<>();
-                for (Object portObj : portsList) {
-                    if (portObj instanceof Integer) {
-                        ports.add((Integer) portObj);
-                    } else if (portObj instanceof Double) {
-                        ports.add(((Double) portObj).intValue());
-                    } else if (portObj instanceof String) {
-                        try {
-                            ports.add(Integer.parseInt((String) portObj));
-                        } catch (NumberFormatException e) {
-                            ports.add(8080); // default
-                        }
-                    }
-                }
-                config.setPorts(ports);
-            }
-        }
-        
-        if (map.containsKey("defaultServer")) {
-            Object serverObj = map.get("defaultServer");
-            if (serverObj != null) {
-                config.setDefaultServer(serverObj.toString());
-            }
-        }
-        
-        if (map.containsKey("clientBodySizeLimit")) {
-            Object limitObj = map.get("clientBodySizeLimit");
-            if (limitObj instanceof Integer) {
-                config.setClientBodySizeLimit((Integer) limitObj);
-            } else if (limitObj instanceof Double) {
-                config.setClientBodySizeLimit(((Double) limitObj).intValue());
-            } else if (limitObj instanceof String) {
+    static Long readLong(JsonReader reader, long fallback) throws IOException {
+        switch (reader.peek()) {
+            case NUMBER:
+                return (long) reader.nextDouble();
+            case STRING:
                 try {
-                    config.setClientBodySizeLimit(Integer.parseInt((String) limitObj));
+                    return Long.parseLong(reader.nextString());
                 } catch (NumberFormatException e) {
-                    config.setClientBodySizeLimit(10 * 1024 * 1024);
+                    return fallback;
                 }
-            }
+            default:
+                reader.skipValue();
+                return null;
         }
-        
-        if (map.containsKey("requestTimeout")) {
-            Object timeoutObj = map.get("requestTimeout");
-            if (timeoutObj instanceof Integer) {
-                config.setRequestTimeout((Integer) timeoutObj);
-            } else if (timeoutObj instanceof Double) {
-                config.setRequestTimeout(((Double) timeoutObj).intValue());
-            } else if (timeoutObj instanceof String) {
+    }
+    
+    static Double readDouble(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case NUMBER:
+                return reader.nextDouble();
+            case STRING:
                 try {
-                    config.setRequestTimeout(Integer.parseInt((String) timeoutObj));
+                    return Double.parseDouble(reader.nextString());
                 } catch (NumberFormatException e) {
-                    config.setRequestTimeout(30000);
+                    return null;
                 }
-            }
+            default:
+                reader.skipValue();
+                return null;
         }
-        
-        if (map.containsKey("errorPages")) {
-            Object errorPagesObj = map.get("errorPages");
-            if (errorPagesObj instanceof Map) {
-                Map<?, ?> errorPagesMap = (Map<?, ?>) errorPagesObj;
-                Map<Integer, String> errorPages = new HashMap<>();
-                for (Map.Entry<?, ?> entry : errorPagesMap.entrySet()) {
-                    try {
-                        int code = Integer.parseInt(entry.getKey().toString());
-                        String path = entry.getValue() != null ? entry.getValue().toString() : "";
-                        errorPages.put(code, path);
-                    } catch (NumberFormatException e) {
-                        
-                    }
-                }
-                config.setErrorPages(errorPages);
-            }
-        }
-        
-        if (map.containsKey("routes")) {
-            Object routesObj = map.get("routes");
-            if (routesObj instanceof List) {
-                List<Object> routesList = (List<Object>) routesObj;
-                List<Route> routes = new ArrayList<>();
-                for (Object routeObj : routesList) {
-                    if (routeObj instanceof Map) {
-                        @SuppressWarnings("unchecked")
-                        Map<String, Object> routeMap = (Map<String, Object>) routeObj;
-                        routes.add(mapToRoute(routeMap));
-                    }
-                }
-                config.setRoutes(routes);
-            }
-        }
-        
-        return config;
     }
     
-    private static Route mapToRoute(Map<String, Object> map) {
-        Route route = new Route();
-        
-        if (map.containsKey("path")) {
-            Object pathObj = map.get("path");
-            route.setPath(pathObj != null ? pathObj.toString() : "/");
+    static Boolean readBoolean(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case STRING:
+                return Boolean.parseBoolean(reader.nextString());
+            default:
+                reader.skipValue();
+                return null;
         }
-        
-        if (map.containsKey("allowedMethods")) {
-            Object methodsObj = map.get("allowedMethods");
-            if (methodsObj instanceof List) {
-                List<Object> methodsList = (List<Object>) methodsObj;
-                List<String> methods = new ArrayList<>();
-                for (Object methodObj : methodsList) {
-                    if (methodObj != null) {
-                        methods.add(methodObj.toString().toUpperCase());
-                    }
-                }
-                route.setAllowedMethods(methods);
-            }
+    }
+    
+    private static void applyDefaults(Config config) {
+        if (config.getHost() == null || config.getHost().trim().isEmpty()) {
+            config.setHost("localhost");
         }
-        
-        if (map.containsKey("root")) {
-            Object rootObj = map.get("root");
-            if (rootObj != null) {
-                route.setRoot(rootObj.toString());
-            }
+        if (config.getListeners() == null) {
+            config.setListeners(new ArrayList<>());
         }
-        
-        if (map.containsKey("defaultFile")) {
-            Object fileObj = map.get("defaultFile");
-            if (fileObj != null) {
-                route.setDefaultFile(fileObj.toString());
-            }
+        if (config.getSseChannels() == null) {
+            config.setSseChannels(new ArrayList<>());
         }
-        
-        if (map.containsKey("cgiExtension")) {
-            Object cgiObj = map.get("cgiExtension");
-            if (cgiObj != null) {
-                route.setCgiExtension(cgiObj.toString());
+        // Ports without a listener block get one with the default settings,
+        // and listener ports count as configured ports.
+        List<Integer> ports = new ArrayList<>(config.getPorts());
+        Set<Integer> listenerPorts = new HashSet<>();
+        for (ListenerConfig listener : config.getListeners()) {
+            listenerPorts.add(listener.getPort());
+            if (!ports.contains(listener.getPort())) {
+                ports.add(listener.getPort());
             }
         }
-        
-        if (map.containsKey("directoryListing")) {
-            Object listingObj = map.get("directoryListing");
-            if (listingObj instanceof Boolean) {
-                route.setDirectoryListing((Boolean) listingObj);
-            } else if (listingObj instanceof String) {
-                route.setDirectoryListing(Boolean.parseBoolean((String) listingObj));
-            }
+        if (ports.isEmpty()) {
+            ports.add(8080);
         }
-        
-        if (map.containsKey("redirect")) {
-            Object redirectObj = map.get("redirect");
-            if (redirectObj != null) {
-                route.setRedirect(redirectObj.toString());
+        config.setPorts(ports);
+        for (Integer port : ports) {
+            if (!listenerPorts.contains(port)) {
+                ListenerConfig listener = new ListenerConfig();
+                listener.setPort(port);
+                config.getListeners().add(listener);
             }
         }
-        
-        return route;
-    }
-    
-    private static void applyDefaults(Config config) {
-        if (config.getHost() == null || config.getHost().trim().isEmpty()) {
-            config.setHost("localhost");
-        }
-        if (config.getPorts() == null || config.getPorts().isEmpty()) {
-            config.setPorts(Arrays.asList(8080));
-        }
         if (config.getClientBodySizeLimit() <= 0) {
             config.setClientBodySizeLimit(10 * 1024 * 1024);
         }
@@ -453,6 +616,39 @@ public class ConfigLoader {
             config.setRoutes(new ArrayList<>());
         }
         
+        if (config.getAdmission() == null) {
+            config.setAdmission(new AdmissionConfig());
+        }
+        
+        if (config.getRateLimit() == null) {
+            config.setRateLimit(new RateLimitConfig());
+        }
+        config.getRateLimit().applyDefaults();
+        
+        if (config.getSessions() == null) {
+            config.setSessions(new SessionConfig());
+        }
+        
+        if (config.getHttp2() == null) {
+            config.setHttp2(new Http2Config());
+        }
+        
+        if (config.getSlowClient() == null) {
+            config.setSlowClient(new SlowClientConfig());
+        }
+        
+        if (config.getLoop() == null) {
+            config.setLoop(new LoopConfig());
+        }
+        
+        if (config.getPrefork() == null) {
+            config.setPrefork(new PreforkConfig());
+        }
+        
+        if (config.getCacheMaxBytes() <= 0) {
+            config.setCacheMaxBytes(64L * 1024 * 1024);
+        }
+        
         for (Route route : config.getRoutes()) {
             if (route.getPath() == null || route.getPath().trim().isEmpty()) {
                 route.setPath("/");
@@ -477,7 +673,7 @@ public class ConfigLoader {
             }
             route.setAllowedMethods(upperMethods);
             
-            if (route.getRedirect() == null && 
+            if (route.getRedirect() == null && route.getProxy() == null &&
                 (route.getRoot() == null || route.getRoot().trim().isEmpty())) {
                 route.setRoot("public");
             }
@@ -486,6 +682,14 @@ public class ConfigLoader {
                 route.setDefaultFile("index.html");
             }
             
+            if (route.getRateLimit() != null) {
+                route.getRateLimit().applyDefaults();
+            }
+            
+            if (route.getUpload() == null) {
+                route.setUpload(new UploadConfig());
+            }
+            
             if (route.getCgiExtension() != null && !route.getCgiExtension().trim().isEmpty()) {
                 if (!route.getCgiExtension().startsWith(".")) {
                     route.setCgiExtension("." + route.getCgiExtension());
@@ -515,15 +719,70 @@ public class ConfigLoader {
             }
         }
         
+        Set<Integer> listenerPorts = new HashSet<>();
+        Boolean sessionTickets = null;
+        for (ListenerConfig listener : config.getListeners()) {
+            if (!listenerPorts.add(listener.getPort())) {
+                throw new IOException("Duplicate listener for port " + listener.getPort());
+            }
+            listener.validate();
+            TlsConfig tls = listener.getTls();
+            if (tls != null) {
+                if (sessionTickets != null && sessionTickets != tls.isSessionTickets()) {
+                    throw new IOException("All TLS listeners must agree on sessionTickets");
+                }
+                sessionTickets = tls.isSessionTickets();
+            }
+        }
+        
+        config.getHttp2().validate();
+        
+        Set<String> sseChannels = new HashSet<>();
+        for (SseChannelConfig channel : config.getSseChannels()) {
+            channel.validate();
+            if (!sseChannels.add(channel.getName())) {
+                throw new IOException("Duplicate SSE channel " + channel.getName());
+            }
+        }
+        
+        config.getSlowClient().validate();
+        config.getLoop().validate();
+        config.getPrefork().validate();
+        if (config.getSlowLog() != null) {
+            config.getSlowLog().validate();
+        }
+        config.getAdmission().validate();
+        config.getSessions().validate();
+        
         for (Route route : config.getRoutes()) {
             if (route.getAllowedMethods() == null || route.getAllowedMethods().isEmpty()) {
                 throw new IOException("Route " + route.getPath() + " must have allowed methods");
             }
             
-            if (route.getRedirect() == null && 
+            if (route.getRedirect() == null && route.getProxy() == null &&
                 (route.getRoot() == null || route.getRoot().trim().isEmpty())) {
                 throw new IOException("Route " + route.getPath() + " must have root directory");
             }
+            
+            if (route.getCache() != null) {
+                route.getCache().validate(route.getPath());
+            }
+            if (route.getWebSocket() != null) {
+                route.getWebSocket().validate(route.getPath());
+            }
+            
+            if (!route.getEtag().equals("strong") && !route.getEtag().equals("weak") && !route.getEtag().equals("off")) {
+                throw new IOException("Route " + route.getPath() + " has invalid etag (expected strong, weak or off)");
+            }
+            
+            if (route.getSse() != null && !sseChannels.contains(route.getSse())) {
+                throw new IOException("Route " + route.getPath() + " uses unknown SSE channel " + route.getSse());
+            }
+            
+            if (route.getProxy() != null) {
+                route.getProxy().validate(route.getPath());
+            }
+            route.getUpload().validate(route.getPath());
         }
     }
 
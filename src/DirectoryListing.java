@@ -0,0 +1,406 @@
+package src;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * Directory listings with a per-directory snapshot cache.
+ *
+ * Directories with up to MAX_CACHED_ENTRIES entries are read once with a
+ * DirectoryStream into arrays of names and directory flags and reused until
+ * the directory's mtime changes. Only those are cached: rewriting a file in
+ * place changes its size and mtime but not the directory's, so listings
+ * sorted by size or mtime stat the snapshot's entries on each request. Larger
+ * directories are never cached: they are streamed straight from the
+ * DirectoryStream, so memory stays bounded by the page being rendered
+ * rather than by the directory size.
+ */
+public class DirectoryListing {
+    private static final int MAX_CACHED_ENTRIES = 10_000;
+    private static final int MAX_CACHE_SIZE = 200_000;
+    private static final int MAX_SORT_WINDOW = 100_000;
+    private static final int INLINE_RENDER_LIMIT = 500;
+    private static final long REVALIDATE_INTERVAL_MS = 1000;
+    private static final int FLUSH_THRESHOLD = 16 * 1024;
+
+    private final LinkedHashMap<Path, Snapshot> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private int cachedEntries;
+
+    public static class Query {
+        private int offset;
+        private int limit = -1;
+        private String sort = "name";
+        private boolean descending;
+
+        public static Query fromParams(Map<String, String> params) {
+            Query query = new Query();
+            query.offset = Math.max(0, parseInt(params.get("offset"), 0));
+            query.limit = parseInt(params.get("limit"), -1);
+            if (query.limit < 0) {
+                query.limit = -1;
+            }
+            String sort = params.get("sort");
+            if ("size".equals(sort) || "mtime".equals(sort)) {
+                query.sort = sort;
+            }
+            query.descending = "desc".equals(params.get("order"));
+            return query;
+        }
+
+        private static int parseInt(String value, int fallback) {
+            if (value == null) {
+                return fallback;
+            }
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                return fallback;
+            }
+        }
+
+        // Number of sorted entries needed to render this page, or -1 for all.
+        int window() {
+            return limit < 0 ? -1 : (int) Math.min(Integer.MAX_VALUE, (long) offset + limit);
+        }
+    }
+
+    // Entries sorted by name.
+    private static class Snapshot {
+        final long modified;
+        final String[] names;
+        final boolean[] directories;
+        volatile long validatedAt;
+
+        Snapshot(long modified, String[] names, boolean[] directories) {
+            this.modified = modified;
+            this.names = names;
+            this.directories = directories;
+            this.validatedAt = System.currentTimeMillis();
+        }
+    }
+
+    private static class Entry {
+        final String name;
+        final boolean directory;
+        final long size;
+        final long mtime;
+
+        Entry(String name, boolean directory, long size, long mtime) {
+            this.name = name;
+            this.directory = directory;
+            this.size = size;
+            this.mtime = mtime;
+        }
+    }
+
+    /**
+     * Renders the page from a fresh cached snapshot if that is cheap enough
+     * to do on the event loop. Returns null if the caller must use render()
+     * off the loop instead.
+     */
+    public byte[] renderCached(Path dir, String requestPath, Query query) {
+        if (!sortsByName(query)) {
+            return null;
+        }
+        Snapshot snapshot;
+        synchronized (cache) {
+            snapshot = cache.get(dir);
+        }
+        if (snapshot == null || System.currentTimeMillis() - snapshot.validatedAt > REVALIDATE_INTERVAL_MS) {
+            return null;
+        }
+        int count = query.limit < 0 ? snapshot.names.length - query.offset : query.limit;
+        if (count > INLINE_RENDER_LIMIT) {
+            return null;
+        }
+        java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+        try {
+            renderSnapshot(snapshot, requestPath, query, out);
+        } catch (IOException e) {
+            return null;
+        }
+        return out.toByteArray();
+    }
+
+    /** Renders the listing into out. Performs blocking filesystem I/O. */
+    public void render(Path dir, String requestPath, Query query, OutputStream out) throws IOException {
+        Snapshot snapshot = loadSnapshot(dir);
+        if (snapshot == null) {
+            renderUncached(dir, requestPath, query, out);
+        } else if (sortsByName(query)) {
+            renderSnapshot(snapshot, requestPath, query, out);
+        } else {
+            renderRestat(dir, snapshot, requestPath, query, out);
+        }
+    }
+
+    // Only the name order can be rendered from a snapshot alone; sizes and
+    // mtimes are not cached (see the class comment).
+    private static boolean sortsByName(Query query) {
+        return "name".equals(query.sort);
+    }
+
+    private Snapshot loadSnapshot(Path dir) throws IOException {
+        long modified = Files.getLastModifiedTime(dir).toMillis();
+        synchronized (cache) {
+            Snapshot snapshot = cache.get(dir);
+            if (snapshot != null) {
+                if (snapshot.modified == modified) {
+                    snapshot.validatedAt = System.currentTimeMillis();
+                    return snapshot;
+                }
+                cache.remove(dir);
+                cachedEntries -= snapshot.names.length;
+            }
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path child : stream) {
+                if (entries.size() == MAX_CACHED_ENTRIES) {
+                    return null;
+                }
+                entries.add(readEntry(child));
+            }
+        }
+        entries.sort((a, b) -> a.name.compareTo(b.name));
+
+        int n = entries.size();
+        String[] names = new String[n];
+        boolean[] directories = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            Entry entry = entries.get(i);
+            names[i] = entry.name;
+            directories[i] = entry.directory;
+        }
+        Snapshot snapshot = new Snapshot(modified, names, directories);
+
+        synchronized (cache) {
+            Snapshot previous = cache.put(dir, snapshot);
+            if (previous != null) {
+                cachedEntries -= previous.names.length;
+            }
+            cachedEntries += n;
+            Iterator<Snapshot> iter = cache.values().iterator();
+            while (cachedEntries > MAX_CACHE_SIZE && iter.hasNext()) {
+                Snapshot eldest = iter.next();
+                if (eldest == snapshot) {
+                    break;
+                }
+                cachedEntries -= eldest.names.length;
+                iter.remove();
+            }
+        }
+        return snapshot;
+    }
+
+    private void renderSnapshot(Snapshot snapshot, String requestPath, Query query, OutputStream out) throws IOException {
+        StringBuilder html = new StringBuilder();
+        writeHeader(html, requestPath);
+
+        int total = snapshot.names.length;
+        int end = query.limit < 0 ? total : (int) Math.min(total, (long) query.offset + query.limit);
+        for (int i = query.offset; i < end; i++) {
+            int index = query.descending ? total - 1 - i : i;
+            writeEntry(html, snapshot.names[index], snapshot.directories[index]);
+            flushIfFull(html, out);
+        }
+
+        writeFooter(html, requestPath, query, end < total);
+        out.write(html.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // The snapshot's entries, stat'ed afresh for a size or mtime order.
+    private void renderRestat(Path dir, Snapshot snapshot, String requestPath, Query query,
+                              OutputStream out) throws IOException {
+        StringBuilder html = new StringBuilder();
+        writeHeader(html, requestPath);
+
+        Entry[] entries = new Entry[snapshot.names.length];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = readEntry(dir.resolve(snapshot.names[i]));
+        }
+        Arrays.sort(entries, comparator(query));
+        int end = query.limit < 0 ? entries.length : (int) Math.min(entries.length, (long) query.offset + query.limit);
+        for (int i = query.offset; i < end; i++) {
+            writeEntry(html, entries[i].name, entries[i].directory);
+            flushIfFull(html, out);
+        }
+
+        writeFooter(html, requestPath, query, end < entries.length);
+        out.write(html.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void renderUncached(Path dir, String requestPath, Query query, OutputStream out) throws IOException {
+        StringBuilder html = new StringBuilder();
+        writeHeader(html, requestPath);
+
+        int window = query.window();
+        boolean hasMore = false;
+        if (window >= 0 && window <= MAX_SORT_WINDOW) {
+            // Keep only the first offset+limit entries in sort order.
+            Comparator<Entry> comparator = comparator(query);
+            PriorityQueue<Entry> top = new PriorityQueue<>(Math.max(1, window), comparator.reversed());
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path child : stream) {
+                    Entry entry = readEntry(child);
+                    if (top.size() < window) {
+                        top.add(entry);
+                    } else if (window > 0 && comparator.compare(entry, top.peek()) < 0) {
+                        top.poll();
+                        top.add(entry);
+                        hasMore = true;
+                    } else {
+                        hasMore = true;
+                    }
+                }
+            }
+            Entry[] sorted = top.toArray(new Entry[0]);
+            Arrays.sort(sorted, comparator);
+            for (int i = query.offset; i < sorted.length; i++) {
+                writeEntry(html, sorted[i].name, sorted[i].directory);
+                flushIfFull(html, out);
+            }
+        } else {
+            // Too large to sort within bounded memory: stream in directory order.
+            int skipped = 0;
+            int written = 0;
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path child : stream) {
+                    if (skipped < query.offset) {
+                        skipped++;
+                        continue;
+                    }
+                    if (query.limit >= 0 && written == query.limit) {
+                        hasMore = true;
+                        break;
+                    }
+                    Entry entry = readEntry(child);
+                    writeEntry(html, entry.name, entry.directory);
+                    written++;
+                    flushIfFull(html, out);
+                }
+            }
+        }
+
+        writeFooter(html, requestPath, query, hasMore);
+        out.write(html.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Comparator<Entry> comparator(Query query) {
+        Comparator<Entry> comparator;
+        if ("size".equals(query.sort)) {
+            comparator = Comparator.comparingLong((Entry e) -> e.size).thenComparing(e -> e.name);
+        } else if ("mtime".equals(query.sort)) {
+            comparator = Comparator.comparingLong((Entry e) -> e.mtime).thenComparing(e -> e.name);
+        } else {
+            comparator = Comparator.comparing((Entry e) -> e.name);
+        }
+        return query.descending ? comparator.reversed() : comparator;
+    }
+
+    private static Entry readEntry(Path child) {
+        String name = child.getFileName().toString();
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(child, BasicFileAttributes.class);
+            return new Entry(name, attrs.isDirectory(), attrs.size(), attrs.lastModifiedTime().toMillis());
+        } catch (IOException e) {
+            return new Entry(name, false, 0, 0);
+        }
+    }
+
+    private static void flushIfFull(StringBuilder html, OutputStream out) throws IOException {
+        if (html.length() >= FLUSH_THRESHOLD) {
+            out.write(html.toString().getBytes(StandardCharsets.UTF_8));
+            html.setLength(0);
+        }
+    }
+
+    private static void writeHeader(StringBuilder html, String requestPath) {
+        String title = escapeHtml(requestPath);
+        html.append("<!DOCTYPE html>\n")
+            .append("<html>\n")
+            .append("<head>\n")
+            .append("<title>Index of ").append(title).append("</title>\n")
+            .append("</head>\n")
+            .append("<body>\n")
+            .append("<h1>Index of ").append(title).append("</h1>\n")
+            .append("<hr>\n")
+            .append("<ul>\n");
+
+        if (!requestPath.equals("/")) {
+            html.append("<li><a href=\"../\">../</a></li>\n");
+        }
+    }
+
+    private static void writeEntry(StringBuilder html, String name, boolean directory) {
+        String label = directory ? name + "/" : name;
+        html.append("<li><a href=\"")
+            .append(escapeHtml(encodePathSegment(name)))
+            .append(directory ? "/" : "")
+            .append("\">")
+            .append(escapeHtml(label))
+            .append("</a></li>\n");
+    }
+
+    private static void writeFooter(StringBuilder html, String requestPath, Query query, boolean hasMore) {
+        html.append("</ul>\n");
+        if (hasMore && query.limit > 0) {
+            html.append("<p><a href=\"?offset=").append(query.offset + query.limit)
+                .append("&amp;limit=").append(query.limit)
+                .append("&amp;sort=").append(query.sort)
+                .append(query.descending ? "&amp;order=desc" : "")
+                .append("\">Next page</a></p>\n");
+        }
+        html.append("<hr>\n")
+            .append("</body>\n")
+            .append("</html>");
+    }
+
+    private static String encodePathSegment(String name) {
+        StringBuilder sb = new StringBuilder(name.length());
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            int c = b & 0xFF;
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '-' || c == '.' || c == '_' || c == '~') {
+                sb.append((char) c);
+            } else {
+                sb.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                  .append(Character.toUpperCase(Character.forDigit(c & 0xF, 16)));
+            }
+        }
+        return sb.toString();
+    }
+
+    static String escapeHtml(String s) {
+        StringBuilder sb = null;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            String replacement;
+            switch (c) {
+                case '<': replacement = "&lt;"; break;
+                case '>': replacement = "&gt;"; break;
+                case '&': replacement = "&amp;"; break;
+                case '"': replacement = "&quot;"; break;
+                case '\'': replacement = "&#39;"; break;
+                default: replacement = null;
+            }
+            if (replacement != null) {
+                if (sb == null) {
+                    sb = new StringBuilder(s.length() + 16);
+                    sb.append(s, 0, i);
+                }
+                sb.append(replacement);
+            } else if (sb != null) {
+                sb.append(c);
+            }
+        }
+        return sb != null ? sb.toString() : s;
+    }
+}
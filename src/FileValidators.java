@@ -0,0 +1,118 @@
+package src;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * ETag and Last-Modified validators for static files, and the checks that
+ * turn a conditional GET or HEAD into a 304.
+ *
+ * The ETag is derived from the file's size, mtime and identity (inode on
+ * Unix), so it changes whenever the file is replaced or rewritten without
+ * reading its contents. Validators are built once per file version and
+ * kept in a small LRU keyed by path; a changed stat result replaces them.
+ *
+ * Only used on the selector thread.
+ */
+public class FileValidators {
+    private static final int MAX_ENTRIES = 4096;
+    private static final DateTimeFormatter HTTP_DATE =
+        DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    public static class Entry {
+        private final long size;
+        private final long modified;
+        private final Object fileKey;
+        private final String etag;
+        private final String lastModified;
+
+        private Entry(long size, long modified, Object fileKey) {
+            this.size = size;
+            this.modified = modified;
+            this.fileKey = fileKey;
+            int identity = fileKey != null ? fileKey.hashCode() : 0;
+            this.etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(modified)
+                + "-" + Integer.toHexString(identity) + "\"";
+            this.lastModified = HTTP_DATE.format(Instant.ofEpochMilli(modified));
+        }
+
+        private boolean matches(BasicFileAttributes attributes) {
+            return size == attributes.size()
+                && modified == attributes.lastModifiedTime().toMillis()
+                && Objects.equals(fileKey, attributes.fileKey());
+        }
+
+        /** The quoted entity tag, with a W/ prefix when weak. */
+        public String getEtag(boolean weak) {
+            return weak ? "W/" + etag : etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Whether the client's copy is current. If-None-Match wins over
+         * If-Modified-Since, as RFC 9110 requires; tags compare weakly since
+         * only GET and HEAD are answered with 304.
+         */
+        public boolean isNotModified(HttpRequest request, boolean useEtag) {
+            String ifNoneMatch = request.getHeader("If-None-Match");
+            if (ifNoneMatch != null) {
+                return useEtag && matchesAny(ifNoneMatch);
+            }
+            String ifModifiedSince = request.getHeader("If-Modified-Since");
+            if (ifModifiedSince == null) {
+                return false;
+            }
+            try {
+                long since = Instant.from(HTTP_DATE.parse(ifModifiedSince.trim())).toEpochMilli();
+                // HTTP dates have whole seconds.
+                return modified / 1000 <= since / 1000;
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+
+        private boolean matchesAny(String header) {
+            for (String candidate : header.split(",")) {
+                String tag = candidate.trim();
+                if (tag.equals("*")) {
+                    return true;
+                }
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final LinkedHashMap<Path, Entry> cache = new LinkedHashMap<Path, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /** The validators for the file as it is now, reusing them while its stat is unchanged. */
+    public Entry of(Path path, BasicFileAttributes attributes) {
+        Entry entry = cache.get(path);
+        if (entry == null || !entry.matches(attributes)) {
+            entry = new Entry(attributes.size(), attributes.lastModifiedTime().toMillis(), attributes.fileKey());
+            cache.put(path, entry);
+        }
+        return entry;
+    }
+}
@@ -0,0 +1,35 @@
+package src;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed-bucket histogram published through Metrics: one counter per
+ * upper bound, named name.le_BOUND, plus name.le_inf for the rest and
+ * name.count for the total. Buckets are not cumulative; each value is
+ * counted once, in the first bucket whose bound it does not exceed.
+ */
+public class Histogram {
+    private final long[] bounds;
+    private final AtomicLong[] buckets;
+    private final AtomicLong count;
+
+    /** bounds must be ascending. */
+    public Histogram(String name, long[] bounds, Metrics metrics) {
+        this.bounds = bounds.clone();
+        this.buckets = new AtomicLong[bounds.length + 1];
+        for (int i = 0; i < bounds.length; i++) {
+            buckets[i] = metrics.counter(name + ".le_" + bounds[i]);
+        }
+        buckets[bounds.length] = metrics.counter(name + ".le_inf");
+        this.count = metrics.counter(name + ".count");
+    }
+
+    public void record(long value) {
+        int i = 0;
+        while (i < bounds.length && value > bounds[i]) {
+            i++;
+        }
+        buckets[i].incrementAndGet();
+        count.incrementAndGet();
+    }
+}
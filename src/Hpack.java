@@ -0,0 +1,530 @@
+package src;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * HPACK header compression (RFC 7541) for HTTP/2.
+ *
+ * Header names and values are handled as ISO-8859-1 strings, so the octets
+ * on the wire round-trip unchanged. Both directions keep a dynamic table
+ * bounded in bytes: the decoder's by the SETTINGS_HEADER_TABLE_SIZE we
+ * advertise, the encoder's by the smaller of the peer's value and
+ * MAX_ENCODER_TABLE_SIZE. The encoder indexes fields that repeat from one
+ * response to the next (content-type, server, cache-control...) and uses
+ * Huffman coding whenever it is shorter.
+ */
+public class Hpack {
+    public static final int DEFAULT_TABLE_SIZE = 4096;
+    private static final int MAX_ENCODER_TABLE_SIZE = 4096;
+    private static final int ENTRY_OVERHEAD = 32;
+    private static final int MAX_STRING_LENGTH = 1 << 20;
+
+    private static final String[][] STATIC_TABLE = {
+        { ":authority", "" },
+        { ":method", "GET" },
+        { ":method", "POST" },
+        { ":path", "/" },
+        { ":path", "/index.html" },
+        { ":scheme", "http" },
+        { ":scheme", "https" },
+        { ":status", "200" },
+        { ":status", "204" },
+        { ":status", "206" },
+        { ":status", "304" },
+        { ":status", "400" },
+        { ":status", "404" },
+        { ":status", "500" },
+        { "accept-charset", "" },
+        { "accept-encoding", "gzip, deflate" },
+        { "accept-language", "" },
+        { "accept-ranges", "" },
+        { "accept", "" },
+        { "access-control-allow-origin", "" },
+        { "age", "" },
+        { "allow", "" },
+        { "authorization", "" },
+        { "cache-control", "" },
+        { "content-disposition", "" },
+        { "content-encoding", "" },
+        { "content-language", "" },
+        { "content-length", "" },
+        { "content-location", "" },
+        { "content-range", "" },
+        { "content-type", "" },
+        { "cookie", "" },
+        { "date", "" },
+        { "etag", "" },
+        { "expect", "" },
+        { "expires", "" },
+        { "from", "" },
+        { "host", "" },
+        { "if-match", "" },
+        { "if-modified-since", "" },
+        { "if-none-match", "" },
+        { "if-range", "" },
+        { "if-unmodified-since", "" },
+        { "last-modified", "" },
+        { "link", "" },
+        { "location", "" },
+        { "max-forwards", "" },
+        { "proxy-authenticate", "" },
+        { "proxy-authorization", "" },
+        { "range", "" },
+        { "referer", "" },
+        { "refresh", "" },
+        { "retry-after", "" },
+        { "server", "" },
+        { "set-cookie", "" },
+        { "strict-transport-security", "" },
+        { "transfer-encoding", "" },
+        { "user-agent", "" },
+        { "vary", "" },
+        { "via", "" },
+        { "www-authenticate", "" },
+    };
+
+    // Huffman code for each octet, plus EOS (256), from RFC 7541 Appendix B.
+    private static final int[] HUFFMAN_CODES = {
+        0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+        0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+        0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+        0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+        0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+        0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+        0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+        0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+        0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+        0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+        0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+        0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+        0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+        0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+        0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+        0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+        0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+        0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+        0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+        0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+        0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+        0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+        0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+        0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+        0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+        0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+        0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+        0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+        0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+        0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+        0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+        0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+        0x3fffffff
+    };
+
+    private static final byte[] HUFFMAN_LENGTHS = {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+        28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+        6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+        5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+        13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+        7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+        15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+        6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+        20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+        24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+        22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+        21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+        26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+        19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+        20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+        26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+        30
+    };
+
+    // Decoding tree: node i has children TREE[2i] (bit 0) and TREE[2i+1]
+    // (bit 1); a negative child is a leaf holding ~symbol, 0 means no child.
+    private static final int[] HUFFMAN_TREE = buildHuffmanTree();
+
+    private static int[] buildHuffmanTree() {
+        int[] tree = new int[2 * 512];
+        int nodes = 1;
+        for (int symbol = 0; symbol < HUFFMAN_CODES.length; symbol++) {
+            int code = HUFFMAN_CODES[symbol];
+            int length = HUFFMAN_LENGTHS[symbol];
+            int node = 0;
+            for (int bit = length - 1; bit > 0; bit--) {
+                int slot = 2 * node + ((code >>> bit) & 1);
+                if (tree[slot] == 0) {
+                    tree[slot] = nodes++;
+                }
+                node = tree[slot];
+            }
+            tree[2 * node + (code & 1)] = ~symbol;
+        }
+        return tree;
+    }
+
+    /** Entries newest first, evicted oldest first, in a ring buffer. */
+    private static final class DynamicTable {
+        private String[] names;
+        private String[] values;
+        private int head;
+        private int count;
+        private int size;
+        private int maxSize;
+
+        DynamicTable(int maxSize) {
+            this.maxSize = maxSize;
+            int capacity = Math.max(1, maxSize / ENTRY_OVERHEAD);
+            this.names = new String[capacity];
+            this.values = new String[capacity];
+        }
+
+        int length() {
+            return count;
+        }
+
+        String name(int i) {
+            return names[slot(i)];
+        }
+
+        String value(int i) {
+            return values[slot(i)];
+        }
+
+        private int slot(int i) {
+            int slot = head - 1 - i;
+            return slot < 0 ? slot + names.length : slot;
+        }
+
+        void add(String name, String value) {
+            int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+            while (count > 0 && size + entrySize > maxSize) {
+                evictOldest();
+            }
+            if (entrySize > maxSize) {
+                return;
+            }
+            if (count == names.length) {
+                grow();
+            }
+            names[head] = name;
+            values[head] = value;
+            head = (head + 1) % names.length;
+            count++;
+            size += entrySize;
+        }
+
+        void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            while (count > 0 && size > maxSize) {
+                evictOldest();
+            }
+        }
+
+        private void evictOldest() {
+            int slot = slot(count - 1);
+            size -= names[slot].length() + values[slot].length() + ENTRY_OVERHEAD;
+            names[slot] = null;
+            values[slot] = null;
+            count--;
+        }
+
+        private void grow() {
+            String[] newNames = new String[names.length * 2];
+            String[] newValues = new String[names.length * 2];
+            for (int i = 0; i < count; i++) {
+                newNames[count - 1 - i] = name(i);
+                newValues[count - 1 - i] = value(i);
+            }
+            names = newNames;
+            values = newValues;
+            head = count;
+        }
+    }
+
+    public static final class Decoder {
+        private final DynamicTable table;
+        private final int maxTableSize;
+
+        public Decoder(int maxTableSize) {
+            this.maxTableSize = maxTableSize;
+            this.table = new DynamicTable(maxTableSize);
+        }
+
+        /**
+         * Decodes one complete header block into name/value pairs. Any
+         * failure is a COMPRESSION_ERROR for the whole connection, since the
+         * tables can no longer be kept in step.
+         */
+        public List<String[]> decode(byte[] block, int offset, int length) throws IOException {
+            List<String[]> fields = new ArrayList<>();
+            int[] pos = { offset };
+            int end = offset + length;
+            boolean fieldSeen = false;
+            while (pos[0] < end) {
+                int b = block[pos[0]] & 0xFF;
+                if ((b & 0x80) != 0) {
+                    int index = readInt(block, pos, end, 7);
+                    fields.add(new String[] { name(index), value(index) });
+                    fieldSeen = true;
+                } else if ((b & 0x40) != 0) {
+                    String[] field = readLiteral(block, pos, end, 6);
+                    table.add(field[0], field[1]);
+                    fields.add(field);
+                    fieldSeen = true;
+                } else if ((b & 0x20) != 0) {
+                    if (fieldSeen) {
+                        throw new IOException("Dynamic table size update after a header field");
+                    }
+                    int newSize = readInt(block, pos, end, 5);
+                    if (newSize > maxTableSize) {
+                        throw new IOException("Dynamic table size update above the advertised limit");
+                    }
+                    table.setMaxSize(newSize);
+                } else {
+                    // Literal without indexing (0000) or never indexed (0001).
+                    fields.add(readLiteral(block, pos, end, 4));
+                    fieldSeen = true;
+                }
+            }
+            return fields;
+        }
+
+        private String[] readLiteral(byte[] block, int[] pos, int end, int prefix) throws IOException {
+            int index = readInt(block, pos, end, prefix);
+            String name = index == 0 ? readString(block, pos, end) : name(index);
+            return new String[] { name, readString(block, pos, end) };
+        }
+
+        private String name(int index) throws IOException {
+            if (index <= 0) {
+                throw new IOException("Invalid header table index 0");
+            }
+            if (index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1][0];
+            }
+            int i = index - STATIC_TABLE.length - 1;
+            if (i >= table.length()) {
+                throw new IOException("Header table index out of range: " + index);
+            }
+            return table.name(i);
+        }
+
+        private String value(int index) throws IOException {
+            name(index);
+            return index <= STATIC_TABLE.length
+                ? STATIC_TABLE[index - 1][1]
+                : table.value(index - STATIC_TABLE.length - 1);
+        }
+    }
+
+    public static final class Encoder {
+        private final DynamicTable table = new DynamicTable(DEFAULT_TABLE_SIZE);
+        private int pendingSizeUpdate = -1;
+
+        /** Applies the peer's SETTINGS_HEADER_TABLE_SIZE; announced in the next header block. */
+        public void setPeerTableSize(int peerSize) {
+            int size = Math.min(peerSize, MAX_ENCODER_TABLE_SIZE);
+            if (size != table.maxSize) {
+                table.setMaxSize(size);
+                pendingSizeUpdate = size;
+            }
+        }
+
+        /** Encodes a header list; names must already be lower case. */
+        public byte[] encode(List<String[]> fields) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+            if (pendingSizeUpdate >= 0) {
+                writeInt(out, 0x20, 5, pendingSizeUpdate);
+                pendingSizeUpdate = -1;
+            }
+            for (String[] field : fields) {
+                encodeField(out, field[0], field[1]);
+            }
+            return out.toByteArray();
+        }
+
+        private void encodeField(ByteArrayOutputStream out, String name, String value) {
+            int nameIndex = 0;
+            for (int i = 0; i < STATIC_TABLE.length; i++) {
+                if (STATIC_TABLE[i][0].equals(name)) {
+                    if (STATIC_TABLE[i][1].equals(value)) {
+                        writeInt(out, 0x80, 7, i + 1);
+                        return;
+                    }
+                    if (nameIndex == 0) {
+                        nameIndex = i + 1;
+                    }
+                }
+            }
+            for (int i = 0; i < table.length(); i++) {
+                if (table.name(i).equals(name)) {
+                    if (table.value(i).equals(value)) {
+                        writeInt(out, 0x80, 7, STATIC_TABLE.length + 1 + i);
+                        return;
+                    }
+                    if (nameIndex == 0) {
+                        nameIndex = STATIC_TABLE.length + 1 + i;
+                    }
+                }
+            }
+            if (isIndexable(name, value)) {
+                writeInt(out, 0x40, 6, nameIndex);
+                table.add(name, value);
+            } else {
+                // Never indexed for secrets, so intermediaries keep them out of their tables too.
+                writeInt(out, isSensitive(name) ? 0x10 : 0x00, 4, nameIndex);
+            }
+            if (nameIndex == 0) {
+                writeString(out, name);
+            }
+            writeString(out, value);
+        }
+
+        // Values that change with every response would only churn the table.
+        private static boolean isIndexable(String name, String value) {
+            switch (name) {
+                case "content-length":
+                case "date":
+                case "etag":
+                case "last-modified":
+                case "location":
+                case "set-cookie":
+                case "authorization":
+                case "age":
+                    return false;
+                default:
+                    return value.length() <= 256;
+            }
+        }
+
+        private static boolean isSensitive(String name) {
+            return name.equals("set-cookie") || name.equals("authorization");
+        }
+    }
+
+    static int readInt(byte[] block, int[] pos, int end, int prefixBits) throws IOException {
+        int mask = (1 << prefixBits) - 1;
+        int value = block[pos[0]++] & mask;
+        if (value < mask) {
+            return value;
+        }
+        int shift = 0;
+        while (true) {
+            if (pos[0] >= end) {
+                throw new IOException("Truncated HPACK integer");
+            }
+            int b = block[pos[0]++] & 0xFF;
+            value += (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+            if (shift > 21) {
+                throw new IOException("HPACK integer too large");
+            }
+        }
+    }
+
+    static void writeInt(ByteArrayOutputStream out, int firstByte, int prefixBits, int value) {
+        int mask = (1 << prefixBits) - 1;
+        if (value < mask) {
+            out.write(firstByte | value);
+            return;
+        }
+        out.write(firstByte | mask);
+        value -= mask;
+        while (value >= 0x80) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    static String readString(byte[] block, int[] pos, int end) throws IOException {
+        if (pos[0] >= end) {
+            throw new IOException("Truncated HPACK string");
+        }
+        boolean huffman = (block[pos[0]] & 0x80) != 0;
+        int length = readInt(block, pos, end, 7);
+        if (length > end - pos[0] || length > MAX_STRING_LENGTH) {
+            throw new IOException("Truncated HPACK string");
+        }
+        int start = pos[0];
+        pos[0] += length;
+        if (!huffman) {
+            return new String(block, start, length, StandardCharsets.ISO_8859_1);
+        }
+        return huffmanDecode(block, start, length);
+    }
+
+    static void writeString(ByteArrayOutputStream out, String value) {
+        long bits = 0;
+        for (int i = 0; i < value.length(); i++) {
+            bits += HUFFMAN_LENGTHS[value.charAt(i) & 0xFF];
+        }
+        int huffmanLength = (int) ((bits + 7) / 8);
+        if (huffmanLength >= value.length()) {
+            writeInt(out, 0x00, 7, value.length());
+            for (int i = 0; i < value.length(); i++) {
+                out.write(value.charAt(i));
+            }
+            return;
+        }
+        writeInt(out, 0x80, 7, huffmanLength);
+        long buffer = 0;
+        int buffered = 0;
+        for (int i = 0; i < value.length(); i++) {
+            int symbol = value.charAt(i) & 0xFF;
+            buffer = (buffer << HUFFMAN_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+            buffered += HUFFMAN_LENGTHS[symbol];
+            while (buffered >= 8) {
+                buffered -= 8;
+                out.write((int) (buffer >>> buffered));
+            }
+        }
+        if (buffered > 0) {
+            // Pad with the most significant bits of EOS, which are all ones.
+            out.write((int) ((buffer << (8 - buffered)) | (0xFF >>> buffered)));
+        }
+    }
+
+    static String huffmanDecode(byte[] data, int offset, int length) throws IOException {
+        StringBuilder sb = new StringBuilder(length * 8 / 5);
+        int node = 0;
+        int depth = 0;
+        boolean allOnes = true;
+        for (int i = offset; i < offset + length; i++) {
+            int b = data[i] & 0xFF;
+            for (int bit = 7; bit >= 0; bit--) {
+                int one = (b >>> bit) & 1;
+                allOnes &= one == 1;
+                depth++;
+                int next = HUFFMAN_TREE[2 * node + one];
+                if (next < 0) {
+                    int symbol = ~next;
+                    if (symbol == 256) {
+                        throw new IOException("EOS in Huffman-coded string");
+                    }
+                    sb.append((char) symbol);
+                    node = 0;
+                    depth = 0;
+                    allOnes = true;
+                } else if (next == 0) {
+                    throw new IOException("Invalid Huffman code");
+                } else {
+                    node = next;
+                }
+            }
+        }
+        // Padding must be shorter than a byte and a prefix of EOS (all ones).
+        if (depth > 7 || !allOnes) {
+            throw new IOException("Invalid Huffman padding");
+        }
+        return sb.toString();
+    }
+}
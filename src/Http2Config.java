@@ -0,0 +1,99 @@
+package src;
+
+import java.io.IOException;
+
+/** HTTP/2 over cleartext (h2c), by prior knowledge or Upgrade: h2c. */
+public class Http2Config {
+    private boolean enabled = true;
+    private int maxConcurrentStreams = 100;
+    private int initialWindowSize = 65535;
+    private int connectionWindowSize = 1024 * 1024;
+    private int maxFrameSize = 16384;
+    private int headerTableSize = 4096;
+    private int maxHeaderListSize = 16384;
+    
+    public boolean isEnabled() { return enabled; }
+    public int getMaxConcurrentStreams() { return maxConcurrentStreams; }
+    /** Receive window of each stream, i.e. how much request body a client may send ahead. */
+    public int getInitialWindowSize() { return initialWindowSize; }
+    public int getConnectionWindowSize() { return connectionWindowSize; }
+    public int getMaxFrameSize() { return maxFrameSize; }
+    public int getHeaderTableSize() { return headerTableSize; }
+    public int getMaxHeaderListSize() { return maxHeaderListSize; }
+    
+    public void setEnabled(boolean enabled) { this.enabled = enabled; }
+    public void setMaxConcurrentStreams(int maxConcurrentStreams) { this.maxConcurrentStreams = maxConcurrentStreams; }
+    public void setInitialWindowSize(int initialWindowSize) { this.initialWindowSize = initialWindowSize; }
+    public void setConnectionWindowSize(int connectionWindowSize) { this.connectionWindowSize = connectionWindowSize; }
+    public void setMaxFrameSize(int maxFrameSize) { this.maxFrameSize = maxFrameSize; }
+    public void setHeaderTableSize(int headerTableSize) { this.headerTableSize = headerTableSize; }
+    public void setMaxHeaderListSize(int maxHeaderListSize) { this.maxHeaderListSize = maxHeaderListSize; }
+
+    static Http2Config read(JsonReader reader) throws IOException {
+        Http2Config http2 = new Http2Config();
+        
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            Integer value;
+            switch (name) {
+                case "enabled":
+                    Boolean enabled = ConfigLoader.readBoolean(reader);
+                    if (enabled != null) {
+                        http2.setEnabled(enabled);
+                    }
+                    break;
+                case "maxConcurrentStreams":
+                    value = ConfigLoader.readInt(reader, http2.getMaxConcurrentStreams());
+                    if (value != null) {
+                        http2.setMaxConcurrentStreams(value);
+                    }
+                    break;
+                case "initialWindowSize":
+                    value = ConfigLoader.readInt(reader, http2.getInitialWindowSize());
+                    if (value != null) {
+                        http2.setInitialWindowSize(value);
+                    }
+                    break;
+                case "connectionWindowSize":
+                    value = ConfigLoader.readInt(reader, http2.getConnectionWindowSize());
+                    if (value != null) {
+                        http2.setConnectionWindowSize(value);
+                    }
+                    break;
+                case "maxFrameSize":
+                    value = ConfigLoader.readInt(reader, http2.getMaxFrameSize());
+                    if (value != null) {
+                        http2.setMaxFrameSize(value);
+                    }
+                    break;
+                case "headerTableSize":
+                    value = ConfigLoader.readInt(reader, http2.getHeaderTableSize());
+                    if (value != null) {
+                        http2.setHeaderTableSize(value);
+                    }
+                    break;
+                case "maxHeaderListSize":
+                    value = ConfigLoader.readInt(reader, http2.getMaxHeaderListSize());
+                    if (value != null) {
+                        http2.setMaxHeaderListSize(value);
+                    }
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        
+        return http2;
+    }
+
+    void validate() throws IOException {
+        if (maxConcurrentStreams <= 0 || headerTableSize < 0 || maxHeaderListSize <= 0 ||
+            initialWindowSize <= 0 || connectionWindowSize < 65535 ||
+            maxFrameSize < 16384 || maxFrameSize > 16777215) {
+            throw new IOException("Invalid http2 settings");
+        }
+    }
+}
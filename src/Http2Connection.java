@@ -0,0 +1,1210 @@
+package src;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One HTTP/2 connection over cleartext (h2c), entered either by prior
+ * knowledge (the client opens with the connection preface) or by an
+ * HTTP/1.1 request carrying Upgrade: h2c, which becomes stream 1.
+ *
+ * Everything runs on the selector thread. Each stream's request is rebuilt
+ * as an HTTP/1.1 request head and handed to an Exchange, which runs it
+ * through the normal router and handlers; the HTTP/1.1-encoded response the
+ * handlers produce (a complete byte array, or headers followed by a
+ * ResponseStream) is translated back into HEADERS and DATA frames. Streams
+ * take turns, one frame each, so a large download does not hold up the
+ * small responses multiplexed next to it; the connection as a whole reads
+ * and writes at most the loop budget's share per turn, so it does not hold
+ * up the other connections either.
+ *
+ * Flow control: request bodies are consumed as they arrive (spooled to disk
+ * past a threshold), so receive windows are replenished once half used.
+ * On the send side at most STREAM_READ_AHEAD bytes per stream are pulled
+ * from its producer ahead of the peer's windows, which stalls the producer
+ * the same way a slow HTTP/1.1 socket would.
+ */
+public class Http2Connection implements ChannelHandler {
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] SWITCHING_PROTOCOLS =
+        "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] HEADERS_TOO_LARGE =
+        "HTTP/1.1 431 Request Header Fields Too Large\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final int DEFAULT_WINDOW = 65535;
+    private static final long MAX_WINDOW = Integer.MAX_VALUE;
+    private static final int MAX_BUFFERED_OUTPUT = 256 * 1024;
+    private static final int STREAM_READ_AHEAD = 64 * 1024;
+    private static final int MAX_RESPONSE_HEAD = 64 * 1024;
+
+    /** The server side of one stream. */
+    public interface Exchange {
+        /** Request body bytes, as they arrive. */
+        void body(ByteBuffer data) throws IOException;
+
+        /** The request is complete: start producing the response. */
+        void complete();
+
+        /** The next piece of the HTTP/1.1-encoded response, or null if none is ready yet. */
+        byte[] nextSegment();
+
+        /** Whether the response has been produced in full (or failed). */
+        boolean isDone();
+
+        boolean isFailed();
+
+        /** Releases the exchange; called exactly once, however the stream ends. */
+        void close();
+    }
+
+    public interface ExchangeFactory {
+        /** Opens the exchange for a request, given as an HTTP/1.1 request head. */
+        Exchange open(Http2Connection connection, byte[] requestHead) throws IOException;
+    }
+
+    private final class Stream {
+        final int id;
+        Exchange exchange;
+        boolean remoteClosed;
+        boolean headRequest;
+        boolean closed;
+        long sendWindow;
+        int recvWindow;
+        int recvUnacked;
+
+        // The response, as it is translated from HTTP/1.1.
+        byte[] head = EMPTY;
+        List<String[]> responseHeaders;
+        boolean headersSent;
+        long bodyRemaining = -1;
+        ChunkedDecoder chunked;
+        boolean bodyComplete;
+        boolean failed;
+        final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+        int pendingOffset;
+        long pendingBytes;
+
+        Stream(int id) {
+            this.id = id;
+        }
+    }
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final Http2Config config;
+    private final ExchangeFactory factory;
+    private final Runnable onClose;
+    private final LoopBudget budget;
+    private final Hpack.Decoder decoder;
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+
+    private final ByteBuffer in;
+    private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+    private long outBytes;
+
+    private final Map<Integer, Stream> streams = new HashMap<>();
+    private final List<Stream> order = new ArrayList<>();
+    private int turn;
+
+    private boolean prefaceReceived;
+    private boolean settingsReceived;
+    private int continuationStream;
+    private boolean headerBlockEndStream;
+    private final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+    private int lastStreamId;
+
+    private long peerInitialWindow = DEFAULT_WINDOW;
+    private int peerMaxFrameSize = Http2Frame.DEFAULT_MAX_FRAME_SIZE;
+    private long connectionSendWindow = DEFAULT_WINDOW;
+    private long connectionRecvWindow = DEFAULT_WINDOW;
+    private int connectionRecvUnacked;
+
+    private boolean goingAway;
+    private boolean closeWhenIdle;
+    private boolean closed;
+    private long lastActivity;
+
+    private final AtomicLong streamsOpened;
+    private final AtomicLong streamResets;
+    private final AtomicLong refusedStreams;
+    private final AtomicLong connectionErrors;
+
+    public Http2Connection(SocketChannel channel, SelectionKey key, Http2Config config,
+                           Metrics metrics, LoopBudget budget, ExchangeFactory factory, Runnable onClose) {
+        this.channel = channel;
+        this.key = key;
+        this.config = config;
+        this.factory = factory;
+        this.onClose = onClose;
+        this.budget = budget;
+        this.decoder = new Hpack.Decoder(config.getHeaderTableSize());
+        this.in = ByteBuffer.allocate(Http2Frame.HEADER_LENGTH + config.getMaxFrameSize());
+        this.streamsOpened = metrics.counter("http2.streams");
+        this.streamResets = metrics.counter("http2.stream_resets");
+        this.refusedStreams = metrics.counter("http2.refused_streams");
+        this.connectionErrors = metrics.counter("http2.connection_errors");
+    }
+
+    /** Whether the bytes so far are (a prefix of) the HTTP/2 connection preface. */
+    public static boolean startsWithPreface(byte[] buf, int length) {
+        for (int i = 0; i < Math.min(length, PREFACE.length); i++) {
+            if (buf[i] != PREFACE[i]) {
+                return false;
+            }
+        }
+        return length > 0;
+    }
+
+    public static int prefaceLength() {
+        return PREFACE.length;
+    }
+
+    /**
+     * The decoded HTTP2-Settings payload if this is a valid h2c upgrade
+     * request (RFC 7540 section 3.2), otherwise null.
+     */
+    public static byte[] upgradeSettings(HttpRequest request) {
+        String upgrade = request.getHeader("Upgrade");
+        String connection = request.getHeader("Connection");
+        String settings = request.getHeader("HTTP2-Settings");
+        if (upgrade == null || connection == null || settings == null
+            || !HttpRequest.HTTP_1_1.equals(request.getVersion())) {
+            return null;
+        }
+        boolean h2c = false;
+        for (String protocol : upgrade.split(",")) {
+            h2c |= protocol.trim().equalsIgnoreCase("h2c");
+        }
+        boolean upgradeToken = false;
+        for (String token : connection.split(",")) {
+            upgradeToken |= token.trim().equalsIgnoreCase("upgrade");
+        }
+        if (!h2c || !upgradeToken) {
+            return null;
+        }
+        try {
+            byte[] payload = Base64.getUrlDecoder().decode(settings.trim());
+            return payload.length % 6 == 0 ? payload : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * Sends the server preface and processes the bytes already read. For an
+     * upgrade, upgradeHead is the upgrading request (answered as stream 1)
+     * and upgradeSettings its HTTP2-Settings payload.
+     */
+    public void start(byte[] initial, byte[] upgradeHead, byte[] upgradeSettings) {
+        lastActivity = System.currentTimeMillis();
+        try {
+            if (upgradeHead != null) {
+                queue(SWITCHING_PROTOCOLS);
+            }
+            queue(Http2Frame.encode(Http2Frame.SETTINGS, 0, 0, Http2Frame.settings(
+                Http2Frame.SETTINGS_MAX_CONCURRENT_STREAMS, config.getMaxConcurrentStreams(),
+                Http2Frame.SETTINGS_INITIAL_WINDOW_SIZE, config.getInitialWindowSize(),
+                Http2Frame.SETTINGS_MAX_FRAME_SIZE, config.getMaxFrameSize(),
+                Http2Frame.SETTINGS_HEADER_TABLE_SIZE, config.getHeaderTableSize(),
+                Http2Frame.SETTINGS_MAX_HEADER_LIST_SIZE, config.getMaxHeaderListSize()
+            )));
+            if (config.getConnectionWindowSize() > DEFAULT_WINDOW) {
+                int increment = config.getConnectionWindowSize() - DEFAULT_WINDOW;
+                queue(Http2Frame.encode(Http2Frame.WINDOW_UPDATE, 0, 0, Http2Frame.ints(increment)));
+                connectionRecvWindow += increment;
+            }
+            if (upgradeHead != null) {
+                applySettings(upgradeSettings);
+                Stream stream = openStream(1);
+                stream.remoteClosed = true;
+                stream.headRequest = startsWith(upgradeHead, "HEAD ");
+                stream.exchange = factory.open(this, upgradeHead);
+                stream.exchange.complete();
+            }
+            receive(ByteBuffer.wrap(initial));
+            flush();
+        } catch (Http2Exception e) {
+            connectionError(e);
+        } catch (IOException e) {
+            closeNow();
+        }
+    }
+
+    @Override
+    public void handleEvent(SelectionKey key) {
+        try {
+            if (key.isReadable()) {
+                int limit = in.limit();
+                in.limit(Math.min(limit, in.position() + budget.getReadBytes()));
+                int n = channel.read(in);
+                in.limit(limit);
+                if (n < 0) {
+                    closeNow();
+                    return;
+                }
+                if (n > 0) {
+                    budget.record(n);
+                    lastActivity = System.currentTimeMillis();
+                    in.flip();
+                    process();
+                    in.compact();
+                }
+            }
+            flush();
+        } catch (Http2Exception e) {
+            connectionError(e);
+        } catch (IOException e) {
+            closeNow();
+        }
+    }
+
+    /** A stream has more response data; called on the selector thread. */
+    public void requestWrite() {
+        if (closed) {
+            return;
+        }
+        try {
+            flush();
+        } catch (IOException e) {
+            closeNow();
+        }
+    }
+
+    // Feeds bytes that were read elsewhere through the frame buffer.
+    private void receive(ByteBuffer data) throws IOException {
+        while (data.hasRemaining() && !closed) {
+            int n = Math.min(in.remaining(), data.remaining());
+            ByteBuffer slice = data.duplicate();
+            slice.limit(slice.position() + n);
+            in.put(slice);
+            data.position(data.position() + n);
+            in.flip();
+            process();
+            in.compact();
+        }
+    }
+
+    private void process() throws IOException {
+        if (!prefaceReceived) {
+            int n = Math.min(in.remaining(), PREFACE.length);
+            for (int i = 0; i < n; i++) {
+                if (in.get(in.position() + i) != PREFACE[i]) {
+                    throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, 0, "Invalid connection preface");
+                }
+            }
+            if (n < PREFACE.length) {
+                return;
+            }
+            in.position(in.position() + PREFACE.length);
+            prefaceReceived = true;
+        }
+        while (!goingAway && !closed) {
+            Http2Frame frame = Http2Frame.read(in, config.getMaxFrameSize());
+            if (frame == null) {
+                return;
+            }
+            try {
+                handleFrame(frame);
+            } catch (Http2Exception e) {
+                if (e.getStreamId() == 0) {
+                    throw e;
+                }
+                resetStream(e.getStreamId(), e.getErrorCode());
+            }
+        }
+    }
+
+    private void handleFrame(Http2Frame frame) throws IOException {
+        int type = frame.getType();
+        int id = frame.getStreamId();
+        byte[] payload = frame.getPayload();
+        if (continuationStream != 0 && (type != Http2Frame.CONTINUATION || id != continuationStream)) {
+            throw protocolError("Expected CONTINUATION for stream " + continuationStream);
+        }
+        if (!settingsReceived && type != Http2Frame.SETTINGS) {
+            throw protocolError("First frame must be SETTINGS");
+        }
+        switch (type) {
+            case Http2Frame.HEADERS:
+                onHeaders(frame);
+                break;
+            case Http2Frame.CONTINUATION:
+                if (continuationStream == 0) {
+                    throw protocolError("Unexpected CONTINUATION");
+                }
+                appendHeaderBlock(payload, 0, payload.length);
+                if (frame.hasFlag(Http2Frame.FLAG_END_HEADERS)) {
+                    continuationStream = 0;
+                    onHeaderBlock(id);
+                }
+                break;
+            case Http2Frame.DATA:
+                onData(frame);
+                break;
+            case Http2Frame.SETTINGS:
+                onSettings(frame);
+                break;
+            case Http2Frame.WINDOW_UPDATE:
+                onWindowUpdate(frame);
+                break;
+            case Http2Frame.PING:
+                if (payload.length != 8) {
+                    throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, 0, "PING must be 8 bytes");
+                }
+                if (id != 0) {
+                    throw protocolError("PING on a stream");
+                }
+                if (!frame.hasFlag(Http2Frame.FLAG_ACK)) {
+                    queue(Http2Frame.encode(Http2Frame.PING, Http2Frame.FLAG_ACK, 0, payload));
+                }
+                break;
+            case Http2Frame.RST_STREAM:
+                if (payload.length != 4) {
+                    throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, 0, "RST_STREAM must be 4 bytes");
+                }
+                if (id == 0 || id > lastStreamId) {
+                    throw protocolError("RST_STREAM on an idle stream");
+                }
+                Stream reset = streams.get(id);
+                if (reset != null) {
+                    closeStream(reset);
+                }
+                break;
+            case Http2Frame.PRIORITY:
+                if (id == 0) {
+                    throw protocolError("PRIORITY without a stream");
+                }
+                if (payload.length != 5) {
+                    throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, id, "PRIORITY must be 5 bytes");
+                }
+                break;
+            case Http2Frame.GOAWAY:
+                if (id != 0) {
+                    throw protocolError("GOAWAY on a stream");
+                }
+                closeWhenIdle = true;
+                break;
+            case Http2Frame.PUSH_PROMISE:
+                throw protocolError("Clients cannot push");
+            default:
+                // Unknown frame types are ignored (RFC 9113 section 4.1).
+                break;
+        }
+    }
+
+    private void onHeaders(Http2Frame frame) throws IOException {
+        int id = frame.getStreamId();
+        if (id == 0) {
+            throw protocolError("HEADERS without a stream");
+        }
+        byte[] payload = frame.getPayload();
+        int offset = 0;
+        int length = payload.length;
+        if (frame.hasFlag(Http2Frame.FLAG_PADDED)) {
+            if (length < 1) {
+                throw protocolError("Truncated padding");
+            }
+            int padding = payload[0] & 0xFF;
+            offset = 1;
+            length -= 1 + padding;
+        }
+        if (frame.hasFlag(Http2Frame.FLAG_PRIORITY)) {
+            offset += 5;
+            length -= 5;
+        }
+        if (length < 0) {
+            throw protocolError("HEADERS padding exceeds the payload");
+        }
+        headerBlock.reset();
+        headerBlockEndStream = frame.hasFlag(Http2Frame.FLAG_END_STREAM);
+        appendHeaderBlock(payload, offset, length);
+        if (frame.hasFlag(Http2Frame.FLAG_END_HEADERS)) {
+            onHeaderBlock(id);
+        } else {
+            continuationStream = id;
+        }
+    }
+
+    private void appendHeaderBlock(byte[] data, int offset, int length) throws Http2Exception {
+        // Bounds the memory a CONTINUATION flood can pin.
+        if (headerBlock.size() + length > 4L * config.getMaxHeaderListSize() + config.getMaxFrameSize()) {
+            throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, 0, "Header block too large");
+        }
+        headerBlock.write(data, offset, length);
+    }
+
+    private void onHeaderBlock(int id) throws IOException {
+        List<String[]> fields;
+        try {
+            fields = decoder.decode(headerBlock.toByteArray(), 0, headerBlock.size());
+        } catch (IOException e) {
+            throw new Http2Exception(Http2Frame.COMPRESSION_ERROR, 0, e.getMessage());
+        }
+
+        Stream stream = streams.get(id);
+        if (stream != null) {
+            // Trailers: they end the request and are otherwise ignored.
+            if (stream.remoteClosed) {
+                throw new Http2Exception(Http2Frame.STREAM_CLOSED, id, "HEADERS on a half-closed stream");
+            }
+            if (!headerBlockEndStream) {
+                throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, id, "Trailers without END_STREAM");
+            }
+            stream.remoteClosed = true;
+            stream.exchange.complete();
+            return;
+        }
+        if ((id & 1) == 0 || id <= lastStreamId) {
+            throw protocolError("Invalid stream id " + id);
+        }
+        lastStreamId = id;
+        if (closeWhenIdle) {
+            return;
+        }
+        if (streams.size() >= config.getMaxConcurrentStreams()) {
+            refusedStreams.incrementAndGet();
+            sendReset(id, Http2Frame.REFUSED_STREAM);
+            return;
+        }
+
+        stream = openStream(id);
+        stream.remoteClosed = headerBlockEndStream;
+        long listSize = 0;
+        for (String[] field : fields) {
+            listSize += field[0].length() + field[1].length() + 32;
+        }
+        if (listSize > config.getMaxHeaderListSize()) {
+            stream.exchange = cannedExchange(HEADERS_TOO_LARGE);
+            return;
+        }
+        byte[] requestHead = toRequestHead(stream, fields);
+        stream.exchange = factory.open(this, requestHead);
+        if (stream.remoteClosed) {
+            stream.exchange.complete();
+        }
+    }
+
+    private Stream openStream(int id) {
+        Stream stream = new Stream(id);
+        stream.sendWindow = peerInitialWindow;
+        stream.recvWindow = config.getInitialWindowSize();
+        streams.put(id, stream);
+        order.add(stream);
+        streamsOpened.incrementAndGet();
+        return stream;
+    }
+
+    // Rebuilds the request as HTTP/1.1 so the existing parser and handlers
+    // can take it as is (RFC 9113 section 8.3).
+    private byte[] toRequestHead(Stream stream, List<String[]> fields) throws Http2Exception {
+        String method = null;
+        String scheme = null;
+        String authority = null;
+        String path = null;
+        boolean regularSeen = false;
+        boolean hostSeen = false;
+        StringBuilder headers = new StringBuilder(256);
+        StringBuilder cookies = null;
+        for (String[] field : fields) {
+            String name = field[0];
+            String value = field[1];
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\r' || c == '\n' || c == 0) {
+                    throw malformed(stream, "Invalid character in header value");
+                }
+            }
+            if (name.startsWith(":")) {
+                if (regularSeen) {
+                    throw malformed(stream, "Pseudo-header after regular header");
+                }
+                switch (name) {
+                    case ":method":
+                        method = pseudo(stream, method, value);
+                        break;
+                    case ":scheme":
+                        scheme = pseudo(stream, scheme, value);
+                        break;
+                    case ":authority":
+                        authority = pseudo(stream, authority, value);
+                        break;
+                    case ":path":
+                        path = pseudo(stream, path, value);
+                        break;
+                    default:
+                        throw malformed(stream, "Unknown pseudo-header " + name);
+                }
+                continue;
+            }
+            regularSeen = true;
+            if (name.isEmpty() || !name.equals(name.toLowerCase(Locale.ROOT))) {
+                throw malformed(stream, "Header names must be lower case");
+            }
+            switch (name) {
+                case "connection":
+                case "keep-alive":
+                case "proxy-connection":
+                case "transfer-encoding":
+                case "upgrade":
+                    throw malformed(stream, "Connection-specific header " + name);
+                case "te":
+                    if (!value.equals("trailers")) {
+                        throw malformed(stream, "TE other than trailers");
+                    }
+                    continue;
+                case "cookie":
+                    // Split cookie fields are joined back into one header (section 8.2.3).
+                    if (cookies == null) {
+                        cookies = new StringBuilder(value);
+                    } else {
+                        cookies.append("; ").append(value);
+                    }
+                    continue;
+                case "host":
+                    hostSeen = true;
+                    break;
+                default:
+                    break;
+            }
+            headers.append(name).append(": ").append(value).append("\r\n");
+        }
+        if (method == null || scheme == null || path == null || path.isEmpty()) {
+            throw malformed(stream, "Missing :method, :scheme or :path");
+        }
+        stream.headRequest = method.equals(HttpRequest.HEAD);
+
+        StringBuilder head = new StringBuilder(headers.length() + path.length() + 64);
+        head.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+        if (!hostSeen && authority != null) {
+            head.append("host: ").append(authority).append("\r\n");
+        }
+        head.append(headers);
+        if (cookies != null) {
+            head.append("cookie: ").append(cookies).append("\r\n");
+        }
+        head.append("\r\n");
+        return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static String pseudo(Stream stream, String current, String value) throws Http2Exception {
+        if (current != null) {
+            throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, stream.id, "Duplicate pseudo-header");
+        }
+        return value;
+    }
+
+    private static Http2Exception malformed(Stream stream, String message) {
+        return new Http2Exception(Http2Frame.PROTOCOL_ERROR, stream.id, message);
+    }
+
+    private void onData(Http2Frame frame) throws IOException {
+        int id = frame.getStreamId();
+        if (id == 0) {
+            throw protocolError("DATA without a stream");
+        }
+        byte[] payload = frame.getPayload();
+        connectionRecvWindow -= payload.length;
+        if (connectionRecvWindow < 0) {
+            throw new Http2Exception(Http2Frame.FLOW_CONTROL_ERROR, 0, "Connection window exceeded");
+        }
+        connectionRecvUnacked += payload.length;
+        if (connectionRecvUnacked >= config.getConnectionWindowSize() / 2) {
+            queue(Http2Frame.encode(Http2Frame.WINDOW_UPDATE, 0, 0, Http2Frame.ints(connectionRecvUnacked)));
+            connectionRecvWindow += connectionRecvUnacked;
+            connectionRecvUnacked = 0;
+        }
+
+        Stream stream = streams.get(id);
+        if (stream == null) {
+            if (id > lastStreamId) {
+                throw protocolError("DATA on an idle stream");
+            }
+            // A stream we already answered and reset: late data is dropped.
+            return;
+        }
+        if (stream.remoteClosed) {
+            throw new Http2Exception(Http2Frame.STREAM_CLOSED, id, "DATA after END_STREAM");
+        }
+        stream.recvWindow -= payload.length;
+        if (stream.recvWindow < 0) {
+            throw new Http2Exception(Http2Frame.FLOW_CONTROL_ERROR, id, "Stream window exceeded");
+        }
+
+        int offset = 0;
+        int length = payload.length;
+        if (frame.hasFlag(Http2Frame.FLAG_PADDED)) {
+            int padding = length > 0 ? payload[0] & 0xFF : 0;
+            offset = 1;
+            length -= 1 + padding;
+            if (length < 0) {
+                throw protocolError("DATA padding exceeds the payload");
+            }
+        }
+        if (length > 0) {
+            try {
+                stream.exchange.body(ByteBuffer.wrap(payload, offset, length));
+            } catch (IOException e) {
+                throw new Http2Exception(Http2Frame.INTERNAL_ERROR, id, e.getMessage());
+            }
+        }
+
+        if (frame.hasFlag(Http2Frame.FLAG_END_STREAM)) {
+            stream.remoteClosed = true;
+            stream.exchange.complete();
+        } else {
+            stream.recvUnacked += payload.length;
+            if (stream.recvUnacked >= config.getInitialWindowSize() / 2) {
+                queue(Http2Frame.encode(Http2Frame.WINDOW_UPDATE, 0, id, Http2Frame.ints(stream.recvUnacked)));
+                stream.recvWindow += stream.recvUnacked;
+                stream.recvUnacked = 0;
+            }
+        }
+    }
+
+    private void onSettings(Http2Frame frame) throws IOException {
+        if (frame.getStreamId() != 0) {
+            throw protocolError("SETTINGS on a stream");
+        }
+        byte[] payload = frame.getPayload();
+        if (frame.hasFlag(Http2Frame.FLAG_ACK)) {
+            if (payload.length != 0) {
+                throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, 0, "SETTINGS ACK with a payload");
+            }
+            return;
+        }
+        if (payload.length % 6 != 0) {
+            throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, 0, "SETTINGS length not a multiple of 6");
+        }
+        applySettings(payload);
+        settingsReceived = true;
+        queue(Http2Frame.encode(Http2Frame.SETTINGS, Http2Frame.FLAG_ACK, 0, EMPTY));
+    }
+
+    private void applySettings(byte[] payload) throws Http2Exception {
+        ByteBuffer settings = ByteBuffer.wrap(payload);
+        while (settings.remaining() >= 6) {
+            int id = settings.getShort() & 0xFFFF;
+            long value = settings.getInt() & 0xFFFFFFFFL;
+            switch (id) {
+                case Http2Frame.SETTINGS_HEADER_TABLE_SIZE:
+                    encoder.setPeerTableSize((int) Math.min(value, Integer.MAX_VALUE));
+                    break;
+                case Http2Frame.SETTINGS_ENABLE_PUSH:
+                    if (value > 1) {
+                        throw protocolError("Invalid SETTINGS_ENABLE_PUSH");
+                    }
+                    break;
+                case Http2Frame.SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value > MAX_WINDOW) {
+                        throw new Http2Exception(Http2Frame.FLOW_CONTROL_ERROR, 0, "Initial window too large");
+                    }
+                    long delta = value - peerInitialWindow;
+                    peerInitialWindow = value;
+                    for (Stream stream : streams.values()) {
+                        stream.sendWindow += delta;
+                        if (stream.sendWindow > MAX_WINDOW) {
+                            throw new Http2Exception(Http2Frame.FLOW_CONTROL_ERROR, 0, "Stream window overflow");
+                        }
+                    }
+                    break;
+                case Http2Frame.SETTINGS_MAX_FRAME_SIZE:
+                    if (value < Http2Frame.DEFAULT_MAX_FRAME_SIZE || value > Http2Frame.MAX_FRAME_SIZE_LIMIT) {
+                        throw protocolError("Invalid SETTINGS_MAX_FRAME_SIZE");
+                    }
+                    peerMaxFrameSize = (int) value;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void onWindowUpdate(Http2Frame frame) throws Http2Exception {
+        byte[] payload = frame.getPayload();
+        if (payload.length != 4) {
+            throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, 0, "WINDOW_UPDATE must be 4 bytes");
+        }
+        int id = frame.getStreamId();
+        long increment = ByteBuffer.wrap(payload).getInt() & 0x7FFFFFFFL;
+        if (id == 0) {
+            if (increment == 0) {
+                throw protocolError("Zero WINDOW_UPDATE");
+            }
+            connectionSendWindow += increment;
+            if (connectionSendWindow > MAX_WINDOW) {
+                throw new Http2Exception(Http2Frame.FLOW_CONTROL_ERROR, 0, "Connection window overflow");
+            }
+            return;
+        }
+        if (increment == 0) {
+            throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, id, "Zero WINDOW_UPDATE");
+        }
+        Stream stream = streams.get(id);
+        if (stream != null) {
+            stream.sendWindow += increment;
+            if (stream.sendWindow > MAX_WINDOW) {
+                throw new Http2Exception(Http2Frame.FLOW_CONTROL_ERROR, id, "Stream window overflow");
+            }
+        }
+    }
+
+    // Produces frames and writes them until the socket is full, there is
+    // nothing left to send, or this turn's write budget is spent. In the last
+    // case OP_WRITE stays set and the streams carry on next turn, after the
+    // other connections.
+    private void flush() throws IOException {
+        int turnBytes = 0;
+        boolean yielded = false;
+        while (!closed) {
+            if (turnBytes >= budget.getWriteBytes()) {
+                budget.yielded();
+                yielded = true;
+                break;
+            }
+            produce();
+            if (out.isEmpty()) {
+                break;
+            }
+            while (!out.isEmpty()) {
+                ByteBuffer head = out.peekFirst();
+                int written = channel.write(head);
+                outBytes -= written;
+                turnBytes += written;
+                budget.record(written);
+                // Write progress counts as activity, as it does for HTTP/1.1,
+                // so long-lived streams are not timed out while they flow.
+                if (written > 0) {
+                    lastActivity = System.currentTimeMillis();
+                }
+                if (head.hasRemaining()) {
+                    break;
+                }
+                out.pollFirst();
+            }
+            if (!out.isEmpty()) {
+                break;
+            }
+        }
+        if (closed) {
+            return;
+        }
+        if (!yielded && out.isEmpty() && (goingAway || (closeWhenIdle && streams.isEmpty()))) {
+            closeNow();
+            return;
+        }
+        int ops = 0;
+        if (!goingAway && outBytes < MAX_BUFFERED_OUTPUT) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (!out.isEmpty() || yielded) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if (key.isValid()) {
+            key.interestOps(ops);
+        }
+    }
+
+    // Gives every stream with something to send one frame per round.
+    private void produce() {
+        boolean progress = true;
+        while (progress && outBytes < MAX_BUFFERED_OUTPUT && !order.isEmpty()) {
+            progress = false;
+            Stream[] round = order.toArray(new Stream[0]);
+            for (int i = 0; i < round.length && outBytes < MAX_BUFFERED_OUTPUT; i++) {
+                Stream stream = round[(turn + i) % round.length];
+                if (!stream.closed && emit(stream)) {
+                    progress = true;
+                }
+            }
+            turn++;
+        }
+    }
+
+    private boolean emit(Stream stream) {
+        pull(stream);
+        if (stream.failed) {
+            resetStream(stream.id, Http2Frame.INTERNAL_ERROR);
+            return true;
+        }
+        if (!stream.headersSent) {
+            if (stream.responseHeaders == null) {
+                return false;
+            }
+            boolean end = stream.bodyComplete && stream.pendingBytes == 0;
+            writeHeaders(stream.id, stream.responseHeaders, end);
+            stream.headersSent = true;
+            if (end) {
+                finish(stream);
+            }
+            return true;
+        }
+        if (stream.pendingBytes > 0) {
+            long window = Math.min(stream.sendWindow, connectionSendWindow);
+            if (window <= 0) {
+                return false;
+            }
+            int n = (int) Math.min(Math.min(stream.pendingBytes, peerMaxFrameSize), window);
+            boolean end = stream.bodyComplete && stream.pendingBytes == n;
+            queue(dataFrame(stream, n, end));
+            stream.sendWindow -= n;
+            connectionSendWindow -= n;
+            if (end) {
+                finish(stream);
+            }
+            return true;
+        }
+        if (stream.bodyComplete) {
+            queue(Http2Frame.encode(Http2Frame.DATA, Http2Frame.FLAG_END_STREAM, stream.id, EMPTY));
+            finish(stream);
+            return true;
+        }
+        return false;
+    }
+
+    // Pulls response bytes from the exchange until enough are buffered.
+    private void pull(Stream stream) {
+        while (!stream.bodyComplete && !stream.failed && stream.pendingBytes < STREAM_READ_AHEAD
+               && stream.exchange != null) {
+            byte[] segment = stream.exchange.nextSegment();
+            if (segment == null) {
+                if (stream.exchange.isDone()) {
+                    sourceFinished(stream);
+                }
+                return;
+            }
+            try {
+                translate(stream, segment, 0, segment.length);
+            } catch (IOException e) {
+                stream.failed = true;
+            }
+        }
+    }
+
+    private void sourceFinished(Stream stream) {
+        if (stream.exchange.isFailed() || stream.responseHeaders == null || stream.bodyRemaining > 0
+            || (stream.chunked != null && !stream.chunked.isDone())) {
+            stream.failed = true;
+        } else {
+            stream.bodyComplete = true;
+        }
+    }
+
+    // Splits the HTTP/1.1 response into its head, turned into a header
+    // list, and the body with its HTTP/1.1 framing removed.
+    private void translate(Stream stream, byte[] data, int offset, int length) throws IOException {
+        if (stream.responseHeaders == null) {
+            byte[] head = new byte[stream.head.length + length];
+            System.arraycopy(stream.head, 0, head, 0, stream.head.length);
+            System.arraycopy(data, offset, head, stream.head.length, length);
+            int headerEnd = HttpRequest.findHeaderEnd(head, 0, head.length);
+            if (headerEnd < 0) {
+                if (head.length > MAX_RESPONSE_HEAD) {
+                    throw new IOException("Response head too large");
+                }
+                stream.head = head;
+                return;
+            }
+            stream.head = EMPTY;
+            int status = parseResponseHead(stream, head, headerEnd);
+            if (status < 200) {
+                // Interim responses are not relayed; the final one follows.
+                translate(stream, head, headerEnd, head.length - headerEnd);
+                return;
+            }
+            if (stream.headRequest || status == 204 || status == 304) {
+                stream.bodyComplete = true;
+                return;
+            }
+            if (stream.bodyRemaining == 0) {
+                stream.bodyComplete = true;
+            }
+            data = head;
+            offset = headerEnd;
+            length = head.length - headerEnd;
+        }
+        if (stream.bodyComplete || length == 0) {
+            return;
+        }
+        if (stream.chunked != null) {
+            stream.chunked.decode(ByteBuffer.wrap(data, offset, length), src -> {
+                byte[] chunk = new byte[src.remaining()];
+                src.get(chunk);
+                addPending(stream, chunk);
+            });
+            stream.bodyComplete = stream.chunked.isDone();
+        } else if (stream.bodyRemaining >= 0) {
+            int n = (int) Math.min(length, stream.bodyRemaining);
+            addPending(stream, copy(data, offset, n));
+            stream.bodyRemaining -= n;
+            stream.bodyComplete = stream.bodyRemaining == 0;
+        } else {
+            addPending(stream, copy(data, offset, length));
+        }
+    }
+
+    private int parseResponseHead(Stream stream, byte[] head, int headerEnd) throws IOException {
+        String[] lines = new String(head, 0, headerEnd - 4, StandardCharsets.ISO_8859_1).split("\r\n");
+        int status;
+        try {
+            status = Integer.parseInt(lines[0].substring(9, 12));
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed response status line");
+        }
+        if (status < 200) {
+            return status;
+        }
+        List<String[]> fields = new ArrayList<>(lines.length);
+        fields.add(new String[] { ":status", Integer.toString(status) });
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = lines[i].substring(colon + 1).trim();
+            switch (name) {
+                case "transfer-encoding":
+                    if (value.equalsIgnoreCase("chunked")) {
+                        stream.chunked = new ChunkedDecoder(Long.MAX_VALUE);
+                    }
+                    continue;
+                case "connection":
+                case "keep-alive":
+                case "proxy-connection":
+                case "upgrade":
+                    continue;
+                case "content-length":
+                    try {
+                        stream.bodyRemaining = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Malformed Content-Length");
+                    }
+                    break;
+                default:
+                    break;
+            }
+            fields.add(new String[] { name, value });
+        }
+        if (stream.chunked != null) {
+            stream.bodyRemaining = -1;
+        }
+        stream.responseHeaders = fields;
+        return status;
+    }
+
+    private static byte[] copy(byte[] data, int offset, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(data, offset, copy, 0, length);
+        return copy;
+    }
+
+    private static void addPending(Stream stream, byte[] chunk) {
+        if (chunk.length > 0) {
+            stream.pending.addLast(chunk);
+            stream.pendingBytes += chunk.length;
+        }
+    }
+
+    // One DATA frame carrying the next n pending bytes.
+    private byte[] dataFrame(Stream stream, int n, boolean end) {
+        byte[] frame = Http2Frame.encode(Http2Frame.DATA, end ? Http2Frame.FLAG_END_STREAM : 0, stream.id, EMPTY, 0, 0);
+        byte[] full = new byte[Http2Frame.HEADER_LENGTH + n];
+        System.arraycopy(frame, 0, full, 0, Http2Frame.HEADER_LENGTH);
+        full[0] = (byte) (n >>> 16);
+        full[1] = (byte) (n >>> 8);
+        full[2] = (byte) n;
+        int pos = Http2Frame.HEADER_LENGTH;
+        while (pos < full.length) {
+            byte[] chunk = stream.pending.peekFirst();
+            int take = Math.min(chunk.length - stream.pendingOffset, full.length - pos);
+            System.arraycopy(chunk, stream.pendingOffset, full, pos, take);
+            pos += take;
+            stream.pendingOffset += take;
+            if (stream.pendingOffset == chunk.length) {
+                stream.pending.pollFirst();
+                stream.pendingOffset = 0;
+            }
+        }
+        stream.pendingBytes -= n;
+        return full;
+    }
+
+    private void writeHeaders(int id, List<String[]> fields, boolean endStream) {
+        byte[] block = encoder.encode(fields);
+        int first = Math.min(block.length, peerMaxFrameSize);
+        int flags = (endStream ? Http2Frame.FLAG_END_STREAM : 0) | (first == block.length ? Http2Frame.FLAG_END_HEADERS : 0);
+        queue(Http2Frame.encode(Http2Frame.HEADERS, flags, id, block, 0, first));
+        for (int offset = first; offset < block.length; ) {
+            int n = Math.min(block.length - offset, peerMaxFrameSize);
+            queue(Http2Frame.encode(Http2Frame.CONTINUATION,
+                offset + n == block.length ? Http2Frame.FLAG_END_HEADERS : 0, id, block, offset, n));
+            offset += n;
+        }
+    }
+
+    // The response is complete; a client still sending its request is told
+    // to stop (RFC 9113 section 8.1).
+    private void finish(Stream stream) {
+        if (!stream.remoteClosed) {
+            queue(Http2Frame.encode(Http2Frame.RST_STREAM, 0, stream.id, Http2Frame.ints(Http2Frame.NO_ERROR)));
+        }
+        closeStream(stream);
+    }
+
+    private void resetStream(int id, int errorCode) {
+        sendReset(id, errorCode);
+        Stream stream = streams.get(id);
+        if (stream != null) {
+            closeStream(stream);
+        }
+    }
+
+    private void sendReset(int id, int errorCode) {
+        streamResets.incrementAndGet();
+        queue(Http2Frame.encode(Http2Frame.RST_STREAM, 0, id, Http2Frame.ints(errorCode)));
+    }
+
+    private void closeStream(Stream stream) {
+        if (stream.closed) {
+            return;
+        }
+        stream.closed = true;
+        streams.remove(stream.id);
+        order.remove(stream);
+        stream.pending.clear();
+        stream.pendingBytes = 0;
+        if (stream.exchange != null) {
+            stream.exchange.close();
+        }
+    }
+
+    private void queue(byte[] frame) {
+        out.addLast(ByteBuffer.wrap(frame));
+        outBytes += frame.length;
+    }
+
+    private void connectionError(Http2Exception e) {
+        connectionErrors.incrementAndGet();
+        System.err.println("HTTP/2 connection error: " + e.getMessage());
+        goAway(e.getErrorCode(), e.getMessage());
+        try {
+            flush();
+        } catch (IOException ignored) {
+            closeNow();
+        }
+    }
+
+    private void goAway(int errorCode, String message) {
+        if (goingAway) {
+            return;
+        }
+        goingAway = true;
+        byte[] debug = message != null ? message.getBytes(StandardCharsets.UTF_8) : EMPTY;
+        ByteBuffer payload = ByteBuffer.allocate(8 + debug.length);
+        payload.putInt(lastStreamId).putInt(errorCode).put(debug);
+        for (Stream stream : order.toArray(new Stream[0])) {
+            closeStream(stream);
+        }
+        queue(Http2Frame.encode(Http2Frame.GOAWAY, 0, 0, payload.array()));
+    }
+
+    private void closeNow() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Stream stream : order.toArray(new Stream[0])) {
+            closeStream(stream);
+        }
+        onClose.run();
+    }
+
+    /**
+     * Closes every stream when the server drops the connection (timeout,
+     * shutdown), with a best-effort GOAWAY.
+     */
+    public void shutdown() {
+        if (closed) {
+            return;
+        }
+        goAway(Http2Frame.NO_ERROR, null);
+        closed = true;
+        try {
+            ByteBuffer last = out.peekLast();
+            if (out.size() == 1 && channel.isOpen()) {
+                channel.write(last);
+            }
+        } catch (IOException e) {
+        }
+    }
+
+    private static Http2Exception protocolError(String message) {
+        return new Http2Exception(Http2Frame.PROTOCOL_ERROR, 0, message);
+    }
+
+    private static boolean startsWith(byte[] data, String prefix) {
+        if (data.length < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (data[i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Exchange cannedExchange(byte[] response) {
+        return new Exchange() {
+            private boolean sent;
+
+            @Override
+            public void body(ByteBuffer data) {
+            }
+
+            @Override
+            public void complete() {
+            }
+
+            @Override
+            public byte[] nextSegment() {
+                if (sent) {
+                    return null;
+                }
+                sent = true;
+                return response;
+            }
+
+            @Override
+            public boolean isDone() {
+                return sent;
+            }
+
+            @Override
+            public boolean isFailed() {
+                return false;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
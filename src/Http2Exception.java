@@ -0,0 +1,23 @@
+package src;
+
+import java.io.IOException;
+
+/**
+ * An HTTP/2 protocol violation. With a stream id it is a stream error (the
+ * stream is reset); with stream id 0 it is a connection error (GOAWAY).
+ */
+public class Http2Exception extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int errorCode;
+    private final int streamId;
+
+    public Http2Exception(int errorCode, int streamId, String message) {
+        super(message);
+        this.errorCode = errorCode;
+        this.streamId = streamId;
+    }
+
+    public int getErrorCode() { return errorCode; }
+    public int getStreamId() { return streamId; }
+}
@@ -0,0 +1,132 @@
+package src;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One HTTP/2 frame (RFC 9113 section 4), plus the codec for the 9-byte
+ * frame header and the protocol constants.
+ */
+public class Http2Frame {
+    public static final int HEADER_LENGTH = 9;
+    public static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    public static final int MAX_FRAME_SIZE_LIMIT = 16777215;
+
+    public static final int DATA = 0x0;
+    public static final int HEADERS = 0x1;
+    public static final int PRIORITY = 0x2;
+    public static final int RST_STREAM = 0x3;
+    public static final int SETTINGS = 0x4;
+    public static final int PUSH_PROMISE = 0x5;
+    public static final int PING = 0x6;
+    public static final int GOAWAY = 0x7;
+    public static final int WINDOW_UPDATE = 0x8;
+    public static final int CONTINUATION = 0x9;
+
+    public static final int FLAG_END_STREAM = 0x1;
+    public static final int FLAG_ACK = 0x1;
+    public static final int FLAG_END_HEADERS = 0x4;
+    public static final int FLAG_PADDED = 0x8;
+    public static final int FLAG_PRIORITY = 0x20;
+
+    public static final int NO_ERROR = 0x0;
+    public static final int PROTOCOL_ERROR = 0x1;
+    public static final int INTERNAL_ERROR = 0x2;
+    public static final int FLOW_CONTROL_ERROR = 0x3;
+    public static final int STREAM_CLOSED = 0x5;
+    public static final int FRAME_SIZE_ERROR = 0x6;
+    public static final int REFUSED_STREAM = 0x7;
+    public static final int CANCEL = 0x8;
+    public static final int COMPRESSION_ERROR = 0x9;
+
+    public static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    public static final int SETTINGS_ENABLE_PUSH = 0x2;
+    public static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    public static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    public static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    public static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private final int type;
+    private final int flags;
+    private final int streamId;
+    private final byte[] payload;
+
+    Http2Frame(int type, int flags, int streamId, byte[] payload) {
+        this.type = type;
+        this.flags = flags;
+        this.streamId = streamId;
+        this.payload = payload;
+    }
+
+    public int getType() { return type; }
+    public int getFlags() { return flags; }
+    public int getStreamId() { return streamId; }
+    public byte[] getPayload() { return payload; }
+
+    public boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    /**
+     * Takes the next complete frame from in, or returns null (consuming
+     * nothing) if it has not fully arrived.
+     */
+    public static Http2Frame read(ByteBuffer in, int maxFrameSize) throws Http2Exception {
+        if (in.remaining() < HEADER_LENGTH) {
+            return null;
+        }
+        int start = in.position();
+        int length = ((in.get(start) & 0xFF) << 16) | ((in.get(start + 1) & 0xFF) << 8) | (in.get(start + 2) & 0xFF);
+        if (length > maxFrameSize) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, 0, "Frame of " + length + " bytes exceeds " + maxFrameSize);
+        }
+        if (in.remaining() < HEADER_LENGTH + length) {
+            return null;
+        }
+        int type = in.get(start + 3) & 0xFF;
+        int flags = in.get(start + 4) & 0xFF;
+        int streamId = in.getInt(start + 5) & 0x7FFFFFFF;
+        byte[] payload = new byte[length];
+        in.position(start + HEADER_LENGTH);
+        in.get(payload);
+        return new Http2Frame(type, flags, streamId, payload);
+    }
+
+    /** Encodes a frame with the given payload slice. */
+    public static byte[] encode(int type, int flags, int streamId, byte[] payload, int offset, int length) {
+        byte[] frame = new byte[HEADER_LENGTH + length];
+        frame[0] = (byte) (length >>> 16);
+        frame[1] = (byte) (length >>> 8);
+        frame[2] = (byte) length;
+        frame[3] = (byte) type;
+        frame[4] = (byte) flags;
+        frame[5] = (byte) (streamId >>> 24);
+        frame[6] = (byte) (streamId >>> 16);
+        frame[7] = (byte) (streamId >>> 8);
+        frame[8] = (byte) streamId;
+        System.arraycopy(payload, offset, frame, HEADER_LENGTH, length);
+        return frame;
+    }
+
+    public static byte[] encode(int type, int flags, int streamId, byte[] payload) {
+        return encode(type, flags, streamId, payload, 0, payload.length);
+    }
+
+    /** A payload of consecutive 32-bit big-endian values (WINDOW_UPDATE, RST_STREAM, GOAWAY). */
+    public static byte[] ints(int... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 4);
+        for (int value : values) {
+            buffer.putInt(value);
+        }
+        return buffer.array();
+    }
+
+    /** A SETTINGS payload from alternating identifiers and values. */
+    public static byte[] settings(int... idsAndValues) {
+        ByteBuffer buffer = ByteBuffer.allocate(idsAndValues.length / 2 * 6);
+        for (int i = 0; i < idsAndValues.length; i += 2) {
+            buffer.putShort((short) idsAndValues[i]);
+            buffer.putInt(idsAndValues[i + 1]);
+        }
+        return buffer.array();
+    }
+}
@@ -0,0 +1,23 @@
+package src;
+
+import java.io.IOException;
+
+/**
+ * A request the server refuses with a specific status, e.g. a malformed
+ * chunked body (400) or one over the size limit (413).
+ */
+public class HttpException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+    private final String reason;
+
+    public HttpException(int status, String reason, String message) {
+        super(message);
+        this.status = status;
+        this.reason = reason;
+    }
+
+    public int getStatus() { return status; }
+    public String getReason() { return reason; }
+}
@@ -1,163 +1,554 @@
 package src;
 
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 
+/**
+ * View over the raw bytes of one HTTP request.
+ *
+ * Construction only records offsets: the request line is split into method,
+ * target and version slices and each header line into name/value slices.
+ * Method and version are mapped to shared constants, so a plain GET costs
+ * one String for the path and the offsets array. Header values, cookies and
+ * query parameters are decoded the first time they are asked for, and the
+ * body is a slice of the same buffer, or for chunked requests a RequestBody
+ * that was decoded as the chunks arrived.
+ */
 public class HttpRequest {
-    private String method;  
-    private String path;         
-    private String version;      
-    private Map<String, String> headers;  
-    private Map<String, String> cookies;  
-    private Map<String, String> queryParams; 
-    private byte[] body;         
-    private boolean isChunked;  
-    
+    public static final String GET = "GET";
+    public static final String POST = "POST";
+    public static final String DELETE = "DELETE";
+    public static final String HEAD = "HEAD";
+    public static final String PUT = "PUT";
+    public static final String OPTIONS = "OPTIONS";
+    public static final String PATCH = "PATCH";
+    public static final String HTTP_1_0 = "HTTP/1.0";
+    public static final String HTTP_1_1 = "HTTP/1.1";
+
+    private static final String[] METHODS = { GET, POST, DELETE, HEAD, PUT, OPTIONS, PATCH };
+    private static final String[] VERSIONS = { HTTP_1_1, HTTP_1_0 };
+    private static final byte[] EMPTY = new byte[0];
+
+    private byte[] buf;
+    private int end;
+
+    private String method;
+    private String version;
+    private int targetStart;
+    private int targetEnd;
+    private int queryStart = -1;
+
+    // Four ints per header: name start, name end, value start, value end.
+    private int[] headerOffsets = new int[4 * 16];
+    private int headerCount;
+
+    private int bodyStart;
+    private long bodyLength;
+    private byte[] body;
+    private RequestBody decodedBody;
+    private MultipartParser multipart;
+    private boolean isChunked;
+    // Transfer codings listed across all Transfer-Encoding headers, and how
+    // many of them were chunked.
+    private int transferCodings;
+    private int chunkedCodings;
+
+    private String path;
+    private Map<String, String> headers;
+    private Map<String, String> cookies;
+    private Map<String, String> queryParams;
 
     public HttpRequest(byte[] rawRequest) {
-        this.headers = new HashMap<>();
-        this.cookies = new HashMap<>();
-        this.queryParams = new HashMap<>();
-        parseRequest(rawRequest);
-    }
-    
-    private void parseRequest(byte[] rawRequest) {
-        String requestStr = new String(rawRequest, StandardCharsets.UTF_8);
-        String[] lines = requestStr.split("\r\n");
-        
-        if (lines.length == 0) return;
-        
-        String[] requestLine = lines[0].split(" ");
-        if (requestLine.length >= 3) {
-            this.method = requestLine[0];
-            parsePathAndQuery(requestLine[1]);                                          
-            this.version = requestLine[2];
-        }
-        
-        int i = 1;
-        for (; i < lines.length; i++) {
-            String line = lines[i];
-            if (line.isEmpty()) break; 
-            
-            int colonIndex = line.indexOf(':');
-            if (colonIndex > 0) {
-                String key = line.substring(0, colonIndex).trim();
-                String value = line.substring(colonIndex + 1).trim();
-                headers.put(key, value);
-                
-                if (key.equalsIgnoreCase("Transfer-Encoding") && 
-                    value.equalsIgnoreCase("chunked")) {
-                    this.isChunked = true;
-                }
-                
-                if (key.equalsIgnoreCase("Cookie")) {
-                    parseCookies(value);
-                }
+        this(rawRequest, 0, rawRequest.length);
+    }
+
+    public HttpRequest(byte[] buf, int offset, int length) {
+        this.buf = buf;
+        this.end = offset + length;
+        parseRequest(offset);
+    }
+
+    private void parseRequest(int pos) {
+        int lineEnd = indexOfCrlf(pos);
+        if (lineEnd < 0) {
+            bodyStart = end;
+            return;
+        }
+
+        int sp1 = indexOf((byte) ' ', pos, lineEnd);
+        int sp2 = sp1 < 0 ? -1 : indexOf((byte) ' ', sp1 + 1, lineEnd);
+        if (sp1 > pos && sp2 > sp1 + 1) {
+            this.method = intern(METHODS, pos, sp1);
+            this.targetStart = sp1 + 1;
+            this.targetEnd = sp2;
+            this.queryStart = indexOf((byte) '?', targetStart, targetEnd);
+            int versionEnd = indexOf((byte) ' ', sp2 + 1, lineEnd);
+            this.version = intern(VERSIONS, sp2 + 1, versionEnd < 0 ? lineEnd : versionEnd);
+        }
+
+        pos = lineEnd + 2;
+        while (pos < end) {
+            lineEnd = indexOfCrlf(pos);
+            if (lineEnd < 0) {
+                lineEnd = end;
+            }
+            if (lineEnd == pos) {
+                pos += 2;
+                break;
+            }
+            int colon = indexOf((byte) ':', pos, lineEnd);
+            if (colon > pos) {
+                addHeader(pos, trimEnd(pos, colon), trimStart(colon + 1, lineEnd), trimEnd(colon + 1, lineEnd));
             }
+            pos = lineEnd + 2;
         }
-        
-        if (i < lines.length - 1) {
-            StringBuilder bodyBuilder = new StringBuilder();
-            for (int j = i + 1; j < lines.length; j++) {
-                bodyBuilder.append(lines[j]);
-                if (j < lines.length - 1) {
-                    bodyBuilder.append("\r\n");
+
+        this.bodyStart = Math.min(pos, end);
+        int available = end - bodyStart;
+        long contentLength = getContentLength();
+        this.bodyLength = contentLength >= 0 && contentLength < available ? (int) contentLength : available;
+
+        parseTransferEncoding();
+    }
+
+    // The body is chunked only if chunked is the last coding applied; it
+    // may be listed in one header or spread over several.
+    private void parseTransferEncoding() {
+        for (int h = findHeader("Transfer-Encoding", 0); h >= 0; h = findHeader("Transfer-Encoding", h + 1)) {
+            int pos = headerOffsets[h * 4 + 2];
+            int stop = headerOffsets[h * 4 + 3];
+            while (pos <= stop) {
+                int comma = indexOf((byte) ',', pos, stop);
+                int elementEnd = comma < 0 ? stop : comma;
+                int start = trimStart(pos, elementEnd);
+                int finish = trimEnd(pos, elementEnd);
+                if (start < finish) {
+                    transferCodings++;
+                    isChunked = equalsIgnoreCase(start, finish, "chunked");
+                    if (isChunked) {
+                        chunkedCodings++;
+                    }
                 }
+                pos = elementEnd + 1;
             }
-            this.body = bodyBuilder.toString().getBytes(StandardCharsets.UTF_8);
-        } else {
-            this.body = new byte[0];
-        }
-    }
-    
-    private void parsePathAndQuery(String fullPath) {
-        int queryIndex = fullPath.indexOf('?');
-        if (queryIndex > 0) {
-            this.path = fullPath.substring(0, queryIndex);
-            String query = fullPath.substring(queryIndex + 1);
-            parseQueryString(query);
-        } else {
-            this.path = fullPath;
-        }
-    }
-    
-    private void parseQueryString(String query) {
-        String[] pairs = query.split("&");
-        for (String pair : pairs) {
-            String[] kv = pair.split("=");
-            if (kv.length == 2) {
-                queryParams.put(kv[0], kv[1]);
-            }
-        }
-    }
-    
-    private void parseCookies(String cookieHeader) {
-        String[] cookies = cookieHeader.split(";");
-        for (String cookie : cookies) {
-            String[] parts = cookie.split("=");
-            if (parts.length == 2) {
-                this.cookies.put(parts[0].trim(), parts[1].trim());
-            }
-        }
-    }
-    
-    public static HttpRequest parseChunkedRequest(byte[] rawRequest) {
-        ByteArrayOutputStream body = new ByteArrayOutputStream();
-        String requestStr = new String(rawRequest, StandardCharsets.UTF_8);
-        String[] lines = requestStr.split("\r\n");
-        
-     
-        int i = 0;
-        for (; i < lines.length; i++) {
-            if (lines[i].isEmpty()) {
-                i++;
-                break;
+        }
+    }
+
+    /**
+     * Re-points the view at the connection's buffer once more of the body
+     * has arrived. The header offsets stay valid because the buffer only
+     * ever grows by copying its prefix.
+     */
+    void updateBuffer(byte[] buf, int length) {
+        this.buf = buf;
+        this.end = length;
+        int available = end - bodyStart;
+        long contentLength = getContentLength();
+        this.bodyLength = contentLength >= 0 && contentLength < available ? (int) contentLength : available;
+    }
+
+    /** Returns the index just past the CRLFCRLF ending the header block, or -1. */
+    public static int findHeaderEnd(byte[] buf, int from, int to) {
+        for (int i = Math.max(0, from); i + 3 < to; i++) {
+            if (buf[i + 3] == '\n' && buf[i + 2] == '\r' && buf[i + 1] == '\n' && buf[i] == '\r') {
+                return i + 4;
+            }
+        }
+        return -1;
+    }
+
+    private void addHeader(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        int i = headerCount * 4;
+        if (i + 4 > headerOffsets.length) {
+            headerOffsets = Arrays.copyOf(headerOffsets, headerOffsets.length * 2);
+        }
+        headerOffsets[i] = nameStart;
+        headerOffsets[i + 1] = nameEnd;
+        headerOffsets[i + 2] = valueStart;
+        headerOffsets[i + 3] = Math.max(valueStart, valueEnd);
+        headerCount++;
+    }
+
+    /** Index of the header with this name (ASCII case-insensitive), or -1. */
+    private int findHeader(String name, int from) {
+        for (int h = from; h < headerCount; h++) {
+            if (equalsIgnoreCase(headerOffsets[h * 4], headerOffsets[h * 4 + 1], name)) {
+                return h;
             }
         }
-        
-   
-        while (i < lines.length) {
-            try {
-                String chunkSizeStr = lines[i];
-                int chunkSize = Integer.parseInt(chunkSizeStr, 16);
-                
-                if (chunkSize == 0) {
-                    break; // Last chunk reached
+        return -1;
+    }
+
+    // Whether [start, stop) is the ASCII string value, ignoring case.
+    private boolean equalsIgnoreCase(int start, int stop, String value) {
+        int length = value.length();
+        if (stop - start != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            int a = buf[start + i];
+            int b = value.charAt(i);
+            if (a != b && toLower(a) != toLower(b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Refuses a request that cannot be routed or framed: a request line
+     * that is not method, target and version, a Content-Length that is not
+     * one number, a Transfer-Encoding that does not end in chunked, or both
+     * framings at once (400); transfer codings other than chunked (501).
+     * A body whose framing two parties could read differently would let a
+     * request be smuggled in after it on a persistent connection.
+     */
+    public void checkWellFormed() throws HttpException {
+        if (method == null) {
+            throw new HttpException(400, "Bad Request", "Malformed request line");
+        }
+        boolean hasContentLength = hasHeader("Content-Length");
+        if (getContentLength() < 0 && hasContentLength) {
+            throw new HttpException(400, "Bad Request", "Invalid Content-Length");
+        }
+        if (!hasHeader("Transfer-Encoding")) {
+            return;
+        }
+        if (!isChunked || chunkedCodings > 1) {
+            throw new HttpException(400, "Bad Request", "Transfer-Encoding must end in a single chunked");
+        }
+        if (hasContentLength) {
+            throw new HttpException(400, "Bad Request", "Both Transfer-Encoding and Content-Length");
+        }
+        if (transferCodings > 1) {
+            throw new HttpException(501, "Not Implemented", "Unsupported transfer coding");
+        }
+    }
+
+    /**
+     * Content-Length, or -1 if absent or invalid. A value repeated in
+     * several headers or as a comma-separated list is accepted only if
+     * every copy is the same. Parsed without allocating.
+     */
+    public long getContentLength() {
+        long value = -1;
+        for (int h = findHeader("Content-Length", 0); h >= 0; h = findHeader("Content-Length", h + 1)) {
+            int pos = headerOffsets[h * 4 + 2];
+            int stop = headerOffsets[h * 4 + 3];
+            while (true) {
+                int comma = indexOf((byte) ',', pos, stop);
+                int elementEnd = comma < 0 ? stop : comma;
+                long element = parseLength(trimStart(pos, elementEnd), trimEnd(pos, elementEnd));
+                if (element < 0 || (value >= 0 && element != value)) {
+                    return -1;
                 }
-                
-                i++; 
-                if (i < lines.length) {
-                    
-                    try {
-                        body.write(lines[i].getBytes(StandardCharsets.UTF_8));
-                    } catch (java.io.IOException e) {
-                       
-                        break;
+                value = element;
+                if (comma < 0) {
+                    break;
+                }
+                pos = comma + 1;
+            }
+        }
+        return value;
+    }
+
+    private long parseLength(int start, int stop) {
+        if (start == stop || stop - start > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < stop; i++) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private void parseQueryString() {
+        queryParams = new HashMap<>();
+        if (queryStart < 0) {
+            return;
+        }
+        int pos = queryStart + 1;
+        while (pos <= targetEnd) {
+            int amp = indexOf((byte) '&', pos, targetEnd);
+            int pairEnd = amp < 0 ? targetEnd : amp;
+            int eq = indexOf((byte) '=', pos, pairEnd);
+            if (eq > pos) {
+                queryParams.put(decode(pos, eq, true), decode(eq + 1, pairEnd, true));
+            }
+            pos = pairEnd + 1;
+        }
+    }
+
+    private void parseCookies() {
+        cookies = new HashMap<>();
+        for (int h = findHeader("Cookie", 0); h >= 0; h = findHeader("Cookie", h + 1)) {
+            int pos = headerOffsets[h * 4 + 2];
+            int stop = headerOffsets[h * 4 + 3];
+            while (pos < stop) {
+                int semi = indexOf((byte) ';', pos, stop);
+                int pairEnd = semi < 0 ? stop : semi;
+                int eq = indexOf((byte) '=', pos, pairEnd);
+                if (eq > pos) {
+                    int nameStart = trimStart(pos, eq);
+                    int valueStart = trimStart(eq + 1, pairEnd);
+                    int valueEnd = trimEnd(eq + 1, pairEnd);
+                    if (valueEnd - valueStart >= 2 && buf[valueStart] == '"' && buf[valueEnd - 1] == '"') {
+                        valueStart++;
+                        valueEnd--;
                     }
-                    i += 2; 
+                    cookies.putIfAbsent(
+                        ascii(nameStart, trimEnd(pos, eq)),
+                        new String(buf, valueStart, Math.max(0, valueEnd - valueStart), StandardCharsets.UTF_8)
+                    );
+                }
+                pos = pairEnd + 1;
+            }
+        }
+    }
+
+    /**
+     * Attaches a body that was decoded separately from the request buffer
+     * (a chunked body); the body accessors read from it from then on.
+     */
+    void attachBody(RequestBody decoded) {
+        this.decodedBody = decoded;
+        this.body = null;
+        this.bodyLength = decoded.length();
+    }
+
+    /** Attaches the parser that consumed a multipart body as it arrived. */
+    void attachMultipart(MultipartParser parser) {
+        this.multipart = parser;
+    }
+
+    private String intern(String[] constants, int start, int stop) {
+        int length = stop - start;
+        for (String constant : constants) {
+            if (constant.length() != length) {
+                continue;
+            }
+            boolean match = true;
+            for (int i = 0; i < length; i++) {
+                if (buf[start + i] != constant.charAt(i)) {
+                    match = false;
+                    break;
                 }
-            } catch (NumberFormatException e) {
+            }
+            if (match) {
+                return constant;
+            }
+        }
+        return ascii(start, stop);
+    }
+
+    // Percent-decodes [start, stop) as UTF-8; in query strings '+' is a space.
+    private String decode(int start, int stop, boolean plusAsSpace) {
+        boolean plain = true;
+        for (int i = start; i < stop; i++) {
+            if (buf[i] == '%' || (plusAsSpace && buf[i] == '+') || buf[i] < 0) {
+                plain = false;
                 break;
             }
         }
-        
-        
-        HttpRequest request = new HttpRequest(rawRequest);
-        request.body = body.toByteArray();
-        request.isChunked = true;
-        return request;
+        if (plain) {
+            return ascii(start, stop);
+        }
+        byte[] out = new byte[stop - start];
+        int n = 0;
+        for (int i = start; i < stop; i++) {
+            byte b = buf[i];
+            if (b == '%' && i + 2 < stop) {
+                int hi = Character.digit(buf[i + 1], 16);
+                int lo = Character.digit(buf[i + 2], 16);
+                if (hi >= 0 && lo >= 0) {
+                    out[n++] = (byte) ((hi << 4) | lo);
+                    i += 2;
+                    continue;
+                }
+            }
+            out[n++] = plusAsSpace && b == '+' ? (byte) ' ' : b;
+        }
+        return new String(out, 0, n, StandardCharsets.UTF_8);
     }
-    
-  
-    
+
+    private String ascii(int start, int stop) {
+        return new String(buf, start, stop - start, StandardCharsets.ISO_8859_1);
+    }
+
+    private int indexOfCrlf(int from) {
+        for (int i = from; i + 1 < end; i++) {
+            if (buf[i] == '\r' && buf[i + 1] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int indexOf(byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int trimStart(int from, int to) {
+        while (from < to && (buf[from] == ' ' || buf[from] == '\t')) {
+            from++;
+        }
+        return from;
+    }
+
+    private int trimEnd(int from, int to) {
+        while (to > from && (buf[to - 1] == ' ' || buf[to - 1] == '\t')) {
+            to--;
+        }
+        return to;
+    }
+
+    private static int toLower(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
     public String getMethod() { return method; }
-    public String getPath() { return path; }
+
+    public String getPath() {
+        if (path == null && method != null) {
+            path = decode(targetStart, queryStart >= 0 ? queryStart : targetEnd, false);
+        }
+        return path;
+    }
+
     public String getVersion() { return version; }
-    public Map<String, String> getHeaders() { return headers; }
-    public String getHeader(String key) { return headers.get(key); }
-    public byte[] getBody() { return body; }
-    public Map<String, String> getCookies() { return cookies; }
-    public Map<String, String> getQueryParams() { return queryParams; }
+
+    /** The request target exactly as sent: path and query, not decoded. */
+    public String getTarget() {
+        return method != null ? ascii(targetStart, targetEnd) : null;
+    }
+
+    public int getHeaderCount() { return headerCount; }
+
+    /** Name of the i-th header line, in the order received. */
+    public String getHeaderName(int i) {
+        return ascii(headerOffsets[i * 4], headerOffsets[i * 4 + 1]);
+    }
+
+    /** Value of the i-th header line, in the order received. */
+    public String getHeaderValue(int i) {
+        return new String(buf, headerOffsets[i * 4 + 2], headerOffsets[i * 4 + 3] - headerOffsets[i * 4 + 2],
+            StandardCharsets.UTF_8);
+    }
+
+    /** All headers, keyed case-insensitively. Built on first call. */
+    public Map<String, String> getHeaders() {
+        if (headers == null) {
+            headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            for (int h = 0; h < headerCount; h++) {
+                int i = h * 4;
+                headers.put(ascii(headerOffsets[i], headerOffsets[i + 1]),
+                    new String(buf, headerOffsets[i + 2], headerOffsets[i + 3] - headerOffsets[i + 2],
+                        StandardCharsets.UTF_8));
+            }
+        }
+        return headers;
+    }
+
+    /** The first header with this name (case-insensitive), or null. */
+    public String getHeader(String key) {
+        int h = findHeader(key, 0);
+        if (h < 0) {
+            return null;
+        }
+        int i = h * 4;
+        return new String(buf, headerOffsets[i + 2], headerOffsets[i + 3] - headerOffsets[i + 2],
+            StandardCharsets.UTF_8);
+    }
+
+    public boolean hasHeader(String key) {
+        return findHeader(key, 0) >= 0;
+    }
+
+    /** The body as an array; a copy of the slice, made once on first call. */
+    public byte[] getBody() {
+        if (body == null) {
+            if (decodedBody != null) {
+                try {
+                    body = decodedBody.toByteArray();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            } else {
+                body = bodyLength == 0 ? EMPTY : Arrays.copyOfRange(buf, bodyStart, bodyStart + (int) bodyLength);
+            }
+        }
+        return body;
+    }
+
+    /** The body without copying it out of the request buffer. */
+    public ByteBuffer getBodyBuffer() {
+        if (body != null || decodedBody != null) {
+            return ByteBuffer.wrap(getBody()).asReadOnlyBuffer();
+        }
+        return ByteBuffer.wrap(buf, bodyStart, (int) bodyLength).slice().asReadOnlyBuffer();
+    }
+
+    public long getBodyLength() { return bodyLength; }
+
+    /**
+     * The decoded chunked body, which may be spooled to disk; null when the
+     * body is a slice of the request buffer. Lets large uploads be consumed
+     * without loading them into memory.
+     */
+    public RequestBody getDecodedBody() { return decodedBody; }
+
+    /**
+     * The parser a multipart/form-data upload was streamed into, or null.
+     * Such a request has no body bytes of its own.
+     */
+    public MultipartParser getMultipart() { return multipart; }
+
+    public Map<String, String> getCookies() {
+        if (cookies == null) {
+            parseCookies();
+        }
+        return cookies;
+    }
+
+    public Map<String, String> getQueryParams() {
+        if (queryParams == null) {
+            parseQueryString();
+        }
+        return queryParams;
+    }
+
     public boolean isChunked() { return isChunked; }
-}
\ No newline at end of file
+
+    /**
+     * Whether the connection may carry another request after this one:
+     * for HTTP/1.1 unless the client sent Connection: close, for HTTP/1.0
+     * only if it asked for keep-alive.
+     */
+    public boolean isPersistent() {
+        String connection = getHeader("Connection");
+        boolean keepAlive = false;
+        if (connection != null) {
+            for (String token : connection.split(",")) {
+                String option = token.trim();
+                if (option.equalsIgnoreCase("close")) {
+                    return false;
+                }
+                keepAlive |= option.equalsIgnoreCase("keep-alive");
+            }
+        }
+        return HTTP_1_1.equals(version) || keepAlive;
+    }
+}
@@ -4,16 +4,18 @@ import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.*;
 
+import src.utils.Cookie;
+
 public class HttpResponse {
     private int statusCode;                
     private String statusMessage;          
     private Map<String, String> headers;   
     private byte[] body;                  
-     
+    private List<Cookie> cookies;
    
     public HttpResponse() {
         this.headers = new HashMap<>();
-        // Removed: this.cookies = new ArrayList<>();
+        this.cookies = new ArrayList<>();
         this.statusCode = 200;
         this.statusMessage = "OK";
         setDefaultHeaders();
@@ -44,12 +46,58 @@ public class HttpResponse {
         headers.put("Content-Type", "text/html; charset=utf-8");
     }
     
-    // REMOVE THIS METHOD FOR NOW (Cookie support will be added by Member B)
-    /*
+    /**
+     * Announces a body of the given length without carrying it, as for a
+     * HEAD response: build() then returns only the headers.
+     */
+    public void setContentLength(long length) {
+        this.body = null;
+        headers.put("Content-Length", String.valueOf(length));
+    }
+    
+    /**
+     * Drops the body but keeps the headers that describe it, as a response
+     * to HEAD must: build() then returns only the headers.
+     */
+    public void omitBody() {
+        this.body = null;
+    }
+    
+    /**
+     * Marks the body as streamed: build() then returns only the headers.
+     * Chunked streams announce Transfer-Encoding: chunked; raw streams (for
+     * HTTP/1.0) are delimited by closing the connection.
+     */
+    public void setStreaming(boolean chunked) {
+        this.body = null;
+        headers.remove("Content-Length");
+        if (chunked) {
+            headers.put("Transfer-Encoding", "chunked");
+        } else {
+            headers.remove("Transfer-Encoding");
+            headers.put("Connection", "close");
+        }
+    }
+    
+    /**
+     * Replaces the default Connection: close for a connection that stays
+     * open. A body without a length would then have no end, so one is
+     * given an explicit empty length.
+     */
+    public void keepAlive() {
+        if (!"close".equals(headers.get("Connection"))) {
+            return;
+        }
+        headers.put("Connection", "keep-alive");
+        if (body == null && !headers.containsKey("Content-Length") && !headers.containsKey("Transfer-Encoding")
+            && statusCode >= 200 && statusCode != 204 && statusCode != 304) {
+            headers.put("Content-Length", "0");
+        }
+    }
+    
     public void setCookie(Cookie cookie) {
         cookies.add(cookie);
     }
-    */
     
     // Build the complete HTTP response as byte array
     public byte[] build() {
@@ -71,13 +119,11 @@ public class HttpResponse {
         }
         
        
-        /*
         for (Cookie cookie : cookies) {
             response.append("Set-Cookie: ")
                     .append(cookie.toString())
                     .append("\r\n");
         }
-        */
         
         response.append("\r\n");
         
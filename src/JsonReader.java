@@ -0,0 +1,466 @@
+package src;
+
+import java.io.IOException;
+
+/**
+ * Single-pass, index-based pull reader for JSON text.
+ *
+ * The reader never copies the remaining input: it walks a cursor over the
+ * original string and only allocates for the string and number values the
+ * caller actually asks for. Errors are reported as IOException with the
+ * line and column of the offending character.
+ */
+public class JsonReader {
+
+    public enum Token {
+        BEGIN_OBJECT,
+        END_OBJECT,
+        BEGIN_ARRAY,
+        END_ARRAY,
+        STRING,
+        NUMBER,
+        BOOLEAN,
+        NULL,
+        END_DOCUMENT
+    }
+
+    private static final int SCOPE_OBJECT = 1;
+    private static final int SCOPE_ARRAY = 2;
+
+    private final String json;
+    private final int length;
+    private int pos;
+
+    private int[] scopes = new int[32];
+    private boolean[] needComma = new boolean[32];
+    private int depth;
+    private boolean nameRead;
+
+    public JsonReader(String json) {
+        this.json = json;
+        this.length = json.length();
+        this.pos = 0;
+    }
+
+    public Token peek() throws IOException {
+        skipWhitespace();
+        if (pos >= length) {
+            return Token.END_DOCUMENT;
+        }
+        char c = json.charAt(pos);
+        switch (c) {
+            case '{': return Token.BEGIN_OBJECT;
+            case '}': return Token.END_OBJECT;
+            case '[': return Token.BEGIN_ARRAY;
+            case ']': return Token.END_ARRAY;
+            case '"': return Token.STRING;
+            case 't':
+            case 'f': return Token.BOOLEAN;
+            case 'n': return Token.NULL;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    return Token.NUMBER;
+                }
+                throw syntaxError("Unexpected character '" + c + "'");
+        }
+    }
+
+    public void beginObject() throws IOException {
+        beforeValue();
+        expect('{');
+        push(SCOPE_OBJECT);
+    }
+
+    public void endObject() throws IOException {
+        if (depth == 0 || scopes[depth - 1] != SCOPE_OBJECT || nameRead) {
+            throw syntaxError("Unexpected end of object");
+        }
+        skipWhitespace();
+        expect('}');
+        depth--;
+        afterValue();
+    }
+
+    public void beginArray() throws IOException {
+        beforeValue();
+        expect('[');
+        push(SCOPE_ARRAY);
+    }
+
+    public void endArray() throws IOException {
+        if (depth == 0 || scopes[depth - 1] != SCOPE_ARRAY) {
+            throw syntaxError("Unexpected end of array");
+        }
+        skipWhitespace();
+        expect(']');
+        depth--;
+        afterValue();
+    }
+
+    /**
+     * Returns true if the current object or array has another element,
+     * consuming the separating comma if there is one.
+     */
+    public boolean hasNext() throws IOException {
+        skipWhitespace();
+        if (pos >= length) {
+            throw syntaxError("Unterminated " + (depth > 0 && scopes[depth - 1] == SCOPE_ARRAY ? "array" : "object"));
+        }
+        char c = json.charAt(pos);
+        if (c == '}' || c == ']') {
+            return false;
+        }
+        if (depth > 0 && needComma[depth - 1]) {
+            if (c != ',') {
+                throw syntaxError("Expected ',' but found '" + c + "'");
+            }
+            pos++;
+            skipWhitespace();
+            if (pos < length && (json.charAt(pos) == '}' || json.charAt(pos) == ']')) {
+                throw syntaxError("Trailing comma");
+            }
+            needComma[depth - 1] = false;
+        }
+        return true;
+    }
+
+    public String nextName() throws IOException {
+        if (depth == 0 || scopes[depth - 1] != SCOPE_OBJECT || nameRead) {
+            throw syntaxError("Expected a value, not a name");
+        }
+        skipWhitespace();
+        if (pos >= length || json.charAt(pos) != '"') {
+            throw syntaxError("Expected a quoted name");
+        }
+        String name = readQuoted();
+        skipWhitespace();
+        expect(':');
+        nameRead = true;
+        return name;
+    }
+
+    public String nextString() throws IOException {
+        beforeValue();
+        if (pos >= length || json.charAt(pos) != '"') {
+            throw syntaxError("Expected a string");
+        }
+        String value = readQuoted();
+        afterValue();
+        return value;
+    }
+
+    public boolean nextBoolean() throws IOException {
+        beforeValue();
+        boolean value;
+        if (json.startsWith("true", pos)) {
+            pos += 4;
+            value = true;
+        } else if (json.startsWith("false", pos)) {
+            pos += 5;
+            value = false;
+        } else {
+            throw syntaxError("Expected a boolean");
+        }
+        afterValue();
+        return value;
+    }
+
+    public void nextNull() throws IOException {
+        beforeValue();
+        if (!json.startsWith("null", pos)) {
+            throw syntaxError("Expected null");
+        }
+        pos += 4;
+        afterValue();
+    }
+
+    public double nextDouble() throws IOException {
+        beforeValue();
+        int start = pos;
+        boolean integral = scanNumber();
+        double value;
+        if (integral && pos - start <= 18) {
+            value = parseLong(start, pos);
+        } else {
+            value = Double.parseDouble(json.substring(start, pos));
+        }
+        afterValue();
+        return value;
+    }
+
+    public long nextLong() throws IOException {
+        beforeValue();
+        int start = pos;
+        boolean integral = scanNumber();
+        long value;
+        if (integral && pos - start <= 18) {
+            value = parseLong(start, pos);
+        } else {
+            double d = Double.parseDouble(json.substring(start, pos));
+            value = (long) d;
+            if (value != d) {
+                pos = start;
+                throw syntaxError("Expected an integer but was " + json.substring(start, endOfNumber(start)));
+            }
+        }
+        afterValue();
+        return value;
+    }
+
+    public int nextInt() throws IOException {
+        int start = pos;
+        long value = nextLong();
+        if (value != (int) value) {
+            pos = start;
+            skipWhitespace();
+            throw syntaxError("Integer out of range");
+        }
+        return (int) value;
+    }
+
+    /** Skips the next value, including nested objects and arrays. */
+    public void skipValue() throws IOException {
+        switch (peek()) {
+            case BEGIN_OBJECT:
+                beginObject();
+                while (hasNext()) {
+                    nextName();
+                    skipValue();
+                }
+                endObject();
+                break;
+            case BEGIN_ARRAY:
+                beginArray();
+                while (hasNext()) {
+                    skipValue();
+                }
+                endArray();
+                break;
+            case STRING:
+                nextString();
+                break;
+            case NUMBER:
+                nextDouble();
+                break;
+            case BOOLEAN:
+                nextBoolean();
+                break;
+            case NULL:
+                nextNull();
+                break;
+            default:
+                throw syntaxError("Expected a value");
+        }
+    }
+
+    /** Fails unless only whitespace remains after the top-level value. */
+    public void endDocument() throws IOException {
+        if (peek() != Token.END_DOCUMENT) {
+            throw syntaxError("Unexpected content after end of document");
+        }
+    }
+
+    public IOException syntaxError(String message) {
+        int line = 1;
+        int column = 1;
+        int limit = Math.min(pos, length);
+        for (int i = 0; i < limit; i++) {
+            if (json.charAt(i) == '\n') {
+                line++;
+                column = 1;
+            } else {
+                column++;
+            }
+        }
+        return new IOException("Invalid JSON: " + message + " at line " + line + " column " + column);
+    }
+
+    private void beforeValue() throws IOException {
+        skipWhitespace();
+        if (depth > 0 && scopes[depth - 1] == SCOPE_OBJECT && !nameRead) {
+            throw syntaxError("Expected a name");
+        }
+        if (pos >= length) {
+            throw syntaxError("Unexpected end of input");
+        }
+    }
+
+    private void afterValue() {
+        nameRead = false;
+        if (depth > 0) {
+            needComma[depth - 1] = true;
+        }
+    }
+
+    private void push(int scope) {
+        if (depth == scopes.length) {
+            scopes = java.util.Arrays.copyOf(scopes, depth * 2);
+            needComma = java.util.Arrays.copyOf(needComma, depth * 2);
+        }
+        scopes[depth] = scope;
+        needComma[depth] = false;
+        depth++;
+        nameRead = false;
+    }
+
+    private void expect(char c) throws IOException {
+        if (pos >= length) {
+            throw syntaxError("Expected '" + c + "' but reached end of input");
+        }
+        if (json.charAt(pos) != c) {
+            throw syntaxError("Expected '" + c + "' but found '" + json.charAt(pos) + "'");
+        }
+        pos++;
+    }
+
+    private void skipWhitespace() {
+        while (pos < length) {
+            char c = json.charAt(pos);
+            if (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                pos++;
+            } else {
+                break;
+            }
+        }
+    }
+
+    // Cursor is on the opening quote; leaves it after the closing quote.
+    private String readQuoted() throws IOException {
+        int start = ++pos;
+        while (pos < length) {
+            char c = json.charAt(pos);
+            if (c == '"') {
+                String value = json.substring(start, pos);
+                pos++;
+                return value;
+            }
+            if (c == '\\') {
+                return readEscaped(start);
+            }
+            if (c < 0x20) {
+                throw syntaxError("Unescaped control character in string");
+            }
+            pos++;
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    private String readEscaped(int start) throws IOException {
+        StringBuilder sb = new StringBuilder(pos - start + 16);
+        sb.append(json, start, pos);
+        while (pos < length) {
+            char c = json.charAt(pos);
+            if (c == '"') {
+                pos++;
+                return sb.toString();
+            }
+            if (c < 0x20) {
+                throw syntaxError("Unescaped control character in string");
+            }
+            if (c != '\\') {
+                sb.append(c);
+                pos++;
+                continue;
+            }
+            if (++pos >= length) {
+                break;
+            }
+            char e = json.charAt(pos++);
+            switch (e) {
+                case '"': sb.append('"'); break;
+                case '\\': sb.append('\\'); break;
+                case '/': sb.append('/'); break;
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'u':
+                    if (pos + 4 > length) {
+                        throw syntaxError("Unterminated escape sequence");
+                    }
+                    int code = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digit = Character.digit(json.charAt(pos), 16);
+                        if (digit < 0) {
+                            throw syntaxError("Invalid unicode escape");
+                        }
+                        code = (code << 4) | digit;
+                        pos++;
+                    }
+                    sb.append((char) code);
+                    break;
+                default:
+                    pos--;
+                    throw syntaxError("Invalid escape sequence '\\" + e + "'");
+            }
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    // Validates the JSON number grammar; returns true if there is no fraction or exponent.
+    private boolean scanNumber() throws IOException {
+        boolean integral = true;
+        if (pos < length && json.charAt(pos) == '-') {
+            pos++;
+        }
+        if (pos >= length || !isDigit(json.charAt(pos))) {
+            throw syntaxError("Invalid number");
+        }
+        if (json.charAt(pos) == '0') {
+            pos++;
+            if (pos < length && isDigit(json.charAt(pos))) {
+                throw syntaxError("Leading zeros are not allowed");
+            }
+        } else {
+            while (pos < length && isDigit(json.charAt(pos))) {
+                pos++;
+            }
+        }
+        if (pos < length && json.charAt(pos) == '.') {
+            integral = false;
+            pos++;
+            if (pos >= length || !isDigit(json.charAt(pos))) {
+                throw syntaxError("Invalid number");
+            }
+            while (pos < length && isDigit(json.charAt(pos))) {
+                pos++;
+            }
+        }
+        if (pos < length && (json.charAt(pos) == 'e' || json.charAt(pos) == 'E')) {
+            integral = false;
+            pos++;
+            if (pos < length && (json.charAt(pos) == '+' || json.charAt(pos) == '-')) {
+                pos++;
+            }
+            if (pos >= length || !isDigit(json.charAt(pos))) {
+                throw syntaxError("Invalid number");
+            }
+            while (pos < length && isDigit(json.charAt(pos))) {
+                pos++;
+            }
+        }
+        return integral;
+    }
+
+    private int endOfNumber(int start) {
+        int end = start;
+        while (end < length && "+-.eE0123456789".indexOf(json.charAt(end)) >= 0) {
+            end++;
+        }
+        return end;
+    }
+
+    private long parseLong(int start, int end) {
+        boolean negative = json.charAt(start) == '-';
+        long value = 0;
+        for (int i = negative ? start + 1 : start; i < end; i++) {
+            value = value * 10 + (json.charAt(i) - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -0,0 +1,162 @@
+package src;
+
+import java.io.IOException;
+
+/**
+ * Socket settings for one listening port. Buffer sizes and keep-alive
+ * timings of 0 leave the operating system default in place; options the
+ * platform does not support are skipped.
+ */
+public class ListenerConfig {
+    private int port;
+    private int backlog = 1024;
+    private int acceptBatch = 64;
+    private boolean reuseAddress = true;
+    private boolean reusePort = false;
+    private boolean tcpNoDelay = true;
+    private int sendBufferSize = 0;
+    private int receiveBufferSize = 0;
+    private boolean keepAlive = false;
+    private int keepAliveIdleSeconds = 0;
+    private int keepAliveIntervalSeconds = 0;
+    private int keepAliveCount = 0;
+    private TlsConfig tls;
+    
+    public int getPort() { return port; }
+    public int getBacklog() { return backlog; }
+    /** Most connections taken from the accept queue per readiness event. */
+    public int getAcceptBatch() { return acceptBatch; }
+    public boolean isReuseAddress() { return reuseAddress; }
+    public boolean isReusePort() { return reusePort; }
+    public boolean isTcpNoDelay() { return tcpNoDelay; }
+    public int getSendBufferSize() { return sendBufferSize; }
+    public int getReceiveBufferSize() { return receiveBufferSize; }
+    public boolean isKeepAlive() { return keepAlive; }
+    public int getKeepAliveIdleSeconds() { return keepAliveIdleSeconds; }
+    public int getKeepAliveIntervalSeconds() { return keepAliveIntervalSeconds; }
+    public int getKeepAliveCount() { return keepAliveCount; }
+    /** Null for a plaintext listener. */
+    public TlsConfig getTls() { return tls; }
+    
+    public void setPort(int port) { this.port = port; }
+    public void setBacklog(int backlog) { this.backlog = backlog; }
+    public void setAcceptBatch(int acceptBatch) { this.acceptBatch = acceptBatch; }
+    public void setReuseAddress(boolean reuseAddress) { this.reuseAddress = reuseAddress; }
+    public void setReusePort(boolean reusePort) { this.reusePort = reusePort; }
+    public void setTcpNoDelay(boolean tcpNoDelay) { this.tcpNoDelay = tcpNoDelay; }
+    public void setSendBufferSize(int sendBufferSize) { this.sendBufferSize = sendBufferSize; }
+    public void setReceiveBufferSize(int receiveBufferSize) { this.receiveBufferSize = receiveBufferSize; }
+    public void setKeepAlive(boolean keepAlive) { this.keepAlive = keepAlive; }
+    public void setKeepAliveIdleSeconds(int keepAliveIdleSeconds) { this.keepAliveIdleSeconds = keepAliveIdleSeconds; }
+    public void setKeepAliveIntervalSeconds(int keepAliveIntervalSeconds) { this.keepAliveIntervalSeconds = keepAliveIntervalSeconds; }
+    public void setKeepAliveCount(int keepAliveCount) { this.keepAliveCount = keepAliveCount; }
+    public void setTls(TlsConfig tls) { this.tls = tls; }
+
+    static ListenerConfig read(JsonReader reader) throws IOException {
+        ListenerConfig listener = new ListenerConfig();
+        
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            Integer value;
+            Boolean flag;
+            switch (name) {
+                case "port":
+                    value = ConfigLoader.readInt(reader, 0);
+                    if (value != null) {
+                        listener.setPort(value);
+                    }
+                    break;
+                case "backlog":
+                    value = ConfigLoader.readInt(reader, listener.getBacklog());
+                    if (value != null) {
+                        listener.setBacklog(value);
+                    }
+                    break;
+                case "acceptBatch":
+                    value = ConfigLoader.readInt(reader, listener.getAcceptBatch());
+                    if (value != null) {
+                        listener.setAcceptBatch(value);
+                    }
+                    break;
+                case "reuseAddress":
+                    flag = ConfigLoader.readBoolean(reader);
+                    if (flag != null) {
+                        listener.setReuseAddress(flag);
+                    }
+                    break;
+                case "reusePort":
+                    flag = ConfigLoader.readBoolean(reader);
+                    if (flag != null) {
+                        listener.setReusePort(flag);
+                    }
+                    break;
+                case "tcpNoDelay":
+                    flag = ConfigLoader.readBoolean(reader);
+                    if (flag != null) {
+                        listener.setTcpNoDelay(flag);
+                    }
+                    break;
+                case "sendBufferSize":
+                    value = ConfigLoader.readInt(reader, 0);
+                    if (value != null) {
+                        listener.setSendBufferSize(value);
+                    }
+                    break;
+                case "receiveBufferSize":
+                    value = ConfigLoader.readInt(reader, 0);
+                    if (value != null) {
+                        listener.setReceiveBufferSize(value);
+                    }
+                    break;
+                case "keepAlive":
+                    flag = ConfigLoader.readBoolean(reader);
+                    if (flag != null) {
+                        listener.setKeepAlive(flag);
+                    }
+                    break;
+                case "keepAliveIdleSeconds":
+                    value = ConfigLoader.readInt(reader, 0);
+                    if (value != null) {
+                        listener.setKeepAliveIdleSeconds(value);
+                    }
+                    break;
+                case "keepAliveIntervalSeconds":
+                    value = ConfigLoader.readInt(reader, 0);
+                    if (value != null) {
+                        listener.setKeepAliveIntervalSeconds(value);
+                    }
+                    break;
+                case "keepAliveCount":
+                    value = ConfigLoader.readInt(reader, 0);
+                    if (value != null) {
+                        listener.setKeepAliveCount(value);
+                    }
+                    break;
+                case "tls":
+                    if (reader.peek() == JsonReader.Token.BEGIN_OBJECT) {
+                        listener.setTls(TlsConfig.read(reader));
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        
+        return listener;
+    }
+
+    void validate() throws IOException {
+        if (backlog <= 0 || acceptBatch <= 0 || sendBufferSize < 0 || receiveBufferSize < 0 ||
+            keepAliveIdleSeconds < 0 || keepAliveIntervalSeconds < 0 || keepAliveCount < 0) {
+            throw new IOException("Invalid listener settings for port " + port);
+        }
+        if (tls != null) {
+            tls.validate(port);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package src;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The selector loop's I/O allowance: how much one connection may read or
+ * write in one turn, and how much all of them together may move in one
+ * iteration. HTTP/1.1 connections and the handlers (HTTP/2, WebSocket,
+ * proxy upstreams) record every byte they move here and stop early once
+ * their turn's share is used; the loop holds back the keys still waiting
+ * once the iteration's share is.
+ *
+ * Only used on the selector thread.
+ */
+public class LoopBudget {
+    private final int readBytes;
+    private final int writeBytes;
+    private final long iterationBytes;
+    private final AtomicLong yields;
+    private long spent;
+
+    public LoopBudget(LoopConfig config, Metrics metrics) {
+        this.readBytes = config.getReadBudgetBytes();
+        this.writeBytes = config.getWriteBudgetBytes();
+        this.iterationBytes = config.getIterationBudgetBytes();
+        this.yields = metrics.counter("loop.budget_yields");
+    }
+
+    /** Most one connection may read in one turn. */
+    public int getReadBytes() {
+        return readBytes;
+    }
+
+    /** Most one connection may write in one turn. */
+    public int getWriteBytes() {
+        return writeBytes;
+    }
+
+    public void startIteration() {
+        spent = 0;
+    }
+
+    /** Counts bytes read or written by any connection. */
+    public void record(long bytes) {
+        spent += bytes;
+    }
+
+    /** Whether this iteration has moved its share; the remaining keys wait. */
+    public boolean isSpent() {
+        return spent >= iterationBytes;
+    }
+
+    /** Notes a connection that stopped with work left, to let the others go. */
+    public void yielded() {
+        yields.incrementAndGet();
+    }
+}
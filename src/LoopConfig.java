@@ -0,0 +1,63 @@
+package src;
+
+import java.io.IOException;
+
+/**
+ * How much I/O one connection may do per turn, and the loop as a whole
+ * per iteration, before the rest waits for the next round.
+ */
+public class LoopConfig {
+    private int readBudgetBytes = 64 * 1024;
+    private int writeBudgetBytes = 256 * 1024;
+    private long iterationBudgetBytes = 4 * 1024 * 1024;
+    
+    public int getReadBudgetBytes() { return readBudgetBytes; }
+    public int getWriteBudgetBytes() { return writeBudgetBytes; }
+    public long getIterationBudgetBytes() { return iterationBudgetBytes; }
+    
+    public void setReadBudgetBytes(int readBudgetBytes) { this.readBudgetBytes = readBudgetBytes; }
+    public void setWriteBudgetBytes(int writeBudgetBytes) { this.writeBudgetBytes = writeBudgetBytes; }
+    public void setIterationBudgetBytes(long iterationBudgetBytes) { this.iterationBudgetBytes = iterationBudgetBytes; }
+
+    static LoopConfig read(JsonReader reader) throws IOException {
+        LoopConfig loop = new LoopConfig();
+        
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            Integer value;
+            switch (name) {
+                case "readBudgetBytes":
+                    value = ConfigLoader.readInt(reader, loop.getReadBudgetBytes());
+                    if (value != null) {
+                        loop.setReadBudgetBytes(value);
+                    }
+                    break;
+                case "writeBudgetBytes":
+                    value = ConfigLoader.readInt(reader, loop.getWriteBudgetBytes());
+                    if (value != null) {
+                        loop.setWriteBudgetBytes(value);
+                    }
+                    break;
+                case "iterationBudgetBytes":
+                    Long bytes = ConfigLoader.readLong(reader, loop.getIterationBudgetBytes());
+                    if (bytes != null) {
+                        loop.setIterationBudgetBytes(bytes);
+                    }
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        
+        return loop;
+    }
+
+    void validate() throws IOException {
+        if (readBudgetBytes <= 0 || writeBudgetBytes <= 0 || iterationBudgetBytes <= 0) {
+            throw new IOException("Loop budgets must be positive");
+        }
+    }
+}
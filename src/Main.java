@@ -2,18 +2,52 @@ package src;
 
 import java.io.IOException;
 public class Main {
+    private static final String CONFIG_FILE = "config.json";
+    
     public static void main(String[] args) {
         try {
-            ConfigLoader.Config config = ConfigLoader.load("config.json");
-            Server server = new Server(config);
-            server.start();
-            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-                System.out.println("Shutting down server...");
-                server.stop();
-            }));
+            ConfigLoader.Config config = ConfigLoader.load(CONFIG_FILE);
+            if (args.length == 3 && args[0].equals(Supervisor.WORKER_FLAG)) {
+                runWorker(config, Integer.parseInt(args[1]), args[2]);
+            } else if (config.getPrefork().getWorkers() > 0) {
+                new Supervisor(CONFIG_FILE, config).run();
+            } else {
+                run(config);
+            }
         } catch (IOException e) {
             System.err.println("Failed to start server: " + e.getMessage());
             System.exit(1);
         }
     }
+    
+    private static void run(ConfigLoader.Config config) throws IOException {
+        Server server = new Server(config);
+        // start() runs the event loop and only returns on shutdown, so the
+        // hook has to be installed first.
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println("Shutting down server...");
+            server.stop();
+        }));
+        server.start();
+    }
+    
+    // A prefork worker: shares its ports with the other workers and keeps a
+    // session file of its own, since the store is not safe to share between
+    // processes.
+    private static void runWorker(ConfigLoader.Config config, int slot, String channelPath) throws IOException {
+        for (ListenerConfig listener : config.getListeners()) {
+            listener.setReusePort(true);
+        }
+        SessionConfig sessions = config.getSessions();
+        if (sessions.getFile() != null) {
+            sessions.setFile(sessions.getFile() + "." + slot);
+        }
+        Server server = new Server(config);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println("Shutting down worker " + slot + "...");
+            server.stop();
+        }));
+        Supervisor.reportTo(server, channelPath, config.getPrefork().getReportIntervalMs());
+        server.start();
+    }
 }
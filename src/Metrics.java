@@ -0,0 +1,49 @@
+package src;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named counters and gauges for the server. Components look a counter up
+ * once and keep the AtomicLong, so updates on the hot path are a single
+ * atomic add.
+ */
+public class Metrics {
+    private final Map<String, AtomicLong> values = new ConcurrentHashMap<>();
+
+    public AtomicLong counter(String name) {
+        return values.computeIfAbsent(name, k -> new AtomicLong());
+    }
+
+    public void increment(String name) {
+        counter(name).incrementAndGet();
+    }
+
+    public void set(String name, long value) {
+        counter(name).set(value);
+    }
+
+    /** Records value into a gauge only if it exceeds the current one. */
+    public void max(String name, long value) {
+        counter(name).accumulateAndGet(value, Math::max);
+    }
+
+    public Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : values.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().get());
+        }
+        return snapshot;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> entry : snapshot().entrySet()) {
+            sb.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+}
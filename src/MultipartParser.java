@@ -0,0 +1,374 @@
+package src;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Incremental multipart/form-data parser fed with body bytes as they arrive.
+ *
+ * Input is copied into one fixed window and scanned for the part delimiter
+ * ("\r\n--" + boundary) with Boyer-Moore-Horspool; everything before the
+ * last delimiter-length bytes of the window can be handed on without waiting
+ * for more input, so memory stays constant whatever the body size. File
+ * parts are written through a FileChannel to a temporary file in the upload
+ * directory and only moved to their final name by commit(), so a request
+ * that is rejected or cut off leaves nothing behind. An existing file is
+ * never replaced: the upload is refused with 409 instead. Other fields are
+ * kept in memory up to maxFieldSize.
+ */
+public class MultipartParser implements BodySink, Closeable {
+    private static final int WINDOW_SIZE = 64 * 1024;
+    private static final int MAX_PART_HEADER = 8192;
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    public static class Part {
+        private final String name;
+        private final String filename;
+        private final String contentType;
+        private Path file;
+        private long size;
+
+        Part(String name, String filename, String contentType) {
+            this.name = name;
+            this.filename = filename;
+            this.contentType = contentType;
+        }
+
+        public String getName() { return name; }
+        public String getFilename() { return filename; }
+        public String getContentType() { return contentType; }
+        public Path getFile() { return file; }
+        public long getSize() { return size; }
+    }
+
+    private enum State { PREAMBLE, DELIMITER_END, HEADERS, BODY, EPILOGUE }
+
+    private final byte[] delimiter;
+    private final int[] shift = new int[256];
+    private final Path directory;
+    private final UploadConfig limits;
+
+    private final byte[] window = new byte[WINDOW_SIZE];
+    private int windowLength;
+    private State state = State.PREAMBLE;
+    private int partCount;
+
+    private Part part;
+    private FileChannel partChannel;
+    private ByteArrayOutputStream fieldValue;
+
+    private final List<Part> files = new ArrayList<>();
+    private final Map<String, String> fields = new LinkedHashMap<>();
+
+    public MultipartParser(String boundary, Path directory, UploadConfig limits) {
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.directory = directory;
+        this.limits = limits;
+
+        int m = delimiter.length;
+        for (int i = 0; i < shift.length; i++) {
+            shift[i] = m;
+        }
+        for (int i = 0; i < m - 1; i++) {
+            shift[delimiter[i] & 0xFF] = m - 1 - i;
+        }
+
+        // The first boundary has no CRLF in front of it; pretend it does so
+        // one delimiter pattern matches every boundary.
+        window[0] = '\r';
+        window[1] = '\n';
+        windowLength = 2;
+    }
+
+    /**
+     * Returns the boundary parameter of a multipart/form-data Content-Type,
+     * or null if the type is something else.
+     */
+    public static String boundaryOf(String contentType) throws HttpException {
+        if (contentType == null) {
+            return null;
+        }
+        String[] params = contentType.split(";");
+        if (!params[0].trim().equalsIgnoreCase("multipart/form-data")) {
+            return null;
+        }
+        String boundary = parameter(params, "boundary");
+        if (boundary == null || boundary.isEmpty() || boundary.length() > 70) {
+            throw new HttpException(400, "Bad Request", "Missing or invalid multipart boundary");
+        }
+        return boundary;
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            int n = Math.min(src.remaining(), window.length - windowLength);
+            src.get(window, windowLength, n);
+            windowLength += n;
+
+            int consumed = process();
+            windowLength -= consumed;
+            System.arraycopy(window, consumed, window, 0, windowLength);
+        }
+    }
+
+    // Consumes as much of the window as can be decided on; returns how much.
+    private int process() throws IOException {
+        int pos = 0;
+        while (true) {
+            switch (state) {
+                case PREAMBLE:
+                case BODY:
+                    int match = indexOfDelimiter(pos);
+                    if (match >= 0) {
+                        if (state == State.BODY) {
+                            emit(pos, match - pos);
+                            endPart();
+                        }
+                        pos = match + delimiter.length;
+                        state = State.DELIMITER_END;
+                        break;
+                    }
+                    // A delimiter may start in the last m-1 bytes; keep those.
+                    int safe = windowLength - (delimiter.length - 1);
+                    if (safe > pos) {
+                        if (state == State.BODY) {
+                            emit(pos, safe - pos);
+                        }
+                        pos = safe;
+                    }
+                    return pos;
+                case DELIMITER_END:
+                    if (windowLength - pos < 2) {
+                        return pos;
+                    }
+                    if (window[pos] == '-' && window[pos + 1] == '-') {
+                        state = State.EPILOGUE;
+                    } else if (window[pos] == '\r' && window[pos + 1] == '\n') {
+                        state = State.HEADERS;
+                    } else {
+                        throw badRequest("Malformed multipart boundary");
+                    }
+                    pos += 2;
+                    break;
+                case HEADERS:
+                    int headerEnd = windowLength - pos >= 2 && window[pos] == '\r' && window[pos + 1] == '\n'
+                        ? pos + 2 : HttpRequest.findHeaderEnd(window, pos, windowLength);
+                    if (headerEnd < 0) {
+                        if (windowLength - pos > MAX_PART_HEADER) {
+                            throw badRequest("Multipart headers too large");
+                        }
+                        return pos;
+                    }
+                    startPart(new String(window, pos, headerEnd - pos, StandardCharsets.UTF_8));
+                    pos = headerEnd;
+                    state = State.BODY;
+                    break;
+                case EPILOGUE:
+                default:
+                    return windowLength;
+            }
+        }
+    }
+
+    // Boyer-Moore-Horspool search for the delimiter in window[from, windowLength).
+    private int indexOfDelimiter(int from) {
+        int m = delimiter.length;
+        int last = m - 1;
+        int i = from;
+        while (i + m <= windowLength) {
+            int j = last;
+            while (window[i + j] == delimiter[j]) {
+                if (j == 0) {
+                    return i;
+                }
+                j--;
+            }
+            i += shift[window[i + last] & 0xFF];
+        }
+        return -1;
+    }
+
+    private void startPart(String headerBlock) throws IOException {
+        if (++partCount > limits.getMaxParts()) {
+            throw new HttpException(413, "Payload Too Large", "Too many multipart parts");
+        }
+        String disposition = null;
+        String contentType = null;
+        for (String line : headerBlock.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim();
+            if (name.equalsIgnoreCase("Content-Disposition")) {
+                disposition = line.substring(colon + 1);
+            } else if (name.equalsIgnoreCase("Content-Type")) {
+                contentType = line.substring(colon + 1).trim();
+            }
+        }
+        String[] params = disposition != null ? disposition.split(";") : null;
+        String name = params != null ? parameter(params, "name") : null;
+        if (name == null) {
+            throw badRequest("Multipart part without a name");
+        }
+        String filename = parameter(params, "filename");
+
+        part = new Part(name, filename, contentType);
+        if (filename == null) {
+            fieldValue = new ByteArrayOutputStream();
+        } else if (!filename.isEmpty()) {
+            // An empty filename is a file input left blank: its data is dropped.
+            safeFilename(filename);
+            Files.createDirectories(directory);
+            // Not createTempFile: that would leave the upload readable by its owner only.
+            part.file = directory.resolve(".upload-" + System.nanoTime() + "-" + SEQUENCE.incrementAndGet() + ".part");
+            partChannel = FileChannel.open(part.file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        }
+    }
+
+    private void emit(int offset, int length) throws IOException {
+        if (length == 0 || part == null) {
+            return;
+        }
+        part.size += length;
+        if (partChannel != null) {
+            if (part.size > limits.getMaxFileSize()) {
+                throw new HttpException(413, "Payload Too Large", "Uploaded file exceeds " + limits.getMaxFileSize() + " bytes");
+            }
+            ByteBuffer data = ByteBuffer.wrap(window, offset, length);
+            while (data.hasRemaining()) {
+                partChannel.write(data);
+            }
+        } else if (fieldValue != null) {
+            if (part.size > limits.getMaxFieldSize()) {
+                throw new HttpException(413, "Payload Too Large", "Form field exceeds " + limits.getMaxFieldSize() + " bytes");
+            }
+            fieldValue.write(window, offset, length);
+        }
+    }
+
+    private void endPart() throws IOException {
+        if (part == null) {
+            return;
+        }
+        if (partChannel != null) {
+            partChannel.close();
+            partChannel = null;
+            files.add(part);
+        } else if (fieldValue != null) {
+            fields.put(part.name, fieldValue.toString(StandardCharsets.UTF_8));
+            fieldValue = null;
+        }
+        part = null;
+    }
+
+    public boolean isComplete() {
+        return state == State.EPILOGUE;
+    }
+
+    /**
+     * Moves every uploaded file from its temporary name to its own name in
+     * the upload directory. Fails with 400 if the closing boundary was never
+     * seen, and with 409 if a name is already taken, or used twice in the
+     * body; no file is moved in either case. The move itself refuses to
+     * replace a file created in the meantime.
+     */
+    public void commit() throws IOException {
+        if (!isComplete()) {
+            throw badRequest("Incomplete multipart body");
+        }
+        Set<String> names = new HashSet<>();
+        for (Part file : files) {
+            String name = safeFilename(file.filename);
+            if (!names.add(name) || Files.exists(directory.resolve(name))) {
+                throw conflict(name);
+            }
+        }
+        for (Part file : files) {
+            String name = safeFilename(file.filename);
+            try {
+                Files.move(file.file, directory.resolve(name));
+            } catch (FileAlreadyExistsException e) {
+                throw conflict(name);
+            }
+            file.file = directory.resolve(name);
+        }
+    }
+
+    public List<Part> getFiles() {
+        return Collections.unmodifiableList(files);
+    }
+
+    public Map<String, String> getFields() {
+        return Collections.unmodifiableMap(fields);
+    }
+
+    /** Closes any open part and deletes files that were never committed. */
+    @Override
+    public void close() throws IOException {
+        if (partChannel != null) {
+            partChannel.close();
+            partChannel = null;
+            Files.deleteIfExists(part.file);
+        }
+        for (Part file : files) {
+            if (file.file.getFileName().toString().startsWith(".upload-")) {
+                Files.deleteIfExists(file.file);
+            }
+        }
+    }
+
+    // Browsers may send a full client path; only the last segment is used.
+    private static String safeFilename(String filename) throws HttpException {
+        String name = filename.substring(Math.max(filename.lastIndexOf('/'), filename.lastIndexOf('\\')) + 1);
+        if (name.isEmpty() || name.equals(".") || name.equals("..") || name.startsWith(".upload-")) {
+            throw badRequest("Invalid upload filename");
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) < 0x20 || name.charAt(i) == 0x7F) {
+                throw badRequest("Invalid upload filename");
+            }
+        }
+        return name;
+    }
+
+    private static String parameter(String[] params, String key) {
+        for (int i = 1; i < params.length; i++) {
+            String param = params[i].trim();
+            int eq = param.indexOf('=');
+            if (eq > 0 && param.substring(0, eq).trim().equalsIgnoreCase(key)) {
+                String value = param.substring(eq + 1).trim();
+                if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                    value = value.substring(1, value.length() - 1);
+                }
+                return value;
+            }
+        }
+        return null;
+    }
+
+    private static HttpException badRequest(String message) {
+        return new HttpException(400, "Bad Request", message);
+    }
+
+    private static HttpException conflict(String name) {
+        return new HttpException(409, "Conflict", "Upload would replace existing file " + name);
+    }
+}
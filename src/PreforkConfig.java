@@ -0,0 +1,82 @@
+package src;
+
+import java.io.IOException;
+
+/**
+ * Prefork mode: a supervisor process runs this many copies of the
+ * server, each binding the same ports with SO_REUSEPORT. 0 runs the
+ * server in this process.
+ */
+public class PreforkConfig {
+    private int workers = 0;
+    private long restartDelayMs = 1000;
+    private long readyTimeoutMs = 10000;
+    private long stopTimeoutMs = 10000;
+    private long reportIntervalMs = 1000;
+    
+    public int getWorkers() { return workers; }
+    public long getRestartDelayMs() { return restartDelayMs; }
+    public long getReadyTimeoutMs() { return readyTimeoutMs; }
+    public long getStopTimeoutMs() { return stopTimeoutMs; }
+    public long getReportIntervalMs() { return reportIntervalMs; }
+    
+    public void setWorkers(int workers) { this.workers = workers; }
+    public void setRestartDelayMs(long restartDelayMs) { this.restartDelayMs = restartDelayMs; }
+    public void setReadyTimeoutMs(long readyTimeoutMs) { this.readyTimeoutMs = readyTimeoutMs; }
+    public void setStopTimeoutMs(long stopTimeoutMs) { this.stopTimeoutMs = stopTimeoutMs; }
+    public void setReportIntervalMs(long reportIntervalMs) { this.reportIntervalMs = reportIntervalMs; }
+
+    static PreforkConfig read(JsonReader reader) throws IOException {
+        PreforkConfig prefork = new PreforkConfig();
+        
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            Long millis;
+            switch (name) {
+                case "workers":
+                    Integer workers = ConfigLoader.readInt(reader, prefork.getWorkers());
+                    if (workers != null) {
+                        prefork.setWorkers(workers);
+                    }
+                    break;
+                case "restartDelayMs":
+                    millis = ConfigLoader.readLong(reader, prefork.getRestartDelayMs());
+                    if (millis != null) {
+                        prefork.setRestartDelayMs(millis);
+                    }
+                    break;
+                case "readyTimeoutMs":
+                    millis = ConfigLoader.readLong(reader, prefork.getReadyTimeoutMs());
+                    if (millis != null) {
+                        prefork.setReadyTimeoutMs(millis);
+                    }
+                    break;
+                case "stopTimeoutMs":
+                    millis = ConfigLoader.readLong(reader, prefork.getStopTimeoutMs());
+                    if (millis != null) {
+                        prefork.setStopTimeoutMs(millis);
+                    }
+                    break;
+                case "reportIntervalMs":
+                    millis = ConfigLoader.readLong(reader, prefork.getReportIntervalMs());
+                    if (millis != null) {
+                        prefork.setReportIntervalMs(millis);
+                    }
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        
+        return prefork;
+    }
+
+    void validate() throws IOException {
+        if (workers < 0 || restartDelayMs <= 0 || readyTimeoutMs <= 0 || stopTimeoutMs <= 0 || reportIntervalMs <= 0) {
+            throw new IOException("Invalid prefork settings");
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package src;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A route's "proxy" block: the upstreams it forwards to, how requests
+ * are balanced across them, and when a failing one is ejected.
+ */
+public class ProxyConfig {
+    private List<String> upstreams;
+    private String balance = "round-robin";
+    private int maxIdleConnections = 16;
+    private int maxFailures = 3;
+    private int ejectSeconds = 30;
+    
+    public List<String> getUpstreams() { return upstreams; }
+    public String getBalance() { return balance; }
+    public int getMaxIdleConnections() { return maxIdleConnections; }
+    public int getMaxFailures() { return maxFailures; }
+    public int getEjectSeconds() { return ejectSeconds; }
+    
+    public void setUpstreams(List<String> upstreams) { this.upstreams = upstreams; }
+    public void setBalance(String balance) { this.balance = balance; }
+    public void setMaxIdleConnections(int maxIdleConnections) { this.maxIdleConnections = maxIdleConnections; }
+    public void setMaxFailures(int maxFailures) { this.maxFailures = maxFailures; }
+    public void setEjectSeconds(int ejectSeconds) { this.ejectSeconds = ejectSeconds; }
+
+    static ProxyConfig read(JsonReader reader) throws IOException {
+        ProxyConfig proxy = new ProxyConfig();
+        
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            Integer value;
+            switch (name) {
+                case "upstreams":
+                    if (reader.peek() == JsonReader.Token.BEGIN_ARRAY) {
+                        List<String> upstreams = new ArrayList<>();
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            String upstream = ConfigLoader.readString(reader);
+                            if (upstream != null) {
+                                upstreams.add(upstream.trim());
+                            }
+                        }
+                        reader.endArray();
+                        proxy.setUpstreams(upstreams);
+                    } else {
+                        String upstream = ConfigLoader.readString(reader);
+                        if (upstream != null) {
+                            proxy.setUpstreams(new ArrayList<>(Arrays.asList(upstream.trim())));
+                        }
+                    }
+                    break;
+                case "balance":
+                    String balance = ConfigLoader.readString(reader);
+                    if (balance != null) {
+                        proxy.setBalance(balance);
+                    }
+                    break;
+                case "maxIdleConnections":
+                    value = ConfigLoader.readInt(reader, proxy.getMaxIdleConnections());
+                    if (value != null) {
+                        proxy.setMaxIdleConnections(value);
+                    }
+                    break;
+                case "maxFailures":
+                    value = ConfigLoader.readInt(reader, proxy.getMaxFailures());
+                    if (value != null) {
+                        proxy.setMaxFailures(value);
+                    }
+                    break;
+                case "ejectSeconds":
+                    value = ConfigLoader.readInt(reader, proxy.getEjectSeconds());
+                    if (value != null) {
+                        proxy.setEjectSeconds(value);
+                    }
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        
+        return proxy;
+    }
+
+    void validate(String routePath) throws IOException {
+        if (upstreams == null || upstreams.isEmpty()) {
+            throw new IOException("Proxy route " + routePath + " must have upstreams");
+        }
+        for (String upstream : upstreams) {
+            int colon = upstream.lastIndexOf(':');
+            if (colon <= 0 || !upstream.substring(colon + 1).matches("\\d{1,5}")) {
+                throw new IOException("Invalid upstream (expected host:port): " + upstream);
+            }
+        }
+        if (!balance.equals("round-robin") && !balance.equals("least-outstanding")) {
+            throw new IOException("Invalid proxy balance: " + balance);
+        }
+        if (maxIdleConnections < 0 || maxFailures <= 0 || ejectSeconds < 0) {
+            throw new IOException("Proxy route " + routePath + " has invalid limits");
+        }
+    }
+}
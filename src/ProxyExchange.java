@@ -0,0 +1,529 @@
+package src;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * One request forwarded to an upstream, driven entirely by the server's
+ * selector.
+ *
+ * The request goes out on a pooled keep-alive connection when one is idle,
+ * otherwise on a new non-blocking connect. The response is relayed to the
+ * client through a raw ResponseStream as it arrives: only the Connection
+ * headers are rewritten, and the body framing (Content-Length, chunked, or
+ * until close) is tracked just to know when the upstream connection can go
+ * back to the pool. Reading from the upstream stops while the client is
+ * behind and resumes when its queue drains.
+ *
+ * The request body is sent from where the server already holds it: a slice
+ * of the request buffer, or a decoded body that may be spooled to disk,
+ * which is read a buffer at a time and never loaded whole.
+ *
+ * A pooled connection the upstream closed in the meantime is retried once on
+ * a fresh connection, for idempotent methods only.
+ *
+ * The relayed bytes can also be captured for the response cache; an exchange
+ * with no client stream (a background cache refresh) only captures.
+ *
+ * On a session route the upstream sees the client's session as an
+ * X-Session-Data request header (base64, absent without a session) and may
+ * replace it by answering with one; an empty value ends the session. The
+ * header is never passed through in either direction.
+ */
+public class ProxyExchange implements ChannelHandler {
+    private static final int MAX_RESPONSE_HEADER = 64 * 1024;
+    private static final BodySink DISCARD = src -> src.position(src.limit());
+
+    private static final Set<String> REQUEST_HOP_BY_HOP = new HashSet<>(Arrays.asList(
+        "connection", "keep-alive", "proxy-connection", "te", "trailer", "transfer-encoding",
+        "upgrade", "content-length", "expect", "x-forwarded-for"
+    ));
+    private static final Set<String> RESPONSE_HOP_BY_HOP = new HashSet<>(Arrays.asList(
+        "connection", "keep-alive", "proxy-connection"
+    ));
+    private static final Set<String> IDEMPOTENT = new HashSet<>(Arrays.asList(
+        HttpRequest.GET, HttpRequest.HEAD, HttpRequest.OPTIONS, HttpRequest.PUT, HttpRequest.DELETE
+    ));
+    static final String SESSION_HEADER = "X-Session-Data";
+
+    /** The client's session, as the exchange reads and writes it for the upstream. */
+    public interface SessionAccess {
+        /** The session data, or null when the client has no session. */
+        byte[] read();
+
+        /**
+         * Stores data sent by the upstream, starting a session if there is
+         * none; empty data ends the session. Returns a Set-Cookie value to
+         * add to the response, or null.
+         */
+        String write(byte[] data);
+    }
+
+    private final ReverseProxy proxy;
+    private final Selector selector;
+    private final LoopBudget budget;
+    private final ResponseStream out;
+    private final Supplier<byte[]> badGateway;
+    private final ByteBuffer requestHead;
+    // The body is one of: a slice of the request buffer, or a decoded body
+    // read into the input buffer piece by piece (the response is only read
+    // once the whole request is out, so the two never overlap).
+    private final ByteBuffer bodySlice;
+    private final RequestBody decodedBody;
+    private long bodyRead;
+    private ByteBuffer pendingBody;
+    private final boolean retryable;
+    private final boolean headRequest;
+    private final SessionAccess session;
+
+    private ReverseProxy.Upstream upstream;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private boolean reusedConnection;
+    private boolean retried;
+
+    private final ByteBuffer input = ByteBuffer.allocate(16 * 1024);
+    private byte[] header = new byte[4096];
+    private int headerLength;
+    private boolean headersDone;
+    private boolean upstreamKeepAlive;
+    private long remaining = -1;
+    private ChunkedDecoder chunked;
+    private boolean responseStarted;
+    private boolean finished;
+
+    private ByteArrayOutputStream capture;
+    private long captureLimit;
+    private Consumer<byte[]> onCaptured;
+    private Runnable onFinished;
+
+    /**
+     * @param out        the client's response stream, or null to only capture
+     * @param badGateway builds the error response sent if the upstream fails
+     *                   before any of its response has been relayed
+     * @param session    the client's session on a session route, otherwise null
+     */
+    public ProxyExchange(ReverseProxy proxy, Selector selector, LoopBudget budget, ResponseStream out,
+                         HttpRequest request, String clientAddress, Supplier<byte[]> badGateway,
+                         SessionAccess session) {
+        this.proxy = proxy;
+        this.selector = selector;
+        this.budget = budget;
+        this.out = out;
+        this.badGateway = badGateway;
+        this.session = session;
+        this.decodedBody = request.getDecodedBody();
+        this.bodySlice = decodedBody == null ? request.getBodyBuffer() : null;
+        this.pendingBody = bodySlice;
+        long bodyLength = decodedBody != null ? decodedBody.length() : bodySlice.remaining();
+        this.requestHead = ByteBuffer.wrap(encodeHead(request, clientAddress, bodyLength, session));
+        this.retryable = IDEMPOTENT.contains(request.getMethod());
+        this.headRequest = HttpRequest.HEAD.equals(request.getMethod());
+        if (out != null) {
+            out.setOnDrained(this::resumeReading);
+        }
+    }
+
+    /**
+     * Keeps a copy of the relayed response, up to maxBytes, and passes it to
+     * onComplete if the exchange completes normally.
+     */
+    public void captureResponse(long maxBytes, Consumer<byte[]> onComplete) {
+        this.capture = new ByteArrayOutputStream();
+        this.captureLimit = maxBytes;
+        this.onCaptured = onComplete;
+    }
+
+    /**
+     * Runs callback once the exchange is over, however it ended: after the
+     * captured response has been handed on, or after a failure or abort.
+     */
+    public void whenFinished(Runnable callback) {
+        this.onFinished = callback;
+    }
+
+    public void start() {
+        upstream = proxy.choose(System.currentTimeMillis());
+        open();
+    }
+
+    private void open() {
+        SocketChannel idle = retried ? null : proxy.takeIdle(upstream);
+        if (idle != null) {
+            channel = idle;
+            reusedConnection = true;
+            key = channel.keyFor(selector);
+            key.attach(this);
+            key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+        reusedConnection = false;
+        try {
+            channel = proxy.connect(upstream);
+            key = channel.register(selector,
+                channel.isConnected() ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, this);
+        } catch (IOException e) {
+            upstreamFailed(e.getMessage());
+        }
+    }
+
+    @Override
+    public void handleEvent(SelectionKey key) {
+        try {
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else if (key.isWritable()) {
+                // A large request body goes out a turn's write budget at a
+                // time, like any client response.
+                ByteBuffer next = nextRequestBytes();
+                if (next == null) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+                int limit = next.limit();
+                next.limit(Math.min(limit, next.position() + budget.getWriteBytes()));
+                budget.record(channel.write(next));
+                next.limit(limit);
+                if (requestSent()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            } else if (key.isReadable()) {
+                read();
+            }
+        } catch (IOException e) {
+            upstreamFailed(e.getMessage());
+        }
+    }
+
+    // What is left of the head, then of the body; null once all is sent.
+    private ByteBuffer nextRequestBytes() throws IOException {
+        if (requestHead.hasRemaining()) {
+            return requestHead;
+        }
+        if (pendingBody != null && pendingBody.hasRemaining()) {
+            return pendingBody;
+        }
+        if (decodedBody != null && bodyRead < decodedBody.length()) {
+            input.clear();
+            int n = decodedBody.read(input, bodyRead);
+            if (n <= 0) {
+                throw new IOException("Request body ended early");
+            }
+            bodyRead += n;
+            input.flip();
+            pendingBody = input;
+            return pendingBody;
+        }
+        return null;
+    }
+
+    private boolean requestSent() {
+        return !requestHead.hasRemaining() && (pendingBody == null || !pendingBody.hasRemaining())
+            && (decodedBody == null || bodyRead >= decodedBody.length());
+    }
+
+    private void read() throws IOException {
+        input.clear();
+        input.limit(Math.min(input.capacity(), budget.getReadBytes()));
+        int n = channel.read(input);
+        if (n < 0) {
+            endOfStream();
+            return;
+        }
+        if (n == 0) {
+            return;
+        }
+        budget.record(n);
+        input.flip();
+        if (headersDone) {
+            relayBody(input);
+            return;
+        }
+
+        if (headerLength + n > header.length) {
+            header = Arrays.copyOf(header, Math.max(header.length * 2, headerLength + n));
+        }
+        input.get(header, headerLength, n);
+        headerLength += n;
+        int end = HttpRequest.findHeaderEnd(header, headerLength - n - 3, headerLength);
+        if (end < 0) {
+            if (headerLength > MAX_RESPONSE_HEADER) {
+                throw new IOException("Upstream response headers too large");
+            }
+            return;
+        }
+        startResponse(end);
+        relayBody(ByteBuffer.wrap(header, end, headerLength - end));
+    }
+
+    // Parses the status line and headers, picks the body framing and relays
+    // the header block with the client-side Connection header.
+    private void startResponse(int end) throws IOException {
+        if (end < 16 || header[0] != 'H' || header[4] != '/' || header[5] != '1' || header[8] != ' ') {
+            throw new IOException("Malformed upstream response");
+        }
+        int status = 0;
+        for (int i = 9; i < 12; i++) {
+            int digit = header[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IOException("Malformed upstream status line");
+            }
+            status = status * 10 + digit;
+        }
+        boolean http10 = header[7] == '0';
+
+        ByteArrayOutputStream head = new ByteArrayOutputStream(end + 32);
+        boolean isChunked = false;
+        boolean close = false;
+        boolean keepAlive = false;
+        long contentLength = -1;
+        String setCookie = null;
+        int lineStart = 0;
+        while (lineStart < end - 2) {
+            int lineEnd = lineStart;
+            while (header[lineEnd] != '\r' || header[lineEnd + 1] != '\n') {
+                lineEnd++;
+            }
+            int colon = lineStart;
+            while (colon < lineEnd && header[colon] != ':') {
+                colon++;
+            }
+            if (lineStart == 0 || colon == lineEnd) {
+                head.write(header, lineStart, lineEnd + 2 - lineStart);
+            } else {
+                String name = new String(header, lineStart, colon - lineStart, StandardCharsets.ISO_8859_1)
+                    .trim().toLowerCase(Locale.ROOT);
+                String raw = new String(header, colon + 1, lineEnd - colon - 1, StandardCharsets.ISO_8859_1).trim();
+                String value = raw.toLowerCase(Locale.ROOT);
+                boolean sessionData = session != null && name.equals("x-session-data");
+                if (sessionData) {
+                    String cookie = writeSession(raw);
+                    setCookie = cookie != null ? cookie : setCookie;
+                } else if (name.equals("connection")) {
+                    close |= value.contains("close");
+                    keepAlive |= value.contains("keep-alive");
+                } else if (name.equals("transfer-encoding")) {
+                    isChunked = value.endsWith("chunked");
+                } else if (name.equals("content-length")) {
+                    try {
+                        contentLength = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid upstream Content-Length: " + value);
+                    }
+                }
+                if (!sessionData && !RESPONSE_HOP_BY_HOP.contains(name)) {
+                    head.write(header, lineStart, lineEnd + 2 - lineStart);
+                }
+            }
+            lineStart = lineEnd + 2;
+        }
+        if (setCookie != null) {
+            head.write(("Set-Cookie: " + setCookie + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        head.write("Connection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+
+        if (headRequest || status / 100 == 1 || status == 204 || status == 304) {
+            remaining = 0;
+        } else if (isChunked) {
+            chunked = new ChunkedDecoder(Long.MAX_VALUE);
+        } else {
+            remaining = contentLength;
+        }
+        upstreamKeepAlive = !close && (!http10 || keepAlive) && (chunked != null || remaining >= 0);
+        headersDone = true;
+        forward(head.toByteArray(), 0, head.size());
+    }
+
+    // Data the upstream cannot have meant (not base64) leaves the session
+    // as it was rather than failing the response.
+    private String writeSession(String value) {
+        byte[] data;
+        try {
+            data = Base64.getDecoder().decode(value);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Ignoring malformed " + SESSION_HEADER + " from " + upstream);
+            return null;
+        }
+        return session.write(data);
+    }
+
+    private void relayBody(ByteBuffer data) throws IOException {
+        if (finished) {
+            return;
+        }
+        int start = data.position();
+        if (chunked != null) {
+            chunked.decode(data, DISCARD);
+        } else if (remaining >= 0) {
+            int n = (int) Math.min(remaining, data.remaining());
+            data.position(start + n);
+            remaining -= n;
+        } else {
+            data.position(data.limit());
+        }
+        forward(data.array(), data.arrayOffset() + start, data.position() - start);
+
+        if (chunked != null ? chunked.isDone() : remaining == 0) {
+            // Extra bytes after the response mean the connection is out of step.
+            complete(!data.hasRemaining());
+        }
+    }
+
+    private void forward(byte[] data, int offset, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        responseStarted = true;
+        if (capture != null) {
+            if (capture.size() + (long) length > captureLimit) {
+                capture = null;
+            } else {
+                capture.write(data, offset, length);
+            }
+        }
+        if (out != null && !out.offer(Arrays.copyOfRange(data, offset, offset + length), false)) {
+            // The client is behind: stop reading until its queue drains.
+            key.interestOps(0);
+        }
+    }
+
+    private void resumeReading() {
+        if (!finished && key != null && key.isValid()) {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void endOfStream() throws IOException {
+        if (headersDone && chunked == null && remaining < 0) {
+            // Body delimited by the upstream closing the connection.
+            complete(false);
+            return;
+        }
+        upstreamFailed(headersDone ? "Upstream closed the connection mid-response"
+            : "Upstream closed the connection before responding");
+    }
+
+    private void complete(boolean reusable) throws IOException {
+        finished = true;
+        proxy.recordSuccess(upstream);
+        proxy.release(upstream, channel, key, reusable && upstreamKeepAlive);
+        if (capture != null) {
+            onCaptured.accept(capture.toByteArray());
+        }
+        if (out != null) {
+            out.offer(null, true);
+        }
+        finished();
+    }
+
+    private void finished() {
+        if (onFinished != null) {
+            onFinished.run();
+        }
+    }
+
+    private void upstreamFailed(String message) {
+        if (finished) {
+            return;
+        }
+        if (reusedConnection && headerLength == 0 && retryable && !retried) {
+            // Most likely a pooled connection the upstream had already closed.
+            retried = true;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+            requestHead.rewind();
+            if (bodySlice != null) {
+                bodySlice.rewind();
+            }
+            pendingBody = bodySlice;
+            bodyRead = 0;
+            open();
+            return;
+        }
+        finished = true;
+        System.err.println("Proxy request to " + upstream + " failed: " + message);
+        proxy.recordFailure(upstream, System.currentTimeMillis());
+        proxy.release(upstream, channel, key, false);
+        if (out != null) {
+            try {
+                if (responseStarted) {
+                    out.fail();
+                } else {
+                    out.offer(badGateway.get(), true);
+                }
+            } catch (IOException e) {
+            }
+        }
+        finished();
+    }
+
+    /**
+     * Drops the upstream side when the client goes away. A timeout counts
+     * against the upstream's health like any other failure.
+     */
+    public void abort(boolean timedOut) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (timedOut) {
+            proxy.recordFailure(upstream, System.currentTimeMillis());
+        }
+        proxy.release(upstream, channel, key, false);
+        finished();
+    }
+
+    // Rewrites the client's request head for the upstream: hop-by-hop
+    // headers are dropped, the body is announced with a Content-Length, and
+    // the client address is appended to X-Forwarded-For. HTTP/1.0 clients
+    // are proxied as HTTP/1.0 so the upstream does not answer them with
+    // chunked framing. With a session, X-Session-Data is the server's to
+    // set: whatever the client sent under that name is dropped.
+    static byte[] encodeHead(HttpRequest request, String clientAddress, long bodyLength, SessionAccess session) {
+        String version = HttpRequest.HTTP_1_0.equals(request.getVersion()) ? HttpRequest.HTTP_1_0 : HttpRequest.HTTP_1_1;
+        StringBuilder head = new StringBuilder(256);
+        head.append(request.getMethod()).append(' ').append(request.getTarget()).append(' ').append(version).append("\r\n");
+        String forwardedFor = null;
+        for (int i = 0; i < request.getHeaderCount(); i++) {
+            String name = request.getHeaderName(i);
+            String lower = name.toLowerCase(Locale.ROOT);
+            if (lower.equals("x-forwarded-for")) {
+                String value = request.getHeaderValue(i);
+                forwardedFor = forwardedFor == null ? value : forwardedFor + ", " + value;
+            }
+            if (!REQUEST_HOP_BY_HOP.contains(lower) && (session == null || !lower.equals("x-session-data"))) {
+                head.append(name).append(": ").append(request.getHeaderValue(i)).append("\r\n");
+            }
+        }
+        head.append("X-Forwarded-For: ")
+            .append(forwardedFor != null ? forwardedFor + ", " + clientAddress : clientAddress)
+            .append("\r\n");
+        byte[] sessionData = session != null ? session.read() : null;
+        if (sessionData != null) {
+            head.append(SESSION_HEADER).append(": ").append(Base64.getEncoder().encodeToString(sessionData))
+                .append("\r\n");
+        }
+
+        if (bodyLength > 0 || request.hasHeader("Content-Length") || request.isChunked()) {
+            head.append("Content-Length: ").append(bodyLength).append("\r\n");
+        }
+        head.append("Connection: keep-alive\r\n\r\n");
+        return head.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
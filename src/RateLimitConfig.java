@@ -0,0 +1,66 @@
+package src;
+
+import java.io.IOException;
+
+/**
+ * A "rateLimit" block, top-level or per route: the per-client request
+ * rate and burst, and the size of the client table.
+ */
+public class RateLimitConfig {
+    private double requestsPerSecond;
+    private int burst;
+    private int tableSize = 65536;
+    
+    public double getRequestsPerSecond() { return requestsPerSecond; }
+    public int getBurst() { return burst; }
+    public int getTableSize() { return tableSize; }
+    
+    public void setRequestsPerSecond(double requestsPerSecond) { this.requestsPerSecond = requestsPerSecond; }
+    public void setBurst(int burst) { this.burst = burst; }
+    public void setTableSize(int tableSize) { this.tableSize = tableSize; }
+
+    static RateLimitConfig read(JsonReader reader) throws IOException {
+        RateLimitConfig rateLimit = new RateLimitConfig();
+        
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            switch (name) {
+                case "requestsPerSecond":
+                    Double rate = ConfigLoader.readDouble(reader);
+                    if (rate != null) {
+                        rateLimit.setRequestsPerSecond(rate);
+                    }
+                    break;
+                case "burst":
+                    Integer burst = ConfigLoader.readInt(reader, 0);
+                    if (burst != null) {
+                        rateLimit.setBurst(burst);
+                    }
+                    break;
+                case "tableSize":
+                    Integer tableSize = ConfigLoader.readInt(reader, rateLimit.getTableSize());
+                    if (tableSize != null) {
+                        rateLimit.setTableSize(tableSize);
+                    }
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        
+        return rateLimit;
+    }
+
+    // A burst of 0 allows one second's worth of requests.
+    void applyDefaults() {
+        if (burst <= 0) {
+            burst = (int) Math.max(1, Math.ceil(requestsPerSecond));
+        }
+        if (tableSize <= 0) {
+            tableSize = 65536;
+        }
+    }
+}
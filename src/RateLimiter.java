@@ -0,0 +1,175 @@
+package src;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token-bucket rate limiting per client address, and optionally per
+ * (client, route) pair.
+ *
+ * Buckets live in a fixed-size open-addressing table made of parallel
+ * primitive arrays, keyed on the client address packed into two longs
+ * (IPv4 addresses use the IPv4-mapped IPv6 form) plus a route id. Each
+ * bucket is stored in its virtual-scheduling (GCRA) form: a single
+ * theoretical arrival time, which is equivalent to a lazily refilled token
+ * bucket but needs no fractional token arithmetic. The table never grows: when an
+ * insert finds no free slot within MAX_PROBE slots, the least recently used
+ * bucket in that window is overwritten, so idle clients are evicted and the
+ * memory used is fixed no matter how many distinct clients show up. A
+ * bucket idle long enough to have refilled completely loses nothing by
+ * being evicted.
+ *
+ * The table is only touched from the selector thread, so it needs no locks.
+ */
+public class RateLimiter {
+    private static final int MAX_PROBE = 16;
+    private static final int GLOBAL_ROUTE = 0;
+
+    private final RateLimitConfig global;
+    private final Map<ConfigLoader.Route, Integer> routeIds;
+    private final int mask;
+    private final long epochNanos;
+
+    private final long[] keyHi;
+    private final long[] keyLo;
+    private final int[] keyRoute;
+    private final long[] arrival;
+    private final long[] lastSeen;
+
+    private final byte[] tooManyRequests;
+    private final AtomicLong limited;
+    private final AtomicLong evictions;
+
+    public RateLimiter(RateLimitConfig global, List<ConfigLoader.Route> routes, Metrics metrics) {
+        this.global = global;
+        this.routeIds = new IdentityHashMap<>();
+        for (int i = 0; i < routes.size(); i++) {
+            routeIds.put(routes.get(i), i + 1);
+        }
+
+        int capacity = Integer.highestOneBit(Math.max(MAX_PROBE, global.getTableSize() - 1)) << 1;
+        this.mask = capacity - 1;
+        // Timestamps are kept relative to construction so 0 can mean "empty".
+        this.epochNanos = System.nanoTime() - 1;
+        this.keyHi = new long[capacity];
+        this.keyLo = new long[capacity];
+        this.keyRoute = new int[capacity];
+        this.arrival = new long[capacity];
+        this.lastSeen = new long[capacity];
+
+        this.tooManyRequests = ("HTTP/1.1 429 Too Many Requests\r\n" +
+            "Retry-After: 1\r\n" +
+            "Content-Length: 0\r\n" +
+            "Connection: close\r\n" +
+            "\r\n").getBytes(StandardCharsets.US_ASCII);
+        this.limited = metrics.counter("ratelimit.limited_requests");
+        this.evictions = metrics.counter("ratelimit.evictions");
+    }
+
+    public byte[] tooManyRequestsResponse() {
+        return tooManyRequests;
+    }
+
+    /** Checks the server-wide per-client limit; call before routing. */
+    public boolean allowClient(long addressHi, long addressLo) {
+        if (global.getRequestsPerSecond() <= 0) {
+            return true;
+        }
+        return acquire(addressHi, addressLo, GLOBAL_ROUTE, global);
+    }
+
+    /** Checks the route's own per-client limit, if it has one. */
+    public boolean allowRoute(long addressHi, long addressLo, ConfigLoader.Route route) {
+        RateLimitConfig limit = route.getRateLimit();
+        if (limit == null || limit.getRequestsPerSecond() <= 0) {
+            return true;
+        }
+        Integer routeId = routeIds.get(route);
+        return acquire(addressHi, addressLo, routeId != null ? routeId : GLOBAL_ROUTE, limit);
+    }
+
+    private boolean acquire(long hi, long lo, int route, RateLimitConfig limit) {
+        long now = System.nanoTime() - epochNanos;
+        long interval = (long) (1_000_000_000L / limit.getRequestsPerSecond());
+        long tolerance = interval * (limit.getBurst() - 1);
+        int slot = find(hi, lo, route);
+
+        if (lastSeen[slot] == 0) {
+            keyHi[slot] = hi;
+            keyLo[slot] = lo;
+            keyRoute[slot] = route;
+            arrival[slot] = now;
+        }
+        lastSeen[slot] = now;
+
+        // A full bucket has arrival <= now; each request pushes it one
+        // interval into the future, and more than burst-1 intervals ahead
+        // means the bucket is empty.
+        long next = Math.max(arrival[slot], now);
+        if (next - now > tolerance) {
+            limited.incrementAndGet();
+            return false;
+        }
+        arrival[slot] = next + interval;
+        return true;
+    }
+
+    // Returns the slot holding the key, a free slot, or the least recently
+    // used slot in the probe window (which the caller overwrites).
+    private int find(long hi, long lo, int route) {
+        int home = hash(hi, lo, route) & mask;
+        int victim = home;
+        for (int i = 0; i < MAX_PROBE; i++) {
+            int slot = (home + i) & mask;
+            if (lastSeen[slot] == 0) {
+                return slot;
+            }
+            if (keyHi[slot] == hi && keyLo[slot] == lo && keyRoute[slot] == route) {
+                return slot;
+            }
+            if (lastSeen[slot] < lastSeen[victim]) {
+                victim = slot;
+            }
+        }
+        evictions.incrementAndGet();
+        lastSeen[victim] = 0;
+        return victim;
+    }
+
+    private static int hash(long hi, long lo, int route) {
+        long h = hi * 0x9E3779B97F4A7C15L ^ lo * 0xC2B2AE3D27D4EB4FL ^ route * 0x165667B19E3779F9L;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    /** Packs a remote address into {hi, lo}; IPv4 maps to ::ffff:a.b.c.d. */
+    public static long[] pack(SocketAddress address) {
+        long[] packed = new long[2];
+        if (!(address instanceof InetSocketAddress)) {
+            return packed;
+        }
+        InetAddress inet = ((InetSocketAddress) address).getAddress();
+        if (inet == null) {
+            return packed;
+        }
+        byte[] bytes = inet.getAddress();
+        if (bytes.length == 4) {
+            packed[1] = 0xFFFF00000000L | ((bytes[0] & 0xFFL) << 24) | ((bytes[1] & 0xFFL) << 16)
+                | ((bytes[2] & 0xFFL) << 8) | (bytes[3] & 0xFFL);
+        } else {
+            for (int i = 0; i < 8; i++) {
+                packed[0] = (packed[0] << 8) | (bytes[i] & 0xFFL);
+                packed[1] = (packed[1] << 8) | (bytes[i + 8] & 0xFFL);
+            }
+        }
+        return packed;
+    }
+}
@@ -0,0 +1,127 @@
+package src;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Sink for a request body that is decoded as it arrives. Bytes are kept in
+ * memory up to spoolThreshold; past that, everything is moved to a
+ * temporary file and later writes go straight to it.
+ */
+public class RequestBody implements BodySink, Closeable {
+    private final int spoolThreshold;
+    private byte[] memory;
+    private int memoryLength;
+    private Path spoolFile;
+    private FileChannel spool;
+    private long length;
+
+    public RequestBody(int spoolThreshold) {
+        this.spoolThreshold = spoolThreshold;
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        int n = src.remaining();
+        if (n == 0) {
+            return;
+        }
+        if (spool == null && memoryLength + n > spoolThreshold) {
+            startSpooling();
+        }
+        if (spool != null) {
+            while (src.hasRemaining()) {
+                spool.write(src);
+            }
+        } else {
+            if (memory == null) {
+                memory = new byte[Math.min(spoolThreshold, Math.max(1024, n))];
+            } else if (memoryLength + n > memory.length) {
+                memory = Arrays.copyOf(memory, Math.min(spoolThreshold, Math.max(memory.length * 2, memoryLength + n)));
+            }
+            src.get(memory, memoryLength, n);
+            memoryLength += n;
+        }
+        length += n;
+    }
+
+    private void startSpooling() throws IOException {
+        spoolFile = Files.createTempFile("localserver-body-", ".tmp");
+        spool = FileChannel.open(spoolFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (memoryLength > 0) {
+            ByteBuffer pending = ByteBuffer.wrap(memory, 0, memoryLength);
+            while (pending.hasRemaining()) {
+                spool.write(pending);
+            }
+        }
+        memory = null;
+        memoryLength = 0;
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public boolean isSpooled() {
+        return spool != null;
+    }
+
+    /** The spool file, or null while the body is held in memory. */
+    public Path getSpoolFile() {
+        return spoolFile;
+    }
+
+    /**
+     * Copies body bytes from position on into dst, from memory or the spool
+     * file, without loading the rest. Returns the count, or -1 at the end.
+     */
+    public int read(ByteBuffer dst, long position) throws IOException {
+        if (position >= length) {
+            return -1;
+        }
+        if (spool != null) {
+            return spool.read(dst, position);
+        }
+        if (memory == null) {
+            throw new IOException("Request body already closed");
+        }
+        int n = (int) Math.min(dst.remaining(), memoryLength - position);
+        dst.put(memory, (int) position, n);
+        return n;
+    }
+
+    public byte[] toByteArray() throws IOException {
+        if (spool == null) {
+            return memory == null ? new byte[0] : Arrays.copyOf(memory, memoryLength);
+        }
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IOException("Request body too large to load into memory: " + length);
+        }
+        ByteBuffer dst = ByteBuffer.allocate((int) length);
+        long position = 0;
+        while (dst.hasRemaining()) {
+            int n = spool.read(dst, position);
+            if (n < 0) {
+                break;
+            }
+            position += n;
+        }
+        return dst.array();
+    }
+
+    @Override
+    public void close() throws IOException {
+        memory = null;
+        if (spool != null) {
+            spool.close();
+            spool = null;
+            Files.deleteIfExists(spoolFile);
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package src;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Short-lived cache of complete, encoded responses for routes that opt in
+ * with a "cache" block; a hit is handed to the write path as is.
+ *
+ * Only GET is cached. Entries are keyed on HTTP version, Host, path and the
+ * configured query parameters, and remember the request headers named by the response's Vary
+ * header; a request whose values differ is a miss (one variant is kept per
+ * key). Freshness is the route's ttlSeconds, shortened by the response's
+ * max-age/s-maxage. Responses marked no-store, private or no-cache, or that
+ * set cookies, are never stored; a request with Cache-Control no-cache skips
+ * the lookup, no-store skips the cache entirely. Once stale, an entry can
+ * still be served for staleWhileRevalidateSeconds while one background
+ * request refreshes it. Memory is bounded by an LRU over total entry bytes.
+ *
+ * Only the selector thread uses it.
+ */
+public class ResponseCache {
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final long REVALIDATION_RETRY_MILLIS = 1000;
+
+    public static class Entry {
+        private final byte[] response;
+        private final List<String> varyNames;
+        private final List<String> varyValues;
+        private final long expiresAt;
+        private final long staleUntil;
+        private final int size;
+        private long revalidatingSince;
+
+        Entry(byte[] response, List<String> varyNames, List<String> varyValues,
+              long expiresAt, long staleUntil, int size) {
+            this.response = response;
+            this.varyNames = varyNames;
+            this.varyValues = varyValues;
+            this.expiresAt = expiresAt;
+            this.staleUntil = staleUntil;
+            this.size = size;
+        }
+
+        public byte[] getResponse() { return response; }
+
+        public boolean isFresh(long now) {
+            return now < expiresAt;
+        }
+
+        /** Whether the caller should refresh this stale entry now (one refresh at a time). */
+        public boolean startRevalidation(long now) {
+            if (now - revalidatingSince < REVALIDATION_RETRY_MILLIS) {
+                return false;
+            }
+            revalidatingSince = now;
+            return true;
+        }
+    }
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long totalBytes;
+
+    private final AtomicLong hits;
+    private final AtomicLong staleHits;
+    private final AtomicLong misses;
+    private final AtomicLong stores;
+    private final AtomicLong evictions;
+    private final AtomicLong bytesGauge;
+
+    public ResponseCache(long maxBytes, Metrics metrics) {
+        this.maxBytes = maxBytes;
+        this.hits = metrics.counter("cache.hits");
+        this.staleHits = metrics.counter("cache.stale_hits");
+        this.misses = metrics.counter("cache.misses");
+        this.stores = metrics.counter("cache.stores");
+        this.evictions = metrics.counter("cache.evictions");
+        this.bytesGauge = metrics.counter("cache.bytes");
+    }
+
+    /** The cache key for the request, or null if it must bypass the cache. */
+    public String keyFor(HttpRequest request, CacheConfig config) {
+        if (!HttpRequest.GET.equals(request.getMethod()) || request.getPath() == null
+            || cacheControl(request.getHeader("Cache-Control")).containsKey("no-store")) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder(64);
+        key.append(request.getVersion()).append(' ')
+            .append(request.getHeader("Host")).append(' ')
+            .append(request.getPath());
+        if (config.getQueryParams() == null) {
+            String target = request.getTarget();
+            int query = target.indexOf('?');
+            if (query >= 0) {
+                key.append(target, query, target.length());
+            }
+        } else {
+            Map<String, String> params = request.getQueryParams();
+            char separator = '?';
+            for (String name : config.getQueryParams()) {
+                String value = params.get(name);
+                if (value != null) {
+                    key.append(separator).append(name).append('=').append(value);
+                    separator = '&';
+                }
+            }
+        }
+        return key.toString();
+    }
+
+    /** A cached response usable for this request, or null; stale ones only if allowStale. */
+    public Entry lookup(String key, HttpRequest request, long now, boolean allowStale) {
+        if (cacheControl(request.getHeader("Cache-Control")).containsKey("no-cache")) {
+            misses.incrementAndGet();
+            return null;
+        }
+        Entry entry = entries.get(key);
+        if (entry == null || now >= (allowStale ? entry.staleUntil : entry.expiresAt)
+            || !varyMatches(entry, request)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (entry.isFresh(now)) {
+            hits.incrementAndGet();
+        } else {
+            staleHits.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * Stores a complete encoded response if its status and headers allow it.
+     * Returns whether it was stored.
+     */
+    public boolean store(String key, HttpRequest request, byte[] response,
+                         CacheConfig config, long now) {
+        if (response.length > config.getMaxEntryBytes() || !cacheableStatus(response)) {
+            return false;
+        }
+        int headerEnd = HttpRequest.findHeaderEnd(response, 0, response.length);
+        if (headerEnd < 0) {
+            return false;
+        }
+
+        long ttl = config.getTtlSeconds() * 1000L;
+        long stale = config.getStaleWhileRevalidateSeconds() * 1000L;
+        List<String> varyNames = new ArrayList<>();
+        String headers = new String(response, 0, headerEnd, StandardCharsets.ISO_8859_1);
+        for (String line : headers.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Set-Cookie")) {
+                return false;
+            } else if (name.equalsIgnoreCase("Vary")) {
+                for (String vary : value.split(",")) {
+                    vary = vary.trim();
+                    if (vary.equals("*")) {
+                        return false;
+                    }
+                    if (!vary.isEmpty()) {
+                        varyNames.add(vary);
+                    }
+                }
+            } else if (name.equalsIgnoreCase("Cache-Control")) {
+                Map<String, String> directives = cacheControl(value);
+                if (directives.containsKey("no-store") || directives.containsKey("private")
+                    || directives.containsKey("no-cache")) {
+                    return false;
+                }
+                String maxAge = directives.containsKey("s-maxage") ? directives.get("s-maxage") : directives.get("max-age");
+                if (maxAge != null) {
+                    ttl = Math.min(ttl, seconds(maxAge) * 1000L);
+                }
+                String swr = directives.get("stale-while-revalidate");
+                if (swr != null) {
+                    stale = seconds(swr) * 1000L;
+                }
+            }
+        }
+        if (ttl <= 0) {
+            return false;
+        }
+
+        List<String> varyValues = new ArrayList<>(varyNames.size());
+        for (String name : varyNames) {
+            varyValues.add(request.getHeader(name));
+        }
+        int size = response.length + key.length() * 2 + ENTRY_OVERHEAD;
+        Entry entry = new Entry(response, varyNames, varyValues, now + ttl, now + ttl + stale, size);
+
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            totalBytes -= previous.size;
+        }
+        totalBytes += size;
+        stores.incrementAndGet();
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            Entry evicted = eldest.next();
+            eldest.remove();
+            totalBytes -= evicted.size;
+            evictions.incrementAndGet();
+        }
+        bytesGauge.set(totalBytes);
+        return true;
+    }
+
+    private static boolean varyMatches(Entry entry, HttpRequest request) {
+        for (int i = 0; i < entry.varyNames.size(); i++) {
+            String expected = entry.varyValues.get(i);
+            String actual = request.getHeader(entry.varyNames.get(i));
+            if (expected == null ? actual != null : !expected.equals(actual)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Heuristically cacheable statuses (RFC 9110 15.1), limited to the ones
+    // a backend is likely to send.
+    private static boolean cacheableStatus(byte[] response) {
+        if (response.length < 12) {
+            return false;
+        }
+        int status = (response[9] - '0') * 100 + (response[10] - '0') * 10 + (response[11] - '0');
+        return status == 200 || status == 203 || status == 204 || status == 301
+            || status == 404 || status == 410;
+    }
+
+    private static Map<String, String> cacheControl(String header) {
+        Map<String, String> directives = new TreeMap<>();
+        if (header == null) {
+            return directives;
+        }
+        for (String directive : header.split(",")) {
+            int eq = directive.indexOf('=');
+            String name = (eq < 0 ? directive : directive.substring(0, eq)).trim().toLowerCase(Locale.ROOT);
+            String value = eq < 0 ? "" : directive.substring(eq + 1).trim();
+            if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                value = value.substring(1, value.length() - 1);
+            }
+            if (!name.isEmpty()) {
+                directives.put(name, value);
+            }
+        }
+        return directives;
+    }
+
+    private static long seconds(String value) {
+        try {
+            return Math.max(0, Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package src;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Response body produced incrementally by a worker thread and drained by the
+ * selector thread. In chunked mode every write is framed as one HTTP/1.1
+ * chunk and close() sends the terminating chunk; in raw mode (HTTP/1.0
+ * clients) bytes go out as written and the end of the body is signalled by
+ * closing the connection.
+ *
+ * The selector only drains the queue when the socket is writable, so queued
+ * bytes track how far the client is behind. Writers block once
+ * highWaterMark bytes are queued and resume when the queue has drained
+ * below half of that, so a fast producer cannot outrun a slow client and is
+ * not woken for every segment sent.
+ */
+public class ResponseStream extends OutputStream {
+    /** Writes a response body; runs on a worker thread. */
+    public interface Producer {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final ArrayDeque<byte[]> segments = new ArrayDeque<>();
+    private final long highWaterMark;
+    private final long lowWaterMark;
+    private final boolean chunked;
+    private final Runnable onData;
+    private Runnable onDrained;
+    private boolean producerWaiting;
+    private long bufferedBytes;
+    private boolean closed;
+    private boolean cancelled;
+    private boolean failed;
+    // Nothing has been polled yet, so the first data must wake the consumer.
+    private boolean consumerWaiting = true;
+
+    /**
+     * @param onData called from the producer thread when data arrives while
+     *               the consumer is waiting for it
+     */
+    public ResponseStream(long highWaterMark, boolean chunked, Runnable onData) {
+        this.highWaterMark = highWaterMark;
+        this.lowWaterMark = highWaterMark / 2;
+        this.chunked = chunked;
+        this.onData = onData;
+    }
+
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] data, int off, int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+        if (!chunked) {
+            enqueue(Arrays.copyOfRange(data, off, off + len), false);
+            return;
+        }
+        byte[] size = Integer.toHexString(len).getBytes(StandardCharsets.US_ASCII);
+        byte[] chunk = new byte[size.length + 2 + len + 2];
+        System.arraycopy(size, 0, chunk, 0, size.length);
+        System.arraycopy(CRLF, 0, chunk, size.length, 2);
+        System.arraycopy(data, off, chunk, size.length + 2, len);
+        System.arraycopy(CRLF, 0, chunk, chunk.length - 2, 2);
+        enqueue(chunk, false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+        }
+        enqueue(chunked ? LAST_CHUNK : null, true);
+    }
+
+    /**
+     * Sets the callback a non-blocking producer (see offer) gets on the
+     * consumer's thread once the queue has drained below the low-water mark.
+     */
+    public void setOnDrained(Runnable onDrained) {
+        this.onDrained = onDrained;
+    }
+
+    /**
+     * Queues an already framed segment without blocking, for producers that
+     * run on the selector thread themselves. Returns false once the queue is
+     * at the high-water mark; the producer should then stop until onDrained
+     * runs. A null segment with last set just ends the stream.
+     */
+    public boolean offer(byte[] segment, boolean last) throws IOException {
+        boolean notify;
+        boolean belowHighWater;
+        synchronized (this) {
+            if (cancelled) {
+                throw new IOException("Response stream cancelled");
+            }
+            if (closed) {
+                throw new IOException("Response stream closed");
+            }
+            if (segment != null && segment.length > 0) {
+                segments.add(segment);
+                bufferedBytes += segment.length;
+            }
+            closed = last;
+            belowHighWater = bufferedBytes < highWaterMark;
+            producerWaiting = !belowHighWater;
+            notify = consumerWaiting;
+            consumerWaiting = false;
+        }
+        if (notify) {
+            onData.run();
+        }
+        return belowHighWater;
+    }
+
+    private void enqueue(byte[] segment, boolean last) throws IOException {
+        boolean notify;
+        synchronized (this) {
+            while (!cancelled && bufferedBytes >= highWaterMark) {
+                producerWaiting = true;
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while writing response");
+                }
+            }
+            if (cancelled) {
+                throw new IOException("Response stream cancelled");
+            }
+            if (closed) {
+                throw new IOException("Response stream closed");
+            }
+            if (segment != null) {
+                segments.add(segment);
+                bufferedBytes += segment.length;
+            }
+            closed = last;
+            notify = consumerWaiting;
+            consumerWaiting = false;
+        }
+        if (notify) {
+            onData.run();
+        }
+    }
+
+    /** Takes the next segment, or returns null (and arms onData) if none is queued. */
+    public byte[] poll() {
+        byte[] segment;
+        boolean drained = false;
+        synchronized (this) {
+            segment = segments.poll();
+            if (segment == null) {
+                consumerWaiting = !closed;
+                return null;
+            }
+            bufferedBytes -= segment.length;
+            if (producerWaiting && bufferedBytes < lowWaterMark) {
+                producerWaiting = false;
+                drained = true;
+                notifyAll();
+            }
+        }
+        if (drained && onDrained != null) {
+            onDrained.run();
+        }
+        return segment;
+    }
+
+    /** Bytes queued and not yet taken by the consumer. */
+    public synchronized long bufferedBytes() {
+        return bufferedBytes;
+    }
+
+    public synchronized boolean isFinished() {
+        return closed && segments.isEmpty();
+    }
+
+    public synchronized boolean isFailed() {
+        return failed;
+    }
+
+    /** Whether the connection went away; nothing more will be sent. */
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Ends the stream without the terminating chunk, so the client sees a
+     * truncated body (in raw mode the client cannot tell). The connection must be closed once this is drained.
+     */
+    public void fail() {
+        boolean notify;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            failed = true;
+            notify = consumerWaiting;
+            consumerWaiting = false;
+        }
+        if (notify) {
+            onData.run();
+        }
+    }
+
+    /** Called when the connection goes away; unblocks and fails the producer. */
+    public synchronized void cancel() {
+        cancelled = true;
+        segments.clear();
+        bufferedBytes = 0;
+        notifyAll();
+    }
+}
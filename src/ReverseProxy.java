@@ -0,0 +1,195 @@
+package src;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Upstream selection, keep-alive pooling and passive health checking for
+ * one PROXY route.
+ *
+ * Each upstream keeps a stack of idle keep-alive connections; they stay
+ * registered with the selector for OP_READ so that an upstream closing one
+ * is noticed and the connection dropped instead of being handed to the next
+ * request. Upstreams that fail maxFailures times in a row (connect errors,
+ * resets, malformed or truncated responses) are ejected for ejectSeconds and
+ * skipped by the balancer; if every upstream is ejected, the one due back
+ * soonest is tried anyway rather than failing outright.
+ *
+ * All state is owned by the selector thread.
+ */
+public class ReverseProxy {
+    public class Upstream implements ChannelHandler {
+        private final InetSocketAddress address;
+        private final ArrayDeque<SocketChannel> idle = new ArrayDeque<>();
+        private int outstanding;
+        private int failures;
+        private long ejectedUntil;
+
+        Upstream(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        public InetSocketAddress getAddress() { return address; }
+        public int getOutstanding() { return outstanding; }
+
+        // An idle connection became readable: the upstream closed it (or
+        // sent something unsolicited), so it can no longer be reused.
+        @Override
+        public void handleEvent(SelectionKey key) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            idle.remove(channel);
+            key.cancel();
+            closeQuietly(channel);
+        }
+
+        @Override
+        public String toString() {
+            return address.getHostString() + ":" + address.getPort();
+        }
+    }
+
+    private final ProxyConfig config;
+    private final List<Upstream> upstreams = new ArrayList<>();
+    private final boolean leastOutstanding;
+    private int cursor;
+
+    private final AtomicLong connects;
+    private final AtomicLong reused;
+    private final AtomicLong failuresCounter;
+    private final AtomicLong ejections;
+
+    public ReverseProxy(ProxyConfig config, Metrics metrics) {
+        this.config = config;
+        for (String upstream : config.getUpstreams()) {
+            int colon = upstream.lastIndexOf(':');
+            String host = upstream.substring(0, colon);
+            if (host.startsWith("[") && host.endsWith("]")) {
+                host = host.substring(1, host.length() - 1);
+            }
+            upstreams.add(new Upstream(new InetSocketAddress(host, Integer.parseInt(upstream.substring(colon + 1)))));
+        }
+        this.leastOutstanding = "least-outstanding".equals(config.getBalance());
+        this.connects = metrics.counter("proxy.upstream_connects");
+        this.reused = metrics.counter("proxy.reused_connections");
+        this.failuresCounter = metrics.counter("proxy.upstream_failures");
+        this.ejections = metrics.counter("proxy.ejections");
+    }
+
+    /** Picks the upstream for the next request. */
+    public Upstream choose(long now) {
+        Upstream best = null;
+        int n = upstreams.size();
+        for (int i = 0; i < n; i++) {
+            Upstream candidate = upstreams.get((cursor + i) % n);
+            if (candidate.ejectedUntil > now) {
+                continue;
+            }
+            if (!leastOutstanding) {
+                best = candidate;
+                break;
+            }
+            if (best == null || candidate.outstanding < best.outstanding) {
+                best = candidate;
+            }
+        }
+        cursor = (cursor + 1) % n;
+        if (best == null) {
+            for (Upstream candidate : upstreams) {
+                if (best == null || candidate.ejectedUntil < best.ejectedUntil) {
+                    best = candidate;
+                }
+            }
+        }
+        best.outstanding++;
+        return best;
+    }
+
+    /**
+     * Takes an idle pooled connection to the upstream, or null if there is
+     * none. Its selection key is still registered and must be re-attached.
+     */
+    public SocketChannel takeIdle(Upstream upstream) {
+        SocketChannel channel = upstream.idle.pollFirst();
+        if (channel != null) {
+            reused.incrementAndGet();
+        }
+        return channel;
+    }
+
+    /** Starts a non-blocking connect to the upstream. */
+    public SocketChannel connect(Upstream upstream) throws IOException {
+        if (upstream.address.isUnresolved()) {
+            throw new IOException("Cannot resolve upstream " + upstream);
+        }
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.connect(upstream.address);
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw e;
+        }
+        connects.incrementAndGet();
+        return channel;
+    }
+
+    /**
+     * Ends a request on the upstream; a reusable connection goes back to the
+     * pool, anything else is closed.
+     */
+    public void release(Upstream upstream, SocketChannel channel, SelectionKey key, boolean reusable) {
+        upstream.outstanding--;
+        if (channel == null) {
+            return;
+        }
+        if (reusable && key != null && key.isValid() && upstream.idle.size() < config.getMaxIdleConnections()) {
+            key.attach(upstream);
+            key.interestOps(SelectionKey.OP_READ);
+            upstream.idle.addFirst(channel);
+            return;
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        closeQuietly(channel);
+    }
+
+    public void recordSuccess(Upstream upstream) {
+        upstream.failures = 0;
+    }
+
+    public void recordFailure(Upstream upstream, long now) {
+        failuresCounter.incrementAndGet();
+        if (++upstream.failures >= config.getMaxFailures()) {
+            upstream.failures = 0;
+            upstream.ejectedUntil = now + config.getEjectSeconds() * 1000L;
+            ejections.incrementAndGet();
+            System.out.println("Upstream " + upstream + " ejected for " + config.getEjectSeconds() + "s");
+        }
+    }
+
+    /** Closes every pooled connection. */
+    public void close() {
+        for (Upstream upstream : upstreams) {
+            SocketChannel channel;
+            while ((channel = upstream.idle.pollFirst()) != null) {
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+}
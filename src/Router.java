@@ -1,19 +1,35 @@
 
 package src;
 
-import java.io.File;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 
 public class Router {
     private List<ConfigLoader.Route> routes;
     private Map<String, String> mimeTypes;
+    // Each static route's root, absolute and normalized.
+    private Map<ConfigLoader.Route, Path> roots;
+    private StatCache statCache;
     
-    public Router(List<ConfigLoader.Route> routes) {
+    public Router(List<ConfigLoader.Route> routes, Metrics metrics) {
         this.routes = routes;
         this.mimeTypes = new HashMap<>();
+        this.roots = new IdentityHashMap<>();
+        for (ConfigLoader.Route route : routes) {
+            if (route.getRoot() != null) {
+                roots.put(route, Paths.get(route.getRoot()).toAbsolutePath().normalize());
+            }
+        }
+        this.statCache = new StatCache(new LinkedHashSet<>(roots.values()), metrics);
         initMimeTypes();
     }
     
+    public StatCache getStatCache() {
+        return statCache;
+    }
+    
     private void initMimeTypes() {
         mimeTypes.put("html", "text/html");
         mimeTypes.put("htm", "text/html");
@@ -41,6 +57,15 @@ public class Router {
                 if (!route.getAllowedMethods().contains(request.getMethod())) {
                     return new RouteMatch(route, RouteMatch.Type.METHOD_NOT_ALLOWED);
                 }
+                if (route.getWebSocket() != null) {
+                    return new RouteMatch(route, RouteMatch.Type.WEBSOCKET);
+                }
+                if (route.getSse() != null) {
+                    return new RouteMatch(route, RouteMatch.Type.SSE);
+                }
+                if (route.getProxy() != null) {
+                    return new RouteMatch(route, RouteMatch.Type.PROXY);
+                }
                 if (route.getCgiExtension() != null && 
                     path.endsWith(route.getCgiExtension())) {
                     return new RouteMatch(route, RouteMatch.Type.CGI);
@@ -52,27 +77,34 @@ public class Router {
         return null;
     }
     
-    public String resolveFilePath(ConfigLoader.Route route, String requestPath) {
-        String routePath = route.getPath();
-        String relativePath = requestPath.substring(routePath.length());
+    /**
+     * The file or directory a request maps to under the route's root, with
+     * a directory's index file resolved; null if the path would leave the
+     * root (through "..") or is not a valid path at all.
+     */
+    public Path resolveFilePath(ConfigLoader.Route route, String requestPath) {
+        String relativePath = requestPath.substring(route.getPath().length());
         
-        if (relativePath.isEmpty() || relativePath.equals("/")) {
-            relativePath = "/" + (route.getDefaultFile() != null ? route.getDefaultFile() : "");
+        if ((relativePath.isEmpty() || relativePath.equals("/")) && route.getDefaultFile() != null) {
+            relativePath = route.getDefaultFile();
         }
-        String fullPath = route.getRoot() + relativePath;
-        File file = new File(fullPath);
-        if (file.isDirectory()) {
-            if (route.getDefaultFile() != null) {
-                File indexFile = new File(fullPath, route.getDefaultFile());
-                if (indexFile.exists()) {
-                    return indexFile.getPath();
-                }
-            }
-            if (route.isDirectoryListing()) {
-                return fullPath;
+        Path root = roots.get(route);
+        Path path;
+        try {
+            path = root.resolve(relativePath.replaceFirst("^/+", "")).normalize();
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        if (!path.startsWith(root)) {
+            return null;
+        }
+        if (route.getDefaultFile() != null && statCache.stat(path).isDirectory()) {
+            Path indexFile = path.resolve(route.getDefaultFile()).normalize();
+            if (indexFile.startsWith(root) && statCache.stat(indexFile).exists()) {
+                return indexFile;
             }
         }
-        return fullPath;
+        return path;
     }
     
     public String getMimeType(String filename) {
@@ -84,56 +116,14 @@ public class Router {
         return "application/octet-stream";
     }
     
-    public byte[] generateDirectoryListing(String dirPath, String requestPath) {
-        
-        File dir = new File(dirPath);
-        if (!dir.exists() || !dir.isDirectory()) {
-            return null;
-        }
-        
-        StringBuilder html = new StringBuilder();
-        html.append("<!DOCTYPE html>\n")
-            .append("<html>\n")
-            .append("<head>\n")
-            .append("<title>Index of ").append(requestPath).append("</title>\n")
-            .append("</head>\n")
-            .append("<body>\n")
-            .append("<h1>Index of ").append(requestPath).append("</h1>\n")
-            .append("<hr>\n")
-            .append("<ul>\n");
-        
-        if (!requestPath.equals("/")) {
-            html.append("<li><a href=\"../\">../</a></li>\n");
-        }
-        
-        File[] files = dir.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                String name = file.getName();
-                if (file.isDirectory()) {
-                    name += "/";
-                }
-                html.append("<li><a href=\"")
-                    .append(name)
-                    .append("\">")
-                    .append(name)
-                    .append("</a></li>\n");
-            }
-        }
-        
-        html.append("</ul>\n")
-            .append("<hr>\n")
-            .append("</body>\n")
-            .append("</html>");
-        
-        return html.toString().getBytes();
-    }
-    
     public static class RouteMatch {
         public enum Type {
             STATIC,
             CGI,
             REDIRECT,
+            PROXY,
+            WEBSOCKET,
+            SSE,
             METHOD_NOT_ALLOWED
         }
         
@@ -1,12 +1,19 @@
 package src;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jdk.net.ExtendedSocketOptions;
+
+import src.utils.Cookie;
+import src.utils.SessionStore;
 
 public class Server {
    private ConfigLoader.Config config;
@@ -14,54 +21,189 @@ public class Server {
     private Map<SocketChannel, ClientContext> clientContexts; 
     private Router router;  
     private ExecutorService cgiExecutor; 
+    private ExecutorService ioExecutor;
+    private ExecutorService tlsExecutor;
+    private Queue<Runnable> loopTasks;
+    private DirectoryListing directoryListing;
+    private FileValidators fileValidators;
+    private SingleFlight cacheFlights;
+    private Metrics metrics;
+    private AdmissionControl admission;
+    private RateLimiter rateLimiter;
+    private SlowClientGuard slowClients;
+    private SessionStore sessions;
+    private Map<ConfigLoader.Route, ReverseProxy> proxies;
+    private Map<ConfigLoader.Route, WebSocketHub> webSockets;
+    private Map<String, SseChannel> sseChannels;
+    private ResponseCache responseCache;
+    private SlowRequestLog slowLog;
+    private Runnable statisticsEvent;
+    private List<SelectionKey> listenerKeys;
+    private Map<ListenerConfig, TlsContext> tlsContexts;
+    private boolean acceptPaused;
+    private AtomicLong acceptedConnections;
+    private AtomicLong acceptBatches;
+    private AtomicLong deferredKeys;
+    private Histogram iterationTimes;
+    private long acceptRateWindowStart;
+    private long acceptRateWindowCount;
     private volatile boolean running; 
+    private volatile boolean listening;
+    
+    private static final long STREAM_HIGH_WATER_MARK = 256 * 1024;
+    private static final int SESSION_SWEEP_BUDGET = 64;
+    // Longest the selector may sleep while WebSocket pings, SSE heartbeats
+    // or slow-client deadlines are due on a timer rather than on I/O.
+    private static final long SWEEP_SELECT_TIMEOUT = 1000;
+    private static final int INITIAL_REQUEST_BUFFER = 4096;
+    private static final int MAX_RETAINED_REQUEST_BUFFER = 16 * 1024;
+    private static final int BODY_SPOOL_THRESHOLD = 1 << 20;
+    private static final int FILE_CHUNK_SIZE = 64 * 1024;
+    private static final long[] ITERATION_BUCKETS_US = {50, 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 100000};
+    private static final int TLS_TASK_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    
+    // Connections whose reads were stopped because the buffer budget ran
+    // out, in the order they are resumed.
+    private final ArrayDeque<ClientContext> pausedReads = new ArrayDeque<>();
+    // Ready keys left over when an iteration spent its byte budget; served
+    // first, in order, on the next one.
+    private final ArrayDeque<SelectionKey> readyQueue = new ArrayDeque<>();
+    // Bytes read and written by connections and handlers this iteration.
+    private final LoopBudget loopBudget;
+    // Shared by all connections: reads are copied out before the next one.
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(16 * 1024);
     
     public Server(ConfigLoader.Config config) {
         this.config = config;
         this.clientContexts = new ConcurrentHashMap<>();
-        this.router = new Router(config.getRoutes());
+        this.metrics = new Metrics();
+        this.router = new Router(config.getRoutes(), metrics);
         this.cgiExecutor = Executors.newCachedThreadPool();
+        this.ioExecutor = Executors.newFixedThreadPool(4);
+        this.loopTasks = new ConcurrentLinkedQueue<>();
+        this.directoryListing = new DirectoryListing();
+        this.fileValidators = new FileValidators();
+        this.admission = new AdmissionControl(config.getAdmission(), metrics);
+        this.rateLimiter = new RateLimiter(config.getRateLimit(), config.getRoutes(), metrics);
+        this.slowClients = new SlowClientGuard(config.getSlowClient(), metrics);
+        this.proxies = new IdentityHashMap<>();
+        for (ConfigLoader.Route route : config.getRoutes()) {
+            if (route.getProxy() != null) {
+                proxies.put(route, new ReverseProxy(route.getProxy(), metrics));
+            }
+        }
+        this.webSockets = new IdentityHashMap<>();
+        for (ConfigLoader.Route route : config.getRoutes()) {
+            if (route.getWebSocket() != null) {
+                webSockets.put(route, new WebSocketHub(route.getWebSocket(), metrics));
+            }
+        }
+        // Heartbeats are what keeps an idle subscriber inside the request
+        // timeout, so they go out at least twice per timeout.
+        this.sseChannels = new LinkedHashMap<>();
+        for (SseChannelConfig channel : config.getSseChannels()) {
+            long heartbeatMillis = Math.min(channel.getHeartbeatSeconds() * 1000L, config.getRequestTimeout() / 2);
+            sseChannels.put(channel.getName(), new SseChannel(channel, heartbeatMillis, metrics));
+        }
+        this.responseCache = new ResponseCache(config.getCacheMaxBytes(), metrics);
+        this.cacheFlights = new SingleFlight(metrics);
+        this.listenerKeys = new ArrayList<>();
+        this.tlsContexts = new IdentityHashMap<>();
+        this.acceptedConnections = metrics.counter("accept.connections");
+        this.acceptBatches = metrics.counter("accept.batches");
+        this.loopBudget = new LoopBudget(config.getLoop(), metrics);
+        this.deferredKeys = metrics.counter("loop.deferred_keys");
+        this.iterationTimes = new Histogram("loop.iteration_us", ITERATION_BUCKETS_US, metrics);
     }
     
     public void start() throws IOException {
         selector = Selector.open();
         running = true;
         
+        SessionConfig sessionConfig = config.getSessions();
+        sessions = new SessionStore(
+            sessionConfig.getMaxSessions(),
+            sessionConfig.getDataBytes(),
+            sessionConfig.getTimeoutSeconds() * 1000L,
+            sessionConfig.getFile() != null ? java.nio.file.Paths.get(sessionConfig.getFile()) : null
+        );
+        
+        if (config.getSlowLog() != null) {
+            slowLog = new SlowRequestLog(config.getSlowLog());
+        }
+        
+        statisticsEvent = ServerEvents.registerStatistics(metrics);
+        
         System.out.println("Starting HTTP Server...");
-        for (int port : config.getPorts()) {
+        for (ListenerConfig listener : config.getListeners()) {
+            if (listener.getTls() != null) {
+                if (tlsExecutor == null) {
+                    // Delegated handshake work is CPU-bound; keep it off the loop.
+                    tlsExecutor = Executors.newFixedThreadPool(TLS_TASK_THREADS);
+                }
+                tlsContexts.put(listener, new TlsContext(listener.getTls(), tlsExecutor, metrics));
+            }
             ServerSocketChannel serverChannel = ServerSocketChannel.open();
             serverChannel.configureBlocking(false);  
-            serverChannel.socket().bind(new InetSocketAddress(config.getHost(), port));
-            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
-            System.out.println("  Listening on " + config.getHost() + ":" + port);
+            configureListener(serverChannel, listener);
+            serverChannel.bind(new InetSocketAddress(config.getHost(), listener.getPort()), listener.getBacklog());
+            listenerKeys.add(serverChannel.register(selector, SelectionKey.OP_ACCEPT, listener));
+            System.out.println("  Listening on " + config.getHost() + ":" + listener.getPort()
+                + " (backlog " + listener.getBacklog() + (listener.getTls() != null ? ", TLS" : "") + ")");
         }
+        acceptRateWindowStart = System.currentTimeMillis();
         
+        listening = true;
         System.out.println("Server ready. Press Ctrl+C to stop.");
         
         while (running) {
             try {
-                selector.select(config.getRequestTimeout());
-                                Set<SelectionKey> selectedKeys = selector.selectedKeys();
+                if (!readyQueue.isEmpty()) {
+                    // Deferred work is still waiting; only pick up what else became ready.
+                    selector.selectNow();
+                } else {
+                    selector.select(webSockets.isEmpty() && sseChannels.isEmpty() && !slowClients.hasDeadlines()
+                        ? config.getRequestTimeout()
+                        : Math.min(config.getRequestTimeout(), SWEEP_SELECT_TIMEOUT));
+                }
+                long iterationStart = System.nanoTime();
+                int queueDepth = loopTasks.size();
+                // Loop tasks finish reads and writes too; they count.
+                loopBudget.startIteration();
+                runLoopTasks();
+                // File changes are applied before this iteration's requests look at them.
+                router.getStatCache().processEvents();
+                Set<SelectionKey> selectedKeys = selector.selectedKeys();
+                queueDepth += selectedKeys.size();
+                // Keys deferred last time go first. One that is no longer
+                // selected has nothing left to do.
+                for (int n = readyQueue.size(); n > 0; n--) {
+                    SelectionKey key = readyQueue.poll();
+                    if (selectedKeys.remove(key)) {
+                        serve(key);
+                    }
+                }
                 Iterator<SelectionKey> iter = selectedKeys.iterator();
                 
                 while (iter.hasNext()) {
                     SelectionKey key = iter.next();
                     iter.remove();
-                    
-                    if (!key.isValid()) {
-                        continue;
-                    }
-                    
-                    if (key.isAcceptable()) {
-                        acceptConnection(key);
-                    } else if (key.isReadable()) {
-                        readData(key);
-                    } else if (key.isWritable()) {
-                        writeData(key);
-                    }
+                    serve(key);
                 }
                 
                 cleanupTimeoutConnections();
+                cacheFlights.sweep(System.currentTimeMillis());
+                resumeReads();
+                sweepSessions();
+                sweepWebSockets();
+                sweepSseChannels();
+                updateAcceptRate();
+                long elapsed = System.nanoTime() - iterationStart;
+                admission.recordLoopIteration(elapsed, queueDepth);
+                iterationTimes.record(elapsed / 1000);
+                if (acceptPaused && admission.canAccept()) {
+                    setAccepting(true);
+                }
                 
             } catch (IOException e) {
                 System.err.println("Error in selector loop: " + e.getMessage());
@@ -72,128 +214,805 @@ public class Server {
         }
     }
     
+    // Drains up to acceptBatch pending connections per readiness event, so a
+    // burst does not sit in the kernel queue for one loop iteration each.
     private void acceptConnection(SelectionKey key) throws IOException {
         ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
-        SocketChannel clientChannel = serverChannel.accept();
-        clientChannel.configureBlocking(false);
+        ListenerConfig listener = (ListenerConfig) key.attachment();
         
+        int accepted = 0;
+        while (accepted < listener.getAcceptBatch()) {
+            if (!admission.canAccept() && !admission.rejectsWhenFull()) {
+                // Leave the connection in the kernel backlog until load drops.
+                setAccepting(false);
+                break;
+            }
+            
+            SocketChannel clientChannel = serverChannel.accept();
+            if (clientChannel == null) {
+                break;
+            }
+            accepted++;
+            clientChannel.configureBlocking(false);
+            
+            TlsContext tls = tlsContexts.get(listener);
+            if (!admission.canAccept()) {
+                rejectConnection(clientChannel, tls == null);
+                continue;
+            }
+            
+            configureAccepted(clientChannel, listener);
+            registerConnection(clientChannel, tls);
+        }
+        if (accepted > 0) {
+            acceptedConnections.addAndGet(accepted);
+            acceptBatches.incrementAndGet();
+            metrics.max("accept.max_batch", accepted);
+            acceptRateWindowCount += accepted;
+        }
+    }
+    
+    private void registerConnection(SocketChannel clientChannel, TlsContext tls) throws IOException {
+        admission.connectionOpened();
         ClientContext context = new ClientContext();
         context.startTime = System.currentTimeMillis();
         context.lastActivityTime = context.startTime;
+        context.slowClient = slowClients.newTracker();
         clientContexts.put(clientChannel, context);
         
-        clientChannel.register(selector, SelectionKey.OP_READ, context);
+        context.key = clientChannel.register(selector, SelectionKey.OP_READ, context);
+        context.io = clientChannel;
+        if (tls != null) {
+            // The handshake has to finish within the request timeout, as
+            // nothing counts as activity until it does.
+            context.tls = tls.open(clientChannel,
+                () -> executeOnLoop(() -> continueHandshake(clientChannel, context)));
+            context.io = context.tls;
+        }
+        long[] address = RateLimiter.pack(clientChannel.getRemoteAddress());
+        context.addressHi = address[0];
+        context.addressLo = address[1];
+        
+        ServerEvents.ConnectionAccepted event = new ServerEvents.ConnectionAccepted();
+        if (event.isEnabled()) {
+            event.remoteAddress = String.valueOf(clientChannel.getRemoteAddress());
+            event.localPort = clientChannel.socket().getLocalPort();
+            event.commit();
+        }
         
         System.out.println("New connection from: " + clientChannel.getRemoteAddress());
     }
     
+    // Options set on the listening socket before bind. The receive buffer is
+    // set here rather than per connection so accepted sockets inherit it and
+    // the TCP window scale is negotiated for it during the handshake.
+    private void configureListener(ServerSocketChannel serverChannel, ListenerConfig listener) throws IOException {
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, listener.isReuseAddress());
+        if (listener.isReusePort() && !setIfSupported(serverChannel, StandardSocketOptions.SO_REUSEPORT, true)) {
+            System.err.println("SO_REUSEPORT is not supported on this platform; ignored");
+        }
+        if (listener.getReceiveBufferSize() > 0) {
+            serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, listener.getReceiveBufferSize());
+        }
+    }
+    
+    private void configureAccepted(SocketChannel clientChannel, ListenerConfig listener) {
+        try {
+            clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, listener.isTcpNoDelay());
+            if (listener.getSendBufferSize() > 0) {
+                clientChannel.setOption(StandardSocketOptions.SO_SNDBUF, listener.getSendBufferSize());
+            }
+            if (listener.isKeepAlive()) {
+                clientChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                if (listener.getKeepAliveIdleSeconds() > 0) {
+                    setIfSupported(clientChannel, ExtendedSocketOptions.TCP_KEEPIDLE, listener.getKeepAliveIdleSeconds());
+                }
+                if (listener.getKeepAliveIntervalSeconds() > 0) {
+                    setIfSupported(clientChannel, ExtendedSocketOptions.TCP_KEEPINTERVAL, listener.getKeepAliveIntervalSeconds());
+                }
+                if (listener.getKeepAliveCount() > 0) {
+                    setIfSupported(clientChannel, ExtendedSocketOptions.TCP_KEEPCOUNT, listener.getKeepAliveCount());
+                }
+            }
+        } catch (IOException e) {
+            // The connection is still usable with the defaults.
+            System.err.println("Could not set socket options: " + e.getMessage());
+        }
+    }
+    
+    private static <T> boolean setIfSupported(NetworkChannel channel, SocketOption<T> option, T value) throws IOException {
+        if (!channel.supportedOptions().contains(option)) {
+            return false;
+        }
+        channel.setOption(option, value);
+        return true;
+    }
+    
+    // Connections accepted over the last whole second, and the peak seen.
+    private void updateAcceptRate() {
+        long now = System.currentTimeMillis();
+        long elapsed = now - acceptRateWindowStart;
+        if (elapsed < 1000) {
+            return;
+        }
+        long rate = acceptRateWindowCount * 1000 / elapsed;
+        metrics.set("accept.rate_per_second", rate);
+        metrics.max("accept.peak_rate_per_second", rate);
+        acceptRateWindowStart = now;
+        acceptRateWindowCount = 0;
+    }
+    
+    // Best-effort 503: the response fits in the socket send buffer of a fresh
+    // connection, so one non-blocking write is enough. A TLS client would
+    // need a whole handshake first, so it is just closed.
+    private void rejectConnection(SocketChannel clientChannel, boolean respond) {
+        admission.connectionRejected();
+        try {
+            if (respond) {
+                clientChannel.write(ByteBuffer.wrap(admission.serviceUnavailableResponse()));
+            }
+        } catch (IOException e) {
+        }
+        try {
+            clientChannel.close();
+        } catch (IOException e) {
+        }
+    }
+    
+    private void setAccepting(boolean accepting) {
+        if (acceptPaused == !accepting) {
+            return;
+        }
+        acceptPaused = !accepting;
+        if (!accepting) {
+            admission.acceptsPaused();
+        }
+        for (SelectionKey listenerKey : listenerKeys) {
+            if (listenerKey.isValid()) {
+                listenerKey.interestOps(accepting ? SelectionKey.OP_ACCEPT : 0);
+            }
+        }
+    }
+    
+    private void updateBufferedBytes(ClientContext context) {
+        long current = context.bufferedBytes();
+        admission.addBufferedBytes(current - context.accountedBytes);
+        context.accountedBytes = current;
+    }
+    
+    // Dispatches a ready key, or queues it for the next iteration once this
+    // one has moved its byte budget. Listeners and priority routes are never
+    // held back. The key is out of the selected set either way, so the next
+    // select reports its readiness afresh.
+    private void serve(SelectionKey key) throws IOException {
+        if (!key.isValid()) {
+            return;
+        }
+        Object attachment = key.attachment();
+        if (loopBudget.isSpent()
+            && !(attachment instanceof ListenerConfig)
+            && !(attachment instanceof ClientContext && ((ClientContext) attachment).priority)) {
+            readyQueue.add(key);
+            deferredKeys.incrementAndGet();
+            return;
+        }
+        if (attachment instanceof ChannelHandler) {
+            ((ChannelHandler) attachment).handleEvent(key);
+        } else if (key.isAcceptable()) {
+            acceptConnection(key);
+        } else if (key.isReadable()) {
+            readData(key);
+        } else if (key.isWritable()) {
+            writeData(key);
+        }
+    }
+    
     private void readData(SelectionKey key) throws IOException {
+        ClientContext context = (ClientContext) key.attachment();
+        if (context.tls != null && !context.tls.isHandshakeComplete()) {
+            continueHandshake((SocketChannel) key.channel(), context);
+            return;
+        }
+        if (context.sseSubscription != null) {
+            watchSubscriber(key, context);
+            return;
+        }
+        // Only a connection between requests is held back: one already part
+        // way through a request keeps its buffers, and pausing it could keep
+        // the budget exhausted for good.
+        if (!admission.hasBufferRoom() && context.requestLength == 0) {
+            pauseReading(context);
+            return;
+        }
+        int read;
+        if (context.pipelined != null) {
+            readPipelined(key, context);
+            read = 0;
+        } else {
+            read = readOnce(key);
+        }
+        // TLS may have taken more off the socket than one read buffer holds;
+        // the selector will not report those bytes again.
+        while (context.tls != null && context.tls.hasBufferedInput() && key.isValid()
+               && key.attachment() == context && key.interestOps() == SelectionKey.OP_READ) {
+            if (read >= loopBudget.getReadBytes()) {
+                // The rest waits for the next iteration, behind the others.
+                loopBudget.yielded();
+                readBuffered(key, context);
+                return;
+            }
+            read += readOnce(key);
+        }
+    }
+    
+    // An SSE subscriber only reads to notice the client going away, so it is
+    // unsubscribed at once rather than when a write finally fails. Anything
+    // the client sends is discarded.
+    private void watchSubscriber(SelectionKey key, ClientContext context) {
+        SocketChannel clientChannel = (SocketChannel) key.channel();
+        ByteBuffer buffer = readBuffer;
+        buffer.clear();
+        int bytesRead;
+        try {
+            bytesRead = context.io.read(buffer);
+        } catch (IOException e) {
+            bytesRead = -1;
+        }
+        if (bytesRead == -1) {
+            closeClient(clientChannel, key);
+        } else if (bytesRead > 0) {
+            loopBudget.record(bytesRead);
+        }
+    }
+    
+    // Leaves the bytes in the socket, where TCP flow control pushes back on
+    // the client, until buffered memory is back under the budget.
+    private void pauseReading(ClientContext context) {
+        context.key.interestOps(0);
+        context.readPaused = true;
+        pausedReads.add(context);
+        admission.readPaused();
+    }
+    
+    private void resumeReads() {
+        while (!pausedReads.isEmpty() && admission.hasBufferRoom()) {
+            ClientContext context = pausedReads.poll();
+            if (!context.readPaused || !context.key.isValid()) {
+                continue;
+            }
+            context.readPaused = false;
+            // The wait was the server's, not the client's.
+            context.lastActivityTime = System.currentTimeMillis();
+            context.key.interestOps(SelectionKey.OP_READ);
+            readBuffered(context.key, context);
+        }
+    }
+    
+    // Picks up input that arrived while the connection was busy with the
+    // previous request: pipelined bytes already read, or TLS records
+    // decrypted ahead.
+    private void readBuffered(SelectionKey key, ClientContext context) {
+        if (context.pipelined == null && (context.tls == null || !context.tls.hasBufferedInput())) {
+            return;
+        }
+        executeOnLoop(() -> {
+            if (key.isValid() && key.attachment() == context && key.interestOps() == SelectionKey.OP_READ) {
+                try {
+                    readData(key);
+                } catch (IOException e) {
+                    closeClient((SocketChannel) key.channel(), key);
+                }
+            }
+        });
+    }
+    
+    // Runs on each readiness event and delegated-task completion until the
+    // handshake is done, then lets the connection read its first request.
+    private void continueHandshake(SocketChannel clientChannel, ClientContext context) {
+        SelectionKey key = context.key;
+        if (!key.isValid() || context.tls.isHandshakeComplete()) {
+            return;
+        }
+        int ops;
+        try {
+            ops = context.tls.handshake();
+        } catch (IOException e) {
+            closeClient(clientChannel, key);
+            return;
+        }
+        if (ops >= 0) {
+            key.interestOps(ops);
+            return;
+        }
+        context.lastActivityTime = System.currentTimeMillis();
+        key.interestOps(SelectionKey.OP_READ);
+        readBuffered(key, context);
+    }
+    
+    private int readOnce(SelectionKey key) throws IOException {
         SocketChannel clientChannel = (SocketChannel) key.channel();
         ClientContext context = (ClientContext) key.attachment();
         
-        ByteBuffer buffer = ByteBuffer.allocate(8192); // 8KB buffer
+        ByteBuffer buffer = readBuffer;
+        buffer.clear();
+        buffer.limit(Math.min(buffer.capacity(), loopBudget.getReadBytes()));
         int bytesRead;
         
         try {
-            bytesRead = clientChannel.read(buffer);
+            bytesRead = context.io.read(buffer);
         } catch (IOException e) {
             closeClient(clientChannel, key);
-            return;
+            return 0;
         }
         
         if (bytesRead == -1) {
             closeClient(clientChannel, key);
-            return;
+            return 0;
         }
         
         if (bytesRead > 0) {
             buffer.flip();
-            byte[] data = new byte[buffer.remaining()];
-            buffer.get(data);
-            
-            context.appendRequestData(data);
+            loopBudget.record(bytesRead);
             context.lastActivityTime = System.currentTimeMillis();
-            
-            if (context.hasCompleteRequest()) {
+            long now = System.nanoTime();
+            if (context.firstByteAt == 0) {
+                context.firstByteAt = now;
+            }
+            context.slowClient.received(bytesRead, now);
+            handleInput(key, context, buffer);
+        }
+        return bytesRead;
+    }
+    
+    // Bytes of a later request that arrived with the previous one; they are
+    // handled as if just read, without touching the socket.
+    private void readPipelined(SelectionKey key, ClientContext context) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(context.pipelined);
+        context.pipelined = null;
+        context.lastActivityTime = System.currentTimeMillis();
+        if (context.firstByteAt == 0) {
+            context.firstByteAt = System.nanoTime();
+        }
+        handleInput(key, context, data);
+    }
+    
+    private void handleInput(SelectionKey key, ClientContext context, ByteBuffer buffer) throws IOException {
+        SocketChannel clientChannel = (SocketChannel) key.channel();
+        boolean complete;
+        try {
+            context.appendRequestData(buffer);
+            if (config.getHttp2().isEnabled() && context.tls == null && context.request == null
+                && Http2Connection.startsWithPreface(context.requestBuffer, context.requestLength)) {
+                // HTTP/2 with prior knowledge; wait for the whole preface first.
+                if (context.requestLength >= Http2Connection.prefaceLength()) {
+                    startHttp2(clientChannel, key, context,
+                        Arrays.copyOf(context.requestBuffer, context.requestLength), null, null);
+                }
+                return;
+            }
+            complete = context.hasCompleteRequest();
+        } catch (HttpException e) {
+            // Malformed or oversized body: answer now and close, since
+            // the rest of the stream can no longer be framed.
+            context.inFlight = true;
+            admission.requestStarted();
+            context.keepAlive = false;
+            context.responseData = build(context, HttpResponse.errorResponse(
+                e.getStatus(), e.getReason(),
+                config.getErrorPages().get(e.getStatus())
+            ));
+            context.handledAt = System.nanoTime();
+            key.interestOps(SelectionKey.OP_WRITE);
+            updateBufferedBytes(context);
+            return;
+        } catch (IOException e) {
+            System.err.println("Failed to buffer request body: " + e.getMessage());
+            closeClient(clientChannel, key);
+            return;
+        }
+        
+        if (complete && config.getHttp2().isEnabled() && context.tls == null && context.chunkedDecoder == null
+            && context.multipart == null && context.requestLength == context.headerEnd && context.pipelined == null) {
+            // Upgrades are only taken for requests without a body, which
+            // would otherwise have to be read before the switch.
+            byte[] settings = Http2Connection.upgradeSettings(context.request);
+            if (settings != null) {
+                startHttp2(clientChannel, key, context,
+                    new byte[0], Arrays.copyOf(context.requestBuffer, context.headerEnd), settings);
+                return;
+            }
+        }
+        
+        if (complete) {
+            context.bodyAt = System.nanoTime();
+            context.inFlight = true;
+            admission.requestStarted();
+            ServerEvents.RequestParsed event = new ServerEvents.RequestParsed();
+            if (event.isEnabled()) {
+                HttpRequest request = context.request;
+                event.method = request.getMethod();
+                event.target = request.getTarget();
+                event.version = request.getVersion();
+                event.bodySize = Math.max(request.getContentLength(), context.bodyReceived);
+                event.readTime = context.bodyAt - context.firstByteAt;
+                event.commit();
+            }
+            if (admission.shouldShedRequest()) {
+                context.responseData = admission.serviceUnavailableResponse();
+                context.keepAlive = false;
+            } else {
                 processRequest(clientChannel, context);
+            }
+            context.handledAt = System.nanoTime();
+            // Requests handed off to a worker have no response yet; the
+            // worker re-enables writes when it has something to send.
+            if (context.responseData != null) {
                 key.interestOps(SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps(0);
             }
         }
+        updateBufferedBytes(context);
     }
     
     private void writeData(SelectionKey key) throws IOException {
         SocketChannel clientChannel = (SocketChannel) key.channel();
         ClientContext context = (ClientContext) key.attachment();
+        if (context.tls != null && !context.tls.isHandshakeComplete()) {
+            continueHandshake(clientChannel, context);
+            return;
+        }
         
-        if (context.responseData != null) {
-            ByteBuffer buffer = ByteBuffer.wrap(context.responseData);
-            
-            try {
-                int bytesWritten = clientChannel.write(buffer);
-                
-                if (bytesWritten > 0 && !buffer.hasRemaining()) {
-                  
-                    if (context.keepAlive) {
-                        context.reset();
-                        key.interestOps(SelectionKey.OP_READ);
-                    } else {
-                        closeClient(clientChannel, key);
+        int turnBytes = 0;
+        try {
+            while (true) {
+                if (context.writeBuffer == null || !context.writeBuffer.hasRemaining()) {
+                    if (turnBytes >= loopBudget.getWriteBytes()) {
+                        // Still writable and OP_WRITE stays set: the
+                        // connection carries on after the others had a turn.
+                        loopBudget.yielded();
+                        updateBufferedBytes(context);
+                        return;
+                    }
+                    byte[] next = context.nextResponseSegment();
+                    if (next == null) {
+                        if (context.stream != null && !context.stream.isFinished()) {
+                            // Wait for the producer; it re-arms OP_WRITE via resumeWrite.
+                            key.interestOps(context.sseSubscription != null ? SelectionKey.OP_READ : 0);
+                            return;
+                        }
+                        context.lastWriteAt = System.nanoTime();
+                        logIfSlow(clientChannel, context);
+                        if (context.webSocketHub != null) {
+                            switchToWebSocket(clientChannel, key, context);
+                            return;
+                        }
+                        if (context.keepAlive && (context.stream == null || !context.stream.isFailed())) {
+                            context.inFlight = false;
+                            admission.requestFinished();
+                            context.reset();
+                            updateBufferedBytes(context);
+                            key.interestOps(SelectionKey.OP_READ);
+                            readBuffered(key, context);
+                        } else {
+                            closeClient(clientChannel, key);
+                        }
+                        return;
                     }
+                    if (context.firstWriteAt == 0) {
+                        context.status = statusOf(next);
+                    }
+                    context.writeBuffer = ByteBuffer.wrap(next);
                 }
-            } catch (IOException e) {
-                closeClient(clientChannel, key);
+                
+                int written = context.io.write(context.writeBuffer);
+                long now = System.nanoTime();
+                if (context.firstWriteAt == 0) {
+                    context.firstWriteAt = now;
+                }
+                context.slowClient.sent(written, now);
+                context.lastActivityTime = System.currentTimeMillis();
+                turnBytes += written;
+                loopBudget.record(written);
+                if (context.writeBuffer.hasRemaining()) {
+                    updateBufferedBytes(context);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            closeClient(clientChannel, key);
+        }
+    }
+    
+    private static int statusOf(byte[] response) {
+        if (response.length < 12 || response[8] != ' ') {
+            return 0;
+        }
+        return (response[9] - '0') * 100 + (response[10] - '0') * 10 + (response[11] - '0');
+    }
+    
+    // One line per request slower than the threshold, timed from its first
+    // byte read to its last byte written.
+    private void logIfSlow(SocketChannel clientChannel, ClientContext context) {
+        if (slowLog == null || context.firstByteAt == 0
+            || !slowLog.isSlow(context.lastWriteAt - context.firstByteAt)) {
+            return;
+        }
+        metrics.increment("requests.slow");
+        StringBuilder entry = new StringBuilder(256);
+        entry.append("client=").append(clientChannel.socket().getRemoteSocketAddress())
+            .append(" port=").append(clientChannel.socket().getLocalPort());
+        HttpRequest request = context.request;
+        if (request != null) {
+            entry.append(" \"").append(request.getMethod()).append(' ').append(request.getTarget())
+                .append(' ').append(request.getVersion()).append('"');
+        }
+        entry.append(" status=").append(context.status)
+            .append(" keepAlive=").append(context.keepAlive);
+        SlowRequestLog.appendPhase(entry, "total", context.firstByteAt, context.lastWriteAt);
+        SlowRequestLog.appendPhase(entry, "headers", context.firstByteAt, context.headersAt);
+        SlowRequestLog.appendPhase(entry, "body", context.headersAt, context.bodyAt);
+        SlowRequestLog.appendPhase(entry, "route", context.bodyAt, context.routedAt);
+        SlowRequestLog.appendPhase(entry, "handler", context.routedAt != 0 ? context.routedAt : context.bodyAt, context.handledAt);
+        SlowRequestLog.appendPhase(entry, "wait", context.handledAt, context.firstWriteAt);
+        SlowRequestLog.appendPhase(entry, "write", context.firstWriteAt, context.lastWriteAt);
+        slowLog.log(entry.toString());
+    }
+    
+    private void resumeWrite(ClientContext context) {
+        if (context.http2Owner != null) {
+            context.http2Owner.requestWrite();
+            return;
+        }
+        if (context.key != null && context.key.isValid()) {
+            context.key.interestOps(context.sseSubscription != null
+                ? SelectionKey.OP_WRITE | SelectionKey.OP_READ
+                : SelectionKey.OP_WRITE);
+        }
+    }
+    
+    private void executeOnLoop(Runnable task) {
+        loopTasks.add(task);
+        Selector current = selector;
+        if (current != null) {
+            current.wakeup();
+        }
+    }
+    
+    private void runLoopTasks() {
+        Runnable task;
+        while ((task = loopTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (CancelledKeyException e) {
             }
         }
     }
     
+    // Hands the connection over to HTTP/2. Its context stays registered so
+    // timeouts and shutdown still find it; each stream gets its own.
+    private void startHttp2(SocketChannel clientChannel, SelectionKey key, ClientContext context,
+                            byte[] initial, byte[] upgradeHead, byte[] upgradeSettings) {
+        metrics.increment("http2.connections");
+        if (upgradeHead != null) {
+            metrics.increment("http2.upgrades");
+        }
+        Http2Connection connection = new Http2Connection(clientChannel, key, config.getHttp2(), metrics, loopBudget,
+            (owner, head) -> new Http2Exchange(clientChannel, context, owner, head),
+            () -> closeClient(clientChannel, key));
+        context.reset();
+        context.requestBuffer = null;
+        context.http2 = connection;
+        updateBufferedBytes(context);
+        key.attach(connection);
+        connection.start(initial, upgradeHead, upgradeSettings);
+    }
+    
     private void processRequest(SocketChannel clientChannel, ClientContext context) {
         try {
+            if (!rateLimiter.allowClient(context.addressHi, context.addressLo)) {
+                context.responseData = rateLimiter.tooManyRequestsResponse();
+                context.keepAlive = false;
+                return;
+            }
+            
             HttpRequest request = context.getHttpRequest();
             
-            if (request.getBody().length > config.getClientBodySizeLimit()) {
-                context.responseData = HttpResponse.errorResponse(
+            if (Math.max(request.getContentLength(), request.getBodyLength()) > config.getClientBodySizeLimit()) {
+                context.responseData = build(context, HttpResponse.errorResponse(
                     413, "Payload Too Large",
                     config.getErrorPages().get(413)
-                ).build();
+                ));
                 return;
             }
             
+            ServerEvents.RouteMatched routed = new ServerEvents.RouteMatched();
+            routed.begin();
             Router.RouteMatch match = router.match(request);
+            routed.end();
+            context.routedAt = System.nanoTime();
+            if (routed.shouldCommit()) {
+                routed.path = request.getPath();
+                routed.route = match != null ? match.getRoute().getPath() : null;
+                routed.type = match != null ? match.getType().name() : null;
+                routed.commit();
+            }
             
             if (match == null) {
-                context.responseData = HttpResponse.errorResponse(
+                context.responseData = build(context, HttpResponse.errorResponse(
                     404, "Not Found",
                     config.getErrorPages().get(404)
-                ).build();
+                ));
+                return;
+            }
+            
+            context.priority = match.getRoute().isPriority();
+            
+            if (!rateLimiter.allowRoute(context.addressHi, context.addressLo, match.getRoute())) {
+                context.responseData = rateLimiter.tooManyRequestsResponse();
+                context.keepAlive = false;
                 return;
             }
             
+            if (match.getRoute().isSession()) {
+                attachSession(context, request);
+            }
+            
             switch (match.getType()) {
                 case REDIRECT:
                     handleRedirect(context, match.getRoute());
                     break;
                 case METHOD_NOT_ALLOWED:
-                    context.responseData = HttpResponse.errorResponse(
+                    context.responseData = build(context, HttpResponse.errorResponse(
                         405, "Method Not Allowed",
                         config.getErrorPages().get(405)
-                    ).build();
+                    ));
                     break;
                 case STATIC:
-                    handleStaticFile(context, match.getRoute(), request);
+                    if (request.getMultipart() != null) {
+                        handleUpload(context, request.getMultipart());
+                    } else {
+                        ServerEvents.StaticFileServed served = new ServerEvents.StaticFileServed();
+                        served.begin();
+                        handleStaticFile(context, match.getRoute(), request, served);
+                        served.end();
+                        if (served.shouldCommit()) {
+                            served.status = context.responseData != null ? statusOf(context.responseData) : 0;
+                            served.commit();
+                        }
+                    }
                     break;
                 case CGI:
-                    handleCgiRequest(context, match.getRoute(), request);
+                    String cacheKey = cacheKeyFor(match.getRoute(), request);
+                    if (cacheKey == null || !serveCached(context, cacheKey, request, null)) {
+                        handleCgiRequest(context, match.getRoute(), request);
+                        if (cacheKey != null && context.responseData != null) {
+                            responseCache.store(cacheKey, request, context.responseData,
+                                match.getRoute().getCache(), System.currentTimeMillis());
+                        }
+                    }
+                    break;
+                case PROXY:
+                    handleProxy(clientChannel, context, match.getRoute(), request);
+                    break;
+                case WEBSOCKET:
+                    handleWebSocket(context, match.getRoute(), request);
+                    break;
+                case SSE:
+                    handleSse(context, match.getRoute(), request);
                     break;
             }
             
+        } catch (HttpException e) {
+            context.responseData = build(context, HttpResponse.errorResponse(
+                e.getStatus(), e.getReason(),
+                config.getErrorPages().get(e.getStatus())
+            ));
         } catch (Exception e) {
             System.err.println("Error processing request: " + e.getMessage());
             e.printStackTrace();
-            context.responseData = HttpResponse.errorResponse(
+            context.responseData = build(context, HttpResponse.errorResponse(
                 500, "Internal Server Error",
                 config.getErrorPages().get(500)
-            ).build();
+            ));
+        }
+    }
+    
+    // Every buffered response goes through here, so this is where a HEAD
+    // response loses its body: the headers stay as for GET, framing
+    // included, and the next response on the connection follows them.
+    private byte[] build(ClientContext context, HttpResponse response) {
+        if (isHead(context)) {
+            response.omitBody();
+        }
+        if (context.keepAlive) {
+            response.keepAlive();
+        }
+        return response.build();
+    }
+    
+    private static boolean isHead(ClientContext context) {
+        return context.request != null && HttpRequest.HEAD.equals(context.request.getMethod());
+    }
+    
+    // The stream a response body is written to once its headers are out;
+    // the streamed counterpart of build(). A HEAD response has no body, so
+    // it gets no stream and no producer is started.
+    private ResponseStream openStream(ClientContext context, long highWaterMark, boolean chunked) {
+        if (isHead(context)) {
+            return null;
+        }
+        ResponseStream stream = new ResponseStream(
+            highWaterMark, chunked, () -> executeOnLoop(() -> resumeWrite(context))
+        );
+        context.stream = stream;
+        return stream;
+    }
+    
+    // Looks up the request's session and slides its expiry forward. A
+    // request without one gets none here: a session is only started when
+    // something is written to it (see sessionAccess), so cookieless
+    // requests cannot fill the store.
+    private void attachSession(ClientContext context, HttpRequest request) {
+        long now = System.currentTimeMillis();
+        int slot = sessions.find(request.getCookies().get(config.getSessions().getCookieName()), now);
+        if (slot >= 0) {
+            sessions.touch(slot, now);
+            context.sessionSlot = slot;
+        }
+    }
+    
+    // The request's session as a handler sees it. The cookie has no Max-Age:
+    // expiry is enforced (and slid forward) by the store.
+    private ProxyExchange.SessionAccess sessionAccess(ClientContext context) {
+        SessionConfig sessionConfig = config.getSessions();
+        return new ProxyExchange.SessionAccess() {
+            @Override
+            public byte[] read() {
+                if (context.sessionSlot < 0) {
+                    return null;
+                }
+                byte[] data = new byte[sessionConfig.getDataBytes()];
+                return Arrays.copyOf(data, sessions.readData(context.sessionSlot, data));
+            }
+            
+            @Override
+            public String write(byte[] data) {
+                if (data.length == 0) {
+                    if (context.sessionSlot < 0) {
+                        return null;
+                    }
+                    sessions.invalidate(context.sessionSlot);
+                    context.sessionSlot = -1;
+                    return new Cookie(sessionConfig.getCookieName(), "").setMaxAge(0).toString();
+                }
+                if (data.length > sessionConfig.getDataBytes()) {
+                    metrics.increment("sessions.data_too_large");
+                    return null;
+                }
+                String setCookie = null;
+                if (context.sessionSlot < 0) {
+                    int slot = sessions.create(System.currentTimeMillis());
+                    if (slot < 0) {
+                        metrics.increment("sessions.store_full");
+                        return null;
+                    }
+                    metrics.increment("sessions.created");
+                    context.sessionSlot = slot;
+                    setCookie = new Cookie(sessionConfig.getCookieName(), sessions.idOf(slot)).toString();
+                }
+                sessions.writeData(context.sessionSlot, data, 0, data.length);
+                return setCookie;
+            }
+        };
+    }
+    
+    private void sweepSessions() {
+        int expired = sessions.sweep(System.currentTimeMillis(), SESSION_SWEEP_BUDGET);
+        if (expired > 0) {
+            metrics.counter("sessions.expired").addAndGet(expired);
         }
+        metrics.set("sessions.active", sessions.size());
     }
     
     private void handleRedirect(ClientContext context, ConfigLoader.Route route) {
@@ -201,55 +1020,474 @@ public class Server {
         response.setStatus(301, "Moved Permanently");
         response.setHeader("Location", route.getRedirect());
         response.setBody("");
-        context.responseData = response.build();
+        context.responseData = build(context, response);
+    }
+    
+    // Multipart uploads to a static route are parsed while the body arrives,
+    // with files written under the route's root; null for any other request.
+    private MultipartParser openMultipart(HttpRequest request) throws HttpException {
+        if (!HttpRequest.POST.equals(request.getMethod()) || request.getPath() == null) {
+            return null;
+        }
+        Router.RouteMatch match = router.match(request);
+        if (match == null || match.getType() != Router.RouteMatch.Type.STATIC) {
+            return null;
+        }
+        String boundary = MultipartParser.boundaryOf(request.getHeader("Content-Type"));
+        if (boundary == null) {
+            return null;
+        }
+        ConfigLoader.Route route = match.getRoute();
+        return new MultipartParser(boundary, java.nio.file.Paths.get(route.getRoot()), route.getUpload());
+    }
+    
+    private void handleUpload(ClientContext context, MultipartParser upload) throws IOException {
+        try {
+            upload.commit();
+        } finally {
+            // A GET right after the upload must not wait for the watcher to
+            // report the new files (or those moved before a conflict).
+            for (MultipartParser.Part file : upload.getFiles()) {
+                router.getStatCache().invalidate(file.getFile().toAbsolutePath().normalize());
+            }
+        }
+        
+        StringBuilder html = new StringBuilder();
+        html.append("<!DOCTYPE html>\n<html>\n<head>\n    <title>Upload complete</title>\n</head>\n<body>\n");
+        html.append("    <h1>Upload complete</h1>\n    <ul>\n");
+        for (MultipartParser.Part file : upload.getFiles()) {
+            html.append("        <li>")
+                .append(DirectoryListing.escapeHtml(file.getFile().getFileName().toString()))
+                .append(" (").append(file.getSize()).append(" bytes)</li>\n");
+        }
+        html.append("    </ul>\n</body>\n</html>");
+        
+        HttpResponse response = new HttpResponse();
+        response.setStatus(201, "Created");
+        response.setBody(html.toString());
+        context.responseData = build(context, response);
     }
     
-    private void handleStaticFile(ClientContext context, ConfigLoader.Route route, HttpRequest request) {
-        String filePath = router.resolveFilePath(route, request.getPath());
+    private void handleStaticFile(ClientContext context, ConfigLoader.Route route, HttpRequest request,
+                                  ServerEvents.StaticFileServed served) {
+        java.nio.file.Path path = router.resolveFilePath(route, request.getPath());
+        if (path == null) {
+            context.responseData = build(context, HttpResponse.errorResponse(
+                403, "Forbidden",
+                config.getErrorPages().get(403)
+            ));
+            return;
+        }
+        String filePath = path.toString();
+        served.file = filePath;
         
         try {
-            java.nio.file.Path path = java.nio.file.Paths.get(filePath);
+            StatCache.Stat stat = router.getStatCache().stat(path);
             
-            if (java.nio.file.Files.isDirectory(path)) {
+            if (stat.isDirectory()) {
                 if (route.isDirectoryListing()) {
-                    byte[] listing = router.generateDirectoryListing(
-                        filePath, request.getPath()
-                    );
+                    DirectoryListing.Query query = DirectoryListing.Query.fromParams(request.getQueryParams());
+                    byte[] listing = directoryListing.renderCached(path, request.getPath(), query);
                     if (listing != null) {
+                        served.bytes = listing.length;
+                        served.cached = true;
                         HttpResponse response = new HttpResponse();
                         response.setBody(listing);
-                        context.responseData = response.build();
+                        response.setHeader("Content-Type", "text/html; charset=utf-8");
+                        context.responseData = build(context, response);
+                    } else if (java.nio.file.Files.isReadable(path)) {
+                        served.bytes = -1;
+                        streamDirectoryListing(context, request, path, query);
                     } else {
-                        context.responseData = HttpResponse.errorResponse(
+                        context.responseData = build(context, HttpResponse.errorResponse(
                             403, "Forbidden",
                             config.getErrorPages().get(403)
-                        ).build();
+                        ));
                     }
                 } else {
-                    context.responseData = HttpResponse.errorResponse(
+                    context.responseData = build(context, HttpResponse.errorResponse(
                         403, "Forbidden",
                         config.getErrorPages().get(403)
-                    ).build();
+                    ));
                 }
-            } else if (java.nio.file.Files.exists(path)) {
-                byte[] fileContent = java.nio.file.Files.readAllBytes(path);
+            } else if (stat.exists()) {
+                java.nio.file.attribute.BasicFileAttributes attributes = stat.getAttributes();
+                FileValidators.Entry validators = fileValidators.of(path, attributes);
+                boolean useEtag = !route.getEtag().equals("off");
                 HttpResponse response = new HttpResponse();
-                response.setBody(fileContent);
-                response.setHeader("Content-Type", router.getMimeType(filePath));
-                context.responseData = response.build();
+                if (useEtag) {
+                    response.setHeader("ETag", validators.getEtag(route.getEtag().equals("weak")));
+                }
+                response.setHeader("Last-Modified", validators.getLastModified());
+                if (route.getCacheControl() != null) {
+                    response.setHeader("Cache-Control", route.getCacheControl());
+                }
+                
+                boolean safe = HttpRequest.GET.equals(request.getMethod()) || HttpRequest.HEAD.equals(request.getMethod());
+                if (safe && validators.isNotModified(request, useEtag)) {
+                    // Neither the body nor its type and length go with a 304.
+                    served.bytes = 0;
+                    response.setStatus(304, "Not Modified");
+                    metrics.increment("static.not_modified");
+                } else if (isHead(context) || !admission.canBufferResponse(attributes.size())) {
+                    // HEAD goes this way too: the length comes from the
+                    // metadata and openStream() starts no read for it.
+                    served.bytes = isHead(context) ? 0 : attributes.size();
+                    response.setHeader("Content-Type", router.getMimeType(filePath));
+                    streamFile(context, response, path, attributes.size());
+                    return;
+                } else {
+                    byte[] fileContent = java.nio.file.Files.readAllBytes(path);
+                    served.bytes = fileContent.length;
+                    response.setBody(fileContent);
+                    response.setHeader("Content-Type", router.getMimeType(filePath));
+                }
+                context.responseData = build(context, response);
             } else {
-                context.responseData = HttpResponse.errorResponse(
+                context.responseData = build(context, HttpResponse.errorResponse(
                     404, "Not Found",
                     config.getErrorPages().get(404)
-                ).build();
+                ));
             }
+        } catch (java.nio.file.NoSuchFileException e) {
+            // Deleted since it was last seen; the watch event is on its way.
+            context.responseData = build(context, HttpResponse.errorResponse(
+                404, "Not Found",
+                config.getErrorPages().get(404)
+            ));
         } catch (IOException e) {
             System.err.println("Error reading file: " + e.getMessage());
-            context.responseData = HttpResponse.errorResponse(
+            context.responseData = build(context, HttpResponse.errorResponse(
                 500, "Internal Server Error",
                 config.getErrorPages().get(500)
-            ).build();
+            ));
+        }
+    }
+    
+    // Files too large to hold in memory are read on a worker and sent through
+    // a stream framed by Content-Length, so keep-alive still works and at
+    // most STREAM_HIGH_WATER_MARK bytes of the file are buffered. A file that
+    // shrinks while it is sent fails the stream, which closes the connection.
+    private void streamFile(ClientContext context, HttpResponse response, java.nio.file.Path path, long size) {
+        response.setContentLength(size);
+        context.responseData = build(context, response);
+        ResponseStream stream = openStream(context, STREAM_HIGH_WATER_MARK, false);
+        if (stream == null) {
+            return;
+        }
+        metrics.increment("static.streamed");
+        ioExecutor.execute(() -> {
+            try (java.io.InputStream in = java.nio.file.Files.newInputStream(path)) {
+                byte[] chunk = new byte[FILE_CHUNK_SIZE];
+                long remaining = size;
+                while (remaining > 0) {
+                    int n = in.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+                    if (n < 0) {
+                        throw new IOException("File shrank while being sent: " + path);
+                    }
+                    stream.write(chunk, 0, n);
+                    remaining -= n;
+                }
+                stream.close();
+            } catch (IOException e) {
+                stream.fail();
+            }
+        });
+    }
+    
+    // Listing a directory can take many syscalls, so it runs on a worker and
+    // streams the page back.
+    private void streamDirectoryListing(ClientContext context, HttpRequest request,
+                                        java.nio.file.Path dir, DirectoryListing.Query query) {
+        HttpResponse response = new HttpResponse();
+        response.setHeader("Content-Type", "text/html; charset=utf-8");
+        String requestPath = request.getPath();
+        streamResponse(context, request, response,
+            out -> directoryListing.render(dir, requestPath, query, out));
+    }
+    
+    // Sends the headers now and runs the producer on a worker. The body goes
+    // out chunked, or raw until the connection closes for HTTP/1.0 clients;
+    // the producer blocks whenever the client falls behind.
+    private void streamResponse(ClientContext context, HttpRequest request, HttpResponse response,
+                                ResponseStream.Producer producer) {
+        boolean chunked = !HttpRequest.HTTP_1_0.equals(request.getVersion());
+        response.setStreaming(chunked);
+        context.keepAlive = context.keepAlive && chunked;
+        context.responseData = build(context, response);
+        
+        ResponseStream stream = openStream(context, STREAM_HIGH_WATER_MARK, chunked);
+        if (stream == null) {
+            return;
+        }
+        ioExecutor.execute(() -> {
+            try {
+                producer.writeTo(stream);
+                stream.close();
+            } catch (IOException e) {
+                stream.fail();
+            }
+        });
+    }
+    
+    // The response is relayed as it arrives, so it goes through a raw stream
+    // whatever its framing; the exchange itself runs on the selector thread.
+    private void handleProxy(SocketChannel clientChannel, ClientContext context,
+                             ConfigLoader.Route route, HttpRequest request) throws IOException {
+        ReverseProxy proxy = proxies.get(route);
+        String clientAddress = ((InetSocketAddress) clientChannel.getRemoteAddress()).getAddress().getHostAddress();
+        String cacheKey = cacheKeyFor(route, request);
+        if (cacheKey != null) {
+            Runnable refresh = () -> {
+                ProxyExchange revalidation = new ProxyExchange(proxy, selector, loopBudget, null, request, clientAddress,
+                    null, null);
+                revalidation.captureResponse(route.getCache().getMaxEntryBytes(), response ->
+                    responseCache.store(cacheKey, request, response, route.getCache(), System.currentTimeMillis()));
+                revalidation.start();
+            };
+            if (serveCached(context, cacheKey, request, refresh)) {
+                return;
+            }
+        }
+        
+        ResponseStream stream = new ResponseStream(
+            STREAM_HIGH_WATER_MARK, false, () -> executeOnLoop(() -> resumeWrite(context))
+        );
+        context.stream = stream;
+        context.keepAlive = false;
+        
+        // Identical misses wait for the first one's response instead of
+        // each going upstream.
+        boolean leader = false;
+        if (cacheKey != null && route.getCache().getCoalesceTimeoutMs() > 0) {
+            long now = System.currentTimeMillis();
+            leader = cacheFlights.lead(cacheKey, now, route.getCache().getCoalesceTimeoutMs());
+            if (!leader && cacheFlights.await(cacheKey, now,
+                    () -> resumeCoalesced(context, proxy, route, request, clientAddress, cacheKey, stream))) {
+                return;
+            }
+        }
+        startProxyExchange(context, proxy, route, request, clientAddress, cacheKey, stream, leader);
+    }
+    
+    private void startProxyExchange(ClientContext context, ReverseProxy proxy, ConfigLoader.Route route,
+                                    HttpRequest request, String clientAddress, String cacheKey,
+                                    ResponseStream stream, boolean leader) {
+        ProxyExchange exchange = new ProxyExchange(proxy, selector, loopBudget, stream, request, clientAddress,
+            () -> build(context, HttpResponse.errorResponse(502, "Bad Gateway", config.getErrorPages().get(502))),
+            route.isSession() ? sessionAccess(context) : null);
+        if (cacheKey != null) {
+            exchange.captureResponse(route.getCache().getMaxEntryBytes(), response ->
+                responseCache.store(cacheKey, request, response, route.getCache(), System.currentTimeMillis()));
+        }
+        if (leader) {
+            exchange.whenFinished(() -> cacheFlights.finish(cacheKey));
+        }
+        context.proxyExchange = exchange;
+        metrics.increment("proxy.requests");
+        exchange.start();
+    }
+    
+    // Runs when the fetch this request waited on is over, or the wait timed
+    // out: the shared response if one was stored, otherwise a fetch of its own.
+    private void resumeCoalesced(ClientContext context, ReverseProxy proxy, ConfigLoader.Route route,
+                                 HttpRequest request, String clientAddress, String cacheKey,
+                                 ResponseStream stream) {
+        if (stream.isCancelled()) {
+            return;
+        }
+        ResponseCache.Entry cached = responseCache.lookup(cacheKey, request, System.currentTimeMillis(), false);
+        if (cached != null) {
+            try {
+                stream.offer(cached.getResponse(), true);
+            } catch (IOException e) {
+            }
+            return;
+        }
+        startProxyExchange(context, proxy, route, request, clientAddress, cacheKey, stream, false);
+    }
+    
+    // Answers the opening handshake; the connection is handed to the route's
+    // hub once the 101 has been written (see writeData).
+    private void handleWebSocket(ClientContext context, ConfigLoader.Route route, HttpRequest request) {
+        if (!WebSocketCodec.isUpgrade(request) || !HttpRequest.GET.equals(request.getMethod())
+            || !"13".equals(request.getHeader("Sec-WebSocket-Version"))) {
+            HttpResponse response = HttpResponse.errorResponse(426, "Upgrade Required", config.getErrorPages().get(426));
+            response.setHeader("Upgrade", "websocket");
+            response.setHeader("Sec-WebSocket-Version", "13");
+            context.responseData = build(context, response);
+            return;
+        }
+        if (!WebSocketCodec.isAllowedOrigin(request, route.getWebSocket().getAllowedOrigins())) {
+            // Without this any page could open a socket with the user's
+            // cookies and talk to the route.
+            metrics.increment("websocket.rejected_origins");
+            context.responseData = build(context, HttpResponse.errorResponse(
+                403, "Forbidden",
+                config.getErrorPages().get(403)
+            ));
+            return;
+        }
+        String accept = WebSocketCodec.acceptKey(request.getHeader("Sec-WebSocket-Key"));
+        if (accept == null) {
+            context.responseData = build(context, HttpResponse.errorResponse(
+                400, "Bad Request",
+                config.getErrorPages().get(400)
+            ));
+            return;
+        }
+        HttpResponse response = new HttpResponse();
+        response.setStatus(101, "Switching Protocols");
+        response.setHeader("Upgrade", "websocket");
+        response.setHeader("Connection", "Upgrade");
+        response.setHeader("Sec-WebSocket-Accept", accept);
+        context.responseData = build(context, response);
+        context.webSocketHub = webSockets.get(route);
+    }
+    
+    // The handshake is out: the connection leaves the HTTP bookkeeping and
+    // keeps only what a WebSocket needs. It still counts as a connection
+    // for admission until it closes.
+    private void switchToWebSocket(SocketChannel clientChannel, SelectionKey key, ClientContext context) {
+        WebSocketHub hub = context.webSocketHub;
+        context.inFlight = false;
+        admission.requestFinished();
+        context.release();
+        admission.addBufferedBytes(-context.accountedBytes);
+        clientContexts.remove(clientChannel);
+        
+        WebSocketConnection connection = new WebSocketConnection(context.io, key, hub, readBuffer, loopBudget,
+            this::executeOnLoop, () -> admission.connectionClosed());
+        key.attach(connection);
+        key.interestOps(SelectionKey.OP_READ);
+        hub.add(connection);
+        metrics.increment("websocket.upgrades");
+    }
+    
+    private void sweepWebSockets() {
+        if (webSockets.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (WebSocketHub hub : webSockets.values()) {
+            hub.sweep(now);
+        }
+    }
+    
+    /**
+     * Sends a text message to every WebSocket open on the route with the
+     * given path. Safe to call from any thread.
+     */
+    public void broadcast(String routePath, String message) {
+        ByteBuffer payload = ByteBuffer.wrap(message.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        executeOnLoop(() -> {
+            for (Map.Entry<ConfigLoader.Route, WebSocketHub> entry : webSockets.entrySet()) {
+                if (entry.getKey().getPath().equals(routePath)) {
+                    entry.getValue().broadcast(WebSocketCodec.TEXT, payload);
+                }
+            }
+        });
+    }
+    
+    // GET subscribes to the route's channel: the headers go out now and the
+    // response stays open, fed by the channel from the selector thread.
+    // POST publishes the body as an event, given the channel's token.
+    private void handleSse(ClientContext context, ConfigLoader.Route route, HttpRequest request) {
+        SseChannel channel = sseChannels.get(route.getSse());
+        if (HttpRequest.POST.equals(request.getMethod())) {
+            publishFromRequest(context, channel, request);
+            return;
+        }
+        boolean chunked = !HttpRequest.HTTP_1_0.equals(request.getVersion());
+        HttpResponse response = new HttpResponse();
+        response.setHeader("Content-Type", "text/event-stream; charset=utf-8");
+        response.setHeader("Cache-Control", "no-cache");
+        response.setStreaming(chunked);
+        context.keepAlive = false;
+        context.responseData = build(context, response);
+        
+        ResponseStream stream = openStream(context, channel.getConfig().getMaxBacklogBytes(), chunked);
+        if (stream == null) {
+            return;
+        }
+        context.sseChannel = channel;
+        context.sseSubscription = channel.subscribe(stream);
+        // A subscription can last for hours; it counts as a connection for
+        // admission, not as a request in flight.
+        if (context.inFlight) {
+            context.inFlight = false;
+            admission.requestFinished();
+        }
+    }
+    
+    private void publishFromRequest(ClientContext context, SseChannel channel, HttpRequest request) {
+        String token = channel.getConfig().getPublishToken();
+        String authorization = request.getHeader("Authorization");
+        if (token == null || authorization == null || !authorization.startsWith("Bearer ")
+            || !java.security.MessageDigest.isEqual(
+                   authorization.substring(7).trim().getBytes(java.nio.charset.StandardCharsets.UTF_8),
+                   token.getBytes(java.nio.charset.StandardCharsets.UTF_8))) {
+            context.responseData = build(context, HttpResponse.errorResponse(
+                403, "Forbidden",
+                config.getErrorPages().get(403)
+            ));
+            return;
+        }
+        String data = new String(request.getBody(), java.nio.charset.StandardCharsets.UTF_8);
+        int subscribers = channel.publish(request.getQueryParams().get("event"), data);
+        HttpResponse response = new HttpResponse();
+        response.setStatus(202, "Accepted");
+        response.setBody("Published to " + subscribers + " subscribers\n");
+        // After setBody, which would set text/html.
+        response.setHeader("Content-Type", "text/plain; charset=utf-8");
+        context.responseData = build(context, response);
+    }
+    
+    private void sweepSseChannels() {
+        if (sseChannels.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (SseChannel channel : sseChannels.values()) {
+            channel.sweep(now);
+        }
+    }
+    
+    /**
+     * Publishes an event to every subscriber of the named SSE channel;
+     * eventName may be null. Safe to call from any thread.
+     */
+    public void publish(String channelName, String eventName, String data) {
+        SseChannel channel = sseChannels.get(channelName);
+        if (channel == null) {
+            throw new IllegalArgumentException("Unknown SSE channel: " + channelName);
         }
+        executeOnLoop(() -> channel.publish(eventName, data));
+    }
+    
+    // Null when the route has no cache or the response must not be shared,
+    // as on a session route, where it may depend on or start a session.
+    private String cacheKeyFor(ConfigLoader.Route route, HttpRequest request) {
+        if (route.getCache() == null || route.isSession()) {
+            return null;
+        }
+        return responseCache.keyFor(request, route.getCache());
+    }
+    
+    // Answers from the cache if it can. A stale entry is still served while
+    // refresh (if given) fetches a new copy in the background.
+    private boolean serveCached(ClientContext context, String cacheKey, HttpRequest request, Runnable refresh) {
+        long now = System.currentTimeMillis();
+        ResponseCache.Entry cached = responseCache.lookup(cacheKey, request, now, refresh != null);
+        if (cached == null) {
+            return false;
+        }
+        if (!cached.isFresh(now) && cached.startRevalidation(now)) {
+            refresh.run();
+        }
+        context.responseData = cached.getResponse();
+        context.keepAlive = false;
+        return true;
     }
     
     private void handleCgiRequest(ClientContext context, ConfigLoader.Route route, HttpRequest request) {
@@ -257,11 +1495,12 @@ public class Server {
         HttpResponse response = new HttpResponse();
         response.setStatus(501, "Not Implemented");
         response.setBody("CGI support not yet implemented");
-        context.responseData = response.build();
+        context.responseData = build(context, response);
     }
     
     private void cleanupTimeoutConnections() {
         long currentTime = System.currentTimeMillis();
+        long now = System.nanoTime();
         long timeout = config.getRequestTimeout();
         
         Iterator<Map.Entry<SocketChannel, ClientContext>> iter = 
@@ -271,27 +1510,97 @@ public class Server {
             Map.Entry<SocketChannel, ClientContext> entry = iter.next();
             ClientContext context = entry.getValue();
             
-            if (currentTime - context.lastActivityTime > timeout) {
+            long lastActivity = context.http2 != null
+                ? Math.max(context.lastActivityTime, context.http2.getLastActivity())
+                : context.lastActivityTime;
+            String reason = null;
+            if (currentTime - lastActivity > timeout) {
+                reason = "idle";
+            } else if (context.http2 == null && !context.readPaused) {
+                // Deadlines and rates that activity does not reset; the
+                // connection is just dropped, without a response.
+                SlowClientGuard.Violation violation = slowClients.check(context.slowClient, now,
+                    context.tls != null && !context.tls.isHandshakeComplete(),
+                    context.firstByteAt, context.headersAt, context.bodyAt,
+                    context.writeBuffer != null && context.writeBuffer.hasRemaining());
+                if (violation != null) {
+                    reason = violation.name().toLowerCase();
+                }
+            }
+            if (reason != null) {
+                ServerEvents.ConnectionTimeout event = new ServerEvents.ConnectionTimeout();
+                if (event.isEnabled()) {
+                    event.remoteAddress = String.valueOf(entry.getKey().socket().getRemoteSocketAddress());
+                    event.reason = reason;
+                    event.idleTime = currentTime - lastActivity;
+                    event.inFlight = context.inFlight;
+                    event.proxying = context.proxyExchange != null;
+                    event.commit();
+                }
+                if (context.proxyExchange != null) {
+                    context.proxyExchange.abort(true);
+                }
+                releaseContext(context);
                 try {
                     entry.getKey().close();
                 } catch (IOException e) {
                 }
                 iter.remove();
-                System.out.println("Connection timeout: " + entry.getKey());
+                System.out.println("Connection timeout (" + reason + "): " + entry.getKey());
             }
         }
     }
     
     private void closeClient(SocketChannel clientChannel, SelectionKey key) {
+        ServerEvents.ConnectionClosed event = new ServerEvents.ConnectionClosed();
+        if (event.isEnabled()) {
+            ClientContext context = clientContexts.get(clientChannel);
+            event.remoteAddress = String.valueOf(clientChannel.socket().getRemoteSocketAddress());
+            if (context != null) {
+                event.lifetime = System.currentTimeMillis() - context.startTime;
+                event.inFlight = context.inFlight && context.lastWriteAt == 0;
+            }
+            event.commit();
+        }
+        ClientContext context = clientContexts.remove(clientChannel);
+        if (context != null) {
+            releaseContext(context);
+        }
         try {
             key.cancel();
             clientChannel.close();
         } catch (IOException e) {
         }
-        clientContexts.remove(clientChannel);
         System.out.println("Connection closed: " + clientChannel);
     }
     
+    private void releaseContext(ClientContext context) {
+        context.release();
+        if (context.tls != null) {
+            // Sends close_notify and returns the connection's TLS buffers.
+            try {
+                context.tls.close();
+            } catch (IOException e) {
+            }
+        }
+        if (context.inFlight) {
+            context.inFlight = false;
+            admission.requestFinished();
+        }
+        admission.addBufferedBytes(-context.accountedBytes);
+        context.accountedBytes = 0;
+        admission.connectionClosed();
+    }
+    
+    public Metrics getMetrics() {
+        return metrics;
+    }
+    
+    /** Whether every listener is bound and the loop is about to accept connections. */
+    public boolean isListening() {
+        return listening;
+    }
+    
     public void stop() {
         running = false;
         try {
@@ -303,6 +1612,39 @@ public class Server {
             System.err.println("Error shutting down selector: " + e.getMessage());
         }
         
+        ioExecutor.shutdownNow();
+        if (tlsExecutor != null) {
+            tlsExecutor.shutdownNow();
+        }
+        
+        for (ReverseProxy proxy : proxies.values()) {
+            proxy.close();
+        }
+        
+        for (WebSocketHub hub : webSockets.values()) {
+            hub.closeAll();
+        }
+        
+        for (SseChannel channel : sseChannels.values()) {
+            channel.closeAll();
+        }
+        
+        if (slowLog != null) {
+            slowLog.close();
+        }
+        router.getStatCache().close();
+        if (statisticsEvent != null) {
+            ServerEvents.unregisterStatistics(statisticsEvent);
+        }
+        
+        if (sessions != null) {
+            try {
+                sessions.close();
+            } catch (IOException e) {
+                System.err.println("Error closing session store: " + e.getMessage());
+            }
+        }
+        
         // Shutdown CGI executor
         cgiExecutor.shutdown();
         try {
@@ -313,70 +1655,388 @@ public class Server {
             cgiExecutor.shutdownNow();
         }
         
+        System.out.print(metrics);
         System.out.println("Server stopped.");
     }
     
  
     private class ClientContext {
-        private ByteArrayOutputStream requestBuffer;  
+        private byte[] requestBuffer;
+        private int requestLength;
+        private int scanFrom;
+        private int headerEnd;
+        private long contentLength;
+        private HttpRequest request;
+        private ChunkedDecoder chunkedDecoder;
+        private RequestBody chunkedBody;
+        private MultipartParser multipart;
+        private long bodyReceived;
         private byte[] responseData;                  
+        private ResponseStream stream;
+        private ProxyExchange proxyExchange;
+        // Set on a connection that switched to HTTP/2, and on the contexts
+        // of its streams respectively.
+        private Http2Connection http2;
+        private Http2Connection http2Owner;
+        private WebSocketHub webSocketHub;
+        private SseChannel sseChannel;
+        private SseChannel.Subscription sseSubscription;
+        private ByteBuffer writeBuffer;
+        private SelectionKey key;
+        // The socket, or its TLS layer on a TLS listener; what the
+        // connection is read from and written to.
+        private ByteChannel io;
+        private TlsChannel tls;
+        private boolean inFlight;
+        private boolean readPaused;
+        // Set while serving a priority route; exempt from the iteration budget.
+        private boolean priority;
+        private long accountedBytes;
+        private long addressHi;
+        private long addressLo;
+        private int sessionSlot = -1;
+        private SlowClientGuard.Tracker slowClient;
         private long startTime;                      
         private long lastActivityTime;               
         private boolean keepAlive;                   
+        // Bytes that came after the end of the current request: the start
+        // of the next one, handled once this one has been answered.
+        private byte[] pipelined;
+        // Phase timestamps (System.nanoTime) of the current request, 0 until
+        // reached; reported by the slow request log.
+        private long firstByteAt;
+        private long headersAt;
+        private long bodyAt;
+        private long routedAt;
+        private long handledAt;
+        private long firstWriteAt;
+        private long lastWriteAt;
+        private int status;
         
         public ClientContext() {
-            this.requestBuffer = new ByteArrayOutputStream();
             this.startTime = System.currentTimeMillis();
             this.lastActivityTime = this.startTime;
             this.keepAlive = false; 
         }
         
-        public void appendRequestData(byte[] data) {
-            requestBuffer.write(data, 0, data.length);
+        public void appendRequestData(ByteBuffer data) throws IOException {
+            if (chunkedDecoder != null) {
+                // Chunked bodies bypass the request buffer entirely.
+                chunkedDecoder.decode(data, multipart != null ? multipart : chunkedBody);
+                if (chunkedDecoder.isDone()) {
+                    keepPipelined(data);
+                }
+                return;
+            }
+            if (multipart != null) {
+                feedMultipart(data);
+                if (bodyReceived >= contentLength) {
+                    keepPipelined(data);
+                }
+                return;
+            }
+            int n = data.remaining();
+            if (requestBuffer == null) {
+                requestBuffer = new byte[Math.max(INITIAL_REQUEST_BUFFER, n)];
+            } else if (requestLength + n > requestBuffer.length) {
+                requestBuffer = Arrays.copyOf(requestBuffer, Math.max(requestBuffer.length * 2, requestLength + n));
+            }
+            data.get(requestBuffer, requestLength, n);
+            requestLength += n;
         }
         
-        public boolean hasCompleteRequest() {
-            byte[] data = requestBuffer.toByteArray();
-            String requestStr = new String(data, java.nio.charset.StandardCharsets.UTF_8);
-            
-            int headerEnd = requestStr.indexOf("\r\n\r\n");
-            if (headerEnd == -1) {
-                return false; 
+        // Feeds a Content-Length body to the upload parser, stopping at its end.
+        private void feedMultipart(ByteBuffer data) throws IOException {
+            int n = (int) Math.min(data.remaining(), contentLength - bodyReceived);
+            ByteBuffer body = data.duplicate();
+            body.limit(body.position() + n);
+            multipart.write(body);
+            data.position(data.position() + n);
+            bodyReceived += n;
+        }
+        
+        private void keepPipelined(ByteBuffer data) {
+            if (data.hasRemaining()) {
+                pipelined = new byte[data.remaining()];
+                data.get(pipelined);
             }
-            
-            String headers = requestStr.substring(0, headerEnd);
-            int contentLength = 0;
-            
-            for (String line : headers.split("\r\n")) {
-                if (line.toLowerCase().startsWith("content-length:")) {
-                    try {
-                        contentLength = Integer.parseInt(line.substring(15).trim());
-                    } catch (NumberFormatException e) {
-                        return false; 
+        }
+        
+        // Scans only the bytes that arrived since the last call; the headers
+        // are parsed once, when the blank line ending them shows up.
+        public boolean hasCompleteRequest() throws IOException {
+            if (chunkedDecoder != null) {
+                return chunkedDecoder.isDone();
+            }
+            if (multipart != null) {
+                return bodyReceived >= contentLength;
+            }
+            if (request == null) {
+                int end = HttpRequest.findHeaderEnd(requestBuffer, scanFrom - 3, requestLength);
+                slowClients.checkHeaderLines(slowClient, requestBuffer, scanFrom, end < 0 ? requestLength : end);
+                if (end < 0) {
+                    scanFrom = requestLength;
+                    return false;
+                }
+                headerEnd = end;
+                headersAt = System.nanoTime();
+                request = new HttpRequest(requestBuffer, 0, requestLength);
+                request.checkWellFormed();
+                keepAlive = request.isPersistent();
+                if (!request.isChunked()) {
+                    contentLength = Math.max(0, request.getContentLength());
+                    if (contentLength > config.getClientBodySizeLimit()) {
+                        // Answer 413 now instead of buffering a body we will
+                        // refuse; the unread body rules out another request.
+                        keepAlive = false;
+                        return true;
                     }
-                    break;
+                }
+                multipart = openMultipart(request);
+                ByteBuffer pending = ByteBuffer.wrap(requestBuffer, headerEnd, requestLength - headerEnd);
+                if (request.isChunked()) {
+                    chunkedDecoder = new ChunkedDecoder(config.getClientBodySizeLimit());
+                    if (multipart == null) {
+                        chunkedBody = new RequestBody(admission.hasBufferRoom() ? BODY_SPOOL_THRESHOLD : 0);
+                    }
+                    requestLength = headerEnd;
+                    chunkedDecoder.decode(pending, multipart != null ? multipart : chunkedBody);
+                    if (chunkedDecoder.isDone()) {
+                        keepPipelined(pending);
+                        return true;
+                    }
+                    return false;
+                }
+                if (multipart != null) {
+                    requestLength = headerEnd;
+                    feedMultipart(pending);
+                    if (bodyReceived >= contentLength) {
+                        keepPipelined(pending);
+                        return true;
+                    }
+                    return false;
                 }
             }
-            
-            int bodyStart = headerEnd + 4; // Skip \r\n\r\n
-            return data.length >= bodyStart + contentLength;
+            long requestEnd = headerEnd + contentLength;
+            if (requestLength < requestEnd) {
+                return false;
+            }
+            if (requestLength > requestEnd) {
+                pipelined = Arrays.copyOfRange(requestBuffer, (int) requestEnd, requestLength);
+                requestLength = (int) requestEnd;
+            }
+            return true;
         }
         
         public HttpRequest getHttpRequest() {
-            byte[] data = requestBuffer.toByteArray();
-            
-            String requestStr = new String(data, java.nio.charset.StandardCharsets.UTF_8);
-            if (requestStr.contains("Transfer-Encoding: chunked")) {
-                return HttpRequest.parseChunkedRequest(data);
-            } else {
-                return new HttpRequest(data);
+            if (multipart != null) {
+                request.attachMultipart(multipart);
+                return request;
+            }
+            if (chunkedBody != null) {
+                request.attachBody(chunkedBody);
+                return request;
+            }
+            request.updateBuffer(requestBuffer, requestLength);
+            return request;
+        }
+        
+        // Headers (or a complete response) first, then any streamed body.
+        public byte[] nextResponseSegment() {
+            if (responseData != null) {
+                byte[] data = responseData;
+                responseData = null;
+                return data;
+            }
+            return stream != null ? stream.poll() : null;
+        }
+        
+        public long bufferedBytes() {
+            return (requestBuffer != null ? requestBuffer.length : 0)
+                + (chunkedBody != null && !chunkedBody.isSpooled() ? chunkedBody.length() : 0)
+                + (responseData != null ? responseData.length : 0)
+                + (writeBuffer != null ? writeBuffer.remaining() : 0)
+                + (pipelined != null ? pipelined.length : 0)
+                + (stream != null ? stream.bufferedBytes() : 0);
+        }
+        
+        public void release() {
+            if (http2 != null) {
+                http2.shutdown();
+            }
+            if (sseSubscription != null) {
+                sseChannel.unsubscribe(sseSubscription);
+            }
+            if (stream != null) {
+                stream.cancel();
+            }
+            if (proxyExchange != null) {
+                proxyExchange.abort(false);
+            }
+            closeBody();
+        }
+        
+        private void closeBody() {
+            if (chunkedBody != null) {
+                try {
+                    chunkedBody.close();
+                } catch (IOException e) {
+                    System.err.println("Failed to delete request body spool: " + e.getMessage());
+                }
+                chunkedBody = null;
+            }
+            if (multipart != null) {
+                try {
+                    multipart.close();
+                } catch (IOException e) {
+                    System.err.println("Failed to clean up upload: " + e.getMessage());
+                }
+                multipart = null;
             }
+            chunkedDecoder = null;
+            bodyReceived = 0;
         }
         
         public void reset() {
-            requestBuffer.reset();
+            if (requestBuffer != null && requestBuffer.length > MAX_RETAINED_REQUEST_BUFFER) {
+                requestBuffer = null;
+            }
+            requestLength = 0;
+            scanFrom = 0;
+            headerEnd = 0;
+            contentLength = 0;
+            closeBody();
+            request = null;
             responseData = null;
+            stream = null;
+            proxyExchange = null;
+            webSocketHub = null;
+            sseChannel = null;
+            sseSubscription = null;
+            writeBuffer = null;
+            sessionSlot = -1;
+            if (slowClient != null) {
+                slowClient.reset();
+            }
+            firstByteAt = 0;
+            headersAt = 0;
+            bodyAt = 0;
+            routedAt = 0;
+            handledAt = 0;
+            firstWriteAt = 0;
+            lastWriteAt = 0;
+            status = 0;
+            priority = false;
             lastActivityTime = System.currentTimeMillis();
         }
     }
+    
+    // One HTTP/2 stream, run through the same pipeline as an HTTP/1.1
+    // request on a context of its own. The body is taken as DATA arrives,
+    // the way a chunked body is; admission counts each stream as a request.
+    private class Http2Exchange implements Http2Connection.Exchange {
+        private final SocketChannel clientChannel;
+        private final ClientContext context = new ClientContext();
+        private boolean started;
+        private boolean rejected;
+        
+        Http2Exchange(SocketChannel clientChannel, ClientContext connection, Http2Connection owner, byte[] head) {
+            this.clientChannel = clientChannel;
+            context.key = connection.key;
+            context.addressHi = connection.addressHi;
+            context.addressLo = connection.addressLo;
+            context.http2Owner = owner;
+            context.requestBuffer = head;
+            context.requestLength = head.length;
+            context.headerEnd = head.length;
+            context.firstByteAt = System.nanoTime();
+            context.headersAt = context.firstByteAt;
+            context.request = new HttpRequest(head, 0, head.length);
+            try {
+                context.request.checkWellFormed();
+            } catch (HttpException e) {
+                reject(e);
+                return;
+            }
+            if (context.request.getContentLength() > config.getClientBodySizeLimit()) {
+                // Answer 413 now instead of reading a body we will refuse.
+                reject(new HttpException(413, "Payload Too Large",
+                    "Request body exceeds " + config.getClientBodySizeLimit() + " bytes"));
+            }
+        }
+        
+        @Override
+        public void body(ByteBuffer data) throws IOException {
+            if (rejected) {
+                return;
+            }
+            context.bodyReceived += data.remaining();
+            try {
+                if (context.bodyReceived > config.getClientBodySizeLimit()) {
+                    throw new HttpException(413, "Payload Too Large",
+                        "Request body exceeds " + config.getClientBodySizeLimit() + " bytes");
+                }
+                if (context.multipart == null && context.chunkedBody == null) {
+                    context.multipart = openMultipart(context.request);
+                    if (context.multipart == null) {
+                        context.chunkedBody = new RequestBody(admission.hasBufferRoom() ? BODY_SPOOL_THRESHOLD : 0);
+                    }
+                }
+                (context.multipart != null ? context.multipart : context.chunkedBody).write(data);
+            } catch (HttpException e) {
+                reject(e);
+            }
+        }
+        
+        private void reject(HttpException e) {
+            rejected = true;
+            context.closeBody();
+            context.responseData = build(context, HttpResponse.errorResponse(
+                e.getStatus(), e.getReason(),
+                config.getErrorPages().get(e.getStatus())
+            ));
+        }
+        
+        @Override
+        public void complete() {
+            if (started || rejected) {
+                return;
+            }
+            started = true;
+            context.bodyAt = System.nanoTime();
+            context.inFlight = true;
+            admission.requestStarted();
+            if (admission.shouldShedRequest()) {
+                context.responseData = admission.serviceUnavailableResponse();
+            } else {
+                processRequest(clientChannel, context);
+            }
+            context.handledAt = System.nanoTime();
+        }
+        
+        @Override
+        public byte[] nextSegment() {
+            return context.nextResponseSegment();
+        }
+        
+        @Override
+        public boolean isDone() {
+            return (started || rejected) && context.responseData == null
+                && (context.stream == null || context.stream.isFinished() || context.stream.isFailed());
+        }
+        
+        @Override
+        public boolean isFailed() {
+            return context.stream != null && context.stream.isFailed();
+        }
+        
+        @Override
+        public void close() {
+            context.release();
+            if (context.inFlight) {
+                context.inFlight = false;
+                admission.requestFinished();
+            }
+        }
+    }
 }
\ No newline at end of file
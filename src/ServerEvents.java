@@ -0,0 +1,177 @@
+package src;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * JDK Flight Recorder events for the connection and request lifecycle.
+ *
+ * Call sites check isEnabled() (instant events) or shouldCommit() (timed
+ * events) before filling in any field, so with recording off an event
+ * costs one allocation that escape analysis removes and a branch. Stack
+ * traces are off by default: every event is raised from the selector loop,
+ * where they would say nothing new. See server.jfc for recording settings.
+ */
+public final class ServerEvents {
+    private ServerEvents() {
+    }
+
+    @Name("localserver.ConnectionAccepted")
+    @Label("Connection Accepted")
+    @Category({ "LocalServer", "Connection" })
+    @StackTrace(false)
+    public static class ConnectionAccepted extends Event {
+        @Label("Remote Address")
+        public String remoteAddress;
+
+        @Label("Local Port")
+        public int localPort;
+    }
+
+    @Name("localserver.ConnectionClosed")
+    @Label("Connection Closed")
+    @Category({ "LocalServer", "Connection" })
+    @StackTrace(false)
+    public static class ConnectionClosed extends Event {
+        @Label("Remote Address")
+        public String remoteAddress;
+
+        @Label("Lifetime")
+        @Timespan(Timespan.MILLISECONDS)
+        public long lifetime;
+
+        @Label("Request In Flight")
+        @Description("Whether the connection closed before its current response was complete")
+        public boolean inFlight;
+    }
+
+    @Name("localserver.ConnectionTimeout")
+    @Label("Connection Timeout")
+    @Category({ "LocalServer", "Connection" })
+    @Description("A connection closed by the timeout sweep: idle, or a slow-client deadline or rate")
+    @StackTrace(false)
+    public static class ConnectionTimeout extends Event {
+        @Label("Remote Address")
+        public String remoteAddress;
+
+        @Label("Reason")
+        public String reason;
+
+        @Label("Idle Time")
+        @Timespan(Timespan.MILLISECONDS)
+        public long idleTime;
+
+        @Label("Request In Flight")
+        public boolean inFlight;
+
+        @Label("Proxying")
+        public boolean proxying;
+    }
+
+    @Name("localserver.RequestParsed")
+    @Label("Request Parsed")
+    @Category({ "LocalServer", "Request" })
+    @StackTrace(false)
+    public static class RequestParsed extends Event {
+        @Label("Method")
+        public String method;
+
+        @Label("Target")
+        public String target;
+
+        @Label("Version")
+        public String version;
+
+        @Label("Body Size")
+        @DataAmount
+        public long bodySize;
+
+        @Label("Read Time")
+        @Description("From the first byte of the request to the end of its body")
+        @Timespan(Timespan.NANOSECONDS)
+        public long readTime;
+    }
+
+    @Name("localserver.RouteMatched")
+    @Label("Route Matched")
+    @Category({ "LocalServer", "Request" })
+    @StackTrace(false)
+    public static class RouteMatched extends Event {
+        @Label("Path")
+        public String path;
+
+        @Label("Route")
+        @Description("Path of the matched route, or null if none matched")
+        public String route;
+
+        @Label("Match Type")
+        public String type;
+    }
+
+    @Name("localserver.StaticFileServed")
+    @Label("Static File Served")
+    @Category({ "LocalServer", "Request" })
+    @StackTrace(false)
+    public static class StaticFileServed extends Event {
+        @Label("File")
+        public String file;
+
+        @Label("Size")
+        @Description("Response body size, or -1 for a streamed directory listing")
+        @DataAmount
+        public long bytes;
+
+        @Label("Cached")
+        @Description("Served from an in-memory cache rather than read from disk")
+        public boolean cached;
+
+        @Label("Status")
+        public int status;
+    }
+
+    @Name("localserver.Statistics")
+    @Label("Server Statistics")
+    @Category({ "LocalServer" })
+    @Period("1 s")
+    @StackTrace(false)
+    public static class Statistics extends Event {
+        @Label("Open Connections")
+        public long openConnections;
+
+        @Label("Requests In Flight")
+        public long inFlightRequests;
+
+        @Label("Buffered Bytes")
+        @DataAmount
+        public long bufferedBytes;
+
+        @Label("Accepted Connections")
+        public long acceptedConnections;
+    }
+
+    /** Emits Statistics from the metrics each period; returns the hook to remove on shutdown. */
+    public static Runnable registerStatistics(Metrics metrics) {
+        Runnable hook = () -> {
+            Statistics event = new Statistics();
+            event.openConnections = metrics.counter("connections.open").get();
+            event.inFlightRequests = metrics.counter("requests.in_flight").get();
+            event.bufferedBytes = metrics.counter("buffers.bytes").get();
+            event.acceptedConnections = metrics.counter("accept.connections").get();
+            event.commit();
+        };
+        FlightRecorder.addPeriodicEvent(Statistics.class, hook);
+        return hook;
+    }
+
+    public static void unregisterStatistics(Runnable hook) {
+        FlightRecorder.removePeriodicEvent(hook);
+    }
+}
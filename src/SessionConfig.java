@@ -0,0 +1,81 @@
+package src;
+
+import java.io.IOException;
+
+/**
+ * The "sessions" block: the session table size and timeout, the cookie
+ * name, and the optional file that keeps sessions across restarts.
+ */
+public class SessionConfig {
+    private int maxSessions = 65536;
+    private int dataBytes = 256;
+    private int timeoutSeconds = 1800;
+    private String cookieName = "SESSIONID";
+    private String file;
+    
+    public int getMaxSessions() { return maxSessions; }
+    public int getDataBytes() { return dataBytes; }
+    public int getTimeoutSeconds() { return timeoutSeconds; }
+    public String getCookieName() { return cookieName; }
+    public String getFile() { return file; }
+    
+    public void setMaxSessions(int maxSessions) { this.maxSessions = maxSessions; }
+    public void setDataBytes(int dataBytes) { this.dataBytes = dataBytes; }
+    public void setTimeoutSeconds(int timeoutSeconds) { this.timeoutSeconds = timeoutSeconds; }
+    public void setCookieName(String cookieName) { this.cookieName = cookieName; }
+    public void setFile(String file) { this.file = file; }
+
+    static SessionConfig read(JsonReader reader) throws IOException {
+        SessionConfig sessions = new SessionConfig();
+        
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            Integer value;
+            switch (name) {
+                case "maxSessions":
+                    value = ConfigLoader.readInt(reader, sessions.getMaxSessions());
+                    if (value != null) {
+                        sessions.setMaxSessions(value);
+                    }
+                    break;
+                case "dataBytes":
+                    value = ConfigLoader.readInt(reader, sessions.getDataBytes());
+                    if (value != null) {
+                        sessions.setDataBytes(value);
+                    }
+                    break;
+                case "timeoutSeconds":
+                    value = ConfigLoader.readInt(reader, sessions.getTimeoutSeconds());
+                    if (value != null) {
+                        sessions.setTimeoutSeconds(value);
+                    }
+                    break;
+                case "cookieName":
+                    String cookieName = ConfigLoader.readString(reader);
+                    if (cookieName != null) {
+                        sessions.setCookieName(cookieName);
+                    }
+                    break;
+                case "file":
+                    sessions.setFile(ConfigLoader.readString(reader));
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        
+        return sessions;
+    }
+
+    void validate() throws IOException {
+        if (maxSessions <= 0 || dataBytes < 0 || timeoutSeconds <= 0) {
+            throw new IOException("Invalid session settings");
+        }
+        if (cookieName.isEmpty()) {
+            throw new IOException("Session cookieName must not be empty");
+        }
+    }
+}
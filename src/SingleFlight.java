@@ -0,0 +1,108 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent cache misses for the same key into one load.
+ *
+ * The first miss leads: it performs the load and calls finish() once the
+ * result is stored (or the load has failed). Identical misses that arrive
+ * meanwhile park a waiter, which runs on finish() and looks the cache up
+ * again; if there is still nothing usable (the response was not cacheable,
+ * or its Vary values differ) it loads on its own. Waiters parked longer
+ * than the flight's timeout are released by sweep() the same way, and
+ * later misses stop parking behind a flight that has run that long.
+ *
+ * Only the selector thread uses it.
+ */
+public class SingleFlight {
+    private static class Flight {
+        final long startedAt;
+        final long timeout;
+        final List<Runnable> waiters = new ArrayList<>();
+
+        Flight(long startedAt, long timeout) {
+            this.startedAt = startedAt;
+            this.timeout = timeout;
+        }
+
+        boolean isExpired(long now) {
+            return now - startedAt >= timeout;
+        }
+    }
+
+    private final Map<String, Flight> flights = new HashMap<>();
+
+    private final AtomicLong coalesced;
+    private final AtomicLong timeouts;
+
+    public SingleFlight(Metrics metrics) {
+        this.coalesced = metrics.counter("cache.coalesced");
+        this.timeouts = metrics.counter("cache.coalesce_timeouts");
+    }
+
+    /** Starts a flight for key and returns true if none is in progress. */
+    public boolean lead(String key, long now, long timeoutMillis) {
+        if (flights.containsKey(key)) {
+            return false;
+        }
+        flights.put(key, new Flight(now, timeoutMillis));
+        return true;
+    }
+
+    /**
+     * Parks waiter behind the flight for key and returns true, or returns
+     * false if there is none or it has already run past its timeout.
+     */
+    public boolean await(String key, long now, Runnable waiter) {
+        Flight flight = flights.get(key);
+        if (flight == null || flight.isExpired(now)) {
+            return false;
+        }
+        flight.waiters.add(waiter);
+        coalesced.incrementAndGet();
+        return true;
+    }
+
+    /** Ends the flight for key and runs its waiters. */
+    public void finish(String key) {
+        Flight flight = flights.remove(key);
+        if (flight != null) {
+            release(flight.waiters);
+        }
+    }
+
+    /** Releases the waiters of flights that have run past their timeout. */
+    public void sweep(long now) {
+        if (flights.isEmpty()) {
+            return;
+        }
+        List<Runnable> expired = null;
+        for (Iterator<Flight> it = flights.values().iterator(); it.hasNext(); ) {
+            Flight flight = it.next();
+            if (flight.isExpired(now) && !flight.waiters.isEmpty()) {
+                if (expired == null) {
+                    expired = new ArrayList<>();
+                }
+                timeouts.addAndGet(flight.waiters.size());
+                expired.addAll(flight.waiters);
+                flight.waiters.clear();
+            }
+        }
+        // Run outside the iteration: a waiter may start a flight of its own.
+        if (expired != null) {
+            release(expired);
+        }
+    }
+
+    private static void release(List<Runnable> waiters) {
+        for (Runnable waiter : waiters) {
+            waiter.run();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package src;
+
+import java.io.IOException;
+
+/**
+ * Limits that keep slow or oversized clients from holding connections.
+ * A timeout or rate of 0 turns that check off.
+ */
+public class SlowClientConfig {
+    private int headerTimeoutMs = 10000;
+    private int bodyTimeoutMs = 60000;
+    private int minReceiveRate = 240;
+    private int minSendRate = 240;
+    private int rateWindowSeconds = 10;
+    private int maxHeaderCount = 100;
+    private int maxHeaderLineLength = 8192;
+    private int maxRequestLineLength = 8192;
+    
+    /** From the first byte of a request (or the accept, for a TLS handshake) to the end of its headers. */
+    public int getHeaderTimeoutMs() { return headerTimeoutMs; }
+    /** From the end of the headers to the end of the body. */
+    public int getBodyTimeoutMs() { return bodyTimeoutMs; }
+    /** Bytes per second a request must arrive at while it is incomplete. */
+    public int getMinReceiveRate() { return minReceiveRate; }
+    /** Bytes per second a client must take the response at while the socket is full. */
+    public int getMinSendRate() { return minSendRate; }
+    /** Window the rates are averaged over, and the grace period before they apply. */
+    public int getRateWindowSeconds() { return rateWindowSeconds; }
+    public int getMaxHeaderCount() { return maxHeaderCount; }
+    public int getMaxHeaderLineLength() { return maxHeaderLineLength; }
+    public int getMaxRequestLineLength() { return maxRequestLineLength; }
+    
+    public void setHeaderTimeoutMs(int headerTimeoutMs) { this.headerTimeoutMs = headerTimeoutMs; }
+    public void setBodyTimeoutMs(int bodyTimeoutMs) { this.bodyTimeoutMs = bodyTimeoutMs; }
+    public void setMinReceiveRate(int minReceiveRate) { this.minReceiveRate = minReceiveRate; }
+    public void setMinSendRate(int minSendRate) { this.minSendRate = minSendRate; }
+    public void setRateWindowSeconds(int rateWindowSeconds) { this.rateWindowSeconds = rateWindowSeconds; }
+    public void setMaxHeaderCount(int maxHeaderCount) { this.maxHeaderCount = maxHeaderCount; }
+    public void setMaxHeaderLineLength(int maxHeaderLineLength) { this.maxHeaderLineLength = maxHeaderLineLength; }
+    public void setMaxRequestLineLength(int maxRequestLineLength) { this.maxRequestLineLength = maxRequestLineLength; }
+
+    static SlowClientConfig read(JsonReader reader) throws IOException {
+        SlowClientConfig slowClient = new SlowClientConfig();
+        
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            Integer value;
+            switch (name) {
+                case "headerTimeoutMs":
+                    value = ConfigLoader.readInt(reader, slowClient.getHeaderTimeoutMs());
+                    if (value != null) {
+                        slowClient.setHeaderTimeoutMs(value);
+                    }
+                    break;
+                case "bodyTimeoutMs":
+                    value = ConfigLoader.readInt(reader, slowClient.getBodyTimeoutMs());
+                    if (value != null) {
+                        slowClient.setBodyTimeoutMs(value);
+                    }
+                    break;
+                case "minReceiveRate":
+                    value = ConfigLoader.readInt(reader, slowClient.getMinReceiveRate());
+                    if (value != null) {
+                        slowClient.setMinReceiveRate(value);
+                    }
+                    break;
+                case "minSendRate":
+                    value = ConfigLoader.readInt(reader, slowClient.getMinSendRate());
+                    if (value != null) {
+                        slowClient.setMinSendRate(value);
+                    }
+                    break;
+                case "rateWindowSeconds":
+                    value = ConfigLoader.readInt(reader, slowClient.getRateWindowSeconds());
+                    if (value != null) {
+                        slowClient.setRateWindowSeconds(value);
+                    }
+                    break;
+                case "maxHeaderCount":
+                    value = ConfigLoader.readInt(reader, slowClient.getMaxHeaderCount());
+                    if (value != null) {
+                        slowClient.setMaxHeaderCount(value);
+                    }
+                    break;
+                case "maxHeaderLineLength":
+                    value = ConfigLoader.readInt(reader, slowClient.getMaxHeaderLineLength());
+                    if (value != null) {
+                        slowClient.setMaxHeaderLineLength(value);
+                    }
+                    break;
+                case "maxRequestLineLength":
+                    value = ConfigLoader.readInt(reader, slowClient.getMaxRequestLineLength());
+                    if (value != null) {
+                        slowClient.setMaxRequestLineLength(value);
+                    }
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        
+        return slowClient;
+    }
+
+    void validate() throws IOException {
+        if (headerTimeoutMs < 0 || bodyTimeoutMs < 0 || minReceiveRate < 0 || minSendRate < 0 ||
+            rateWindowSeconds <= 0 || maxHeaderCount <= 0 || maxHeaderLineLength <= 0 || maxRequestLineLength <= 0) {
+            throw new IOException("Invalid slowClient settings");
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package src;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Defenses against clients that hold a connection by being slow rather
+ * than by being busy: deadlines for the header block and the body, minimum
+ * transfer rates in both directions, and caps on the request line, header
+ * lines and header count.
+ *
+ * The idle timeout alone does not stop a client that trickles a byte just
+ * before it expires; the deadlines here run from the start of a phase and
+ * are not extended by activity. Rates are averaged over a sliding window
+ * (two fixed buckets, the older one weighted by how much of it still falls
+ * inside the window) and only judged once a transfer has run for a whole
+ * window, so short stalls are tolerated.
+ *
+ * All state is owned by the selector thread.
+ */
+public class SlowClientGuard {
+    public enum Violation {
+        HANDSHAKE_TIMEOUT, HEADER_TIMEOUT, BODY_TIMEOUT, SLOW_RECEIVE, SLOW_SEND
+    }
+
+    /** Per-connection state: the header scan of the current request and both transfer rates. */
+    public static class Tracker {
+        private final long connectedAt = System.nanoTime();
+        private int lineStart;
+        private int lines;
+        private final Rate receive;
+        private final Rate send;
+
+        private Tracker(long window) {
+            this.receive = new Rate(window);
+            this.send = new Rate(window);
+        }
+
+        public void received(long bytes, long now) {
+            receive.record(bytes, now);
+        }
+
+        public void sent(long bytes, long now) {
+            send.record(bytes, now);
+        }
+
+        /** Starts the header scan over for the next request on the connection. */
+        public void reset() {
+            lineStart = 0;
+            lines = 0;
+        }
+    }
+
+    // Bytes moved during one stretch of activity, bucketed by window.
+    private static class Rate {
+        private final long window;
+        private long since;
+        private long windowStart;
+        private long current;
+        private long previous;
+
+        Rate(long window) {
+            this.window = window;
+        }
+
+        void record(long bytes, long now) {
+            if (since == 0) {
+                since = now;
+                windowStart = now;
+                current = 0;
+                previous = 0;
+            }
+            roll(now);
+            current += bytes;
+        }
+
+        boolean isBelow(boolean active, long minRate, long now) {
+            if (!active || minRate == 0) {
+                since = 0;
+                return false;
+            }
+            if (since == 0) {
+                record(0, now);
+                return false;
+            }
+            roll(now);
+            if (now - since < window) {
+                return false;
+            }
+            double inWindow = current + previous * (double) (window - (now - windowStart)) / window;
+            return inWindow * 1_000_000_000L / window < minRate;
+        }
+
+        private void roll(long now) {
+            long elapsed = now - windowStart;
+            if (elapsed < window) {
+                return;
+            }
+            previous = elapsed < 2 * window ? current : 0;
+            current = 0;
+            windowStart = now - elapsed % window;
+        }
+    }
+
+    private final SlowClientConfig config;
+    private final long headerTimeout;
+    private final long bodyTimeout;
+    private final long window;
+
+    private final AtomicLong handshakeTimeouts;
+    private final AtomicLong headerTimeouts;
+    private final AtomicLong bodyTimeouts;
+    private final AtomicLong slowReceives;
+    private final AtomicLong slowSends;
+    private final AtomicLong requestLineTooLong;
+    private final AtomicLong headerLineTooLong;
+    private final AtomicLong tooManyHeaders;
+
+    public SlowClientGuard(SlowClientConfig config, Metrics metrics) {
+        this.config = config;
+        this.headerTimeout = config.getHeaderTimeoutMs() * 1_000_000L;
+        this.bodyTimeout = config.getBodyTimeoutMs() * 1_000_000L;
+        this.window = config.getRateWindowSeconds() * 1_000_000_000L;
+        this.handshakeTimeouts = metrics.counter("slowclient.handshake_timeouts");
+        this.headerTimeouts = metrics.counter("slowclient.header_timeouts");
+        this.bodyTimeouts = metrics.counter("slowclient.body_timeouts");
+        this.slowReceives = metrics.counter("slowclient.slow_receive");
+        this.slowSends = metrics.counter("slowclient.slow_send");
+        this.requestLineTooLong = metrics.counter("slowclient.request_line_too_long");
+        this.headerLineTooLong = metrics.counter("slowclient.header_line_too_long");
+        this.tooManyHeaders = metrics.counter("slowclient.too_many_headers");
+    }
+
+    public Tracker newTracker() {
+        return new Tracker(window);
+    }
+
+    /** Whether any check runs on a timer, so the loop has to wake up for it. */
+    public boolean hasDeadlines() {
+        return config.getHeaderTimeoutMs() > 0 || config.getBodyTimeoutMs() > 0
+            || config.getMinReceiveRate() > 0 || config.getMinSendRate() > 0;
+    }
+
+    /**
+     * Checks the lines of the header block in buf[from, to), continuing
+     * from the previous call for the same request.
+     */
+    public void checkHeaderLines(Tracker tracker, byte[] buf, int from, int to) throws HttpException {
+        for (int i = Math.max(from, tracker.lineStart); i < to; i++) {
+            if (buf[i] != '\n') {
+                continue;
+            }
+            checkLine(tracker, i - tracker.lineStart);
+            boolean blank = i == tracker.lineStart || (i == tracker.lineStart + 1 && buf[tracker.lineStart] == '\r');
+            if (!blank) {
+                tracker.lines++;
+                // The request line is not a header.
+                if (tracker.lines - 1 > config.getMaxHeaderCount()) {
+                    tooManyHeaders.incrementAndGet();
+                    throw new HttpException(431, "Request Header Fields Too Large",
+                        "More than " + config.getMaxHeaderCount() + " headers");
+                }
+            }
+            tracker.lineStart = i + 1;
+        }
+        checkLine(tracker, to - tracker.lineStart);
+    }
+
+    private void checkLine(Tracker tracker, int length) throws HttpException {
+        if (tracker.lines == 0) {
+            if (length > config.getMaxRequestLineLength()) {
+                requestLineTooLong.incrementAndGet();
+                throw new HttpException(414, "URI Too Long",
+                    "Request line exceeds " + config.getMaxRequestLineLength() + " bytes");
+            }
+        } else if (length > config.getMaxHeaderLineLength()) {
+            headerLineTooLong.incrementAndGet();
+            throw new HttpException(431, "Request Header Fields Too Large",
+                "Header line exceeds " + config.getMaxHeaderLineLength() + " bytes");
+        }
+    }
+
+    /**
+     * The reason to drop the connection now, or null. Phase times are
+     * System.nanoTime values, 0 until reached; sending means response bytes
+     * are waiting for the client to make room.
+     */
+    public Violation check(Tracker tracker, long now, boolean handshaking,
+                           long firstByteAt, long headersAt, long bodyAt, boolean sending) {
+        if (handshaking) {
+            if (headerTimeout > 0 && now - tracker.connectedAt > headerTimeout) {
+                handshakeTimeouts.incrementAndGet();
+                return Violation.HANDSHAKE_TIMEOUT;
+            }
+            return null;
+        }
+        if (headerTimeout > 0 && firstByteAt != 0 && headersAt == 0 && now - firstByteAt > headerTimeout) {
+            headerTimeouts.incrementAndGet();
+            return Violation.HEADER_TIMEOUT;
+        }
+        if (bodyTimeout > 0 && headersAt != 0 && bodyAt == 0 && now - headersAt > bodyTimeout) {
+            bodyTimeouts.incrementAndGet();
+            return Violation.BODY_TIMEOUT;
+        }
+        boolean receiving = firstByteAt != 0 && bodyAt == 0;
+        if (tracker.receive.isBelow(receiving, config.getMinReceiveRate(), now)) {
+            slowReceives.incrementAndGet();
+            return Violation.SLOW_RECEIVE;
+        }
+        if (tracker.send.isBelow(sending, config.getMinSendRate(), now)) {
+            slowSends.incrementAndGet();
+            return Violation.SLOW_SEND;
+        }
+        return null;
+    }
+}
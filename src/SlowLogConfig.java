@@ -0,0 +1,53 @@
+package src;
+
+import java.io.IOException;
+
+/**
+ * The "slowLog" block: requests slower than the threshold are logged to
+ * the file.
+ */
+public class SlowLogConfig {
+    private int thresholdMs = 1000;
+    private String file = "logs/slow-requests.log";
+    
+    public int getThresholdMs() { return thresholdMs; }
+    public String getFile() { return file; }
+    
+    public void setThresholdMs(int thresholdMs) { this.thresholdMs = thresholdMs; }
+    public void setFile(String file) { this.file = file; }
+
+    static SlowLogConfig read(JsonReader reader) throws IOException {
+        SlowLogConfig slowLog = new SlowLogConfig();
+        
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            switch (name) {
+                case "thresholdMs":
+                    Integer threshold = ConfigLoader.readInt(reader, slowLog.getThresholdMs());
+                    if (threshold != null) {
+                        slowLog.setThresholdMs(threshold);
+                    }
+                    break;
+                case "file":
+                    String file = ConfigLoader.readString(reader);
+                    if (file != null) {
+                        slowLog.setFile(file);
+                    }
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        
+        return slowLog;
+    }
+
+    void validate() throws IOException {
+        if (thresholdMs < 0 || file.trim().isEmpty()) {
+            throw new IOException("Invalid slowLog settings");
+        }
+    }
+}
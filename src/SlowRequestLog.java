@@ -0,0 +1,92 @@
+package src;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only log of requests that took longer than the configured
+ * threshold, one line per request with its phase breakdown.
+ *
+ * The selector thread only formats the line; the file is written by a
+ * single background thread so a slow disk cannot stall the event loop.
+ */
+public class SlowRequestLog {
+    private final long thresholdNanos;
+    private final BufferedWriter writer;
+    private final ExecutorService executor;
+
+    public SlowRequestLog(SlowLogConfig config) throws IOException {
+        this.thresholdNanos = config.getThresholdMs() * 1_000_000L;
+        Path file = Paths.get(config.getFile());
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "slow-request-log");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public boolean isSlow(long elapsedNanos) {
+        return elapsedNanos >= thresholdNanos;
+    }
+
+    public void log(String entry) {
+        String line = Instant.now() + " " + entry;
+        executor.execute(() -> {
+            try {
+                writer.write(line);
+                writer.newLine();
+                writer.flush();
+            } catch (IOException e) {
+                System.err.println("Failed to write slow request log: " + e.getMessage());
+            }
+        });
+    }
+
+    /** Writes out pending entries and closes the file. */
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(2, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close slow request log: " + e.getMessage());
+        }
+    }
+
+    /** Appends " name=1.234ms", or " name=-" if either end was never reached. */
+    public static void appendPhase(StringBuilder sb, String name, long from, long to) {
+        sb.append(' ').append(name).append('=');
+        if (from == 0 || to == 0) {
+            sb.append('-');
+            return;
+        }
+        long micros = (to - from) / 1000;
+        sb.append(micros / 1000).append('.');
+        long fraction = micros % 1000;
+        if (fraction < 100) {
+            sb.append('0');
+        }
+        if (fraction < 10) {
+            sb.append('0');
+        }
+        sb.append(fraction).append("ms");
+    }
+}
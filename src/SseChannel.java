@@ -0,0 +1,228 @@
+package src;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One named Server-Sent Events channel and its subscribers.
+ *
+ * Each subscriber is a streamed text/event-stream response; events go into
+ * its ResponseStream with offer(), so they leave through the normal write
+ * path (HTTP/1.1 chunked, HTTP/1.0 raw, or HTTP/2 DATA frames). An event is
+ * encoded once per framing and the same read-only bytes are queued for every
+ * subscriber. A subscriber's backlog is bounded by maxBacklogBytes; past it
+ * the subscriber is either dropped or, with overflow "coalesce", keeps only
+ * the newest event until its backlog has drained by half.
+ *
+ * Heartbeat comments go to every subscriber each heartbeat interval, which
+ * keeps proxies from timing the stream out and gives the server's idle
+ * timeout the write progress it watches for; a subscriber that stops
+ * reading makes none and is reaped by that timeout.
+ *
+ * Only the selector thread uses it.
+ */
+public class SseChannel {
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    /** An encoded event, in each framing a subscriber may need. */
+    public static final class Event {
+        private final byte[] raw;
+        private byte[] chunked;
+
+        Event(byte[] raw) {
+            this.raw = raw;
+        }
+
+        byte[] framed(boolean chunkedFraming) {
+            if (!chunkedFraming) {
+                return raw;
+            }
+            if (chunked == null) {
+                byte[] size = (Integer.toHexString(raw.length) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+                chunked = new byte[size.length + raw.length + 2];
+                System.arraycopy(size, 0, chunked, 0, size.length);
+                System.arraycopy(raw, 0, chunked, size.length, raw.length);
+                chunked[chunked.length - 2] = '\r';
+                chunked[chunked.length - 1] = '\n';
+            }
+            return chunked;
+        }
+    }
+
+    public final class Subscription {
+        private final ResponseStream stream;
+        private final boolean chunked;
+        private int index = -1;
+        private Event coalesced;
+        private boolean backlogged;
+
+        Subscription(ResponseStream stream) {
+            this.stream = stream;
+            this.chunked = stream.isChunked();
+        }
+
+        private void deliver(Event event) {
+            if (backlogged) {
+                // Heartbeats are pointless behind a backlog; events replace
+                // whichever one was still waiting.
+                if (event != heartbeat) {
+                    if (coalesced != null) {
+                        coalescedCounter.incrementAndGet();
+                    }
+                    coalesced = event;
+                }
+                return;
+            }
+            try {
+                boolean belowBacklog = stream.offer(event.framed(chunked), false);
+                framesQueued.incrementAndGet();
+                if (!belowBacklog) {
+                    if (coalesce) {
+                        backlogged = true;
+                    } else {
+                        droppedSlow.incrementAndGet();
+                        drop();
+                    }
+                }
+            } catch (IOException e) {
+                // The response was cancelled: the client has gone.
+                unsubscribe(this);
+            }
+        }
+
+        // Runs once the backlog has drained below half.
+        private void drained() {
+            backlogged = false;
+            Event pending = coalesced;
+            coalesced = null;
+            if (pending != null) {
+                deliver(pending);
+            }
+        }
+
+        // Ends the response at once, discarding the backlog; the write path
+        // then closes the connection (or resets the HTTP/2 stream).
+        private void drop() {
+            unsubscribe(this);
+            stream.cancel();
+            stream.fail();
+        }
+    }
+
+    private final SseChannelConfig config;
+    private final long heartbeatMillis;
+    private final boolean coalesce;
+    private final List<Subscription> subscribers = new ArrayList<>();
+    private final Event heartbeat = new Event(HEARTBEAT);
+    private long lastHeartbeat = System.currentTimeMillis();
+    private long nextId;
+
+    private final AtomicLong subscriberGauge;
+    private final AtomicLong published;
+    private final AtomicLong framesQueued;
+    private final AtomicLong droppedSlow;
+    private final AtomicLong coalescedCounter;
+
+    public SseChannel(SseChannelConfig config, long heartbeatMillis, Metrics metrics) {
+        this.config = config;
+        this.heartbeatMillis = heartbeatMillis;
+        this.coalesce = "coalesce".equals(config.getOverflow());
+        this.subscriberGauge = metrics.counter("sse.subscribers");
+        this.published = metrics.counter("sse.events_published");
+        this.framesQueued = metrics.counter("sse.frames_queued");
+        this.droppedSlow = metrics.counter("sse.dropped_slow");
+        this.coalescedCounter = metrics.counter("sse.coalesced");
+    }
+
+    public SseChannelConfig getConfig() {
+        return config;
+    }
+
+    public int size() {
+        return subscribers.size();
+    }
+
+    /** Attaches a streamed response whose headers have already been queued. */
+    public Subscription subscribe(ResponseStream stream) {
+        Subscription subscription = new Subscription(stream);
+        stream.setOnDrained(subscription::drained);
+        subscription.index = subscribers.size();
+        subscribers.add(subscription);
+        subscriberGauge.incrementAndGet();
+        return subscription;
+    }
+
+    public void unsubscribe(Subscription subscription) {
+        int index = subscription.index;
+        if (index < 0) {
+            return;
+        }
+        Subscription last = subscribers.remove(subscribers.size() - 1);
+        if (last != subscription) {
+            subscribers.set(index, last);
+            last.index = index;
+        }
+        subscription.index = -1;
+        subscriberGauge.decrementAndGet();
+    }
+
+    /**
+     * Encodes an event once and queues it for every subscriber. Returns the
+     * number of subscribers it went to.
+     */
+    public int publish(String eventName, String data) {
+        Event event = new Event(encode(++nextId, eventName, data));
+        published.incrementAndGet();
+        int count = subscribers.size();
+        fanOut(event);
+        return count;
+    }
+
+    // Backwards, since a subscriber dropped on the way is replaced by the
+    // last one, which has already been served.
+    private void fanOut(Event event) {
+        for (int i = subscribers.size() - 1; i >= 0; i--) {
+            if (i < subscribers.size()) {
+                subscribers.get(i).deliver(event);
+            }
+        }
+    }
+
+    /** Sends the heartbeat comment when it is due. */
+    public void sweep(long now) {
+        if (now - lastHeartbeat < heartbeatMillis) {
+            return;
+        }
+        lastHeartbeat = now;
+        fanOut(heartbeat);
+    }
+
+    /** Ends every subscriber's stream cleanly, e.g. on shutdown. */
+    public void closeAll() {
+        for (int i = subscribers.size() - 1; i >= 0; i--) {
+            Subscription subscription = subscribers.get(i);
+            unsubscribe(subscription);
+            try {
+                subscription.stream.offer(subscription.chunked ? LAST_CHUNK : null, true);
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    static byte[] encode(long id, String eventName, String data) {
+        StringBuilder sb = new StringBuilder(data.length() + 32);
+        sb.append("id: ").append(id).append('\n');
+        if (eventName != null && !eventName.isEmpty()) {
+            sb.append("event: ").append(eventName.replace('\r', ' ').replace('\n', ' ')).append('\n');
+        }
+        for (String line : data.split("\r\n|\r|\n", -1)) {
+            sb.append("data: ").append(line).append('\n');
+        }
+        sb.append('\n');
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
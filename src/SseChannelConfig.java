@@ -0,0 +1,83 @@
+package src;
+
+import java.io.IOException;
+
+/**
+ * One entry of "sseChannels": a named event stream, its heartbeat and
+ * backlog limits, and the token required to publish to it.
+ */
+public class SseChannelConfig {
+    private String name;
+    private int heartbeatSeconds = 15;
+    private long maxBacklogBytes = 256 * 1024;
+    private String overflow = "drop";
+    private String publishToken;
+    
+    public String getName() { return name; }
+    public int getHeartbeatSeconds() { return heartbeatSeconds; }
+    /** Unsent bytes a subscriber may have queued before overflow applies. */
+    public long getMaxBacklogBytes() { return maxBacklogBytes; }
+    /** "drop" closes a subscriber that falls behind; "coalesce" keeps only its newest event. */
+    public String getOverflow() { return overflow; }
+    /** Bearer token for publishing with POST; null disables it. */
+    public String getPublishToken() { return publishToken; }
+    
+    public void setName(String name) { this.name = name; }
+    public void setHeartbeatSeconds(int heartbeatSeconds) { this.heartbeatSeconds = heartbeatSeconds; }
+    public void setMaxBacklogBytes(long maxBacklogBytes) { this.maxBacklogBytes = maxBacklogBytes; }
+    public void setOverflow(String overflow) { this.overflow = overflow; }
+    public void setPublishToken(String publishToken) { this.publishToken = publishToken; }
+
+    static SseChannelConfig read(JsonReader reader) throws IOException {
+        SseChannelConfig channel = new SseChannelConfig();
+        
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            switch (name) {
+                case "name":
+                    channel.setName(ConfigLoader.readString(reader));
+                    break;
+                case "heartbeatSeconds":
+                    Integer heartbeatSeconds = ConfigLoader.readInt(reader, channel.getHeartbeatSeconds());
+                    if (heartbeatSeconds != null) {
+                        channel.setHeartbeatSeconds(heartbeatSeconds);
+                    }
+                    break;
+                case "maxBacklogBytes":
+                    Long maxBacklogBytes = ConfigLoader.readLong(reader, channel.getMaxBacklogBytes());
+                    if (maxBacklogBytes != null) {
+                        channel.setMaxBacklogBytes(maxBacklogBytes);
+                    }
+                    break;
+                case "overflow":
+                    String overflow = ConfigLoader.readString(reader);
+                    if (overflow != null) {
+                        channel.setOverflow(overflow);
+                    }
+                    break;
+                case "publishToken":
+                    channel.setPublishToken(ConfigLoader.readString(reader));
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        
+        return channel;
+    }
+
+    void validate() throws IOException {
+        if (name == null || name.trim().isEmpty()) {
+            throw new IOException("SSE channel must have a name");
+        }
+        if (heartbeatSeconds <= 0 || maxBacklogBytes <= 0) {
+            throw new IOException("SSE channel " + name + " has invalid limits");
+        }
+        if (!overflow.equals("drop") && !overflow.equals("coalesce")) {
+            throw new IOException("Invalid SSE overflow: " + overflow);
+        }
+    }
+}
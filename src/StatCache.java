@@ -0,0 +1,321 @@
+package src;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metadata cache for the files under the static routes' roots, so a request
+ * for a known file, directory or missing path costs no syscall.
+ *
+ * Paths are looked up one component at a time from their root. Every
+ * directory on the way is listed once and its names are kept (up to
+ * MAX_NAMES; larger ones are not snapshotted), which makes the listing a
+ * negative filter: a name it does not contain is missing without asking the
+ * disk, and so is anything below a missing or non-directory component. A
+ * flood of random 404 probes therefore costs one listing per directory, not
+ * one stat per probe. Stats of the names that do exist are cached next to
+ * the listing.
+ *
+ * Each cached directory is registered with a WatchService, whose events
+ * (polled from the selector loop) update its names and drop the affected
+ * stats; an overflow drops the directory's snapshot altogether. Events
+ * arrive late, so the server's own writes are applied at once through
+ * invalidate(). At most MAX_DIRECTORIES directories are kept, least
+ * recently used first out. Without a WatchService the cache is bypassed.
+ *
+ * Only used on the selector thread.
+ */
+public class StatCache {
+    private static final int MAX_DIRECTORIES = 1024;
+    private static final int MAX_NAMES = 10_000;
+
+    public enum Kind { FILE, DIRECTORY, MISSING }
+
+    public static final class Stat {
+        static final Stat MISSING = new Stat(Kind.MISSING, null);
+        // Metadata that could not be read: reported as missing, never cached.
+        static final Stat UNREADABLE = new Stat(Kind.MISSING, null);
+
+        private final Kind kind;
+        private final BasicFileAttributes attributes;
+
+        private Stat(Kind kind, BasicFileAttributes attributes) {
+            this.kind = kind;
+            this.attributes = attributes;
+        }
+
+        public Kind getKind() { return kind; }
+        public boolean exists() { return kind != Kind.MISSING; }
+        public boolean isDirectory() { return kind == Kind.DIRECTORY; }
+        /** Null for a missing path. */
+        public BasicFileAttributes getAttributes() { return attributes; }
+    }
+
+    // One watched directory: its names, or null if it has too many, and the
+    // stats looked up in it so far.
+    private static final class Directory {
+        final WatchKey key;
+        Set<String> names;
+        final Map<String, Stat> stats = new HashMap<>();
+
+        Directory(WatchKey key, Set<String> names) {
+            this.key = key;
+            this.names = names;
+        }
+    }
+
+    private final List<Path> roots = new ArrayList<>();
+    private final WatchService watcher;
+    private final LinkedHashMap<Path, Directory> directories = new LinkedHashMap<Path, Directory>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Directory> eldest) {
+            if (size() > MAX_DIRECTORIES) {
+                eldest.getValue().key.cancel();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private final AtomicLong hits;
+    private final AtomicLong negativeHits;
+    private final AtomicLong misses;
+    private final AtomicLong invalidations;
+
+    /** roots are absolute, normalized directories; paths outside them are never cached. */
+    public StatCache(Collection<Path> roots, Metrics metrics) {
+        this.roots.addAll(roots);
+        WatchService service = null;
+        try {
+            service = FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            System.err.println("File watching unavailable, static metadata is not cached: " + e.getMessage());
+        }
+        this.watcher = service;
+        this.hits = metrics.counter("statcache.hits");
+        this.negativeHits = metrics.counter("statcache.negative_hits");
+        this.misses = metrics.counter("statcache.misses");
+        this.invalidations = metrics.counter("statcache.invalidations");
+    }
+
+    /** The type and attributes of an absolute, normalized path. */
+    public Stat stat(Path path) {
+        Path root = rootOf(path);
+        if (watcher == null || root == null || path.equals(root)) {
+            misses.incrementAndGet();
+            return statFromDisk(path);
+        }
+        Path current = root;
+        Stat stat = null;
+        for (Path name : root.relativize(path)) {
+            if (stat != null && !stat.isDirectory()) {
+                negativeHits.incrementAndGet();
+                return Stat.MISSING;
+            }
+            Directory directory = directory(current);
+            if (directory == null) {
+                misses.incrementAndGet();
+                return statFromDisk(path);
+            }
+            current = current.resolve(name);
+            stat = child(directory, current, name.toString());
+            if (!stat.exists()) {
+                return stat;
+            }
+        }
+        return stat;
+    }
+
+    private Path rootOf(Path path) {
+        for (Path root : roots) {
+            if (path.startsWith(root)) {
+                return root;
+            }
+        }
+        return null;
+    }
+
+    private Stat child(Directory directory, Path path, String name) {
+        if (directory.names != null && !directory.names.contains(name)) {
+            negativeHits.incrementAndGet();
+            return Stat.MISSING;
+        }
+        Stat stat = directory.stats.get(name);
+        if (stat != null) {
+            hits.incrementAndGet();
+            return stat;
+        }
+        misses.incrementAndGet();
+        stat = statFromDisk(path);
+        if (stat == Stat.UNREADABLE) {
+            return stat;
+        }
+        if (directory.stats.size() >= MAX_NAMES) {
+            directory.stats.clear();
+        }
+        directory.stats.put(name, stat);
+        return stat;
+    }
+
+    private Directory directory(Path dir) {
+        Directory directory = directories.get(dir);
+        if (directory != null) {
+            return directory;
+        }
+        WatchKey key;
+        try {
+            // Watch before listing, so a change in between is not lost.
+            key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | ClosedWatchServiceException e) {
+            return null;
+        }
+        try {
+            directory = new Directory(key, list(dir));
+        } catch (IOException e) {
+            key.cancel();
+            return null;
+        }
+        directories.put(dir, directory);
+        return directory;
+    }
+
+    private static Set<String> list(Path dir) throws IOException {
+        Set<String> names = new HashSet<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path entry : stream) {
+                if (names.size() == MAX_NAMES) {
+                    return null;
+                }
+                names.add(entry.getFileName().toString());
+            }
+        }
+        return names;
+    }
+
+    private static Stat statFromDisk(Path path) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return new Stat(attributes.isDirectory() ? Kind.DIRECTORY : Kind.FILE, attributes);
+        } catch (NoSuchFileException e) {
+            return Stat.MISSING;
+        } catch (IOException e) {
+            return Stat.UNREADABLE;
+        }
+    }
+
+    /**
+     * Forgets what is cached about an absolute, normalized path the server
+     * has just created, replaced or removed, so the next stat sees the change
+     * without waiting for its event. The names of the path and of the
+     * directories above it are added to their parents' listings; one that
+     * turns out not to exist costs a stat, not a wrong answer.
+     */
+    public void invalidate(Path path) {
+        Path root = rootOf(path);
+        if (watcher == null || root == null) {
+            return;
+        }
+        invalidations.incrementAndGet();
+        dropBelow(path);
+        for (Path current = path; !current.equals(root); current = current.getParent()) {
+            Directory directory = directories.get(current.getParent());
+            if (directory == null) {
+                continue;
+            }
+            String name = current.getFileName().toString();
+            directory.stats.remove(name);
+            if (directory.names != null) {
+                directory.names.add(name);
+                if (directory.names.size() > MAX_NAMES) {
+                    directory.names = null;
+                }
+            }
+        }
+    }
+
+    /** Applies pending change events; called once per loop iteration. */
+    public void processEvents() {
+        if (watcher == null) {
+            return;
+        }
+        WatchKey key;
+        while ((key = poll()) != null) {
+            Path dir = (Path) key.watchable();
+            Directory directory = directories.get(dir);
+            if (directory == null || directory.key != key) {
+                key.cancel();
+                continue;
+            }
+            for (WatchEvent<?> event : key.pollEvents()) {
+                invalidations.incrementAndGet();
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    dropBelow(dir);
+                    break;
+                }
+                String name = event.context().toString();
+                directory.stats.remove(name);
+                if (directory.names != null) {
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                        directory.names.add(name);
+                        if (directory.names.size() > MAX_NAMES) {
+                            directory.names = null;
+                        }
+                    } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        directory.names.remove(name);
+                    }
+                }
+                if (event.kind() != StandardWatchEventKinds.ENTRY_MODIFY) {
+                    // A subdirectory replaced or removed is listed afresh.
+                    dropBelow(dir.resolve(name));
+                }
+            }
+            if (!key.reset()) {
+                // The directory itself is gone.
+                dropBelow(dir);
+            }
+        }
+    }
+
+    // Null once close() has been called, possibly from another thread while
+    // the loop is still running.
+    private WatchKey poll() {
+        try {
+            return watcher.poll();
+        } catch (ClosedWatchServiceException e) {
+            return null;
+        }
+    }
+
+    // Forgets dir and every cached directory under it.
+    private void dropBelow(Path dir) {
+        for (Iterator<Map.Entry<Path, Directory>> it = directories.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Path, Directory> entry = it.next();
+            if (entry.getKey().startsWith(dir)) {
+                entry.getValue().key.cancel();
+                it.remove();
+            }
+        }
+    }
+
+    public void close() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
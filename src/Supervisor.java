@@ -0,0 +1,442 @@
+package src;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prefork mode: runs prefork.workers copies of the server as child JVMs.
+ *
+ * Every worker loads the same config file and binds the same ports with
+ * SO_REUSEPORT, so the kernel spreads new connections across them; each
+ * one is still a single-threaded server of its own. The supervisor
+ * restarts a worker that exits, backing off while it keeps failing soon
+ * after starting, and rolls all workers over when the config file
+ * changes: a replacement is started and must report ready before the
+ * worker it replaces is stopped, and a replacement that fails ends the
+ * rollout with the remaining workers untouched.
+ *
+ * Workers report over a Unix domain socket in a temporary directory only
+ * the supervisor's user can enter: a "worker PID" line once their
+ * listeners are bound, then a snapshot of their metrics ("name value"
+ * lines ended by a blank line) every reportIntervalMs. A connection
+ * naming a pid the supervisor did not start is dropped. The supervisor's
+ * metrics are the sum over the live workers' latest snapshots, plus its
+ * own supervisor.* counters. A worker exits when the channel closes, so
+ * none outlives its supervisor.
+ */
+public class Supervisor {
+    static final String WORKER_FLAG = "--worker";
+
+    private static final long POLL_INTERVAL_MS = 200;
+    private static final long MAX_RESTART_DELAY_MS = 30_000;
+    // A worker that dies sooner than this after starting is failing, not
+    // crashing now and then; its restarts back off.
+    private static final long STABLE_RUN_MS = 10_000;
+
+    // One worker slot and the process currently serving it.
+    private static class Worker {
+        final int slot;
+        Process process;
+        long startedAt;
+        long restartDelay;
+        long restartAt;
+
+        Worker(int slot, long restartDelay) {
+            this.slot = slot;
+            this.restartDelay = restartDelay;
+        }
+    }
+
+    private final Path configFile;
+    private ConfigLoader.Config config;
+    private FileTime configModified;
+    private Path channelDirectory;
+    private Path channelPath;
+    private ServerSocketChannel channel;
+    private final List<Worker> workers = new ArrayList<>();
+    // Pids of the workers started and not yet reaped, replacements
+    // included; only these may report.
+    private final Set<Long> children = ConcurrentHashMap.newKeySet();
+    // Latest metrics snapshot of each connected worker, by pid.
+    private final Map<Long, Map<String, Long>> reports = new ConcurrentHashMap<>();
+    private final Metrics metrics = new Metrics();
+    private final AtomicLong restarts;
+    private final AtomicLong reloads;
+    private final AtomicLong reloadFailures;
+    private volatile boolean stopping;
+
+    public Supervisor(String configFile, ConfigLoader.Config config) {
+        this.configFile = Paths.get(configFile);
+        this.config = config;
+        this.restarts = metrics.counter("supervisor.restarts");
+        this.reloads = metrics.counter("supervisor.reloads");
+        this.reloadFailures = metrics.counter("supervisor.reload_failures");
+    }
+
+    /** Starts the workers and supervises them until the JVM shuts down. */
+    public void run() throws IOException {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            if (!probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                throw new IOException("Prefork mode needs SO_REUSEPORT, which this platform does not support");
+            }
+        }
+        configModified = Files.getLastModifiedTime(configFile);
+        channelDirectory = Files.createTempDirectory("localserver-",
+            PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        channelPath = channelDirectory.resolve("supervisor.sock");
+        channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        channel.bind(UnixDomainSocketAddress.of(channelPath));
+        Thread acceptor = new Thread(this::acceptReports, "supervisor-reports");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        Runnable statisticsEvent = ServerEvents.registerStatistics(metrics);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println("Stopping workers...");
+            shutdown();
+            ServerEvents.unregisterStatistics(statisticsEvent);
+        }));
+
+        int count = config.getPrefork().getWorkers();
+        System.out.println("Supervisor " + ProcessHandle.current().pid() + " starting " + count + " workers");
+        synchronized (this) {
+            for (int slot = 0; slot < count; slot++) {
+                Worker worker = new Worker(slot, config.getPrefork().getRestartDelayMs());
+                workers.add(worker);
+                launch(worker);
+            }
+        }
+
+        while (!stopping) {
+            try {
+                Thread.sleep(POLL_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            synchronized (this) {
+                if (stopping) {
+                    return;
+                }
+                reap();
+                checkConfig();
+                aggregate();
+            }
+        }
+    }
+
+    // Notices exited workers and relaunches the ones whose delay is over.
+    private void reap() {
+        long now = System.currentTimeMillis();
+        PreforkConfig prefork = config.getPrefork();
+        for (Worker worker : workers) {
+            if (worker.process != null && !worker.process.isAlive()) {
+                forget(worker.process);
+                System.err.println("Worker " + worker.slot + " (pid " + worker.process.pid()
+                    + ") exited with status " + worker.process.exitValue());
+                worker.restartDelay = now - worker.startedAt < STABLE_RUN_MS
+                    ? Math.min(worker.restartDelay * 2, Math.max(MAX_RESTART_DELAY_MS, prefork.getRestartDelayMs()))
+                    : prefork.getRestartDelayMs();
+                worker.restartAt = now + worker.restartDelay;
+                worker.process = null;
+            }
+            if (worker.process == null && now >= worker.restartAt) {
+                restarts.incrementAndGet();
+                launch(worker);
+            }
+        }
+    }
+
+    private void launch(Worker worker) {
+        try {
+            worker.process = start(worker.slot);
+            worker.startedAt = System.currentTimeMillis();
+            System.out.println("Worker " + worker.slot + " started (pid " + worker.process.pid() + ")");
+        } catch (IOException e) {
+            System.err.println("Failed to start worker " + worker.slot + ": " + e.getMessage());
+            worker.process = null;
+            worker.restartAt = System.currentTimeMillis() + worker.restartDelay;
+        }
+    }
+
+    // The same JVM, class path and options as this one, minus a debug
+    // agent, whose port only one process can hold.
+    private Process start(int slot) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (!argument.startsWith("-agentlib:jdwp")) {
+                command.add(argument);
+            }
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Main.class.getName());
+        command.add(WORKER_FLAG);
+        command.add(Integer.toString(slot));
+        command.add(channelPath.toString());
+        Process process = new ProcessBuilder(command).inheritIO().start();
+        children.add(process.pid());
+        return process;
+    }
+
+    private void forget(Process process) {
+        children.remove(process.pid());
+        reports.remove(process.pid());
+    }
+
+    private void checkConfig() {
+        FileTime modified;
+        try {
+            modified = Files.getLastModifiedTime(configFile);
+        } catch (IOException e) {
+            return;
+        }
+        if (modified.equals(configModified)) {
+            return;
+        }
+        configModified = modified;
+        ConfigLoader.Config updated;
+        try {
+            updated = ConfigLoader.load(configFile.toString());
+        } catch (IOException e) {
+            reloadFailures.incrementAndGet();
+            System.err.println("Config change ignored: " + e.getMessage());
+            return;
+        }
+        if (updated.getPrefork().getWorkers() == 0) {
+            reloadFailures.incrementAndGet();
+            System.err.println("Config change ignored: prefork.workers cannot drop to 0 while supervising");
+            return;
+        }
+        reloads.incrementAndGet();
+        config = updated;
+        System.out.println("Config changed, restarting workers one at a time");
+        rollOver();
+    }
+
+    // Drops the slots the new worker count no longer has, replaces every
+    // remaining running worker in turn, then adds the new slots.
+    private void rollOver() {
+        int count = config.getPrefork().getWorkers();
+        while (workers.size() > count) {
+            Worker worker = workers.remove(workers.size() - 1);
+            if (worker.process != null) {
+                stop(worker.process);
+                forget(worker.process);
+            }
+        }
+        for (Worker worker : workers) {
+            if (stopping) {
+                return;
+            }
+            if (worker.process == null) {
+                // Already waiting to restart; it will pick up the new config.
+                continue;
+            }
+            Process replacement;
+            try {
+                replacement = start(worker.slot);
+            } catch (IOException e) {
+                System.err.println("Rollout stopped, worker " + worker.slot + " not replaced: " + e.getMessage());
+                break;
+            }
+            if (!awaitReady(replacement)) {
+                System.err.println("Rollout stopped, replacement for worker " + worker.slot + " did not become ready");
+                stop(replacement);
+                forget(replacement);
+                break;
+            }
+            Process old = worker.process;
+            worker.process = replacement;
+            worker.startedAt = System.currentTimeMillis();
+            worker.restartDelay = config.getPrefork().getRestartDelayMs();
+            stop(old);
+            forget(old);
+            System.out.println("Worker " + worker.slot + " replaced (pid " + old.pid() + " -> " + replacement.pid() + ")");
+        }
+        while (workers.size() < count) {
+            Worker worker = new Worker(workers.size(), config.getPrefork().getRestartDelayMs());
+            workers.add(worker);
+            launch(worker);
+        }
+    }
+
+    // A worker is ready once it has bound its ports and sent its first report.
+    private boolean awaitReady(Process process) {
+        long deadline = System.currentTimeMillis() + config.getPrefork().getReadyTimeoutMs();
+        while (System.currentTimeMillis() < deadline && process.isAlive() && !stopping) {
+            if (reports.containsKey(process.pid())) {
+                return true;
+            }
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    // SIGTERM runs the worker's shutdown hook; one that hangs is killed.
+    private void stop(Process process) {
+        process.destroy();
+        try {
+            if (!process.waitFor(config.getPrefork().getStopTimeoutMs(), TimeUnit.MILLISECONDS)) {
+                process.destroyForcibly();
+            }
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+        }
+    }
+
+    private void shutdown() {
+        stopping = true;
+        synchronized (this) {
+            for (Worker worker : workers) {
+                if (worker.process != null) {
+                    worker.process.destroy();
+                }
+            }
+            for (Worker worker : workers) {
+                if (worker.process != null) {
+                    stop(worker.process);
+                }
+            }
+            try {
+                channel.close();
+                Files.deleteIfExists(channelPath);
+                Files.deleteIfExists(channelDirectory);
+            } catch (IOException e) {
+                System.err.println("Error closing report channel: " + e.getMessage());
+            }
+            aggregate();
+            System.out.print(metrics);
+            System.out.println("Supervisor stopped.");
+        }
+    }
+
+    // Sums the live workers' latest snapshots into the supervisor's metrics.
+    // Names no worker reports any more fall back to 0.
+    private void aggregate() {
+        Map<String, Long> totals = new HashMap<>();
+        for (Map<String, Long> report : reports.values()) {
+            for (Map.Entry<String, Long> entry : report.entrySet()) {
+                totals.merge(entry.getKey(), entry.getValue(), Long::sum);
+            }
+        }
+        for (String name : metrics.snapshot().keySet()) {
+            if (!name.startsWith("supervisor.")) {
+                metrics.set(name, totals.getOrDefault(name, 0L));
+            }
+        }
+        for (Map.Entry<String, Long> entry : totals.entrySet()) {
+            metrics.set(entry.getKey(), entry.getValue());
+        }
+        metrics.set("supervisor.workers", reports.size());
+    }
+
+    private void acceptReports() {
+        while (true) {
+            SocketChannel connection;
+            try {
+                connection = channel.accept();
+            } catch (IOException e) {
+                return;
+            }
+            Thread reader = new Thread(() -> readReports(connection), "supervisor-report-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    private void readReports(SocketChannel connection) {
+        long pid = -1;
+        try (BufferedReader in = new BufferedReader(
+                new InputStreamReader(Channels.newInputStream(connection), StandardCharsets.UTF_8))) {
+            String hello = in.readLine();
+            if (hello == null || !hello.startsWith("worker ")) {
+                return;
+            }
+            long claimed = Long.parseLong(hello.substring(7).trim());
+            if (!children.contains(claimed)) {
+                System.err.println("Dropped report channel claiming pid " + claimed + ", not a worker");
+                return;
+            }
+            pid = claimed;
+            Map<String, Long> snapshot = new HashMap<>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty()) {
+                    if (!children.contains(pid)) {
+                        // Reaped or stopped meanwhile.
+                        return;
+                    }
+                    reports.put(pid, snapshot);
+                    snapshot = new HashMap<>();
+                    continue;
+                }
+                int space = line.lastIndexOf(' ');
+                if (space > 0) {
+                    snapshot.put(line.substring(0, space), Long.parseLong(line.substring(space + 1)));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // A worker that breaks the protocol is dropped from the totals.
+        } finally {
+            // On shutdown the last reports are kept for the final totals.
+            if (pid != -1 && !stopping) {
+                reports.remove(pid);
+            }
+        }
+    }
+
+    /**
+     * Worker side: once the server is listening, connects to the
+     * supervisor and sends its metrics every intervalMillis. Exits the JVM,
+     * running the server's shutdown hook, when the supervisor goes away.
+     */
+    static void reportTo(Server server, String channelPath, long intervalMillis) {
+        Thread reporter = new Thread(() -> {
+            try {
+                while (!server.isListening()) {
+                    Thread.sleep(50);
+                }
+                try (SocketChannel connection = SocketChannel.open(UnixDomainSocketAddress.of(channelPath))) {
+                    OutputStream out = Channels.newOutputStream(connection);
+                    out.write(("worker " + ProcessHandle.current().pid() + "\n").getBytes(StandardCharsets.UTF_8));
+                    while (true) {
+                        out.write((server.getMetrics() + "\n").getBytes(StandardCharsets.UTF_8));
+                        out.flush();
+                        Thread.sleep(intervalMillis);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Supervisor gone, shutting down: " + e.getMessage());
+                System.exit(1);
+            } catch (InterruptedException e) {
+                // Shutting down.
+            }
+        }, "supervisor-reporter");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+}
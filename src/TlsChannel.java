@@ -0,0 +1,361 @@
+package src;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * The TLS layer of one connection, an SSLEngine driven from the selector
+ * loop. It stands in for the SocketChannel wherever the connection is read
+ * or written:
+ * - read() decrypts into the caller's buffer and returns -1 on close_notify
+ *   or end of stream.
+ * - write() only reports bytes whose record has reached the socket. After a
+ *   short write the record is kept and the same bytes are expected again,
+ *   which is how every writer here retries.
+ * - Records already taken off the socket are not signalled by the selector
+ *   again, so readers check hasBufferedInput() before waiting for OP_READ.
+ *
+ * The CPU-heavy parts of the handshake (certificate signing, key agreement)
+ * are delegated tasks; they run on the listener's task executor while the
+ * connection waits with no interest ops, and the loop is told to continue
+ * once they are done.
+ *
+ * Buffers come from the listener's pool and go back as soon as they are
+ * empty, so an idle keep-alive connection holds none.
+ *
+ * Only the selector thread uses it, apart from the delegated tasks.
+ */
+public class TlsChannel implements ByteChannel {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final int RECORD_HEADER_LENGTH = 5;
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final TlsContext context;
+    private final Runnable onTasksDone;
+    private final long handshakeStart;
+
+    // All three are in fill mode: pending bytes run from 0 to position.
+    private ByteBuffer netIn;
+    private ByteBuffer appIn;
+    private ByteBuffer netOut;
+    // Plaintext of the caller's current write whose record is still in netOut.
+    private int pendingPlain;
+
+    private volatile boolean tasksRunning;
+    private boolean handshakeComplete;
+    private boolean inputClosed;
+    private boolean closed;
+
+    TlsChannel(SocketChannel channel, SSLEngine engine, TlsContext context, Runnable onTasksDone) {
+        this.channel = channel;
+        this.engine = engine;
+        this.context = context;
+        this.onTasksDone = onTasksDone;
+        this.handshakeStart = System.currentTimeMillis();
+    }
+
+    public boolean isHandshakeComplete() {
+        return handshakeComplete;
+    }
+
+    /**
+     * Advances the handshake as far as it can without blocking. Returns the
+     * interest ops it is waiting on (0 while delegated tasks run), or -1
+     * once the handshake is complete.
+     */
+    public int handshake() throws IOException {
+        try {
+            while (!handshakeComplete) {
+                SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+                // Consecutive records of one flight go out in a single write.
+                if (status != SSLEngineResult.HandshakeStatus.NEED_WRAP && !flush()) {
+                    return SelectionKey.OP_WRITE;
+                }
+                if (tasksRunning) {
+                    return 0;
+                }
+                switch (status) {
+                    case NEED_TASK:
+                        runDelegatedTasks();
+                        return 0;
+                    case NEED_WRAP:
+                        if (wrap(EMPTY).getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && !flush()) {
+                            return SelectionKey.OP_WRITE;
+                        }
+                        break;
+                    case NEED_UNWRAP:
+                    case NEED_UNWRAP_AGAIN:
+                        SSLEngineResult.Status result = unwrap();
+                        if (result == SSLEngineResult.Status.CLOSED) {
+                            throw new SSLException("Connection closed during handshake");
+                        }
+                        if (result == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                            int n = fill();
+                            if (n < 0) {
+                                throw new SSLException("Connection closed during handshake");
+                            }
+                            if (n == 0) {
+                                return SelectionKey.OP_READ;
+                            }
+                        }
+                        break;
+                    default:
+                        finishHandshake();
+                        break;
+                }
+            }
+            releaseIdleBuffers();
+            return -1;
+        } catch (IOException e) {
+            context.failures.incrementAndGet();
+            throw e;
+        }
+    }
+
+    private void runDelegatedTasks() throws IOException {
+        tasksRunning = true;
+        try {
+            context.getTaskExecutor().execute(() -> {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                    context.delegatedTasks.incrementAndGet();
+                }
+                tasksRunning = false;
+                onTasksDone.run();
+            });
+        } catch (RejectedExecutionException e) {
+            throw new SSLException("TLS task executor is shut down");
+        }
+    }
+
+    private void finishHandshake() {
+        handshakeComplete = true;
+        long elapsed = System.currentTimeMillis() - handshakeStart;
+        context.handshakes.incrementAndGet();
+        context.handshakeMillis.addAndGet(elapsed);
+        context.metrics.max("tls.handshake_ms_max", elapsed);
+        // A resumed session keeps the creation time of the one it resumes.
+        if (engine.getSession().getCreationTime() < handshakeStart) {
+            context.resumed.incrementAndGet();
+        }
+    }
+
+    /** Whether decrypted bytes, or a whole record, are waiting to be read. */
+    public boolean hasBufferedInput() {
+        if (appIn != null && appIn.position() > 0) {
+            return true;
+        }
+        if (netIn == null || netIn.position() < RECORD_HEADER_LENGTH) {
+            return false;
+        }
+        int length = ((netIn.get(3) & 0xff) << 8) | (netIn.get(4) & 0xff);
+        return netIn.position() >= RECORD_HEADER_LENGTH + length;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        boolean endOfStream = false;
+        while (dst.hasRemaining()) {
+            if (appIn != null && appIn.position() > 0) {
+                appIn.flip();
+                int n = Math.min(appIn.remaining(), dst.remaining());
+                ByteBuffer slice = appIn.duplicate();
+                slice.limit(slice.position() + n);
+                dst.put(slice);
+                appIn.position(appIn.position() + n);
+                appIn.compact();
+                continue;
+            }
+            if (inputClosed) {
+                break;
+            }
+            SSLEngineResult.Status status = unwrap();
+            if (status == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                // Hand over what is decrypted before going back to the socket.
+                if (dst.position() > start) {
+                    break;
+                }
+                int n = fill();
+                if (n < 0) {
+                    endOfStream = true;
+                    break;
+                }
+                if (n == 0) {
+                    break;
+                }
+            } else if (status == SSLEngineResult.Status.OK) {
+                answerPostHandshake();
+            }
+        }
+        releaseIdleBuffers();
+        int n = dst.position() - start;
+        return n == 0 && (endOfStream || inputClosed) ? -1 : n;
+    }
+
+    // Post-handshake messages such as a TLS 1.3 KeyUpdate may need a reply.
+    // Renegotiation would need delegated tasks mid-request and is refused.
+    private void answerPostHandshake() throws IOException {
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_WRAP:
+                    if (!flush()) {
+                        return;
+                    }
+                    wrap(EMPTY);
+                    break;
+                case NOT_HANDSHAKING:
+                case FINISHED:
+                    flush();
+                    return;
+                default:
+                    throw new SSLException("TLS renegotiation is not supported");
+            }
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        int written = 0;
+        if (pendingPlain > 0) {
+            if (!flush()) {
+                return 0;
+            }
+            src.position(src.position() + pendingPlain);
+            written = pendingPlain;
+            pendingPlain = 0;
+        } else if (!flush()) {
+            return 0;
+        }
+        while (src.hasRemaining()) {
+            int start = src.position();
+            SSLEngineResult result = wrap(src);
+            if (result.getStatus() != SSLEngineResult.Status.OK) {
+                throw new SSLException("Cannot encrypt response: " + result.getStatus());
+            }
+            if (!flush()) {
+                pendingPlain = src.position() - start;
+                src.position(start);
+                break;
+            }
+            written += src.position() - start;
+        }
+        releaseIdleBuffers();
+        return written;
+    }
+
+    // Reads whatever the socket has into netIn.
+    private int fill() throws IOException {
+        if (netIn == null) {
+            netIn = context.acquire();
+        }
+        if (!netIn.hasRemaining()) {
+            throw new SSLException("TLS record exceeds the maximum size");
+        }
+        return channel.read(netIn);
+    }
+
+    private SSLEngineResult.Status unwrap() throws IOException {
+        if (netIn == null || netIn.position() == 0) {
+            return SSLEngineResult.Status.BUFFER_UNDERFLOW;
+        }
+        if (appIn == null) {
+            appIn = context.acquire();
+        }
+        netIn.flip();
+        SSLEngineResult result;
+        try {
+            result = engine.unwrap(netIn, appIn);
+        } finally {
+            netIn.compact();
+        }
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+            inputClosed = true;
+        }
+        return result.getStatus();
+    }
+
+    // Appends one record to netOut.
+    private SSLEngineResult wrap(ByteBuffer src) throws IOException {
+        if (netOut == null) {
+            netOut = context.acquire();
+        }
+        return engine.wrap(src, netOut);
+    }
+
+    // Writes out netOut; true once it is empty.
+    private boolean flush() throws IOException {
+        if (netOut == null || netOut.position() == 0) {
+            return true;
+        }
+        netOut.flip();
+        try {
+            channel.write(netOut);
+        } finally {
+            netOut.compact();
+        }
+        return netOut.position() == 0;
+    }
+
+    private void releaseIdleBuffers() {
+        if (netIn != null && netIn.position() == 0) {
+            context.release(netIn);
+            netIn = null;
+        }
+        if (appIn != null && appIn.position() == 0) {
+            context.release(appIn);
+            appIn = null;
+        }
+        if (netOut != null && netOut.position() == 0) {
+            context.release(netOut);
+            netOut = null;
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed && channel.isOpen();
+    }
+
+    /**
+     * Sends close_notify (or the alert of a failed handshake) if the socket
+     * can take it, then closes the socket.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (channel.isOpen() && !tasksRunning && flush()) {
+                engine.closeOutbound();
+                wrap(EMPTY);
+                flush();
+            }
+        } catch (IOException e) {
+        } finally {
+            context.release(netIn);
+            context.release(appIn);
+            context.release(netOut);
+            netIn = null;
+            appIn = null;
+            netOut = null;
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package src;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** TLS termination on one listener, with the key and certificate from a local keystore. */
+public class TlsConfig {
+    private String keyStore;
+    private String keyStorePassword;
+    private String keyStoreType = "PKCS12";
+    private String keyPassword;
+    private List<String> protocols = new ArrayList<>(Arrays.asList("TLSv1.3", "TLSv1.2"));
+    private int sessionCacheSize = 20000;
+    private int sessionTimeoutSeconds = 86400;
+    private boolean sessionTickets = true;
+    private int bufferPoolSize = 256;
+    
+    public String getKeyStore() { return keyStore; }
+    public String getKeyStorePassword() { return keyStorePassword; }
+    public String getKeyStoreType() { return keyStoreType; }
+    /** Password of the private key; the keystore password when null. */
+    public String getKeyPassword() { return keyPassword; }
+    public List<String> getProtocols() { return protocols; }
+    /** Server-side sessions kept for resumption by session ID. */
+    public int getSessionCacheSize() { return sessionCacheSize; }
+    public int getSessionTimeoutSeconds() { return sessionTimeoutSeconds; }
+    /** Stateless resumption tickets; a JVM-wide setting, so all TLS listeners must agree. */
+    public boolean isSessionTickets() { return sessionTickets; }
+    /** Idle network and application buffers kept for reuse. */
+    public int getBufferPoolSize() { return bufferPoolSize; }
+    
+    public void setKeyStore(String keyStore) { this.keyStore = keyStore; }
+    public void setKeyStorePassword(String keyStorePassword) { this.keyStorePassword = keyStorePassword; }
+    public void setKeyStoreType(String keyStoreType) { this.keyStoreType = keyStoreType; }
+    public void setKeyPassword(String keyPassword) { this.keyPassword = keyPassword; }
+    public void setProtocols(List<String> protocols) { this.protocols = protocols; }
+    public void setSessionCacheSize(int sessionCacheSize) { this.sessionCacheSize = sessionCacheSize; }
+    public void setSessionTimeoutSeconds(int sessionTimeoutSeconds) { this.sessionTimeoutSeconds = sessionTimeoutSeconds; }
+    public void setSessionTickets(boolean sessionTickets) { this.sessionTickets = sessionTickets; }
+    public void setBufferPoolSize(int bufferPoolSize) { this.bufferPoolSize = bufferPoolSize; }
+
+    static TlsConfig read(JsonReader reader) throws IOException {
+        TlsConfig tls = new TlsConfig();
+        
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            Integer value;
+            switch (name) {
+                case "keyStore":
+                    tls.setKeyStore(ConfigLoader.readString(reader));
+                    break;
+                case "keyStorePassword":
+                    tls.setKeyStorePassword(ConfigLoader.readString(reader));
+                    break;
+                case "keyStoreType":
+                    String keyStoreType = ConfigLoader.readString(reader);
+                    if (keyStoreType != null) {
+                        tls.setKeyStoreType(keyStoreType);
+                    }
+                    break;
+                case "keyPassword":
+                    tls.setKeyPassword(ConfigLoader.readString(reader));
+                    break;
+                case "protocols":
+                    if (reader.peek() == JsonReader.Token.BEGIN_ARRAY) {
+                        List<String> protocols = new ArrayList<>();
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            String protocol = ConfigLoader.readString(reader);
+                            if (protocol != null) {
+                                protocols.add(protocol.trim());
+                            }
+                        }
+                        reader.endArray();
+                        tls.setProtocols(protocols);
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                case "sessionCacheSize":
+                    value = ConfigLoader.readInt(reader, tls.getSessionCacheSize());
+                    if (value != null) {
+                        tls.setSessionCacheSize(value);
+                    }
+                    break;
+                case "sessionTimeoutSeconds":
+                    value = ConfigLoader.readInt(reader, tls.getSessionTimeoutSeconds());
+                    if (value != null) {
+                        tls.setSessionTimeoutSeconds(value);
+                    }
+                    break;
+                case "sessionTickets":
+                    Boolean sessionTickets = ConfigLoader.readBoolean(reader);
+                    if (sessionTickets != null) {
+                        tls.setSessionTickets(sessionTickets);
+                    }
+                    break;
+                case "bufferPoolSize":
+                    value = ConfigLoader.readInt(reader, tls.getBufferPoolSize());
+                    if (value != null) {
+                        tls.setBufferPoolSize(value);
+                    }
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        
+        return tls;
+    }
+
+    void validate(int port) throws IOException {
+        if (keyStore == null || keyStore.trim().isEmpty() || keyStorePassword == null) {
+            throw new IOException("TLS on port " + port + " needs a keyStore and keyStorePassword");
+        }
+        if (protocols.isEmpty() || sessionCacheSize < 0 || sessionTimeoutSeconds < 0 || bufferPoolSize < 0) {
+            throw new IOException("Invalid TLS settings for port " + port);
+        }
+    }
+}
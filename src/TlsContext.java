@@ -0,0 +1,127 @@
+package src;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * TLS settings shared by every connection on one listener: the SSLContext
+ * built from the listener's keystore, its server-side session cache, the
+ * pool of network and application buffers, and the handshake metrics.
+ *
+ * Sessions are resumed from the cache by session ID (TLS 1.2) or from
+ * stateless tickets (TLS 1.3 PSKs, and TLS 1.2 when the client offers
+ * them), so a returning client skips the certificate exchange and the
+ * key-agreement work that dominates a full handshake.
+ *
+ * The buffer pool is only touched on the selector thread.
+ */
+public class TlsContext {
+    private final SSLContext sslContext;
+    private final String[] protocols;
+    private final Executor taskExecutor;
+    private final int bufferSize;
+    private final int maxPooledBuffers;
+    private final ArrayDeque<ByteBuffer> pool = new ArrayDeque<>();
+
+    final AtomicLong handshakes;
+    final AtomicLong resumed;
+    final AtomicLong failures;
+    final AtomicLong delegatedTasks;
+    final AtomicLong handshakeMillis;
+    final Metrics metrics;
+
+    public TlsContext(TlsConfig config, Executor taskExecutor, Metrics metrics) throws IOException {
+        try {
+            // Both are read once, when the first SSLContext is set up;
+            // ConfigLoader makes sure all listeners agree on tickets.
+            System.setProperty("jdk.tls.server.enableSessionTicketExtension", String.valueOf(config.isSessionTickets()));
+            System.setProperty("jdk.tls.rejectClientInitiatedRenegotiation", "true");
+
+            KeyStore keyStore = KeyStore.getInstance(config.getKeyStoreType());
+            try (InputStream in = Files.newInputStream(Paths.get(config.getKeyStore()))) {
+                keyStore.load(in, config.getKeyStorePassword().toCharArray());
+            }
+            String keyPassword = config.getKeyPassword() != null ? config.getKeyPassword() : config.getKeyStorePassword();
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keyStore, keyPassword.toCharArray());
+
+            sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(keyManagers.getKeyManagers(), null, null);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot load TLS keystore " + config.getKeyStore() + ": " + e.getMessage(), e);
+        }
+
+        SSLSessionContext sessions = sslContext.getServerSessionContext();
+        sessions.setSessionCacheSize(config.getSessionCacheSize());
+        sessions.setSessionTimeout(config.getSessionTimeoutSeconds());
+
+        this.protocols = config.getProtocols().toArray(new String[0]);
+        this.taskExecutor = taskExecutor;
+        this.maxPooledBuffers = config.getBufferPoolSize();
+        // One size for every pooled buffer: the larger of a whole TLS record
+        // and its decrypted contents, so any buffer can serve either role.
+        SSLEngine template = sslContext.createSSLEngine();
+        this.bufferSize = Math.max(template.getSession().getPacketBufferSize(),
+                                   template.getSession().getApplicationBufferSize());
+
+        this.metrics = metrics;
+        this.handshakes = metrics.counter("tls.handshakes");
+        this.resumed = metrics.counter("tls.handshakes_resumed");
+        this.failures = metrics.counter("tls.handshake_failures");
+        this.delegatedTasks = metrics.counter("tls.delegated_tasks");
+        this.handshakeMillis = metrics.counter("tls.handshake_ms_total");
+    }
+
+    /**
+     * Starts the server side of a handshake on an accepted connection.
+     * onTasksDone is called from a worker thread once delegated handshake
+     * work has finished; it should continue the handshake on the loop.
+     */
+    public TlsChannel open(SocketChannel channel, Runnable onTasksDone) throws IOException {
+        SSLEngine engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setProtocols(protocols);
+        engine.setSSLParameters(parameters);
+        // HTTP/2 is only offered in cleartext, so ALPN never selects h2; a
+        // client offering nothing else gets no ALPN answer rather than an alert.
+        engine.setHandshakeApplicationProtocolSelector((e, offered) ->
+            offered.contains("http/1.1") ? "http/1.1" : offered.contains("http/1.0") ? "http/1.0" : "");
+        engine.beginHandshake();
+        return new TlsChannel(channel, engine, this, onTasksDone);
+    }
+
+    Executor getTaskExecutor() {
+        return taskExecutor;
+    }
+
+    ByteBuffer acquire() {
+        ByteBuffer buffer = pool.pollFirst();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    void release(ByteBuffer buffer) {
+        if (buffer != null && pool.size() < maxPooledBuffers) {
+            pool.addFirst(buffer);
+        }
+    }
+}
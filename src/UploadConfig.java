@@ -0,0 +1,62 @@
+package src;
+
+import java.io.IOException;
+
+/**
+ * A route's "upload" block: limits on multipart form uploads.
+ */
+public class UploadConfig {
+    private long maxFileSize = 100L * 1024 * 1024;
+    private int maxFieldSize = 64 * 1024;
+    private int maxParts = 64;
+    
+    public long getMaxFileSize() { return maxFileSize; }
+    public int getMaxFieldSize() { return maxFieldSize; }
+    public int getMaxParts() { return maxParts; }
+    
+    public void setMaxFileSize(long maxFileSize) { this.maxFileSize = maxFileSize; }
+    public void setMaxFieldSize(int maxFieldSize) { this.maxFieldSize = maxFieldSize; }
+    public void setMaxParts(int maxParts) { this.maxParts = maxParts; }
+
+    static UploadConfig read(JsonReader reader) throws IOException {
+        UploadConfig upload = new UploadConfig();
+        
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            Integer value;
+            switch (name) {
+                case "maxFileSize":
+                    Long maxFileSize = ConfigLoader.readLong(reader, upload.getMaxFileSize());
+                    if (maxFileSize != null) {
+                        upload.setMaxFileSize(maxFileSize);
+                    }
+                    break;
+                case "maxFieldSize":
+                    value = ConfigLoader.readInt(reader, upload.getMaxFieldSize());
+                    if (value != null) {
+                        upload.setMaxFieldSize(value);
+                    }
+                    break;
+                case "maxParts":
+                    value = ConfigLoader.readInt(reader, upload.getMaxParts());
+                    if (value != null) {
+                        upload.setMaxParts(value);
+                    }
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        
+        return upload;
+    }
+
+    void validate(String routePath) throws IOException {
+        if (maxFileSize <= 0 || maxFieldSize <= 0 || maxParts <= 0) {
+            throw new IOException("Route " + routePath + " has invalid upload limits");
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package src;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * RFC 6455 helpers: the opening handshake, server frame encoding and
+ * in-place unmasking of client frames.
+ */
+public final class WebSocketCodec {
+    public static final int CONTINUATION = 0x0;
+    public static final int TEXT = 0x1;
+    public static final int BINARY = 0x2;
+    public static final int CLOSE = 0x8;
+    public static final int PING = 0x9;
+    public static final int PONG = 0xA;
+
+    public static final int CLOSE_NORMAL = 1000;
+    public static final int CLOSE_GOING_AWAY = 1001;
+    public static final int CLOSE_PROTOCOL_ERROR = 1002;
+    public static final int CLOSE_INVALID_DATA = 1007;
+    public static final int CLOSE_POLICY = 1008;
+    public static final int CLOSE_TOO_BIG = 1009;
+
+    public static final int MAX_HEADER_LENGTH = 14;
+    public static final int MAX_CONTROL_PAYLOAD = 125;
+
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    private WebSocketCodec() {
+    }
+
+    /** Whether the request asks for a WebSocket upgrade at all. */
+    public static boolean isUpgrade(HttpRequest request) {
+        String upgrade = request.getHeader("Upgrade");
+        String connection = request.getHeader("Connection");
+        if (upgrade == null || connection == null || !upgrade.trim().equalsIgnoreCase("websocket")) {
+            return false;
+        }
+        for (String token : connection.split(",")) {
+            if (token.trim().equalsIgnoreCase("upgrade")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether a page from the request's Origin may open the socket. With no
+     * list only the server's own origin (the Origin's host and port equal
+     * to the Host header) is allowed. Requests without an Origin do not
+     * come from a browser page and are let through.
+     */
+    public static boolean isAllowedOrigin(HttpRequest request, List<String> allowedOrigins) {
+        String origin = request.getHeader("Origin");
+        if (origin == null) {
+            return true;
+        }
+        origin = origin.trim();
+        if (allowedOrigins == null) {
+            int scheme = origin.indexOf("://");
+            String host = request.getHeader("Host");
+            return scheme > 0 && host != null && origin.substring(scheme + 3).equalsIgnoreCase(host.trim());
+        }
+        for (String allowed : allowedOrigins) {
+            if (allowed.equals("*") || allowed.equalsIgnoreCase(origin)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Sec-WebSocket-Accept for a client key, or null if the key is not 16 base64-encoded bytes. */
+    public static String acceptKey(String key) {
+        if (key == null) {
+            return null;
+        }
+        key = key.trim();
+        try {
+            if (Base64.getDecoder().decode(key).length != 16) {
+                return null;
+            }
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key + GUID).getBytes(StandardCharsets.ISO_8859_1));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** A complete, unmasked (server-to-client) frame with FIN set. */
+    public static byte[] encode(int opcode, ByteBuffer payload) {
+        int length = payload.remaining();
+        int header = length <= 125 ? 2 : length <= 0xFFFF ? 4 : 10;
+        byte[] frame = new byte[header + length];
+        frame[0] = (byte) (0x80 | opcode);
+        if (header == 2) {
+            frame[1] = (byte) length;
+        } else if (header == 4) {
+            frame[1] = 126;
+            frame[2] = (byte) (length >>> 8);
+            frame[3] = (byte) length;
+        } else {
+            frame[1] = 127;
+            for (int i = 0; i < 8; i++) {
+                frame[2 + i] = (byte) ((long) length >>> (56 - 8 * i));
+            }
+        }
+        payload.duplicate().get(frame, header, length);
+        return frame;
+    }
+
+    public static byte[] encode(int opcode, byte[] payload, int offset, int length) {
+        return encode(opcode, ByteBuffer.wrap(payload, offset, length));
+    }
+
+    public static byte[] closeFrame(int code, String reason) {
+        byte[] text = reason != null ? reason.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        int length = Math.min(text.length, MAX_CONTROL_PAYLOAD - 2);
+        ByteBuffer payload = ByteBuffer.allocate(2 + length);
+        payload.putShort((short) code).put(text, 0, length).flip();
+        return encode(CLOSE, payload);
+    }
+
+    /**
+     * XORs buf[from, to) in place with the frame's masking key, starting at
+     * byte maskOffset of the key. Works eight bytes at a time where it can.
+     * Returns the key offset for the byte after to.
+     */
+    public static int unmask(ByteBuffer buf, int from, int to, int mask, int maskOffset) {
+        int rotated = Integer.rotateLeft(mask, 8 * (maskOffset & 3));
+        long wide = ((long) rotated << 32) | (rotated & 0xFFFFFFFFL);
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            buf.putLong(i, buf.getLong(i) ^ wide);
+        }
+        for (int k = 0; i < to; i++, k++) {
+            buf.put(i, (byte) (buf.get(i) ^ (rotated >>> (24 - 8 * (k & 3)))));
+        }
+        return (maskOffset + (to - from)) & 3;
+    }
+
+    /** Whether bytes [from, to) are well-formed UTF-8 (RFC 3629). */
+    public static boolean isValidUtf8(ByteBuffer buf, int from, int to) {
+        int i = from;
+        while (i < to) {
+            int b = buf.get(i) & 0xFF;
+            if (b < 0x80) {
+                i++;
+                continue;
+            }
+            int n;
+            int min;
+            if ((b & 0xE0) == 0xC0) {
+                n = 1;
+                min = 0x80;
+                b &= 0x1F;
+            } else if ((b & 0xF0) == 0xE0) {
+                n = 2;
+                min = 0x800;
+                b &= 0x0F;
+            } else if ((b & 0xF8) == 0xF0) {
+                n = 3;
+                min = 0x10000;
+                b &= 0x07;
+            } else {
+                return false;
+            }
+            if (i + n >= to) {
+                return false;
+            }
+            int code = b;
+            for (int k = 1; k <= n; k++) {
+                int c = buf.get(i + k) & 0xFF;
+                if ((c & 0xC0) != 0x80) {
+                    return false;
+                }
+                code = (code << 6) | (c & 0x3F);
+            }
+            if (code < min || code > 0x10FFFF || (code >= 0xD800 && code <= 0xDFFF)) {
+                return false;
+            }
+            i += n + 1;
+        }
+        return true;
+    }
+}
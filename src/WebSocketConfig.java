@@ -0,0 +1,104 @@
+package src;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A route's "websocket" block: message and queue limits, the ping
+ * interval, which page origins may open a socket, and whether messages
+ * are relayed to the other clients.
+ */
+public class WebSocketConfig {
+    private int maxMessageSize = 64 * 1024;
+    private int pingIntervalSeconds = 30;
+    private long maxQueuedBytes = 1024 * 1024;
+    private boolean relay = false;
+    private List<String> allowedOrigins;
+    
+    public int getMaxMessageSize() { return maxMessageSize; }
+    public int getPingIntervalSeconds() { return pingIntervalSeconds; }
+    /** Unsent bytes a socket may have queued before it is dropped as too slow. */
+    public long getMaxQueuedBytes() { return maxQueuedBytes; }
+    /** Whether client messages are relayed to every socket on the route. */
+    public boolean isRelay() { return relay; }
+    /**
+     * Origins (scheme://host[:port]) whose pages may open a socket, "*" for
+     * any; null allows only the server's own origin. Clients that send no
+     * Origin, which browsers always do, are not restricted.
+     */
+    public List<String> getAllowedOrigins() { return allowedOrigins; }
+    
+    public void setMaxMessageSize(int maxMessageSize) { this.maxMessageSize = maxMessageSize; }
+    public void setPingIntervalSeconds(int pingIntervalSeconds) { this.pingIntervalSeconds = pingIntervalSeconds; }
+    public void setMaxQueuedBytes(long maxQueuedBytes) { this.maxQueuedBytes = maxQueuedBytes; }
+    public void setRelay(boolean relay) { this.relay = relay; }
+    public void setAllowedOrigins(List<String> allowedOrigins) { this.allowedOrigins = allowedOrigins; }
+
+    static WebSocketConfig read(JsonReader reader) throws IOException {
+        WebSocketConfig webSocket = new WebSocketConfig();
+        
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            Integer value;
+            switch (name) {
+                case "maxMessageSize":
+                    value = ConfigLoader.readInt(reader, webSocket.getMaxMessageSize());
+                    if (value != null) {
+                        webSocket.setMaxMessageSize(value);
+                    }
+                    break;
+                case "pingIntervalSeconds":
+                    value = ConfigLoader.readInt(reader, webSocket.getPingIntervalSeconds());
+                    if (value != null) {
+                        webSocket.setPingIntervalSeconds(value);
+                    }
+                    break;
+                case "maxQueuedBytes":
+                    Long maxQueuedBytes = ConfigLoader.readLong(reader, webSocket.getMaxQueuedBytes());
+                    if (maxQueuedBytes != null) {
+                        webSocket.setMaxQueuedBytes(maxQueuedBytes);
+                    }
+                    break;
+                case "relay":
+                    Boolean relay = ConfigLoader.readBoolean(reader);
+                    if (relay != null) {
+                        webSocket.setRelay(relay);
+                    }
+                    break;
+                case "allowedOrigins":
+                    List<String> origins = new ArrayList<>();
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        String origin = ConfigLoader.readString(reader);
+                        if (origin != null) {
+                            origins.add(origin.trim());
+                        }
+                    }
+                    reader.endArray();
+                    webSocket.setAllowedOrigins(origins);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        
+        return webSocket;
+    }
+
+    void validate(String routePath) throws IOException {
+        if (maxMessageSize <= 0 || pingIntervalSeconds <= 0 || maxQueuedBytes <= 0) {
+            throw new IOException("Route " + routePath + " has invalid websocket settings");
+        }
+        if (allowedOrigins != null) {
+            for (String origin : allowedOrigins) {
+                if (!origin.equals("*") && !origin.contains("://")) {
+                    throw new IOException("Route " + routePath + " has an invalid websocket origin: " + origin);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,436 @@
+package src;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ByteChannel;
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+
+/**
+ * One WebSocket after the opening handshake.
+ *
+ * Frames are decoded straight out of the selector's shared read buffer and
+ * unmasked in place there; a message that arrives whole in one read is
+ * handed on as a slice of that buffer without being copied. Only what has
+ * to outlive a read gets its own storage: the few header bytes of a split
+ * frame, a message still being assembled from fragments, and frames
+ * waiting for the socket to drain. All of it is dropped again once used,
+ * so an idle connection holds no buffers at all.
+ *
+ * Reads and writes count toward the loop budget: a connection takes at most
+ * a turn's share, then finishes on a later turn, behind the others.
+ *
+ * Only the selector thread uses it.
+ */
+public class WebSocketConnection implements ChannelHandler {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+    private static final byte[] PING_FRAME = WebSocketCodec.encode(WebSocketCodec.PING, EMPTY);
+
+    private final ByteChannel channel;
+    private final SelectionKey key;
+    private final WebSocketHub hub;
+    private final ByteBuffer readBuffer;
+    private final LoopBudget budget;
+    private final Consumer<Runnable> onLoop;
+    private final Runnable onClose;
+    int index = -1;
+
+    // Frame being decoded.
+    private byte[] header;
+    private int headerLength;
+    private boolean inFrame;
+    private boolean frameFin;
+    private int frameOpcode;
+    private long frameRemaining;
+    private int frameMask;
+    private int maskOffset;
+
+    // Message being assembled; messageOpcode is 0 between messages.
+    private int messageOpcode;
+    private byte[] message;
+    private int messageLength;
+    private byte[] control;
+    private int controlLength;
+
+    // Frames not yet written; the head one from outOffset.
+    private ArrayDeque<byte[]> out;
+    private int outOffset;
+    private long queuedBytes;
+
+    private long lastActivity;
+    private long pingSentAt;
+    private boolean closeSent;
+    private boolean closed;
+
+    /**
+     * @param onLoop runs a task on the selector thread at the start of the
+     *               next iteration
+     */
+    public WebSocketConnection(ByteChannel channel, SelectionKey key, WebSocketHub hub, ByteBuffer readBuffer,
+                               LoopBudget budget, Consumer<Runnable> onLoop, Runnable onClose) {
+        this.channel = channel;
+        this.key = key;
+        this.hub = hub;
+        this.readBuffer = readBuffer;
+        this.budget = budget;
+        this.onLoop = onLoop;
+        this.onClose = onClose;
+        this.lastActivity = System.currentTimeMillis();
+    }
+
+    @Override
+    public void handleEvent(SelectionKey key) {
+        try {
+            if (key.isReadable()) {
+                read();
+            }
+            if (!closed && key.isValid() && key.isWritable()) {
+                flush();
+            }
+        } catch (IOException e) {
+            closeNow();
+        }
+    }
+
+    private void read() throws IOException {
+        int total = 0;
+        int n;
+        do {
+            if (total >= budget.getReadBytes()) {
+                // Over TLS, records already read off the socket are not
+                // reported by the selector again: they wait for the next
+                // iteration here instead.
+                budget.yielded();
+                onLoop.accept(this::resumeRead);
+                return;
+            }
+            ByteBuffer buffer = readBuffer;
+            buffer.clear();
+            buffer.limit(Math.min(buffer.capacity(), budget.getReadBytes()));
+            n = channel.read(buffer);
+            if (n < 0) {
+                closeNow();
+                return;
+            }
+            if (n > 0) {
+                budget.record(n);
+                total += n;
+                lastActivity = System.currentTimeMillis();
+                buffer.flip();
+                decode(buffer);
+            }
+        } while (n > 0 && !closed && channel instanceof TlsChannel
+                 && ((TlsChannel) channel).hasBufferedInput());
+    }
+
+    private void resumeRead() {
+        if (closed || !key.isValid()) {
+            return;
+        }
+        try {
+            read();
+        } catch (IOException e) {
+            closeNow();
+        }
+    }
+
+    private void decode(ByteBuffer buf) throws IOException {
+        // Once a close frame has gone out, anything further is ignored.
+        while (buf.hasRemaining() && !closeSent) {
+            if (!inFrame) {
+                if (!readHeader(buf) || closeSent) {
+                    return;
+                }
+                if (frameRemaining == 0) {
+                    payloadBytes(EMPTY);
+                }
+                continue;
+            }
+            int n = (int) Math.min(buf.remaining(), frameRemaining);
+            int start = buf.position();
+            maskOffset = WebSocketCodec.unmask(buf, start, start + n, frameMask, maskOffset);
+            ByteBuffer payload = buf.slice();
+            payload.limit(n);
+            buf.position(start + n);
+            frameRemaining -= n;
+            payloadBytes(payload);
+        }
+    }
+
+    // Parses the next frame header, from the buffer directly when it is
+    // all there; returns false if more bytes are needed.
+    private boolean readHeader(ByteBuffer buf) throws IOException {
+        ByteBuffer h;
+        if (headerLength == 0 && buf.remaining() >= 2 && buf.remaining() >= headerSize(buf.get(buf.position() + 1))) {
+            h = buf;
+        } else {
+            if (header == null) {
+                header = new byte[WebSocketCodec.MAX_HEADER_LENGTH];
+            }
+            while (buf.hasRemaining() && (headerLength < 2 || headerLength < headerSize(header[1]))) {
+                header[headerLength++] = buf.get();
+            }
+            if (headerLength < 2 || headerLength < headerSize(header[1])) {
+                return false;
+            }
+            h = ByteBuffer.wrap(header, 0, headerLength);
+            header = null;
+            headerLength = 0;
+        }
+
+        int b0 = h.get() & 0xFF;
+        int b1 = h.get() & 0xFF;
+        int length = b1 & 0x7F;
+        long payloadLength = length == 126 ? h.getShort() & 0xFFFF : length == 127 ? h.getLong() : length;
+        if ((b1 & 0x80) == 0) {
+            fail(WebSocketCodec.CLOSE_PROTOCOL_ERROR, "Client frames must be masked");
+            return true;
+        }
+        frameMask = h.getInt();
+        frameFin = (b0 & 0x80) != 0;
+        frameOpcode = b0 & 0x0F;
+        maskOffset = 0;
+
+        if ((b0 & 0x70) != 0 || payloadLength < 0) {
+            fail(WebSocketCodec.CLOSE_PROTOCOL_ERROR, "Invalid frame header");
+            return true;
+        }
+        if (frameOpcode >= WebSocketCodec.CLOSE) {
+            if (frameOpcode > WebSocketCodec.PONG || !frameFin || payloadLength > WebSocketCodec.MAX_CONTROL_PAYLOAD) {
+                fail(WebSocketCodec.CLOSE_PROTOCOL_ERROR, "Invalid control frame");
+                return true;
+            }
+        } else if (frameOpcode > WebSocketCodec.BINARY
+                   || (frameOpcode == WebSocketCodec.CONTINUATION) != (messageOpcode != 0)) {
+            fail(WebSocketCodec.CLOSE_PROTOCOL_ERROR, "Unexpected opcode " + frameOpcode);
+            return true;
+        } else {
+            if (messageLength + payloadLength > hub.getConfig().getMaxMessageSize()) {
+                fail(WebSocketCodec.CLOSE_TOO_BIG, "Message too big");
+                return true;
+            }
+            if (frameOpcode != WebSocketCodec.CONTINUATION) {
+                messageOpcode = frameOpcode;
+            }
+        }
+        frameRemaining = payloadLength;
+        inFrame = true;
+        return true;
+    }
+
+    private static int headerSize(byte b1) {
+        int length = b1 & 0x7F;
+        return 2 + (length == 126 ? 2 : length == 127 ? 8 : 0) + ((b1 & 0x80) != 0 ? 4 : 0);
+    }
+
+    // Unmasked payload bytes of the current frame.
+    private void payloadBytes(ByteBuffer payload) throws IOException {
+        boolean last = frameRemaining == 0;
+        if (frameOpcode >= WebSocketCodec.CLOSE) {
+            if (last && controlLength == 0) {
+                endFrame(payload);
+                return;
+            }
+            if (control == null) {
+                control = new byte[WebSocketCodec.MAX_CONTROL_PAYLOAD];
+            }
+            int n = payload.remaining();
+            payload.get(control, controlLength, n);
+            controlLength += n;
+            if (last) {
+                ByteBuffer whole = ByteBuffer.wrap(control, 0, controlLength);
+                control = null;
+                controlLength = 0;
+                endFrame(whole);
+            }
+            return;
+        }
+        if (last && frameFin && messageLength == 0) {
+            // The whole message is in this read: no copy.
+            endFrame(payload);
+            return;
+        }
+        int n = payload.remaining();
+        if (message == null || messageLength + n > message.length) {
+            int capacity = Math.max(messageLength + n, message != null ? message.length * 2 : 256);
+            byte[] grown = new byte[Math.min(capacity, Math.max(hub.getConfig().getMaxMessageSize(), messageLength + n))];
+            if (message != null) {
+                System.arraycopy(message, 0, grown, 0, messageLength);
+            }
+            message = grown;
+        }
+        payload.get(message, messageLength, n);
+        messageLength += n;
+        if (last) {
+            endFrame(ByteBuffer.wrap(message, 0, messageLength));
+        }
+    }
+
+    // The current frame is complete; payload holds it (or, for the last
+    // frame of a fragmented message, the whole message).
+    private void endFrame(ByteBuffer payload) throws IOException {
+        inFrame = false;
+        switch (frameOpcode) {
+            case WebSocketCodec.PING:
+                send(WebSocketCodec.encode(WebSocketCodec.PONG, payload));
+                return;
+            case WebSocketCodec.PONG:
+                pingSentAt = 0;
+                return;
+            case WebSocketCodec.CLOSE:
+                onCloseFrame(payload);
+                return;
+            default:
+                break;
+        }
+        if (!frameFin) {
+            return;
+        }
+        int opcode = messageOpcode;
+        messageOpcode = 0;
+        message = null;
+        messageLength = 0;
+        if (opcode == WebSocketCodec.TEXT
+            && !WebSocketCodec.isValidUtf8(payload, payload.position(), payload.limit())) {
+            fail(WebSocketCodec.CLOSE_INVALID_DATA, "Invalid UTF-8");
+            return;
+        }
+        hub.onMessage(this, opcode, payload);
+    }
+
+    private void onCloseFrame(ByteBuffer payload) throws IOException {
+        int code = WebSocketCodec.CLOSE_NORMAL;
+        if (payload.remaining() == 1) {
+            code = WebSocketCodec.CLOSE_PROTOCOL_ERROR;
+        } else if (payload.remaining() >= 2) {
+            code = payload.getShort(payload.position()) & 0xFFFF;
+            if (code < 1000 || code == 1004 || code == 1005 || code == 1006 || (code > 1011 && code < 3000) || code > 4999) {
+                code = WebSocketCodec.CLOSE_PROTOCOL_ERROR;
+            }
+        }
+        if (!closeSent) {
+            closeSent = true;
+            write(WebSocketCodec.closeFrame(code, null));
+        }
+        // The close handshake is done once our close frame is out.
+        if (out == null) {
+            closeNow();
+        }
+    }
+
+    private void fail(int code, String reason) {
+        close(code, reason);
+        inFrame = false;
+    }
+
+    /** Queues a frame; the bytes may be shared with other connections and are never modified. */
+    public void send(byte[] frame) {
+        if (!closeSent) {
+            write(frame);
+        }
+    }
+    
+    private void write(byte[] frame) {
+        if (closed) {
+            return;
+        }
+        try {
+            if (out == null) {
+                ByteBuffer data = ByteBuffer.wrap(frame);
+                budget.record(channel.write(data));
+                if (!data.hasRemaining()) {
+                    return;
+                }
+                out = new ArrayDeque<>();
+                outOffset = data.position();
+                if (key.isValid()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            }
+            out.addLast(frame);
+            queuedBytes += frame.length;
+            if (queuedBytes - outOffset > hub.getConfig().getMaxQueuedBytes()) {
+                hub.recordDroppedSlow();
+                closeNow();
+            }
+        } catch (IOException e) {
+            closeNow();
+        }
+    }
+
+    private void flush() throws IOException {
+        int turnBytes = 0;
+        while (out != null) {
+            if (turnBytes >= budget.getWriteBytes()) {
+                // OP_WRITE stays set; the rest goes out on a later turn.
+                budget.yielded();
+                return;
+            }
+            byte[] head = out.peekFirst();
+            ByteBuffer data = ByteBuffer.wrap(head, outOffset, head.length - outOffset);
+            int written = channel.write(data);
+            budget.record(written);
+            turnBytes += written;
+            if (data.hasRemaining()) {
+                outOffset = data.position();
+                return;
+            }
+            out.pollFirst();
+            queuedBytes -= head.length;
+            outOffset = 0;
+            if (out.isEmpty()) {
+                out = null;
+            }
+        }
+        if (closeSent) {
+            closeNow();
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Returns false (and closes the connection) if a ping went unanswered
+     * for a whole interval; pings the connection if it has been quiet.
+     */
+    boolean checkAlive(long now, long interval) {
+        if (pingSentAt != 0 && now - pingSentAt > interval) {
+            closeNow();
+            return false;
+        }
+        if (pingSentAt == 0 && now - lastActivity >= interval) {
+            pingSentAt = now;
+            send(PING_FRAME);
+        }
+        return true;
+    }
+
+    /** Starts the close handshake; the socket closes once the frame is written. */
+    public void close(int code, String reason) {
+        if (closed || closeSent) {
+            return;
+        }
+        closeSent = true;
+        write(WebSocketCodec.closeFrame(code, reason));
+        if (!closed && out == null) {
+            closeNow();
+        }
+    }
+
+    private void closeNow() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        out = null;
+        message = null;
+        hub.remove(this);
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+        onClose.run();
+    }
+}
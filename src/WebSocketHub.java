@@ -0,0 +1,115 @@
+package src;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The WebSocket connections open on one route.
+ *
+ * A broadcast is encoded into a single frame whose bytes every connection
+ * queues by reference. Connections sit in an array list and are removed by
+ * swapping in the last one, so broadcasts walk it backwards: a connection
+ * dropped mid-broadcast is replaced by one that has already been served.
+ * Liveness is checked once a second: a socket silent for pingIntervalSeconds
+ * is pinged, and closed if another interval passes without a pong.
+ *
+ * Only the selector thread uses it.
+ */
+public class WebSocketHub {
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+
+    private final WebSocketConfig config;
+    private final List<WebSocketConnection> connections = new ArrayList<>();
+    private long lastSweep;
+
+    private final AtomicLong open;
+    private final AtomicLong messagesIn;
+    private final AtomicLong framesOut;
+    private final AtomicLong pingTimeouts;
+    private final AtomicLong droppedSlow;
+
+    public WebSocketHub(WebSocketConfig config, Metrics metrics) {
+        this.config = config;
+        this.open = metrics.counter("websocket.open");
+        this.messagesIn = metrics.counter("websocket.messages_in");
+        this.framesOut = metrics.counter("websocket.frames_out");
+        this.pingTimeouts = metrics.counter("websocket.ping_timeouts");
+        this.droppedSlow = metrics.counter("websocket.dropped_slow");
+    }
+
+    public WebSocketConfig getConfig() {
+        return config;
+    }
+
+    public int size() {
+        return connections.size();
+    }
+
+    void add(WebSocketConnection connection) {
+        connection.index = connections.size();
+        connections.add(connection);
+        open.incrementAndGet();
+    }
+
+    void remove(WebSocketConnection connection) {
+        int index = connection.index;
+        if (index < 0) {
+            return;
+        }
+        WebSocketConnection last = connections.remove(connections.size() - 1);
+        if (last != connection) {
+            connections.set(index, last);
+            last.index = index;
+        }
+        connection.index = -1;
+        open.decrementAndGet();
+    }
+
+    /** A complete message from a client. The payload is only valid during the call. */
+    void onMessage(WebSocketConnection from, int opcode, ByteBuffer payload) {
+        messagesIn.incrementAndGet();
+        if (config.isRelay()) {
+            broadcast(opcode, payload);
+        }
+    }
+
+    /** Sends one message to every connection on the route. */
+    public void broadcast(int opcode, ByteBuffer payload) {
+        byte[] frame = WebSocketCodec.encode(opcode, payload);
+        for (int i = connections.size() - 1; i >= 0; i--) {
+            if (i < connections.size()) {
+                connections.get(i).send(frame);
+            }
+        }
+        framesOut.addAndGet(connections.size());
+    }
+
+    void recordDroppedSlow() {
+        droppedSlow.incrementAndGet();
+    }
+
+    /** Pings quiet connections and drops ones that never answered. */
+    public void sweep(long now) {
+        if (now - lastSweep < SWEEP_INTERVAL_MILLIS) {
+            return;
+        }
+        lastSweep = now;
+        long interval = config.getPingIntervalSeconds() * 1000L;
+        for (int i = connections.size() - 1; i >= 0; i--) {
+            if (i < connections.size() && !connections.get(i).checkAlive(now, interval)) {
+                pingTimeouts.incrementAndGet();
+            }
+        }
+    }
+
+    /** Closes every connection with 1001 Going Away, e.g. on shutdown. */
+    public void closeAll() {
+        for (int i = connections.size() - 1; i >= 0; i--) {
+            if (i < connections.size()) {
+                connections.get(i).close(WebSocketCodec.CLOSE_GOING_AWAY, "Server shutting down");
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package src.utils;
+
+/**
+ * A cookie to be sent in a Set-Cookie response header.
+ */
+public class Cookie {
+    private final String name;
+    private final String value;
+    private String path = "/";
+    private String domain;
+    private long maxAge = -1;
+    private boolean secure;
+    private boolean httpOnly = true;
+    private String sameSite = "Lax";
+
+    public Cookie(String name, String value) {
+        if (!isToken(name)) {
+            throw new IllegalArgumentException("Invalid cookie name: " + name);
+        }
+        if (!isValidValue(value)) {
+            throw new IllegalArgumentException("Invalid cookie value for " + name);
+        }
+        this.name = name;
+        this.value = value;
+    }
+
+    public Cookie setPath(String path) {
+        this.path = path;
+        return this;
+    }
+
+    public Cookie setDomain(String domain) {
+        this.domain = domain;
+        return this;
+    }
+
+    /** Seconds until expiry; 0 deletes the cookie, negative makes it a session cookie. */
+    public Cookie setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+        return this;
+    }
+
+    public Cookie setSecure(boolean secure) {
+        this.secure = secure;
+        return this;
+    }
+
+    public Cookie setHttpOnly(boolean httpOnly) {
+        this.httpOnly = httpOnly;
+        return this;
+    }
+
+    public Cookie setSameSite(String sameSite) {
+        this.sameSite = sameSite;
+        return this;
+    }
+
+    public String getName() { return name; }
+    public String getValue() { return value; }
+    public String getPath() { return path; }
+    public String getDomain() { return domain; }
+    public long getMaxAge() { return maxAge; }
+    public boolean isSecure() { return secure; }
+    public boolean isHttpOnly() { return httpOnly; }
+    public String getSameSite() { return sameSite; }
+
+    /** The Set-Cookie header value. */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(64);
+        sb.append(name).append('=').append(value);
+        if (path != null) {
+            sb.append("; Path=").append(path);
+        }
+        if (domain != null) {
+            sb.append("; Domain=").append(domain);
+        }
+        if (maxAge >= 0) {
+            sb.append("; Max-Age=").append(maxAge);
+        }
+        if (secure) {
+            sb.append("; Secure");
+        }
+        if (httpOnly) {
+            sb.append("; HttpOnly");
+        }
+        if (sameSite != null) {
+            sb.append("; SameSite=").append(sameSite);
+        }
+        return sb.toString();
+    }
+
+    // RFC 6265 cookie-name is an RFC 7230 token.
+    private static boolean isToken(String s) {
+        if (s == null || s.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c <= 0x20 || c >= 0x7F || "()<>@,;:\\\"/[]?={}".indexOf(c) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // RFC 6265 cookie-octet: printable ASCII except whitespace, DQUOTE, comma, semicolon and backslash.
+    private static boolean isValidValue(String s) {
+        if (s == null) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c <= 0x20 || c >= 0x7F || c == '"' || c == ',' || c == ';' || c == '\\') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
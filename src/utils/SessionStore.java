@@ -0,0 +1,249 @@
+package src.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+
+/**
+ * Fixed-capacity session store kept outside the Java heap.
+ *
+ * Sessions live in equally sized slots of one direct buffer, or of a
+ * memory-mapped file when persistence is wanted, in which case sessions
+ * survive a restart. Slot layout:
+ *
+ *   0  expiresAt   long, epoch millis; 0 means the slot is free
+ *   8  token       two longs of random data
+ *   24 dataLength  int
+ *   28 data        dataCapacity bytes
+ *
+ * A session id is the slot index followed by the token, both in hex, so a
+ * lookup goes straight to its slot and compares two longs without
+ * allocating. Expired sessions are reclaimed by sweep(), which the event
+ * loop calls with a small budget each iteration.
+ *
+ * Not thread-safe: only the selector thread uses it.
+ */
+public class SessionStore implements Closeable {
+    public static final int ID_LENGTH = 8 + 32;
+
+    private static final int EXPIRES = 0;
+    private static final int TOKEN_HI = 8;
+    private static final int TOKEN_LO = 16;
+    private static final int DATA_LENGTH = 24;
+    private static final int DATA = 28;
+
+    private final ByteBuffer slots;
+    private final FileChannel file;
+    private final int capacity;
+    private final int slotSize;
+    private final int dataCapacity;
+    private final long ttlMillis;
+    private final SecureRandom random = new SecureRandom();
+
+    private final int[] freeSlots;
+    private int freeCount;
+    private int sweepCursor;
+    private int active;
+
+    /**
+     * @param file backing file for persistence across restarts, or null to
+     *             keep sessions in a direct buffer only
+     */
+    public SessionStore(int capacity, int dataCapacity, long ttlMillis, Path file) throws IOException {
+        this.capacity = capacity;
+        this.dataCapacity = dataCapacity;
+        this.slotSize = (DATA + dataCapacity + 7) & ~7;
+        this.ttlMillis = ttlMillis;
+        long size = (long) capacity * slotSize;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Session store too large: " + size + " bytes");
+        }
+
+        if (file != null) {
+            this.file = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (this.file.size() != size) {
+                // Layout changed (or new file): start empty.
+                this.file.truncate(0);
+            }
+            MappedByteBuffer mapped = this.file.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            this.slots = mapped;
+        } else {
+            this.file = null;
+            this.slots = ByteBuffer.allocateDirect((int) size);
+        }
+
+        this.freeSlots = new int[capacity];
+        long now = System.currentTimeMillis();
+        for (int slot = capacity - 1; slot >= 0; slot--) {
+            long expiresAt = slots.getLong(offset(slot) + EXPIRES);
+            if (expiresAt != 0 && expiresAt > now) {
+                active++;
+            } else {
+                slots.putLong(offset(slot) + EXPIRES, 0);
+                freeSlots[freeCount++] = slot;
+            }
+        }
+    }
+
+    /** Returns the slot of the live session with this id, or -1. */
+    public int find(CharSequence id, long now) {
+        if (id == null || id.length() != ID_LENGTH) {
+            return -1;
+        }
+        long slot = parseHex(id, 0, 8);
+        long tokenHi = parseHex(id, 8, 24);
+        long tokenLo = parseHex(id, 24, 40);
+        if (slot < 0 || slot >= capacity || tokenHi == -1 && !isHex(id, 8, 24)
+            || tokenLo == -1 && !isHex(id, 24, 40)) {
+            return -1;
+        }
+        int base = offset((int) slot);
+        long expiresAt = slots.getLong(base + EXPIRES);
+        if (expiresAt == 0 || expiresAt <= now) {
+            return -1;
+        }
+        if (slots.getLong(base + TOKEN_HI) != tokenHi || slots.getLong(base + TOKEN_LO) != tokenLo) {
+            return -1;
+        }
+        return (int) slot;
+    }
+
+    /** Allocates a new session, or returns -1 if the store is full. */
+    public int create(long now) {
+        if (freeCount == 0) {
+            sweep(now, capacity);
+            if (freeCount == 0) {
+                return -1;
+            }
+        }
+        int slot = freeSlots[--freeCount];
+        int base = offset(slot);
+        slots.putLong(base + TOKEN_HI, random.nextLong());
+        slots.putLong(base + TOKEN_LO, random.nextLong());
+        slots.putInt(base + DATA_LENGTH, 0);
+        slots.putLong(base + EXPIRES, now + ttlMillis);
+        active++;
+        return slot;
+    }
+
+    /** The cookie value identifying the session in this slot. */
+    public String idOf(int slot) {
+        int base = offset(slot);
+        char[] id = new char[ID_LENGTH];
+        writeHex(id, 0, 8, slot);
+        writeHex(id, 8, 24, slots.getLong(base + TOKEN_HI));
+        writeHex(id, 24, 40, slots.getLong(base + TOKEN_LO));
+        return new String(id);
+    }
+
+    /** Extends the session's expiry (sliding expiration). */
+    public void touch(int slot, long now) {
+        slots.putLong(offset(slot) + EXPIRES, now + ttlMillis);
+    }
+
+    public void invalidate(int slot) {
+        int base = offset(slot);
+        if (slots.getLong(base + EXPIRES) != 0) {
+            release(slot);
+        }
+    }
+
+    public long expiresAt(int slot) {
+        return slots.getLong(offset(slot) + EXPIRES);
+    }
+
+    /** Copies the session data into dst and returns its length. */
+    public int readData(int slot, byte[] dst) {
+        int base = offset(slot);
+        int length = Math.min(slots.getInt(base + DATA_LENGTH), dst.length);
+        slots.get(base + DATA, dst, 0, length);
+        return length;
+    }
+
+    public void writeData(int slot, byte[] src, int off, int len) {
+        if (len > dataCapacity) {
+            throw new IllegalArgumentException("Session data exceeds " + dataCapacity + " bytes");
+        }
+        int base = offset(slot);
+        slots.put(base + DATA, src, off, len);
+        slots.putInt(base + DATA_LENGTH, len);
+    }
+
+    /** Reclaims expired sessions among the next maxSlots slots; returns how many. */
+    public int sweep(long now, int maxSlots) {
+        int expired = 0;
+        for (int i = 0; i < maxSlots && i < capacity; i++) {
+            int slot = sweepCursor;
+            sweepCursor = sweepCursor + 1 == capacity ? 0 : sweepCursor + 1;
+            long expiresAt = slots.getLong(offset(slot) + EXPIRES);
+            if (expiresAt != 0 && expiresAt <= now) {
+                release(slot);
+                expired++;
+            }
+        }
+        return expired;
+    }
+
+    public int size() {
+        return active;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (slots instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) slots).force();
+        }
+        if (file != null) {
+            file.close();
+        }
+    }
+
+    private void release(int slot) {
+        slots.putLong(offset(slot) + EXPIRES, 0);
+        freeSlots[freeCount++] = slot;
+        active--;
+    }
+
+    private int offset(int slot) {
+        return slot * slotSize;
+    }
+
+    // Returns -1 on a non-hex character; callers disambiguate a real all-ones value with isHex.
+    private static long parseHex(CharSequence s, int from, int to) {
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = Character.digit(s.charAt(i), 16);
+            if (digit < 0) {
+                return -1;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private static boolean isHex(CharSequence s, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (Character.digit(s.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeHex(char[] dst, int from, int to, long value) {
+        for (int i = to - 1; i >= from; i--) {
+            dst[i] = Character.forDigit((int) (value & 0xF), 16);
+            value >>>= 4;
+        }
+    }
+}
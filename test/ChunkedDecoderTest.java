@@ -0,0 +1,121 @@
+package test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import src.ChunkedDecoder;
+import src.HttpException;
+
+/**
+ * Feeds ChunkedDecoder well-formed and malformed chunked bodies, whole and
+ * one byte at a time, and checks the decoded bytes and the errors raised.
+ *
+ * From the project root:
+ *   javac -d out src/*.java test/ChunkedDecoderTest.java
+ *   java -cp out test.ChunkedDecoderTest
+ */
+public class ChunkedDecoderTest {
+    private static int failures;
+
+    public static void main(String[] args) throws IOException {
+        String simple = "5\r\nhello\r\n6\r\n world\r\n0\r\n\r\n";
+        check(decodeWhole(simple, 1024).equals("hello world"), "whole body decodes");
+        check(decodeByteByByte(simple, 1024).equals("hello world"), "byte-at-a-time body decodes");
+
+        String extended = "5;name=value\r\nhello\r\nA \t;x\r\n0123456789\r\n0\r\nX-Trailer: 1\r\nX-Other: 2\r\n\r\n";
+        check(decodeWhole(extended, 1024).equals("hello0123456789"), "extensions and trailers are skipped");
+        check(decodeByteByByte(extended, 1024).equals("hello0123456789"), "extensions and trailers byte by byte");
+
+        String binary = "4\r\n\r\n\r\n\r\n0\r\n\r\n";
+        check(decodeWhole(binary, 1024).equals("\r\n\r\n"), "CRLF inside chunk data is data");
+
+        ChunkedDecoder decoder = new ChunkedDecoder(1024);
+        ByteBuffer in = ascii("3\r\nabc\r\n0\r\n\r\nGET / HTTP/1.1\r\n");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        decoder.decode(in, src -> drain(src, out));
+        check(decoder.isDone(), "done after the last chunk");
+        check(in.remaining() == "GET / HTTP/1.1\r\n".length(), "bytes after the body are left in the buffer");
+
+        decoder = new ChunkedDecoder(1024);
+        decoder.decode(ascii("5\r\nhel"), src -> drain(src, new ByteArrayOutputStream()));
+        check(!decoder.isDone(), "not done part way through a chunk");
+
+        expectError("5\r\nhello\r\n0\r\n\r\n", 4, 413, "chunk over the body limit");
+        expectError("3\r\nabc\r\n3\r\ndef\r\n0\r\n\r\n", 5, 413, "chunks adding up over the body limit");
+        expectError("\r\n", 1024, 400, "missing chunk size");
+        expectError("zz\r\n", 1024, 400, "non-hex chunk size");
+        expectError("1000000000000000\r\n", Long.MAX_VALUE, 400, "chunk size with too many digits");
+        expectError("5\r\nhelloX\r\n", 1024, 400, "chunk data not followed by CR");
+        expectError("5\r\nhello\rX", 1024, 400, "chunk data CR not followed by LF");
+        expectError("5\rX", 1024, 400, "size line CR not followed by LF");
+
+        StringBuilder longExtension = new StringBuilder("1;");
+        for (int i = 0; i < 5000; i++) {
+            longExtension.append('x');
+        }
+        expectError(longExtension + "\r\n", 1024, 400, "chunk extension too long");
+
+        StringBuilder bigTrailer = new StringBuilder("0\r\n");
+        for (int i = 0; i < 1000; i++) {
+            bigTrailer.append("X-Pad: 0123456789\r\n");
+        }
+        expectError(bigTrailer + "\r\n", 1024, 400, "trailer section too large");
+
+        if (failures > 0) {
+            System.out.println(failures + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    private static String decodeWhole(String body, long limit) throws IOException {
+        ChunkedDecoder decoder = new ChunkedDecoder(limit);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        decoder.decode(ascii(body), src -> drain(src, out));
+        return decoder.isDone() ? new String(out.toByteArray(), StandardCharsets.ISO_8859_1) : null;
+    }
+
+    private static String decodeByteByByte(String body, long limit) throws IOException {
+        ChunkedDecoder decoder = new ChunkedDecoder(limit);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer all = ascii(body);
+        while (all.hasRemaining()) {
+            ByteBuffer one = ByteBuffer.allocate(1);
+            one.put(all.get()).flip();
+            decoder.decode(one, src -> drain(src, out));
+            check(!one.hasRemaining(), "single byte consumed");
+        }
+        return decoder.isDone() ? new String(out.toByteArray(), StandardCharsets.ISO_8859_1) : null;
+    }
+
+    private static void expectError(String body, long limit, int status, String what) {
+        try {
+            ChunkedDecoder decoder = new ChunkedDecoder(limit);
+            decoder.decode(ascii(body), src -> drain(src, new ByteArrayOutputStream()));
+            check(false, what + ": expected " + status + ", got no error");
+        } catch (HttpException e) {
+            check(e.getStatus() == status, what + ": expected " + status + ", got " + e.getStatus());
+        } catch (IOException e) {
+            check(false, what + ": expected " + status + ", got " + e);
+        }
+    }
+
+    private static void drain(ByteBuffer src, ByteArrayOutputStream out) {
+        while (src.hasRemaining()) {
+            out.write(src.get());
+        }
+    }
+
+    private static ByteBuffer ascii(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            failures++;
+            System.out.println("FAIL: " + what);
+        }
+    }
+}
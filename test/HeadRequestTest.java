@@ -0,0 +1,143 @@
+package test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import src.ConfigLoader;
+import src.Server;
+
+/**
+ * Runs a server on a scratch directory and sends a HEAD request followed by
+ * a GET on the same keep-alive connection, in one write. Whatever the HEAD
+ * hits (a file, a directory listing, a missing path, a redirect or a
+ * route that does not allow HEAD), its response must end with the headers
+ * so that the bytes after them are the GET's response.
+ *
+ * From the project root:
+ *   javac -d out src/*.java test/HeadRequestTest.java
+ *   java -cp out test.HeadRequestTest
+ */
+public class HeadRequestTest {
+    private static final int TIMEOUT_MILLIS = 5_000;
+
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        Path root = Files.createTempDirectory("head-test-").toRealPath();
+        Files.write(root.resolve("index.html"), "<p>index</p>".getBytes(StandardCharsets.US_ASCII));
+        Files.write(root.resolve("a.txt"), "0123456789".getBytes(StandardCharsets.US_ASCII));
+        Files.createDirectories(root.resolve("dir"));
+        Files.write(root.resolve("dir/b.txt"), new byte[5]);
+
+        int port = freePort();
+        Server server = new Server(ConfigLoader.parse(config(root, port)));
+        Thread loop = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                System.out.println("Server failed: " + e.getMessage());
+            }
+        });
+        loop.setDaemon(true);
+        loop.start();
+        try {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (!server.isListening() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            check(server.isListening(), "server is listening");
+
+            pipelined(port, "/a.txt", "200", "Content-Length: 10");
+            pipelined(port, "/dir/", "200", "Transfer-Encoding: chunked");
+            pipelined(port, "/missing", "404", "Content-Length: ");
+            pipelined(port, "/old", "301", "Location: /a.txt");
+            pipelined(port, "/get-only/a.txt", "405", "Content-Length: ");
+        } finally {
+            server.stop();
+            delete(root);
+        }
+
+        if (failures > 0) {
+            System.out.println(failures + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    // Sends HEAD target and GET /a.txt in one write, then reads until the
+    // server closes after the GET.
+    private static void pipelined(int port, String target, String status, String header) throws IOException {
+        String what = "HEAD " + target + ": ";
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            String requests = "HEAD " + target + " HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                + "GET /a.txt HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n";
+            socket.getOutputStream().write(requests.getBytes(StandardCharsets.US_ASCII));
+            String reply = readAll(socket.getInputStream());
+
+            int headEnd = reply.indexOf("\r\n\r\n");
+            check(headEnd > 0, what + "response has headers: " + reply);
+            if (headEnd < 0) {
+                return;
+            }
+            String head = reply.substring(0, headEnd + 2);
+            String rest = reply.substring(headEnd + 4);
+            check(head.startsWith("HTTP/1.1 " + status + " "), what + "status " + status + ": " + head);
+            check(head.contains(header), what + "has " + header.trim() + ": " + head);
+            check(head.contains("Connection: keep-alive"), what + "stays open: " + head);
+            check(rest.startsWith("HTTP/1.1 200 "), what + "no body before the next response: " + rest);
+            check(rest.endsWith("\r\n\r\n0123456789"), what + "next response is the GET's: " + rest);
+        }
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    private static String config(Path root, int port) {
+        String dir = root.toString().replace("\\", "\\\\");
+        return "{\n"
+            + "  \"host\": \"127.0.0.1\",\n"
+            + "  \"listeners\": [{ \"port\": " + port + " }],\n"
+            + "  \"routes\": [\n"
+            + "    { \"path\": \"/old\", \"redirect\": \"/a.txt\" },\n"
+            + "    { \"path\": \"/get-only\", \"allowedMethods\": [\"GET\"], \"root\": \"" + dir + "\" },\n"
+            + "    { \"path\": \"/\", \"allowedMethods\": [\"GET\", \"HEAD\"], \"root\": \"" + dir + "\",\n"
+            + "      \"defaultFile\": \"index.html\", \"directoryListing\": true }\n"
+            + "  ]\n"
+            + "}\n";
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            failures++;
+            System.out.println("FAIL: " + what);
+        }
+    }
+}
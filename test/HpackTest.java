@@ -0,0 +1,217 @@
+package test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import src.Hpack;
+
+/**
+ * Decodes the header block examples of RFC 7541 Appendix C, round-trips
+ * header lists through an Encoder and Decoder pair, and checks that
+ * malformed blocks are refused.
+ *
+ * From the project root:
+ *   javac -d out src/*.java test/HpackTest.java
+ *   java -cp out test.HpackTest
+ */
+public class HpackTest {
+    private static int failures;
+
+    public static void main(String[] args) {
+        rfcRequests("C.3", new String[] {
+            "828684410f7777772e6578616d706c652e636f6d",
+            "828684be58086e6f2d6361636865",
+            "828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565",
+        });
+        rfcRequests("C.4", new String[] {
+            "828684418cf1e3c2e5f23a6ba0ab90f4ff",
+            "828684be5886a8eb10649cbf",
+            "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf",
+        });
+        rfcResponses();
+        roundTrip();
+        malformed();
+
+        if (failures > 0) {
+            System.out.println(failures + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    // C.3 and C.4: the same three requests, without and with Huffman coding.
+    private static void rfcRequests(String section, String[] blocks) {
+        List<List<String[]>> expected = Arrays.asList(
+            fields(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com"),
+            fields(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+                "cache-control", "no-cache"),
+            fields(":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com",
+                "custom-key", "custom-value"));
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        for (int i = 0; i < blocks.length; i++) {
+            checkDecodes(decoder, blocks[i], expected.get(i), section + "." + (i + 1));
+        }
+    }
+
+    // C.6: responses with Huffman coding and a 256-byte table, so entries are evicted.
+    private static void rfcResponses() {
+        String[] blocks = {
+            "488264025885aec3771a4b6196d07abe941054d444a8200595040b8166e082a62d1bff"
+                + "6e919d29ad171863c78f0b97c8e9ae82ae43d3",
+            "4883640effc1c0bf",
+            "88c16196d07abe941054d444a8200595040b8166e084a62d1bffc05a839bd9ab77ad94"
+                + "e7821dd7f2e6c7b335dfdfcd5b3960d5af27087f3672c1ab270fb5291f9587316065"
+                + "c003ed4ee5b1063d5007",
+        };
+        List<List<String[]>> expected = Arrays.asList(
+            fields(":status", "302", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+                "location", "https://www.example.com"),
+            fields(":status", "307", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+                "location", "https://www.example.com"),
+            fields(":status", "200", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:22 GMT",
+                "location", "https://www.example.com", "content-encoding", "gzip",
+                "set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1"));
+        Hpack.Decoder decoder = new Hpack.Decoder(256);
+        for (int i = 0; i < blocks.length; i++) {
+            checkDecodes(decoder, blocks[i], expected.get(i), "C.6." + (i + 1));
+        }
+    }
+
+    private static void roundTrip() {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        StringBuilder longValue = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            longValue.append((char) ('a' + i % 26));
+        }
+        StringBuilder binary = new StringBuilder();
+        for (int c = 0; c < 256; c++) {
+            binary.append((char) c);
+        }
+
+        int firstLength = 0;
+        for (int round = 0; round < 50; round++) {
+            List<String[]> response = fields(
+                ":status", round % 2 == 0 ? "200" : "404",
+                "content-type", "text/html; charset=utf-8",
+                "server", "localserver",
+                "cache-control", "public, max-age=" + (round % 3),
+                "content-length", String.valueOf(round * 1000),
+                "etag", "\"" + Integer.toHexString(round * 7919) + "\"",
+                "set-cookie", "SESSIONID=" + round,
+                "x-long", longValue.toString(),
+                "x-binary", binary.toString(),
+                "x-empty", "");
+            if (round == 20) {
+                // A smaller table from the peer must be announced and honoured.
+                encoder.setPeerTableSize(128);
+            }
+            byte[] block = encoder.encode(response);
+            if (round == 0) {
+                firstLength = block.length;
+            } else if (round == 2) {
+                check(block.length < firstLength, "repeated fields shrink the block (" + block.length
+                    + " >= " + firstLength + ")");
+            }
+            try {
+                check(same(decoder.decode(block, 0, block.length), response), "round trip " + round);
+            } catch (IOException e) {
+                check(false, "round trip " + round + ": " + e.getMessage());
+            }
+        }
+
+        // Never-indexed literal (0001xxxx) for secrets, so they stay out of
+        // intermediaries' tables too.
+        byte[] cookie = new Hpack.Encoder().encode(fields("set-cookie", "a=b"));
+        check((cookie[0] & 0xF0) == 0x10, "set-cookie is never indexed");
+
+        byte[] offset = new byte[] { 0x55, 0x55, (byte) 0x82, (byte) 0x84, 0x55 };
+        try {
+            check(same(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE).decode(offset, 2, 2),
+                fields(":method", "GET", ":path", "/")), "decode honours offset and length");
+        } catch (IOException e) {
+            check(false, "decode honours offset and length: " + e.getMessage());
+        }
+    }
+
+    private static void malformed() {
+        expectError("80", "index 0");
+        expectError("be", "index past the empty dynamic table");
+        expectError("ff", "truncated integer");
+        expectError("ffffffffff0f", "integer too large");
+        expectError("0005616263", "truncated literal name");
+        expectError("000161", "literal with missing value");
+        expectError("3fe21f", "table size update above the limit");
+        expectError("823f00", "table size update after a field");
+        expectError("00016181ff", "Huffman padding too long");
+        expectError("000161811a", "Huffman padding not all ones");
+        expectError("00016184ffffffff", "EOS in a Huffman string");
+    }
+
+    private static void checkDecodes(Hpack.Decoder decoder, String hex, List<String[]> expected, String what) {
+        byte[] block = hex(hex);
+        try {
+            List<String[]> actual = decoder.decode(block, 0, block.length);
+            check(same(actual, expected), what + ": got " + describe(actual));
+        } catch (IOException e) {
+            check(false, what + ": " + e.getMessage());
+        }
+    }
+
+    private static void expectError(String hex, String what) {
+        byte[] block = hex(hex);
+        try {
+            new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE).decode(block, 0, block.length);
+            check(false, what + ": expected an error");
+        } catch (IOException expected) {
+            // The whole connection fails with COMPRESSION_ERROR.
+        } catch (RuntimeException e) {
+            check(false, what + ": expected IOException, got " + e);
+        }
+    }
+
+    private static List<String[]> fields(String... namesAndValues) {
+        List<String[]> fields = new ArrayList<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            fields.add(new String[] { namesAndValues[i], namesAndValues[i + 1] });
+        }
+        return fields;
+    }
+
+    private static boolean same(List<String[]> a, List<String[]> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            if (!Arrays.equals(a.get(i), b.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String describe(List<String[]> fields) {
+        StringBuilder sb = new StringBuilder();
+        for (String[] field : fields) {
+            sb.append(field[0]).append(": ").append(field[1]).append("; ");
+        }
+        return sb.toString();
+    }
+
+    private static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            failures++;
+            System.out.println("FAIL: " + what);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import src.HttpException;
+import src.HttpRequest;
+
+/**
+ * Parses raw HTTP/1.x requests with HttpRequest and checks the request
+ * line, headers, cookies, query parameters and body it exposes, and which
+ * requests checkWellFormed refuses, including ambiguous body framing.
+ *
+ * From the project root:
+ *   javac -d out src/*.java test/HttpRequestTest.java
+ *   java -cp out test.HttpRequestTest
+ */
+public class HttpRequestTest {
+    private static int failures;
+
+    public static void main(String[] args) {
+        requestLine();
+        headers();
+        cookiesAndQuery();
+        body();
+        persistence();
+        wellFormed();
+        framing();
+
+        if (failures > 0) {
+            System.out.println(failures + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    private static void requestLine() {
+        HttpRequest request = parse("GET /docs/a%20b.html?x=1 HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        check(request.getMethod() == HttpRequest.GET, "GET is the shared constant");
+        check(request.getVersion() == HttpRequest.HTTP_1_1, "HTTP/1.1 is the shared constant");
+        check("/docs/a b.html".equals(request.getPath()), "path is percent-decoded without the query");
+        check("/docs/a%20b.html?x=1".equals(request.getTarget()), "target is kept as sent");
+
+        request = parse("PROPFIND /caf%C3%A9+x HTTP/1.0\r\n\r\n");
+        check("PROPFIND".equals(request.getMethod()), "unknown methods are kept");
+        check(request.getVersion() == HttpRequest.HTTP_1_0, "HTTP/1.0 is the shared constant");
+        check("/caf\u00e9+x".equals(request.getPath()), "path decodes UTF-8 and keeps '+'");
+    }
+
+    private static void headers() {
+        HttpRequest request = parse("GET / HTTP/1.1\r\n"
+            + "Host: example.com\r\n"
+            + "X-Padded: \t value with spaces \t\r\n"
+            + "x-dup: first\r\n"
+            + "X-Dup: second\r\n"
+            + "X-Empty:\r\n"
+            + "no colon here\r\n"
+            + "X-Utf8: caf\u00c3\u00a9\r\n"
+            + "\r\n");
+        check("example.com".equals(request.getHeader("HOST")), "header lookup ignores case");
+        check("value with spaces".equals(request.getHeader("x-padded")), "header values are trimmed");
+        check("first".equals(request.getHeader("X-DUP")), "getHeader returns the first of several");
+        check("".equals(request.getHeader("X-Empty")), "empty header value");
+        check(request.getHeader("Missing") == null && !request.hasHeader("Missing"), "missing header");
+        check("caf\u00e9".equals(request.getHeader("X-Utf8")), "header values decode as UTF-8");
+        check(request.getHeaderCount() == 6, "line without a colon is skipped (" + request.getHeaderCount() + ")");
+        check("x-dup".equals(request.getHeaderName(2)) && "second".equals(request.getHeaderValue(3)),
+            "headers by index keep order and case");
+        check("second".equals(request.getHeaders().get("x-DUP")), "header map is case-insensitive, last wins");
+
+        String raw = "GET / HTTP/1.1\r\nHost: a\r\n\r\nGET /next HTTP/1.1\r\n";
+        byte[] bytes = ascii(raw);
+        check(HttpRequest.findHeaderEnd(bytes, 0, bytes.length) == raw.indexOf("GET /next"), "findHeaderEnd");
+        check(HttpRequest.findHeaderEnd(bytes, 0, raw.indexOf("GET /next") - 1) == -1, "findHeaderEnd needs all four bytes");
+    }
+
+    private static void cookiesAndQuery() {
+        HttpRequest request = parse("GET /search?q=hello+world&lang=fr&name=caf%C3%A9&flag&=skip&x=%zz HTTP/1.1\r\n"
+            + "Cookie: SESSIONID=abc123; theme=\"dark\"; empty=\r\n"
+            + "Cookie: SESSIONID=ignored; other = 2 \r\n"
+            + "\r\n");
+        check("hello world".equals(request.getQueryParams().get("q")), "'+' in a query is a space");
+        check("caf\u00e9".equals(request.getQueryParams().get("name")), "query values decode as UTF-8");
+        check("%zz".equals(request.getQueryParams().get("x")), "bad escapes are kept as they are");
+        check(!request.getQueryParams().containsKey("flag") && request.getQueryParams().size() == 4,
+            "pairs without '=' or a name are skipped");
+        check("abc123".equals(request.getCookies().get("SESSIONID")), "first cookie of a name wins");
+        check("dark".equals(request.getCookies().get("theme")), "quoted cookie value");
+        check("".equals(request.getCookies().get("empty")), "empty cookie value");
+        check("2".equals(request.getCookies().get("other")), "cookies from a second Cookie header");
+        check(parse("GET / HTTP/1.1\r\n\r\n").getQueryParams().isEmpty(), "no query string");
+    }
+
+    private static void body() {
+        // The request sits inside a larger buffer, followed by a pipelined one.
+        String raw = "POST /submit HTTP/1.1\r\nContent-Length: 5\r\n\r\nhelloGET / HTTP/1.1\r\n\r\n";
+        byte[] buffer = new byte[raw.length() + 20];
+        Arrays.fill(buffer, (byte) 'z');
+        System.arraycopy(ascii(raw), 0, buffer, 10, raw.length());
+        HttpRequest request = new HttpRequest(buffer, 10, raw.length());
+        check(request.getMethod() == HttpRequest.POST, "request parsed at an offset");
+        check(request.getContentLength() == 5 && request.getBodyLength() == 5, "body is limited to Content-Length");
+        check("hello".equals(new String(request.getBody(), StandardCharsets.US_ASCII)), "body bytes");
+        ByteBuffer view = request.getBodyBuffer();
+        check(view.isReadOnly() && view.remaining() == 5 && view.get(0) == 'h', "body buffer is a read-only slice");
+
+        request = parse("POST / HTTP/1.1\r\nContent-Length: 10\r\n\r\nabc");
+        check(request.getBodyLength() == 3, "body is what has arrived so far");
+
+        request = parse("POST / HTTP/1.1\r\nTransfer-Encoding: Chunked\r\n\r\n");
+        check(request.isChunked(), "chunked transfer coding ignores case");
+        check(request.getContentLength() == -1 && request.getBodyLength() == 0, "no Content-Length, no body");
+
+        request = parse("GET / HTTP/1.1\r\n\r\n");
+        check(request.getBody().length == 0, "empty body");
+    }
+
+    private static void persistence() {
+        check(parse("GET / HTTP/1.1\r\n\r\n").isPersistent(), "HTTP/1.1 persists by default");
+        check(!parse("GET / HTTP/1.1\r\nConnection: close\r\n\r\n").isPersistent(), "Connection: close");
+        check(!parse("GET / HTTP/1.1\r\nConnection: Upgrade, Close\r\n\r\n").isPersistent(), "close among tokens");
+        check(!parse("GET / HTTP/1.0\r\n\r\n").isPersistent(), "HTTP/1.0 closes by default");
+        check(parse("GET / HTTP/1.0\r\nConnection: Keep-Alive\r\n\r\n").isPersistent(), "HTTP/1.0 keep-alive");
+    }
+
+    private static void wellFormed() {
+        expectWellFormed("GET / HTTP/1.1\r\nHost: a\r\n\r\n", "plain GET");
+        expectWellFormed("POST / HTTP/1.1\r\nContent-Length: 0\r\n\r\n", "zero Content-Length");
+        expectWellFormed("POST / HTTP/1.1\r\nContent-Length:  42 \r\n\r\n", "Content-Length with spaces");
+
+        expectBadRequest("GET /\r\n\r\n", "request line without a version");
+        expectBadRequest("GET\r\n\r\n", "request line with only a method");
+        expectBadRequest(" / HTTP/1.1\r\n\r\n", "request line without a method");
+        expectBadRequest("GET  HTTP/1.1\r\n\r\n", "request line without a target");
+        expectBadRequest("\r\n", "empty request line");
+        expectBadRequest("POST / HTTP/1.1\r\nContent-Length: abc\r\n\r\n", "non-numeric Content-Length");
+        expectBadRequest("POST / HTTP/1.1\r\nContent-Length: -1\r\n\r\n", "negative Content-Length");
+        expectBadRequest("POST / HTTP/1.1\r\nContent-Length:\r\n\r\n", "empty Content-Length");
+        expectBadRequest("POST / HTTP/1.1\r\nContent-Length: 1 2\r\n\r\n", "Content-Length with two numbers");
+        expectBadRequest("POST / HTTP/1.1\r\nContent-Length: 9999999999999999999\r\n\r\n",
+            "Content-Length too large");
+    }
+
+    // Framings that two parties could read differently, which would let a
+    // second request hide in the body of the first.
+    private static void framing() {
+        HttpRequest request = parse("POST / HTTP/1.1\r\nContent-Length: 5\r\ncontent-length: 5\r\n\r\nhello");
+        check(request.getContentLength() == 5, "repeated equal Content-Length");
+        expectWellFormed("POST / HTTP/1.1\r\nContent-Length: 5\r\ncontent-length: 5\r\n\r\n", "repeated equal Content-Length");
+        check(parse("POST / HTTP/1.1\r\nContent-Length: 5 , 5\r\n\r\n").getContentLength() == 5,
+            "equal Content-Length list");
+        expectStatus("POST / HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 6\r\n\r\n", 400,
+            "conflicting Content-Length headers");
+        expectStatus("POST / HTTP/1.1\r\nContent-Length: 5, 6\r\n\r\n", 400, "conflicting Content-Length list");
+        expectStatus("POST / HTTP/1.1\r\nContent-Length: 5,\r\n\r\n", 400, "empty Content-Length list element");
+        check(parse("POST / HTTP/1.1\r\nContent-Length: 5, 6\r\n\r\n").getContentLength() == -1,
+            "conflicting Content-Length reads as invalid");
+
+        expectWellFormed("POST / HTTP/1.1\r\nTransfer-Encoding:  chunked \r\n\r\n", "chunked with spaces");
+        request = parse("POST / HTTP/1.1\r\nTransfer-Encoding: gzip, chunked\r\n\r\n");
+        check(request.isChunked(), "gzip, chunked is framed as chunked");
+        expectStatus("POST / HTTP/1.1\r\nTransfer-Encoding: gzip, chunked\r\n\r\n", 501, "gzip before chunked");
+        expectStatus("POST / HTTP/1.1\r\nTransfer-Encoding: gzip\r\nTransfer-Encoding: chunked\r\n\r\n", 501,
+            "gzip and chunked in two headers");
+        request = parse("POST / HTTP/1.1\r\nTransfer-Encoding: chunked, gzip\r\n\r\n");
+        check(!request.isChunked(), "chunked, gzip is not chunked");
+        expectStatus("POST / HTTP/1.1\r\nTransfer-Encoding: chunked, gzip\r\n\r\n", 400, "chunked not last");
+        expectStatus("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\nTransfer-Encoding: identity\r\n\r\n", 400,
+            "chunked not last across headers");
+        expectStatus("POST / HTTP/1.1\r\nTransfer-Encoding: gzip\r\n\r\n", 400, "no chunked at all");
+        expectStatus("POST / HTTP/1.1\r\nTransfer-Encoding: chunked, chunked\r\n\r\n", 400, "chunked twice");
+        expectStatus("POST / HTTP/1.1\r\nTransfer-Encoding:\r\n\r\n", 400, "empty Transfer-Encoding");
+        expectStatus("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\nContent-Length: 5\r\n\r\n", 400,
+            "Transfer-Encoding with Content-Length");
+        expectStatus("POST / HTTP/1.1\r\nContent-Length: 5\r\nTransfer-Encoding: xchunked\r\n\r\n", 400,
+            "Content-Length with an unknown Transfer-Encoding");
+    }
+
+    private static void expectWellFormed(String raw, String what) {
+        try {
+            parse(raw).checkWellFormed();
+        } catch (HttpException e) {
+            check(false, what + ": refused with " + e.getStatus() + " " + e.getMessage());
+        }
+    }
+
+    private static void expectBadRequest(String raw, String what) {
+        expectStatus(raw, 400, what);
+    }
+
+    private static void expectStatus(String raw, int status, String what) {
+        try {
+            parse(raw).checkWellFormed();
+            check(false, what + ": expected " + status + ", got no error");
+        } catch (HttpException e) {
+            check(e.getStatus() == status, what + ": expected " + status + ", got " + e.getStatus());
+        }
+    }
+
+    private static HttpRequest parse(String raw) {
+        return new HttpRequest(ascii(raw));
+    }
+
+    // Strings here stand for raw octets, so each char is one byte.
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            failures++;
+            System.out.println("FAIL: " + what);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import src.HttpException;
+import src.MultipartParser;
+import src.UploadConfig;
+
+/**
+ * Feeds MultipartParser form bodies in one piece and in small slices, and
+ * checks the fields and files it produces, the limits it enforces, and that
+ * refused uploads leave the upload directory as they found it.
+ *
+ * From the project root:
+ *   javac -d out src/*.java test/MultipartParserTest.java
+ *   java -cp out test.MultipartParserTest
+ */
+public class MultipartParserTest {
+    private static final String BOUNDARY = "----formBoundary7MA4YWxk";
+
+    private static int failures;
+
+    public static void main(String[] args) throws IOException {
+        Path directory = Files.createTempDirectory("multipart-test-");
+        try {
+            boundaries();
+            fieldsAndFiles(directory, Integer.MAX_VALUE);
+            fieldsAndFiles(directory, 7);
+            fieldsAndFiles(directory, 1);
+            conflicts(directory);
+            limits(directory);
+        } finally {
+            try (Stream<Path> paths = Files.walk(directory)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+
+        if (failures > 0) {
+            System.out.println(failures + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    private static void boundaries() throws IOException {
+        check(BOUNDARY.equals(MultipartParser.boundaryOf("multipart/form-data; boundary=" + BOUNDARY)),
+            "plain boundary parameter");
+        check("a b".equals(MultipartParser.boundaryOf("Multipart/Form-Data; charset=utf-8; boundary=\"a b\"")),
+            "quoted boundary parameter");
+        check(MultipartParser.boundaryOf("application/json") == null, "other types have no boundary");
+        check(MultipartParser.boundaryOf(null) == null, "no Content-Type has no boundary");
+        expectStatus(() -> MultipartParser.boundaryOf("multipart/form-data"), 400, "missing boundary");
+    }
+
+    private static void fieldsAndFiles(Path directory, int slice) throws IOException {
+        // File data that contains most of a delimiter, and enough of it to
+        // cross the parser's window several times.
+        byte[] data = new byte[200 * 1024];
+        new Random(slice).nextBytes(data);
+        byte[] almost = ("\r\n--" + BOUNDARY.substring(0, BOUNDARY.length() - 1)).getBytes(StandardCharsets.ISO_8859_1);
+        System.arraycopy(almost, 0, data, 1000, almost.length);
+
+        String filename = "data-" + slice + ".bin";
+        byte[] body = new Body()
+            .field("title", "h\u00e9llo w\u00f6rld")
+            .file("upload", "C:\\Users\\me\\" + filename, data)
+            .field("empty", "")
+            .file("blank", "", new byte[0])
+            .end();
+
+        MultipartParser parser = parser(directory, new UploadConfig());
+        try {
+            feed(parser, body, slice);
+            check(parser.isComplete(), "complete after closing boundary (slice " + slice + ")");
+            parser.commit();
+            check("h\u00e9llo w\u00f6rld".equals(parser.getFields().get("title")), "UTF-8 field value (slice " + slice + ")");
+            check("".equals(parser.getFields().get("empty")), "empty field value (slice " + slice + ")");
+            check(parser.getFiles().size() == 1, "blank file input is dropped (slice " + slice + ")");
+            MultipartParser.Part part = parser.getFiles().get(0);
+            check(part.getName().equals("upload"), "file part name (slice " + slice + ")");
+            check(part.getContentType().equals("application/octet-stream"), "file part type (slice " + slice + ")");
+            check(part.getSize() == data.length, "file part size (slice " + slice + ")");
+            check(part.getFile().equals(directory.resolve(filename)), "client path is stripped (slice " + slice + ")");
+            check(Arrays.equals(Files.readAllBytes(part.getFile()), data), "file contents intact (slice " + slice + ")");
+        } finally {
+            parser.close();
+        }
+        check(leftovers(directory) == 0, "no temporary files left (slice " + slice + ")");
+    }
+
+    private static void conflicts(Path directory) throws IOException {
+        Files.write(directory.resolve("taken.txt"), "original".getBytes(StandardCharsets.US_ASCII));
+        byte[] body = new Body().file("f", "taken.txt", "replacement".getBytes(StandardCharsets.US_ASCII)).end();
+        MultipartParser parser = parser(directory, new UploadConfig());
+        feed(parser, body, Integer.MAX_VALUE);
+        expectStatus(parser::commit, 409, "existing file");
+        parser.close();
+        check(new String(Files.readAllBytes(directory.resolve("taken.txt")), StandardCharsets.US_ASCII).equals("original"),
+            "existing file is not replaced");
+        check(leftovers(directory) == 0, "no temporary files left after 409");
+
+        body = new Body()
+            .file("a", "twice.txt", new byte[] {1})
+            .file("b", "dir/twice.txt", new byte[] {2})
+            .end();
+        parser = parser(directory, new UploadConfig());
+        feed(parser, body, Integer.MAX_VALUE);
+        expectStatus(parser::commit, 409, "same name twice in one body");
+        parser.close();
+        check(!Files.exists(directory.resolve("twice.txt")), "neither duplicate is moved");
+        check(leftovers(directory) == 0, "no temporary files left after duplicate");
+    }
+
+    private static void limits(Path directory) throws IOException {
+        UploadConfig limits = new UploadConfig();
+        limits.setMaxParts(2);
+        limits.setMaxFieldSize(8);
+        limits.setMaxFileSize(16);
+
+        expectRejected(directory, limits, new Body().field("a", "1").field("b", "2").field("c", "3").end(),
+            413, "too many parts");
+        expectRejected(directory, limits, new Body().field("a", "123456789").end(), 413, "field too large");
+        expectRejected(directory, limits, new Body().file("f", "big.bin", new byte[17]).end(), 413, "file too large");
+        expectRejected(directory, limits, new Body().file("f", "..", new byte[1]).end(), 400, "dot-dot filename");
+        expectRejected(directory, limits, new Body().file("f", ".upload-x", new byte[1]).end(), 400, "reserved filename");
+        expectRejected(directory, limits, ("--" + BOUNDARY + "\r\nContent-Type: text/plain\r\n\r\nx\r\n--" + BOUNDARY + "--")
+            .getBytes(StandardCharsets.US_ASCII), 400, "part without a name");
+        expectRejected(directory, limits, ("--" + BOUNDARY + "XX").getBytes(StandardCharsets.US_ASCII),
+            400, "malformed boundary line");
+        check(!Files.exists(directory.resolve("big.bin")), "oversized file is not kept");
+
+        byte[] body = new Body().file("f", "cut.bin", new byte[10]).end();
+        MultipartParser parser = parser(directory, limits);
+        feed(parser, Arrays.copyOf(body, body.length - 10), Integer.MAX_VALUE);
+        check(!parser.isComplete(), "not complete without closing boundary");
+        expectStatus(parser::commit, 400, "incomplete body");
+        parser.close();
+        check(!Files.exists(directory.resolve("cut.bin")), "cut-off file is not kept");
+        check(leftovers(directory) == 0, "no temporary files left after rejections");
+    }
+
+    private static void expectRejected(Path directory, UploadConfig limits, byte[] body, int status, String what)
+            throws IOException {
+        MultipartParser parser = parser(directory, limits);
+        try {
+            expectStatus(() -> {
+                feed(parser, body, Integer.MAX_VALUE);
+                parser.commit();
+            }, status, what);
+        } finally {
+            parser.close();
+        }
+    }
+
+    private static MultipartParser parser(Path directory, UploadConfig limits) {
+        return new MultipartParser(BOUNDARY, directory, limits);
+    }
+
+    private static void feed(MultipartParser parser, byte[] body, int slice) throws IOException {
+        for (int i = 0; i < body.length; i += slice) {
+            parser.write(ByteBuffer.wrap(body, i, Math.min(slice, body.length - i)));
+        }
+    }
+
+    private static long leftovers(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.list(directory)) {
+            return paths.filter(p -> p.getFileName().toString().startsWith(".upload-")).count();
+        }
+    }
+
+    private interface Action {
+        void run() throws IOException;
+    }
+
+    private static void expectStatus(Action action, int status, String what) {
+        try {
+            action.run();
+            check(false, what + ": expected " + status + ", got no error");
+        } catch (HttpException e) {
+            check(e.getStatus() == status, what + ": expected " + status + ", got " + e.getStatus());
+        } catch (IOException e) {
+            check(false, what + ": expected " + status + ", got " + e);
+        }
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            failures++;
+            System.out.println("FAIL: " + what);
+        }
+    }
+
+    // Builds a multipart/form-data body the way a browser would.
+    private static class Body {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Body field(String name, String value) {
+            header("Content-Disposition: form-data; name=\"" + name + "\"\r\n\r\n");
+            out.writeBytes(value.getBytes(StandardCharsets.UTF_8));
+            out.writeBytes("\r\n".getBytes(StandardCharsets.US_ASCII));
+            return this;
+        }
+
+        Body file(String name, String filename, byte[] data) {
+            header("Content-Disposition: form-data; name=\"" + name + "\"; filename=\"" + filename + "\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n");
+            out.writeBytes(data);
+            out.writeBytes("\r\n".getBytes(StandardCharsets.US_ASCII));
+            return this;
+        }
+
+        byte[] end() {
+            out.writeBytes(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+            return out.toByteArray();
+        }
+
+        private void header(String lines) {
+            out.writeBytes(("--" + BOUNDARY + "\r\n" + lines).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
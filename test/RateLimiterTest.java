@@ -0,0 +1,147 @@
+package test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import src.ConfigLoader;
+import src.Metrics;
+import src.RateLimitConfig;
+import src.RateLimiter;
+
+/**
+ * Checks the GCRA buckets in RateLimiter: bursts, refill over time,
+ * independence of clients and routes, eviction from a full table, and how
+ * client addresses are packed.
+ *
+ * Refill is checked against the real clock with rates low enough that
+ * scheduling noise of a few milliseconds cannot change the outcome.
+ *
+ * From the project root:
+ *   javac -d out src/*.java test/RateLimiterTest.java
+ *   java -cp out test.RateLimiterTest
+ */
+public class RateLimiterTest {
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        burst();
+        refill();
+        routes();
+        eviction();
+        packing();
+
+        if (failures > 0) {
+            System.out.println(failures + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    private static void burst() {
+        Metrics metrics = new Metrics();
+        RateLimiter limiter = new RateLimiter(limit(1, 5, 1024), List.of(), metrics);
+        check(allowed(limiter, 1, 10) == 5, "a burst of 5 at 1/s lets 5 through");
+        check(!limiter.allowClient(0, 1), "the bucket stays empty");
+        check(metrics.snapshot().get("ratelimit.limited_requests") == 6, "limited requests are counted");
+        check(allowed(limiter, 2, 10) == 5, "another client has its own bucket");
+
+        limiter = new RateLimiter(limit(1, 1, 1024), List.of(), new Metrics());
+        check(allowed(limiter, 1, 3) == 1, "a burst of 1 allows no burst at all");
+
+        limiter = new RateLimiter(limit(0, 0, 1024), List.of(), new Metrics());
+        check(allowed(limiter, 1, 1000) == 1000, "a rate of 0 means no limit");
+
+        String response = new String(limiter.tooManyRequestsResponse(), StandardCharsets.US_ASCII);
+        check(response.startsWith("HTTP/1.1 429 ") && response.contains("Retry-After: 1\r\n")
+            && response.endsWith("\r\n\r\n"), "429 response");
+    }
+
+    private static void refill() throws InterruptedException {
+        // 10/s: one request back every 100 ms.
+        RateLimiter limiter = new RateLimiter(limit(10, 2, 1024), List.of(), new Metrics());
+        check(allowed(limiter, 1, 5) == 2, "burst of 2 at 10/s");
+        Thread.sleep(150);
+        check(allowed(limiter, 1, 5) == 1, "one request back after 150 ms");
+        Thread.sleep(400);
+        check(allowed(limiter, 1, 5) == 2, "refill stops at the burst size");
+    }
+
+    private static void routes() {
+        ConfigLoader.Route limited = new ConfigLoader.Route();
+        limited.setRateLimit(limit(1, 2, 0));
+        ConfigLoader.Route other = new ConfigLoader.Route();
+        other.setRateLimit(limit(1, 3, 0));
+        ConfigLoader.Route open = new ConfigLoader.Route();
+        List<ConfigLoader.Route> routes = Arrays.asList(limited, other, open);
+
+        RateLimiter limiter = new RateLimiter(limit(1, 4, 1024), routes, new Metrics());
+        int allowed = 0;
+        for (int i = 0; i < 5; i++) {
+            allowed += limiter.allowRoute(0, 1, limited) ? 1 : 0;
+        }
+        check(allowed == 2, "route limit applies per client");
+        check(limiter.allowRoute(0, 2, limited), "route limit is per client");
+        allowed = 0;
+        for (int i = 0; i < 5; i++) {
+            allowed += limiter.allowRoute(0, 1, other) ? 1 : 0;
+        }
+        check(allowed == 3, "each route has its own bucket");
+        for (int i = 0; i < 100; i++) {
+            check(limiter.allowRoute(0, 1, open), "route without a limit is open");
+        }
+        check(allowed(limiter, 1, 10) == 4, "route buckets do not use up the global one");
+    }
+
+    private static void eviction() {
+        Metrics metrics = new Metrics();
+        RateLimiter limiter = new RateLimiter(limit(1, 1, 16), List.of(), metrics);
+        check(limiter.allowClient(0, 0xFFFF00000001L), "first client");
+        check(!limiter.allowClient(0, 0xFFFF00000001L), "first client is limited");
+        for (long client = 2; client < 10_000; client++) {
+            limiter.allowClient(0, 0xFFFF00000000L | client);
+        }
+        long evictions = metrics.snapshot().get("ratelimit.evictions");
+        check(evictions > 9_000, "a full table evicts (" + evictions + ")");
+        // The first client was the least recently seen, so its bucket is gone
+        // and it starts afresh.
+        check(limiter.allowClient(0, 0xFFFF00000001L), "evicted client starts with a full bucket");
+    }
+
+    private static void packing() throws UnknownHostException {
+        long[] v4 = RateLimiter.pack(new InetSocketAddress(InetAddress.getByName("192.168.1.20"), 80));
+        check(v4[0] == 0 && v4[1] == 0xFFFFC0A80114L, "IPv4 packs as IPv4-mapped IPv6");
+        long[] v6 = RateLimiter.pack(new InetSocketAddress(InetAddress.getByName("2001:db8::1"), 80));
+        check(v6[0] == 0x20010DB800000000L && v6[1] == 1, "IPv6 packs as two longs");
+        long[] unresolved = RateLimiter.pack(InetSocketAddress.createUnresolved("example.invalid", 80));
+        check(unresolved[0] == 0 && unresolved[1] == 0, "unresolved address packs as zero");
+    }
+
+    private static int allowed(RateLimiter limiter, long client, int requests) {
+        int allowed = 0;
+        for (int i = 0; i < requests; i++) {
+            if (limiter.allowClient(0, client)) {
+                allowed++;
+            }
+        }
+        return allowed;
+    }
+
+    private static RateLimitConfig limit(double requestsPerSecond, int burst, int tableSize) {
+        RateLimitConfig config = new RateLimitConfig();
+        config.setRequestsPerSecond(requestsPerSecond);
+        config.setBurst(burst);
+        config.setTableSize(tableSize);
+        return config;
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            failures++;
+            System.out.println("FAIL: " + what);
+        }
+    }
+}
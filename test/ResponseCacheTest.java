@@ -0,0 +1,213 @@
+package test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+import src.CacheConfig;
+import src.HttpRequest;
+import src.Metrics;
+import src.ResponseCache;
+
+/**
+ * Checks ResponseCache keys, storage rules, freshness, stale serving,
+ * Vary handling and the LRU byte bound. Time is passed in explicitly, so
+ * nothing here depends on the clock.
+ *
+ * From the project root:
+ *   javac -d out src/*.java test/ResponseCacheTest.java
+ *   java -cp out test.ResponseCacheTest
+ */
+public class ResponseCacheTest {
+    private static final long NOW = 1_000_000;
+
+    private static int failures;
+
+    public static void main(String[] args) {
+        keys();
+        storage();
+        freshness();
+        vary();
+        eviction();
+
+        if (failures > 0) {
+            System.out.println(failures + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    private static void keys() {
+        ResponseCache cache = new ResponseCache(1 << 20, new Metrics());
+        CacheConfig config = config(10, 0);
+        String plain = cache.keyFor(get("/a?b=1&a=2", ""), config);
+        check(plain != null && plain.contains("localhost") && plain.endsWith("/a?b=1&a=2"),
+            "key has host, path and the whole query");
+        check(!plain.equals(cache.keyFor(get("/a?b=1&a=3", ""), config)), "query is part of the key");
+        check(!plain.equals(cache.keyFor(request("GET /a?b=1&a=2 HTTP/1.1\r\nHost: other\r\n"), config)),
+            "host is part of the key");
+        check(!plain.equals(cache.keyFor(request("GET /a?b=1&a=2 HTTP/1.0\r\nHost: localhost\r\n"), config)),
+            "version is part of the key");
+
+        config.setQueryParams(Arrays.asList("page", "sort"));
+        String selected = cache.keyFor(get("/list?sort=name&utm=x&page=2", ""), config);
+        check(selected.equals(cache.keyFor(get("/list?page=2&sort=name", ""), config)),
+            "only configured parameters, in configured order");
+        check(!selected.equals(cache.keyFor(get("/list?page=3&sort=name", ""), config)),
+            "configured parameters change the key");
+
+        check(cache.keyFor(request("POST /a HTTP/1.1\r\nHost: localhost\r\n"), config) == null, "POST bypasses");
+        check(cache.keyFor(get("/a", "Cache-Control: no-store\r\n"), config) == null, "no-store request bypasses");
+    }
+
+    private static void storage() {
+        CacheConfig config = config(10, 0);
+        check(stores(response(200, ""), config), "200 is stored");
+        check(stores(response(404, ""), config), "404 is stored");
+        check(stores(response(301, "Location: /b\r\n"), config), "301 is stored");
+        check(!stores(response(500, ""), config), "500 is not stored");
+        check(!stores(response(302, "Location: /b\r\n"), config), "302 is not stored");
+        check(!stores(response(200, "Set-Cookie: a=b\r\n"), config), "Set-Cookie is not stored");
+        check(!stores(response(200, "Cache-Control: private\r\n"), config), "private is not stored");
+        check(!stores(response(200, "Cache-Control: no-store\r\n"), config), "no-store is not stored");
+        check(!stores(response(200, "cache-control: No-Cache\r\n"), config), "no-cache is not stored, any case");
+        check(!stores(response(200, "Cache-Control: max-age=0\r\n"), config), "max-age=0 is not stored");
+        check(!stores(response(200, "Vary: *\r\n"), config), "Vary: * is not stored");
+        check(!stores("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n".getBytes(StandardCharsets.US_ASCII), config),
+            "response without a header end is not stored");
+        config.setMaxEntryBytes(50);
+        check(!stores(response(200, "X-Pad: 0123456789012345678901234567890123456789\r\n"), config),
+            "response over maxEntryBytes is not stored");
+    }
+
+    private static void freshness() {
+        Metrics metrics = new Metrics();
+        ResponseCache cache = new ResponseCache(1 << 20, metrics);
+        CacheConfig config = config(10, 5);
+        HttpRequest request = get("/page", "");
+        String key = cache.keyFor(request, config);
+        byte[] response = response(200, "");
+
+        check(cache.lookup(key, request, NOW, true) == null, "miss before store");
+        check(cache.store(key, request, response, config, NOW), "stored");
+        ResponseCache.Entry entry = cache.lookup(key, request, NOW + 9_999, false);
+        check(entry != null && entry.getResponse() == response && entry.isFresh(NOW + 9_999),
+            "fresh hit returns the stored bytes");
+        check(cache.lookup(key, request, NOW + 10_000, false) == null, "expired after ttlSeconds");
+        entry = cache.lookup(key, request, NOW + 12_000, true);
+        check(entry != null && !entry.isFresh(NOW + 12_000), "stale hit within staleWhileRevalidateSeconds");
+        check(entry.startRevalidation(NOW + 12_000), "first stale hit revalidates");
+        check(!entry.startRevalidation(NOW + 12_500), "one revalidation at a time");
+        check(entry.startRevalidation(NOW + 13_000), "revalidation is retried after a second");
+        check(cache.lookup(key, request, NOW + 15_000, true) == null, "too stale to serve");
+        check(cache.lookup(key, get("/page", "Cache-Control: no-cache\r\n"), NOW, true) == null,
+            "no-cache request skips the lookup");
+
+        Map<String, Long> counts = metrics.snapshot();
+        check(counts.get("cache.hits") == 1 && counts.get("cache.stale_hits") == 1
+            && counts.get("cache.misses") == 4 && counts.get("cache.stores") == 1,
+            "hit, stale hit, miss and store counters: " + counts);
+
+        // The response's own lifetime can shorten the route's, never extend it.
+        check(expiresBy(cache, config, "Cache-Control: max-age=3\r\n", 3_000), "max-age shortens the ttl");
+        check(expiresBy(cache, config, "Cache-Control: max-age=3600\r\n", 10_000), "max-age does not extend the ttl");
+        check(expiresBy(cache, config, "Cache-Control: max-age=8, s-maxage=2\r\n", 2_000), "s-maxage wins over max-age");
+        check(expiresBy(cache, config, "Cache-Control: public, max-age=\"4\"\r\n", 4_000), "quoted max-age");
+
+        key = cache.keyFor(get("/swr", ""), config);
+        cache.store(key, request, response(200, "Cache-Control: max-age=1, stale-while-revalidate=60\r\n"), config, NOW);
+        check(cache.lookup(key, request, NOW + 30_000, true) != null, "stale-while-revalidate from the response");
+    }
+
+    private static void vary() {
+        ResponseCache cache = new ResponseCache(1 << 20, new Metrics());
+        CacheConfig config = config(10, 0);
+        HttpRequest gzip = get("/v", "Accept-Encoding: gzip\r\n");
+        String key = cache.keyFor(gzip, config);
+        cache.store(key, gzip, response(200, "Vary: Accept-Encoding, Accept-Language\r\n"), config, NOW);
+        check(cache.lookup(key, get("/v", "accept-encoding: gzip\r\n"), NOW, false) != null,
+            "same Vary header values hit");
+        check(cache.lookup(key, get("/v", "Accept-Encoding: br\r\n"), NOW, false) == null,
+            "different Vary header value misses");
+        check(cache.lookup(key, get("/v", ""), NOW, false) == null, "missing Vary header misses");
+        check(cache.lookup(key, get("/v", "Accept-Encoding: gzip\r\nAccept-Language: fr\r\n"), NOW, false) == null,
+            "Vary header absent when stored must stay absent");
+    }
+
+    private static void eviction() {
+        Metrics metrics = new Metrics();
+        // Room for about three of these entries.
+        ResponseCache cache = new ResponseCache(3 * 1300, metrics);
+        CacheConfig config = config(10, 0);
+        char[] pad = new char[1000];
+        Arrays.fill(pad, 'x');
+        byte[] big = response(200, "X-Pad: " + new String(pad) + "\r\n");
+
+        String[] keys = new String[4];
+        for (int i = 0; i < 3; i++) {
+            HttpRequest request = get("/e" + i, "");
+            keys[i] = cache.keyFor(request, config);
+            cache.store(keys[i], request, big, config, NOW);
+        }
+        HttpRequest first = get("/e0", "");
+        check(cache.lookup(keys[0], first, NOW, false) != null, "all three fit");
+        HttpRequest fourth = get("/e3", "");
+        keys[3] = cache.keyFor(fourth, config);
+        cache.store(keys[3], fourth, big, config, NOW);
+        check(cache.lookup(keys[1], get("/e1", ""), NOW, false) == null, "least recently used entry is evicted");
+        check(cache.lookup(keys[0], first, NOW, false) != null, "recently looked-up entry survives");
+        check(cache.lookup(keys[3], fourth, NOW, false) != null, "new entry is kept");
+        Map<String, Long> counts = metrics.snapshot();
+        check(counts.get("cache.evictions") == 1, "one eviction: " + counts.get("cache.evictions"));
+        check(counts.get("cache.bytes") <= 3 * 1300, "bytes stay under the bound: " + counts.get("cache.bytes"));
+
+        // Replacing an entry must not count its old size twice.
+        cache.store(keys[3], fourth, big, config, NOW + 1);
+        check(metrics.snapshot().get("cache.bytes").equals(counts.get("cache.bytes")), "replacement keeps the byte count");
+    }
+
+    private static boolean stores(byte[] response, CacheConfig config) {
+        ResponseCache cache = new ResponseCache(1 << 20, new Metrics());
+        HttpRequest request = get("/s", "");
+        return cache.store(cache.keyFor(request, config), request, response, config, NOW);
+    }
+
+    // Whether an entry stored with these headers is fresh just before
+    // lifetime milliseconds and expired at it.
+    private static boolean expiresBy(ResponseCache cache, CacheConfig config, String headers, long lifetime) {
+        HttpRequest request = get("/ttl" + lifetime + headers.length(), "");
+        String key = cache.keyFor(request, config);
+        if (!cache.store(key, request, response(200, headers), config, NOW)) {
+            return false;
+        }
+        return cache.lookup(key, request, NOW + lifetime - 1, false) != null
+            && cache.lookup(key, request, NOW + lifetime, false) == null;
+    }
+
+    private static CacheConfig config(int ttlSeconds, int staleSeconds) {
+        CacheConfig config = new CacheConfig();
+        config.setTtlSeconds(ttlSeconds);
+        config.setStaleWhileRevalidateSeconds(staleSeconds);
+        return config;
+    }
+
+    private static HttpRequest get(String target, String headers) {
+        return request("GET " + target + " HTTP/1.1\r\nHost: localhost\r\n" + headers);
+    }
+
+    private static HttpRequest request(String head) {
+        return new HttpRequest((head + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static byte[] response(int status, String headers) {
+        return ("HTTP/1.1 " + status + " X\r\nContent-Type: text/plain\r\n" + headers
+            + "Content-Length: 2\r\n\r\nok").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            failures++;
+            System.out.println("FAIL: " + what);
+        }
+    }
+}
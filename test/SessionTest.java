@@ -0,0 +1,184 @@
+package test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import src.ConfigLoader;
+import src.Server;
+
+/**
+ * Runs a server with a proxied session route in front of a scripted
+ * upstream. Requests without a session must not start one; the upstream
+ * starts one by answering with X-Session-Data, sees it on later requests,
+ * and ends it with an empty value. Clients cannot supply the header
+ * themselves.
+ *
+ * From the project root:
+ *   javac -d out src/*.java src/utils/*.java test/SessionTest.java
+ *   java -cp out test.SessionTest
+ */
+public class SessionTest {
+    private static final int TIMEOUT_MILLIS = 5_000;
+
+    private static int failures;
+
+    // Request heads the upstream received, and the extra header line (or
+    // "") it adds to each of its responses.
+    private static final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+    private static final BlockingQueue<String> replies = new LinkedBlockingQueue<>();
+
+    public static void main(String[] args) throws Exception {
+        ServerSocket upstream = new ServerSocket(0);
+        Thread upstreamLoop = new Thread(() -> serveUpstream(upstream));
+        upstreamLoop.setDaemon(true);
+        upstreamLoop.start();
+
+        int port = freePort();
+        Server server = new Server(ConfigLoader.parse(config(port, upstream.getLocalPort())));
+        Thread loop = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                System.out.println("Server failed: " + e.getMessage());
+            }
+        });
+        loop.setDaemon(true);
+        loop.start();
+        try {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (!server.isListening() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            check(server.isListening(), "server is listening");
+
+            String reply = get(port, "", "");
+            String seen = received.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            check(reply.startsWith("HTTP/1.1 200 "), "anonymous request is proxied: " + reply);
+            check(!reply.contains("Set-Cookie"), "anonymous read starts no session: " + reply);
+            check(seen != null && !seen.contains("X-Session-Data"), "no session data upstream: " + seen);
+
+            get(port, "X-Session-Data: c3Bvb2Y=\r\n", "");
+            seen = received.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            check(seen != null && !seen.contains("X-Session-Data"), "client's session data is dropped: " + seen);
+
+            String data = Base64.getEncoder().encodeToString("user=42".getBytes(StandardCharsets.US_ASCII));
+            reply = get(port, "", "X-Session-Data: " + data + "\r\n");
+            received.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            String id = cookie(reply);
+            check(id != null, "upstream write starts a session: " + reply);
+            check(!reply.contains("X-Session-Data"), "upstream's session data is not relayed: " + reply);
+            if (id == null) {
+                return;
+            }
+
+            reply = get(port, "Cookie: SESSIONID=" + id + "\r\n", "");
+            seen = received.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            check(seen != null && seen.contains("X-Session-Data: " + data + "\r\n"), "session data upstream: " + seen);
+            check(!reply.contains("Set-Cookie"), "existing session gets no new cookie: " + reply);
+
+            reply = get(port, "Cookie: SESSIONID=" + id + "\r\n", "X-Session-Data: \r\n");
+            received.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            check(reply.contains("Set-Cookie: SESSIONID=; Path=/; Max-Age=0"), "empty data ends the session: " + reply);
+
+            get(port, "Cookie: SESSIONID=" + id + "\r\n", "");
+            seen = received.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            check(seen != null && !seen.contains("X-Session-Data"), "ended session is gone: " + seen);
+        } finally {
+            server.stop();
+            upstream.close();
+        }
+
+        if (failures > 0) {
+            System.out.println(failures + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    private static String get(int port, String headers, String upstreamHeader) throws IOException {
+        replies.add(upstreamHeader);
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            String request = "GET /app HTTP/1.1\r\nHost: localhost\r\n" + headers + "Connection: close\r\n\r\n";
+            socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+            return readAll(socket.getInputStream());
+        }
+    }
+
+    private static String cookie(String reply) {
+        int start = reply.indexOf("Set-Cookie: SESSIONID=");
+        if (start < 0) {
+            return null;
+        }
+        start += "Set-Cookie: SESSIONID=".length();
+        int end = reply.indexOf(';', start);
+        return end > start ? reply.substring(start, end) : null;
+    }
+
+    // One request per connection; each answer closes it.
+    private static void serveUpstream(ServerSocket upstream) {
+        while (true) {
+            try (Socket socket = upstream.accept()) {
+                socket.setSoTimeout(TIMEOUT_MILLIS);
+                InputStream in = socket.getInputStream();
+                StringBuilder head = new StringBuilder();
+                while (head.indexOf("\r\n\r\n") < 0) {
+                    int b = in.read();
+                    if (b < 0) {
+                        break;
+                    }
+                    head.append((char) b);
+                }
+                String extra = replies.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                received.add(head.toString());
+                String response = "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n" + (extra != null ? extra : "")
+                    + "Connection: close\r\n\r\nok";
+                socket.getOutputStream().write(response.getBytes(StandardCharsets.US_ASCII));
+            } catch (IOException | InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    private static String config(int port, int upstreamPort) {
+        return "{\n"
+            + "  \"host\": \"127.0.0.1\",\n"
+            + "  \"listeners\": [{ \"port\": " + port + " }],\n"
+            + "  \"routes\": [\n"
+            + "    { \"path\": \"/app\", \"session\": true,\n"
+            + "      \"proxy\": { \"upstreams\": [\"127.0.0.1:" + upstreamPort + "\"] } }\n"
+            + "  ]\n"
+            + "}\n";
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            failures++;
+            System.out.println("FAIL: " + what);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import src.Metrics;
+import src.SingleFlight;
+
+/**
+ * Checks SingleFlight: one leader per key, waiters released in order by
+ * finish() or by sweep() once the flight times out, and waiters that start
+ * flights of their own while being released. Time is passed in explicitly.
+ *
+ * From the project root:
+ *   javac -d out src/*.java test/SingleFlightTest.java
+ *   java -cp out test.SingleFlightTest
+ */
+public class SingleFlightTest {
+    private static int failures;
+
+    public static void main(String[] args) {
+        leadAndFinish();
+        timeouts();
+        reentrantWaiters();
+
+        if (failures > 0) {
+            System.out.println(failures + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    private static void leadAndFinish() {
+        Metrics metrics = new Metrics();
+        SingleFlight flights = new SingleFlight(metrics);
+        List<String> log = new ArrayList<>();
+
+        check(!flights.await("a", 0, () -> log.add("early")), "no flight to wait for");
+        check(flights.lead("a", 0, 1000), "first miss leads");
+        check(!flights.lead("a", 10, 1000), "second miss does not lead");
+        check(flights.lead("b", 10, 1000), "other keys lead on their own");
+        check(flights.await("a", 20, () -> log.add("w1")), "miss parks behind the flight");
+        check(flights.await("a", 30, () -> log.add("w2")), "second waiter parks too");
+        check(flights.await("b", 30, () -> log.add("b1")), "waiter on the other key");
+        check(log.isEmpty(), "waiters do not run before finish");
+
+        flights.finish("a");
+        check(log.equals(List.of("w1", "w2")), "finish runs the key's waiters in order: " + log);
+        flights.finish("a");
+        check(log.size() == 2, "finishing twice runs nothing more");
+        check(flights.lead("a", 40, 1000), "a finished key can lead again");
+
+        flights.finish("b");
+        check(log.equals(List.of("w1", "w2", "b1")), "other key finishes separately: " + log);
+        flights.finish("missing");
+
+        check(metrics.snapshot().get("cache.coalesced") == 3, "coalesced misses are counted");
+    }
+
+    private static void timeouts() {
+        Metrics metrics = new Metrics();
+        SingleFlight flights = new SingleFlight(metrics);
+        List<String> log = new ArrayList<>();
+
+        flights.lead("slow", 0, 100);
+        flights.lead("fast", 50, 100);
+        flights.await("slow", 10, () -> log.add("s1"));
+        flights.await("fast", 60, () -> log.add("f1"));
+
+        flights.sweep(99);
+        check(log.isEmpty(), "nothing released before the timeout");
+        flights.sweep(100);
+        check(log.equals(List.of("s1")), "sweep releases waiters of the expired flight only: " + log);
+        flights.sweep(200);
+        check(log.equals(List.of("s1", "f1")), "later sweep releases the other: " + log);
+        check(metrics.snapshot().get("cache.coalesce_timeouts") == 2, "timed-out waiters are counted");
+
+        check(!flights.await("slow", 150, () -> log.add("late")), "no parking behind an expired flight");
+        check(!flights.lead("slow", 150, 100), "an expired flight still holds its key until finish");
+        flights.finish("slow");
+        check(log.size() == 2, "released waiters do not run again on finish");
+        flights.sweep(1000);
+        check(log.size() == 2, "released waiters do not run again on sweep");
+    }
+
+    private static void reentrantWaiters() {
+        SingleFlight flights = new SingleFlight(new Metrics());
+        List<String> log = new ArrayList<>();
+
+        // A released waiter finds nothing cached and loads on its own; a
+        // later miss must then park behind that new flight.
+        flights.lead("k", 0, 1000);
+        flights.await("k", 1, () -> {
+            log.add("retry:" + flights.lead("k", 2, 1000));
+        });
+        flights.finish("k");
+        check(log.equals(List.of("retry:true")), "waiter may lead a new flight from finish: " + log);
+        check(flights.await("k", 3, () -> log.add("second")), "new flight accepts waiters");
+        flights.finish("k");
+        check(log.equals(List.of("retry:true", "second")), "second flight releases its waiter: " + log);
+
+        // The same from sweep, for two expired flights at once.
+        flights.lead("x", 0, 10);
+        flights.lead("y", 0, 10);
+        flights.await("x", 1, () -> {
+            flights.finish("x");
+            log.add("x:" + flights.lead("x", 20, 10));
+        });
+        flights.await("y", 1, () -> log.add("y"));
+        flights.sweep(20);
+        check(log.contains("x:true") && log.contains("y"), "sweep survives waiters that change flights: " + log);
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            failures++;
+            System.out.println("FAIL: " + what);
+        }
+    }
+}
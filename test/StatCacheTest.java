@@ -0,0 +1,178 @@
+package test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import src.Metrics;
+import src.StatCache;
+
+/**
+ * Checks StatCache lookups against a scratch directory tree, then changes
+ * the tree on disk and checks that the watch events reach the cache:
+ * created, deleted, rewritten and replaced entries, in the root and below.
+ *
+ * Watch events arrive asynchronously, so each change is polled for with
+ * processEvents() for up to ten seconds. Changes passed to invalidate() must
+ * be seen at once.
+ *
+ * From the project root:
+ *   javac -d out src/*.java test/StatCacheTest.java
+ *   java -cp out test.StatCacheTest
+ */
+public class StatCacheTest {
+    private static final long EVENT_TIMEOUT_MILLIS = 10_000;
+
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        Path root = Files.createTempDirectory("statcache-test-").toRealPath();
+        Path outside = Files.createTempDirectory("statcache-outside-").toRealPath();
+        Metrics metrics = new Metrics();
+        StatCache cache = new StatCache(List.of(root), metrics);
+        try {
+            lookups(cache, metrics, root, outside);
+            invalidation(cache, metrics, root);
+            ownWrites(cache, root);
+        } finally {
+            cache.close();
+            // The server's stop() closes the cache while its loop may still poll it.
+            cache.processEvents();
+            delete(root);
+            delete(outside);
+        }
+
+        if (failures > 0) {
+            System.out.println(failures + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    private static void lookups(StatCache cache, Metrics metrics, Path root, Path outside) throws IOException {
+        Files.write(root.resolve("a.txt"), new byte[10]);
+        Files.createDirectories(root.resolve("sub"));
+        Files.write(root.resolve("sub/b.txt"), new byte[20]);
+        Files.write(outside.resolve("c.txt"), new byte[30]);
+
+        check(cache.stat(root).isDirectory(), "root is a directory");
+        StatCache.Stat a = cache.stat(root.resolve("a.txt"));
+        check(a.getKind() == StatCache.Kind.FILE && a.getAttributes().size() == 10, "file in the root");
+        long hits = count(metrics, "statcache.hits");
+        check(cache.stat(root.resolve("a.txt")) == a, "second lookup is served from the cache");
+        check(count(metrics, "statcache.hits") == hits + 1, "second lookup counts as a hit");
+
+        StatCache.Stat b = cache.stat(root.resolve("sub/b.txt"));
+        check(b.exists() && !b.isDirectory() && b.getAttributes().size() == 20, "file in a subdirectory");
+        check(cache.stat(root.resolve("sub")).isDirectory(), "subdirectory");
+
+        long negative = count(metrics, "statcache.negative_hits");
+        check(!cache.stat(root.resolve("missing.txt")).exists(), "missing name");
+        check(!cache.stat(root.resolve("missing/deeper/x")).exists(), "path below a missing name");
+        check(!cache.stat(root.resolve("a.txt/x")).exists(), "path below a file");
+        check(cache.stat(root.resolve("missing.txt")).getAttributes() == null, "missing has no attributes");
+        check(count(metrics, "statcache.negative_hits") == negative + 4, "missing names need no stat");
+
+        long misses = count(metrics, "statcache.misses");
+        StatCache.Stat c = cache.stat(outside.resolve("c.txt"));
+        check(c.exists() && c.getAttributes().size() == 30, "path outside the roots is read from disk");
+        check(!cache.stat(outside.resolve("none")).exists(), "missing path outside the roots");
+        check(count(metrics, "statcache.misses") == misses + 2, "paths outside the roots always miss");
+    }
+
+    private static void invalidation(StatCache cache, Metrics metrics, Path root) throws Exception {
+        Path created = root.resolve("new.txt");
+        Files.write(created, new byte[5]);
+        check(!cache.stat(created).exists(), "a new file is unknown until its event is processed");
+        check(await(cache, created, s -> s.exists() && s.getAttributes().size() == 5), "created file appears");
+
+        Path a = root.resolve("a.txt");
+        Files.write(a, new byte[99]);
+        check(await(cache, a, s -> s.exists() && s.getAttributes().size() == 99), "rewritten file shows its new size");
+
+        Files.delete(a);
+        check(await(cache, a, s -> !s.exists()), "deleted file disappears");
+
+        Path nested = root.resolve("sub/new.txt");
+        Files.write(nested, new byte[7]);
+        check(await(cache, nested, s -> s.exists() && s.getAttributes().size() == 7),
+            "created file appears in a subdirectory");
+
+        // Replace the subdirectory with a file of the same name.
+        Path sub = root.resolve("sub");
+        Files.delete(sub.resolve("b.txt"));
+        Files.delete(nested);
+        Files.delete(sub);
+        Files.write(sub, new byte[3]);
+        check(await(cache, sub, s -> s.exists() && !s.isDirectory()), "replaced directory is now a file");
+        check(!cache.stat(sub.resolve("b.txt")).exists(), "nothing below a directory replaced by a file");
+
+        // And back again, with new contents.
+        Files.delete(sub);
+        Files.createDirectories(sub);
+        Files.write(sub.resolve("d.txt"), new byte[4]);
+        check(await(cache, sub.resolve("d.txt"), s -> s.exists() && s.getAttributes().size() == 4),
+            "recreated directory is listed afresh");
+        check(!cache.stat(sub.resolve("b.txt")).exists(), "old names of a recreated directory are gone");
+
+        check(count(metrics, "statcache.invalidations") > 0, "invalidations are counted");
+    }
+
+    // Changes made through invalidate() are seen at once, with no event
+    // processed in between.
+    private static void ownWrites(StatCache cache, Path root) throws IOException {
+        Path dir = root.resolve("uploads");
+        Path file = dir.resolve("up.txt");
+        check(!cache.stat(file).exists(), "upload target is missing at first");
+        Files.createDirectories(dir);
+        Files.write(file, new byte[6]);
+        cache.invalidate(file);
+        StatCache.Stat stat = cache.stat(file);
+        check(stat.exists() && stat.getAttributes().size() == 6, "invalidated file in a new directory is seen");
+
+        Files.write(file, new byte[12]);
+        cache.invalidate(file);
+        check(cache.stat(file).getAttributes().size() == 12, "invalidated rewrite shows its new size");
+
+        Files.delete(file);
+        cache.invalidate(file);
+        check(!cache.stat(file).exists(), "invalidated delete is seen");
+    }
+
+    // Processes events until the path's stat satisfies the condition.
+    private static boolean await(StatCache cache, Path path, Predicate<StatCache.Stat> condition)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + EVENT_TIMEOUT_MILLIS;
+        while (true) {
+            cache.processEvents();
+            if (condition.test(cache.stat(path))) {
+                return true;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    private static long count(Metrics metrics, String name) {
+        return metrics.snapshot().getOrDefault(name, 0L);
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            failures++;
+            System.out.println("FAIL: " + what);
+        }
+    }
+}
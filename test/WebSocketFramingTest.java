@@ -0,0 +1,405 @@
+package test;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import src.HttpRequest;
+import src.LoopBudget;
+import src.LoopConfig;
+import src.Metrics;
+import src.WebSocketCodec;
+import src.WebSocketConfig;
+import src.WebSocketConnection;
+import src.WebSocketHub;
+
+/**
+ * Checks the RFC 6455 helpers in WebSocketCodec and the Origin check of
+ * the opening handshake, then drives a WebSocketConnection over a loopback
+ * socket with masked client frames, split at awkward places, and checks
+ * what it answers and when it closes.
+ *
+ * From the project root:
+ *   javac -d out src/*.java test/WebSocketFramingTest.java
+ *   java -cp out test.WebSocketFramingTest
+ */
+public class WebSocketFramingTest {
+    private static int failures;
+
+    public static void main(String[] args) throws IOException {
+        codec();
+        messages();
+        protocolErrors();
+        closeHandshake();
+
+        if (failures > 0) {
+            System.out.println(failures + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    private static void codec() {
+        // The example handshake of RFC 6455 section 1.3.
+        check("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=".equals(WebSocketCodec.acceptKey("dGhlIHNhbXBsZSBub25jZQ==")),
+            "accept key for the RFC example");
+        check(WebSocketCodec.acceptKey("c2hvcnQ=") == null, "key that is not 16 bytes is refused");
+        check(WebSocketCodec.acceptKey("not base64!") == null, "key that is not base64 is refused");
+        check(WebSocketCodec.acceptKey(null) == null, "missing key is refused");
+
+        check(WebSocketCodec.isAllowedOrigin(upgrade(null), null), "no Origin: not a browser page");
+        check(WebSocketCodec.isAllowedOrigin(upgrade("http://example.com:8080"), null), "same origin");
+        check(WebSocketCodec.isAllowedOrigin(upgrade("HTTPS://Example.com:8080"), null), "same origin, any case");
+        check(!WebSocketCodec.isAllowedOrigin(upgrade("http://evil.test"), null), "other origin by default");
+        check(!WebSocketCodec.isAllowedOrigin(upgrade("http://example.com"), null), "other port by default");
+        check(!WebSocketCodec.isAllowedOrigin(upgrade("null"), null), "opaque origin by default");
+        List<String> allowed = List.of("https://app.example.com");
+        check(WebSocketCodec.isAllowedOrigin(upgrade("https://app.example.com"), allowed), "listed origin");
+        check(!WebSocketCodec.isAllowedOrigin(upgrade("http://example.com:8080"), allowed),
+            "a list replaces the same-origin default");
+        check(WebSocketCodec.isAllowedOrigin(upgrade("http://evil.test"), List.of("*")), "\"*\" allows any");
+        check(!new WebSocketConfig().isRelay(), "relay is off unless configured");
+
+        for (int length : new int[] { 0, 125, 126, 65535, 65536 }) {
+            byte[] payload = new byte[length];
+            new Random(length).nextBytes(payload);
+            byte[] frame = WebSocketCodec.encode(WebSocketCodec.BINARY, payload, 0, length);
+            int header = length <= 125 ? 2 : length <= 65535 ? 4 : 10;
+            check(frame.length == header + length, "frame size for " + length + "-byte payload");
+            check((frame[0] & 0xFF) == 0x82, "FIN and opcode for " + length + "-byte payload");
+            check((frame[1] & 0x80) == 0, "server frames are not masked");
+            long encoded = header == 2 ? frame[1] : header == 4
+                ? ByteBuffer.wrap(frame, 2, 2).getShort() & 0xFFFF : ByteBuffer.wrap(frame, 2, 8).getLong();
+            check(encoded == length, "length field for " + length + "-byte payload");
+            check(Arrays.equals(Arrays.copyOfRange(frame, header, frame.length), payload),
+                "payload of " + length + "-byte frame");
+        }
+
+        StringBuilder longReason = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            longReason.append('r');
+        }
+        byte[] close = WebSocketCodec.closeFrame(WebSocketCodec.CLOSE_GOING_AWAY, longReason.toString());
+        check(close[1] == WebSocketCodec.MAX_CONTROL_PAYLOAD, "close reason is cut to fit a control frame");
+        check((ByteBuffer.wrap(close, 2, 2).getShort() & 0xFFFF) == 1001, "close code");
+
+        // In-place unmasking must agree with the byte-at-a-time definition
+        // wherever the range starts and whatever key offset it resumes at.
+        Random random = new Random(6455);
+        int mask = random.nextInt();
+        byte[] key = ByteBuffer.allocate(4).putInt(mask).array();
+        for (int from = 0; from < 9; from++) {
+            for (int maskOffset = 0; maskOffset < 4; maskOffset++) {
+                byte[] data = new byte[40];
+                random.nextBytes(data);
+                ByteBuffer buf = ByteBuffer.wrap(data.clone());
+                int next = WebSocketCodec.unmask(buf, from, 37, mask, maskOffset);
+                boolean same = next == (maskOffset + 37 - from) % 4;
+                for (int i = 0; i < data.length; i++) {
+                    byte expected = i >= from && i < 37 ? (byte) (data[i] ^ key[(maskOffset + i - from) % 4]) : data[i];
+                    same &= buf.get(i) == expected;
+                }
+                check(same, "unmask from " + from + " at key offset " + maskOffset);
+            }
+        }
+
+        check(utf8("hello"), "ASCII is valid UTF-8");
+        check(utf8("h\u00e9llo \u20ac \ud83d\ude00"), "two-, three- and four-byte sequences are valid UTF-8");
+        check(!utf8(0xC0, 0x80), "overlong encoding is invalid");
+        check(!utf8(0xED, 0xA0, 0x80), "encoded surrogate is invalid");
+        check(!utf8(0xF4, 0x90, 0x80, 0x80), "code point above U+10FFFF is invalid");
+        check(!utf8(0xE2, 0x82), "truncated sequence is invalid");
+        check(!utf8(0x80), "lone continuation byte is invalid");
+        check(!utf8(0xFF), "0xFF is invalid");
+    }
+
+    private static void messages() throws IOException {
+        WebSocketConfig config = new WebSocketConfig();
+        config.setMaxMessageSize(100_000);
+        try (Peer peer = new Peer(config)) {
+            peer.send(frame(true, WebSocketCodec.TEXT, utf8Bytes("hello")));
+            check(peer.messagesIn() == 1, "whole text message");
+
+            // A ping split one byte per read comes back as a pong with the same payload.
+            byte[] ping = frame(true, WebSocketCodec.PING, utf8Bytes("abc"));
+            for (byte b : ping) {
+                peer.send(new byte[] { b });
+            }
+            expectFrame(peer, WebSocketCodec.PONG, utf8Bytes("abc"), "pong for a byte-by-byte ping");
+
+            // A ping between fragments is answered without disturbing the message.
+            peer.send(frame(false, WebSocketCodec.TEXT, utf8Bytes("h\u00e9")));
+            peer.send(frame(true, WebSocketCodec.PING, utf8Bytes("x")));
+            expectFrame(peer, WebSocketCodec.PONG, utf8Bytes("x"), "pong between fragments");
+            peer.send(frame(false, WebSocketCodec.CONTINUATION, utf8Bytes("ll")));
+            peer.send(frame(true, WebSocketCodec.CONTINUATION, utf8Bytes("o")));
+            check(peer.messagesIn() == 2, "fragmented text message counts once");
+
+            // A UTF-8 sequence split across fragments is only checked whole.
+            byte[] euro = utf8Bytes("\u20ac");
+            peer.send(frame(false, WebSocketCodec.TEXT, Arrays.copyOf(euro, 1)));
+            peer.send(frame(true, WebSocketCodec.CONTINUATION, Arrays.copyOfRange(euro, 1, 3)));
+            check(peer.messagesIn() == 3, "UTF-8 sequence split across fragments");
+
+            // 64-bit length form, with the header and payload split unevenly.
+            byte[] big = new byte[70_000];
+            new Random(1).nextBytes(big);
+            byte[] bigFrame = frame(true, WebSocketCodec.BINARY, big);
+            peer.send(Arrays.copyOfRange(bigFrame, 0, 5));
+            peer.send(Arrays.copyOfRange(bigFrame, 5, 40_001));
+            peer.send(Arrays.copyOfRange(bigFrame, 40_001, bigFrame.length));
+            check(peer.messagesIn() == 4, "70000-byte binary message");
+
+            // Two frames and half a third in one read.
+            byte[] a = frame(true, WebSocketCodec.BINARY, new byte[] { 1 });
+            byte[] b = frame(true, WebSocketCodec.PING, utf8Bytes("both"));
+            byte[] c = frame(true, WebSocketCodec.BINARY, new byte[300]);
+            byte[] batch = new byte[a.length + b.length + 100];
+            System.arraycopy(a, 0, batch, 0, a.length);
+            System.arraycopy(b, 0, batch, a.length, b.length);
+            System.arraycopy(c, 0, batch, a.length + b.length, 100);
+            peer.send(batch);
+            expectFrame(peer, WebSocketCodec.PONG, utf8Bytes("both"), "pong from a batched read");
+            check(peer.messagesIn() == 5, "first frame of a batched read");
+            peer.send(Arrays.copyOfRange(c, 100, c.length));
+            check(peer.messagesIn() == 6, "frame completed by the next read");
+            check(!peer.closed, "connection still open");
+        }
+    }
+
+    private static void protocolErrors() throws IOException {
+        WebSocketConfig config = new WebSocketConfig();
+        config.setMaxMessageSize(1000);
+        expectClose(config, unmasked(WebSocketCodec.TEXT, utf8Bytes("hi")),
+            WebSocketCodec.CLOSE_PROTOCOL_ERROR, "unmasked client frame");
+        expectClose(config, frame(true, WebSocketCodec.CONTINUATION, new byte[1]),
+            WebSocketCodec.CLOSE_PROTOCOL_ERROR, "continuation without a message");
+        expectClose(config, concat(frame(false, WebSocketCodec.TEXT, new byte[1]), frame(true, WebSocketCodec.TEXT, new byte[1])),
+            WebSocketCodec.CLOSE_PROTOCOL_ERROR, "new message inside a fragmented one");
+        expectClose(config, frame(true, 0x3, new byte[1]), WebSocketCodec.CLOSE_PROTOCOL_ERROR, "reserved opcode");
+        expectClose(config, frame(true, WebSocketCodec.PING, new byte[126]),
+            WebSocketCodec.CLOSE_PROTOCOL_ERROR, "control frame over 125 bytes");
+        expectClose(config, frame(false, WebSocketCodec.PING, new byte[1]),
+            WebSocketCodec.CLOSE_PROTOCOL_ERROR, "fragmented control frame");
+        byte[] rsv = frame(true, WebSocketCodec.TEXT, new byte[1]);
+        rsv[0] |= 0x40;
+        expectClose(config, rsv, WebSocketCodec.CLOSE_PROTOCOL_ERROR, "RSV bit without an extension");
+        expectClose(config, frame(true, WebSocketCodec.BINARY, new byte[1001]),
+            WebSocketCodec.CLOSE_TOO_BIG, "message over maxMessageSize");
+        expectClose(config, concat(frame(false, WebSocketCodec.BINARY, new byte[600]),
+                frame(true, WebSocketCodec.CONTINUATION, new byte[600])),
+            WebSocketCodec.CLOSE_TOO_BIG, "fragments adding up over maxMessageSize");
+        expectClose(config, frame(true, WebSocketCodec.TEXT, new byte[] { (byte) 0xC0, (byte) 0x80 }),
+            WebSocketCodec.CLOSE_INVALID_DATA, "invalid UTF-8 in a text message");
+    }
+
+    private static void closeHandshake() throws IOException {
+        WebSocketConfig config = new WebSocketConfig();
+        expectClose(config, frame(true, WebSocketCodec.CLOSE, closePayload(1000)), 1000, "client close is echoed");
+        expectClose(config, frame(true, WebSocketCodec.CLOSE, closePayload(4000)), 4000, "application close code is echoed");
+        expectClose(config, frame(true, WebSocketCodec.CLOSE, new byte[0]), 1000, "empty close is answered with 1000");
+        expectClose(config, frame(true, WebSocketCodec.CLOSE, closePayload(1005)),
+            WebSocketCodec.CLOSE_PROTOCOL_ERROR, "reserved close code");
+        expectClose(config, frame(true, WebSocketCodec.CLOSE, new byte[1]),
+            WebSocketCodec.CLOSE_PROTOCOL_ERROR, "one-byte close payload");
+
+        try (Peer peer = new Peer(config)) {
+            peer.connection.close(WebSocketCodec.CLOSE_GOING_AWAY, "bye");
+            byte[] payload = readFrame(peer, WebSocketCodec.CLOSE, "server-initiated close");
+            check(payload != null && payload.length == 5
+                && (ByteBuffer.wrap(payload).getShort() & 0xFFFF) == 1001
+                && new String(payload, 2, 3, StandardCharsets.UTF_8).equals("bye"),
+                "server close carries code and reason");
+            check(peer.closed, "socket closed once the close frame is written");
+        }
+    }
+
+    private static void expectClose(WebSocketConfig config, byte[] input, int code, String what) throws IOException {
+        try (Peer peer = new Peer(config)) {
+            long before = peer.messagesIn();
+            peer.send(input);
+            byte[] payload = readFrame(peer, WebSocketCodec.CLOSE, what);
+            int actual = payload != null && payload.length >= 2 ? ByteBuffer.wrap(payload).getShort() & 0xFFFF : -1;
+            check(actual == code, what + ": expected close " + code + ", got " + actual);
+            check(peer.closed, what + ": connection closed");
+            check(peer.client.getInputStream().read() == -1, what + ": socket closed");
+            if (code != 1000 && code != 4000) {
+                check(peer.messagesIn() == before, what + ": no message delivered");
+            }
+        }
+    }
+
+    private static void expectFrame(Peer peer, int opcode, byte[] payload, String what) throws IOException {
+        byte[] actual = readFrame(peer, opcode, what);
+        check(actual != null && Arrays.equals(actual, payload), what + ": payload");
+    }
+
+    // Reads one server frame, which must have the given opcode and FIN set.
+    private static byte[] readFrame(Peer peer, int opcode, String what) throws IOException {
+        DataInputStream in = new DataInputStream(peer.client.getInputStream());
+        int b0 = in.read();
+        if (b0 < 0) {
+            check(false, what + ": no frame before the socket closed");
+            return null;
+        }
+        int b1 = in.readUnsignedByte();
+        check(b0 == (0x80 | opcode), what + ": expected opcode " + opcode + ", got first byte " + b0);
+        check((b1 & 0x80) == 0, what + ": server frame is not masked");
+        long length = b1 & 0x7F;
+        if (length == 126) {
+            length = in.readUnsignedShort();
+        } else if (length == 127) {
+            length = in.readLong();
+        }
+        byte[] payload = new byte[(int) length];
+        in.readFully(payload);
+        return payload;
+    }
+
+    // A masked client frame.
+    private static byte[] frame(boolean fin, int opcode, byte[] payload) {
+        int length = payload.length;
+        ByteBuffer frame = ByteBuffer.allocate(14 + length);
+        frame.put((byte) ((fin ? 0x80 : 0) | opcode));
+        if (length <= 125) {
+            frame.put((byte) (0x80 | length));
+        } else if (length <= 0xFFFF) {
+            frame.put((byte) (0x80 | 126)).putShort((short) length);
+        } else {
+            frame.put((byte) (0x80 | 127)).putLong(length);
+        }
+        byte[] key = new byte[4];
+        new Random(length).nextBytes(key);
+        frame.put(key);
+        for (int i = 0; i < length; i++) {
+            frame.put((byte) (payload[i] ^ key[i & 3]));
+        }
+        return Arrays.copyOf(frame.array(), frame.position());
+    }
+
+    private static byte[] unmasked(int opcode, byte[] payload) {
+        byte[] frame = new byte[2 + payload.length];
+        frame[0] = (byte) (0x80 | opcode);
+        frame[1] = (byte) payload.length;
+        System.arraycopy(payload, 0, frame, 2, payload.length);
+        return frame;
+    }
+
+    private static byte[] closePayload(int code) {
+        return ByteBuffer.allocate(2).putShort((short) code).array();
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] both = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, both, a.length, b.length);
+        return both;
+    }
+
+    private static byte[] utf8Bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static boolean utf8(String s) {
+        byte[] bytes = utf8Bytes(s);
+        return WebSocketCodec.isValidUtf8(ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+    private static boolean utf8(int... octets) {
+        ByteBuffer buf = ByteBuffer.allocate(octets.length);
+        for (int octet : octets) {
+            buf.put((byte) octet);
+        }
+        return WebSocketCodec.isValidUtf8(buf, 0, octets.length);
+    }
+
+    private static HttpRequest upgrade(String origin) {
+        String head = "GET /live HTTP/1.1\r\nHost: example.com:8080\r\nUpgrade: websocket\r\n"
+            + (origin != null ? "Origin: " + origin + "\r\n" : "") + "\r\n";
+        return new HttpRequest(head.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            failures++;
+            System.out.println("FAIL: " + what);
+        }
+    }
+
+    // A connection over loopback: a blocking client socket on one end, and
+    // the WebSocketConnection on a selector on the other, pumped by hand
+    // the way the server loop would.
+    private static final class Peer implements Closeable {
+        final Socket client;
+        final WebSocketConnection connection;
+        private final Selector selector;
+        private final SocketChannel server;
+        private final Metrics metrics = new Metrics();
+        private final List<Runnable> loopTasks = new ArrayList<>();
+        boolean closed;
+
+        Peer(WebSocketConfig config) throws IOException {
+            try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+                listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                client = new Socket(InetAddress.getLoopbackAddress(), listener.socket().getLocalPort());
+                client.setSoTimeout(5000);
+                server = listener.accept();
+            }
+            server.configureBlocking(false);
+            selector = Selector.open();
+            SelectionKey key = server.register(selector, SelectionKey.OP_READ);
+            LoopConfig loop = new LoopConfig();
+            loop.setReadBudgetBytes(16 * 1024);
+            connection = new WebSocketConnection(server, key, new WebSocketHub(config, metrics),
+                ByteBuffer.allocate(64 * 1024), new LoopBudget(loop, metrics), loopTasks::add, () -> closed = true);
+            key.attach(connection);
+        }
+
+        // Writes bytes from the client, then runs the server side until it
+        // has consumed them.
+        void send(byte[] bytes) throws IOException {
+            OutputStream out = client.getOutputStream();
+            out.write(bytes);
+            out.flush();
+            int idle = 0;
+            while (!closed && idle < 3) {
+                List<Runnable> tasks = new ArrayList<>(loopTasks);
+                loopTasks.clear();
+                tasks.forEach(Runnable::run);
+                if (selector.select(50) == 0 && tasks.isEmpty()) {
+                    idle++;
+                    continue;
+                }
+                idle = 0;
+                for (SelectionKey key : selector.selectedKeys()) {
+                    connection.handleEvent(key);
+                }
+                selector.selectedKeys().clear();
+            }
+        }
+
+        long messagesIn() {
+            return metrics.snapshot().getOrDefault("websocket.messages_in", 0L);
+        }
+
+        @Override
+        public void close() throws IOException {
+            client.close();
+            server.close();
+            selector.close();
+        }
+    }
+}
@@ -1,8 +0,0 @@
-// // src/utils/Cookie.java
-// package src.utils;
-
-// public class Cookie {
-//     // Empty class for now - Member B will implement
-//     public Cookie(String name, String value) {}
-//     public String toString() { return ""; }
-// }
\ No newline at end of file